@@ -3,7 +3,6 @@ package com.confluence.rag;
 import com.confluence.rag.security.SecurityValidator;
 import com.confluence.rag.security.SecurityMonitor;
 import java.util.Scanner;
-import java.util.regex.Pattern;
 
 /**
  * Simple test application to demonstrate the jailbreak-proof security features
@@ -65,11 +64,11 @@ public class SecurityTestApp {
                 System.out.println("   - " + result.getErrorMessage());
                 
                 // Check for jailbreak patterns
-                if (hasJailbreakPatterns(input)) {
-                    System.out.println("   - Jailbreak-Versuch erkannt");
+                if (result.getMatchedRule() != null) {
+                    System.out.println("   - Jailbreak-Versuch erkannt (Regel " + result.getMatchedRule() + ")");
                     monitor.recordSecurityIncident(sessionId, ipAddress, 
                                                   SecurityMonitor.SecurityIncidentType.JAILBREAK_ATTEMPT, 
-                                                  "Jailbreak pattern detected: " + input);
+                                                  "Jailbreak rule " + result.getMatchedRule() + " matched: " + input);
                 } else {
                     monitor.recordSecurityIncident(sessionId, ipAddress, 
                                                   SecurityMonitor.SecurityIncidentType.OFF_TOPIC_QUERY, 
@@ -90,21 +89,4 @@ public class SecurityTestApp {
                                           "Validation error: " + e.getMessage());
         }
     }
-    
-    private static boolean hasJailbreakPatterns(String input) {
-        Pattern[] patterns = {
-            Pattern.compile("(?i).*(vergiss|ignore).*(anweisung|instruction).*"),
-            Pattern.compile("(?i).*(act as|pretend|roleplay|du bist jetzt|you are now).*"),
-            Pattern.compile("(?i).*(führe.*code.*aus|execute.*code).*"),
-            Pattern.compile("(?i).*(system.*prompt|admin.*mode|developer.*mode).*"),
-            Pattern.compile("(?i).*(password|passwort|secret|geheim).*")
-        };
-        
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(input).matches()) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
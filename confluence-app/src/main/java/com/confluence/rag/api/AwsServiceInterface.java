@@ -2,6 +2,7 @@ package com.confluence.rag.api;
 
 import com.confluence.rag.model.DocumentProcessingRequest;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Interface for AWS service operations
@@ -10,11 +11,20 @@ public interface AwsServiceInterface {
     
     /**
      * Generate AI response using AWS Bedrock
-     * @param query User query
-     * @param context Relevant context from documents
+     * @param systemPrompt Instructions sent in the system role
+     * @param userPrompt Context from documents and the user query, sent as the user message
      * @return AI-generated response
      */
-    String generateResponse(String query, String context);
+    String generateResponse(String systemPrompt, String userPrompt);
+    
+    /**
+     * Generate AI response using AWS Bedrock, streaming text as it is produced
+     * @param systemPrompt Instructions sent in the system role
+     * @param userPrompt Context from documents and the user query, sent as the user message
+     * @param onToken Receives each text fragment as soon as it arrives
+     * @return The complete AI-generated response
+     */
+    String generateResponseStream(String systemPrompt, String userPrompt, Consumer<String> onToken);
     
     /**
      * Process document through AWS Lambda
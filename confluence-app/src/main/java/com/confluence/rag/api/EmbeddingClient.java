@@ -0,0 +1,16 @@
+package com.confluence.rag.api;
+
+import java.util.List;
+
+/**
+ * Interface for computing vector embeddings of document chunks
+ */
+public interface EmbeddingClient {
+    
+    /**
+     * Embed several texts in one call
+     * @param texts Texts to embed
+     * @return One vector per text, in the same order
+     */
+    List<float[]> embed(List<String> texts);
+}
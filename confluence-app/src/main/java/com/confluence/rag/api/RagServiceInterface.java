@@ -4,6 +4,9 @@ import com.confluence.rag.model.ChatRequest;
 import com.confluence.rag.model.ChatResponse;
 import com.confluence.rag.model.DocumentProcessingRequest;
 import com.confluence.rag.model.DocumentProcessingResponse;
+import com.confluence.rag.util.Deadline;
+
+import java.util.concurrent.CompletionStage;
 
 /**
  * Interface for RAG (Retrieval-Augmented Generation) service operations
@@ -17,6 +20,37 @@ public interface RagServiceInterface {
      */
     ChatResponse processChat(ChatRequest request);
     
+    /**
+     * Process a chat request without blocking the calling thread
+     * @param request Chat request containing user query
+     * @return Stage completing with the chat response once retrieval and generation are done
+     */
+    CompletionStage<ChatResponse> processChatAsync(ChatRequest request);
+    
+    /**
+     * Process a chat request without blocking the calling thread, within a deadline
+     * @param request Chat request containing user query
+     * @param deadline Deadline shared by all stages of the request
+     * @return Stage completing with the chat response, or a timeout error response
+     */
+    CompletionStage<ChatResponse> processChatAsync(ChatRequest request, Deadline deadline);
+    
+    /**
+     * Process a chat request without blocking the calling thread, within a deadline
+     * @param request Chat request containing user query
+     * @param remoteUser Authenticated user as seen by the server, or null if anonymous
+     * @param remoteAddress Client address as seen by the server, or null if unknown
+     * @param deadline Deadline shared by all stages of the request
+     * @return Stage completing with the chat response, or a timeout error response
+     */
+    CompletionStage<ChatResponse> processChatAsync(ChatRequest request, String remoteUser, String remoteAddress, Deadline deadline);
+    
+    /**
+     * Time budget for a chat request in milliseconds
+     * @return Configured request timeout
+     */
+    long getChatTimeoutMillis();
+    
     /**
      * Process a document for indexing in the knowledge base
      * @param request Document processing request
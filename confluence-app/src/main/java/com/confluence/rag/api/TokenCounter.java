@@ -0,0 +1,22 @@
+package com.confluence.rag.api;
+
+/**
+ * Interface for counting model tokens in text
+ */
+public interface TokenCounter {
+    
+    /**
+     * Count the tokens the model would see for the given text
+     * @param text Text to count
+     * @return Number of tokens
+     */
+    int countTokens(CharSequence text);
+    
+    /**
+     * Cut text so that it fits into a token budget
+     * @param text Text to truncate
+     * @param maxTokens Token budget
+     * @return The longest prefix of the text, ending on a token boundary, that fits the budget
+     */
+    String truncate(String text, int maxTokens);
+}
@@ -0,0 +1,62 @@
+package com.confluence.rag.context;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Context text selected for a prompt together with the sources it was built from
+ */
+public class AssembledContext {
+    
+    private final String text;
+    private final List<String> sourceIds;
+    private final List<ContextChunk> chunks;
+    private final int tokenCount;
+    private final boolean includesHistory;
+    
+    public AssembledContext(String text, List<String> sourceIds, int tokenCount) {
+        this(text, sourceIds, tokenCount, false);
+    }
+    
+    public AssembledContext(String text, List<String> sourceIds, int tokenCount, boolean includesHistory) {
+        this(text, sourceIds, Collections.emptyList(), tokenCount, includesHistory);
+    }
+    
+    /**
+     * @param chunks The selected document chunks, in the order they appear in the text
+     */
+    public AssembledContext(String text, List<String> sourceIds, List<ContextChunk> chunks, int tokenCount, boolean includesHistory) {
+        this.text = text;
+        this.sourceIds = Collections.unmodifiableList(sourceIds);
+        this.chunks = Collections.unmodifiableList(chunks);
+        this.tokenCount = tokenCount;
+        this.includesHistory = includesHistory;
+    }
+    
+    public String getText() {
+        return text;
+    }
+    
+    public List<String> getSourceIds() {
+        return sourceIds;
+    }
+    
+    public List<ContextChunk> getChunks() {
+        return chunks;
+    }
+    
+    public int getTokenCount() {
+        return tokenCount;
+    }
+    
+    /**
+     * Whether prior conversation turns of the session are part of the context
+     */
+    public boolean includesHistory() {
+        return includesHistory;
+    }
+    
+    public boolean isEmpty() {
+        return sourceIds.isEmpty();
+    }
+}
@@ -0,0 +1,180 @@
+package com.confluence.rag.context;
+
+import com.confluence.rag.api.TokenCounter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Assembles the model context from retrieved chunks within a token budget.
+ *
+ * Chunks are picked greedily by maximal marginal relevance (MMR): each step takes
+ * the chunk with the best trade-off between relevance to the query and novelty
+ * compared to the chunks already selected, skipping chunks that no longer fit the
+ * remaining budget. Similarity is the cosine over distinct word terms.
+ *
+ * Prior conversation turns, if any, are selected first by their score within a
+ * share of the budget and rendered in chronological order before the documents.
+ */
+public class ContextAssembler {
+    
+    // Chunks this similar to an already selected chunk are treated as duplicates
+    private static final double DUPLICATE_SIMILARITY = 0.9;
+    
+    private static final String HISTORY_HEADER = "Bisheriger Gesprächsverlauf:\n";
+    
+    private final TokenCounter tokenCounter;
+    private final int maxTokens;
+    private final double lambda;
+    private final double historyShare;
+    
+    /**
+     * @param maxTokens Token budget for the whole context
+     * @param lambda Weight of relevance versus novelty, between 0 and 1
+     */
+    public ContextAssembler(TokenCounter tokenCounter, int maxTokens, double lambda) {
+        this(tokenCounter, maxTokens, lambda, 0.0);
+    }
+    
+    /**
+     * @param maxTokens Token budget for the whole context
+     * @param lambda Weight of relevance versus novelty, between 0 and 1
+     * @param historyShare Share of the budget conversation history may use, between 0 and 1
+     */
+    public ContextAssembler(TokenCounter tokenCounter, int maxTokens, double lambda, double historyShare) {
+        this.tokenCounter = tokenCounter;
+        this.maxTokens = maxTokens;
+        this.lambda = Math.max(0.0, Math.min(1.0, lambda));
+        this.historyShare = Math.max(0.0, Math.min(1.0, historyShare));
+    }
+    
+    /**
+     * Selects and formats chunks for the given query
+     */
+    public AssembledContext assemble(String query, List<ContextChunk> candidates) {
+        return assemble(query, candidates, Collections.emptyList());
+    }
+    
+    /**
+     * Selects and formats prior turns and chunks for the given query
+     * @param history Scored prior turns in chronological order; they are not reported as sources
+     */
+    public AssembledContext assemble(String query, List<ContextChunk> candidates, List<ContextChunk> history) {
+        StringBuilder context = new StringBuilder();
+        int usedTokens = appendHistory(context, history);
+        boolean hasHistory = usedTokens > 0;
+        
+        int n = candidates.size();
+        int[][] terms = new int[n][];
+        double[] relevance = new double[n];
+        int[] tokens = new int[n];
+        
+        int[] queryTerms = TermSimilarity.terms(query);
+        double maxScore = 0.0;
+        for (ContextChunk chunk : candidates) {
+            maxScore = Math.max(maxScore, chunk.getScore());
+        }
+        for (int i = 0; i < n; i++) {
+            ContextChunk chunk = candidates.get(i);
+            terms[i] = TermSimilarity.terms(chunk.getText());
+            relevance[i] = maxScore > 0.0 ? chunk.getScore() / maxScore : TermSimilarity.cosine(queryTerms, terms[i]);
+            tokens[i] = tokenCounter.countTokens(chunk.getText());
+        }
+        
+        List<String> sourceIds = new ArrayList<>();
+        List<ContextChunk> selectedChunks = new ArrayList<>();
+        List<Integer> selected = new ArrayList<>();
+        boolean[] done = new boolean[n];
+        
+        while (true) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            int bestCost = 0;
+            
+            for (int i = 0; i < n; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                
+                double redundancy = 0.0;
+                for (int j : selected) {
+                    redundancy = Math.max(redundancy, TermSimilarity.cosine(terms[i], terms[j]));
+                }
+                int cost = tokens[i] + headerTokens(selected.size() + 1);
+                if (redundancy >= DUPLICATE_SIMILARITY || usedTokens + cost > maxTokens) {
+                    done[i] = true;
+                    continue;
+                }
+                
+                double mmr = lambda * relevance[i] - (1.0 - lambda) * redundancy;
+                if (mmr > bestScore) {
+                    best = i;
+                    bestScore = mmr;
+                    bestCost = cost;
+                }
+            }
+            
+            if (best < 0) {
+                break;
+            }
+            
+            ContextChunk chunk = candidates.get(best);
+            done[best] = true;
+            selected.add(best);
+            usedTokens += bestCost;
+            sourceIds.add(chunk.getSourceId());
+            selectedChunks.add(chunk);
+            
+            context.append("Dokument ").append(selected.size()).append(": ");
+            context.append(chunk.getText());
+            context.append("\n\n");
+        }
+        
+        return new AssembledContext(context.toString(), sourceIds, selectedChunks, usedTokens, hasHistory);
+    }
+    
+    /**
+     * Appends the best-scoring prior turns that fit the history budget and returns the tokens used
+     */
+    private int appendHistory(StringBuilder context, List<ContextChunk> history) {
+        int budget = (int) (maxTokens * historyShare);
+        if (history.isEmpty() || budget <= 0) {
+            return 0;
+        }
+        
+        int usedTokens = tokenCounter.countTokens(HISTORY_HEADER) + 1;
+        boolean[] chosen = new boolean[history.size()];
+        List<Integer> byScore = new ArrayList<>();
+        for (int i = 0; i < history.size(); i++) {
+            byScore.add(i);
+        }
+        byScore.sort((a, b) -> Double.compare(history.get(b).getScore(), history.get(a).getScore()));
+        
+        int chosenCount = 0;
+        for (int i : byScore) {
+            int cost = tokenCounter.countTokens(history.get(i).getText()) + 1;
+            if (usedTokens + cost <= budget) {
+                chosen[i] = true;
+                usedTokens += cost;
+                chosenCount++;
+            }
+        }
+        if (chosenCount == 0) {
+            return 0;
+        }
+        
+        context.append(HISTORY_HEADER);
+        for (int i = 0; i < history.size(); i++) {
+            if (chosen[i]) {
+                context.append(history.get(i).getText()).append('\n');
+            }
+        }
+        context.append('\n');
+        return usedTokens;
+    }
+    
+    private int headerTokens(int documentNumber) {
+        return tokenCounter.countTokens("Dokument " + documentNumber + ": \n\n");
+    }
+}
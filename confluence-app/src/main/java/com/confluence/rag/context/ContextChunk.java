@@ -0,0 +1,36 @@
+package com.confluence.rag.context;
+
+/**
+ * A retrieved piece of a source document that can be placed in the model context
+ */
+public class ContextChunk {
+    
+    private final String sourceId;
+    private final String text;
+    private final double score;
+    
+    public ContextChunk(String sourceId, String text) {
+        this(sourceId, text, 0.0);
+    }
+    
+    /**
+     * @param score Retrieval score, or 0 if the retriever does not provide one
+     */
+    public ContextChunk(String sourceId, String text, double score) {
+        this.sourceId = sourceId;
+        this.text = text;
+        this.score = score;
+    }
+    
+    public String getSourceId() {
+        return sourceId;
+    }
+    
+    public String getText() {
+        return text;
+    }
+    
+    public double getScore() {
+        return score;
+    }
+}
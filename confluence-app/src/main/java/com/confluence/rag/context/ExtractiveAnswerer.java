@@ -0,0 +1,238 @@
+package com.confluence.rag.context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Answers a question from the retrieved chunks alone, without a language model.
+ *
+ * The chunks are split into sentences and every sentence is scored against the
+ * query with BM25 over word stems plus the share of query stems it covers. Early
+ * sentences of a chunk and chunks ranked higher by the assembler get a boost.
+ * The best sentences are quoted in document order, each with a reference to the
+ * document it came from.
+ */
+public class ExtractiveAnswerer {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final double COVERAGE_WEIGHT = 1.0;
+    private static final double SENTENCE_POSITION_BOOST = 0.3;
+    private static final double CHUNK_RANK_BOOST = 0.2;
+    private static final double DUPLICATE_SIMILARITY = 0.8;
+
+    // Words are compared by their first characters as a cheap stemmer for German inflection
+    private static final int STEM_LENGTH = 6;
+
+    private static final String INTRO = "Basierend auf den verfügbaren Informationen in der Wissensdatenbank:\n\n";
+    private static final String NO_ANSWER = "Basierend auf den verfügbaren Informationen in der Wissensdatenbank kann ich diese Frage nicht vollständig beantworten. Bitte stellen Sie sicher, dass Ihre Frage sich auf die konfigurierten Wissensquellen bezieht.";
+
+    private final int maxSentences;
+
+    /**
+     * @param maxSentences Most sentences quoted in one answer
+     */
+    public ExtractiveAnswerer(int maxSentences) {
+        this.maxSentences = Math.max(1, maxSentences);
+    }
+
+    /**
+     * Builds an answer from the chunks, which are expected in rank order
+     */
+    public String answer(String query, List<ContextChunk> chunks) {
+        List<Sentence> sentences = new ArrayList<>();
+        for (int rank = 0; rank < chunks.size(); rank++) {
+            split(chunks.get(rank).getText(), rank, sentences);
+        }
+        int[] queryStems = distinct(stems(query));
+        if (sentences.isEmpty() || queryStems.length == 0) {
+            return NO_ANSWER;
+        }
+
+        score(queryStems, sentences);
+
+        List<Sentence> byScore = new ArrayList<>(sentences);
+        byScore.sort((a, b) -> Double.compare(b.score, a.score));
+        List<Sentence> chosen = new ArrayList<>();
+        for (Sentence sentence : byScore) {
+            if (chosen.size() == maxSentences || sentence.score <= 0.0) {
+                break;
+            }
+            if (!isDuplicate(sentence, chosen)) {
+                chosen.add(sentence);
+            }
+        }
+        if (chosen.isEmpty()) {
+            return NO_ANSWER;
+        }
+
+        // Quote in document order so the answer reads like the source
+        chosen.sort((a, b) -> a.chunkRank != b.chunkRank ? Integer.compare(a.chunkRank, b.chunkRank)
+                                                         : Integer.compare(a.position, b.position));
+        StringBuilder answer = new StringBuilder(INTRO);
+        List<Integer> cited = new ArrayList<>();
+        for (Sentence sentence : chosen) {
+            if (!cited.contains(sentence.chunkRank)) {
+                cited.add(sentence.chunkRank);
+            }
+            answer.append("- ").append(sentence.text).append(" [").append(sentence.chunkRank + 1).append("]\n");
+        }
+        answer.append("\nQuellen: ");
+        for (int i = 0; i < cited.size(); i++) {
+            int rank = cited.get(i);
+            if (i > 0) {
+                answer.append(", ");
+            }
+            answer.append('[').append(rank + 1).append("] ").append(chunks.get(rank).getSourceId());
+        }
+        return answer.toString();
+    }
+
+    private void score(int[] queryStems, List<Sentence> sentences) {
+        int n = sentences.size();
+        double totalLength = 0.0;
+        int[] documentFrequency = new int[queryStems.length];
+        for (Sentence sentence : sentences) {
+            totalLength += sentence.stems.length;
+            for (int q = 0; q < queryStems.length; q++) {
+                if (count(sentence.stems, queryStems[q]) > 0) {
+                    documentFrequency[q]++;
+                }
+            }
+        }
+        double averageLength = Math.max(1.0, totalLength / n);
+
+        for (Sentence sentence : sentences) {
+            double bm25 = 0.0;
+            int covered = 0;
+            for (int q = 0; q < queryStems.length; q++) {
+                int frequency = count(sentence.stems, queryStems[q]);
+                if (frequency == 0) {
+                    continue;
+                }
+                covered++;
+                double idf = Math.log(1.0 + (n - documentFrequency[q] + 0.5) / (documentFrequency[q] + 0.5));
+                double norm = K1 * (1.0 - B + B * sentence.stems.length / averageLength);
+                bm25 += idf * frequency * (K1 + 1.0) / (frequency + norm);
+            }
+            if (covered == 0) {
+                sentence.score = 0.0;
+                continue;
+            }
+            double relevance = bm25 + COVERAGE_WEIGHT * covered / queryStems.length;
+            double boost = (1.0 + SENTENCE_POSITION_BOOST / (1 + sentence.position))
+                         * (1.0 + CHUNK_RANK_BOOST / (1 + sentence.chunkRank));
+            sentence.score = relevance * boost;
+        }
+    }
+
+    private static boolean isDuplicate(Sentence sentence, List<Sentence> chosen) {
+        for (Sentence other : chosen) {
+            if (TermSimilarity.cosine(sentence.distinctStems(), other.distinctStems()) >= DUPLICATE_SIMILARITY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits text into sentences at . ! ? followed by whitespace and at line breaks
+     */
+    private static void split(String text, int chunkRank, List<Sentence> out) {
+        int position = 0;
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            boolean boundary = i == length || text.charAt(i) == '\n'
+                || ((text.charAt(i) == '.' || text.charAt(i) == '!' || text.charAt(i) == '?')
+                    && (i + 1 == length || Character.isWhitespace(text.charAt(i + 1))));
+            if (!boundary) {
+                continue;
+            }
+            int end = i < length && text.charAt(i) != '\n' ? i + 1 : i;
+            String sentence = text.substring(start, end).trim();
+            if (!sentence.isEmpty()) {
+                int[] stems = stems(sentence);
+                if (stems.length > 0) {
+                    out.add(new Sentence(sentence, stems, chunkRank, position++));
+                }
+            }
+            start = i + 1;
+        }
+    }
+
+    /**
+     * Returns the hashed stems of the words in the text, in order and with repeats
+     */
+    private static int[] stems(String text) {
+        int[] stems = new int[16];
+        int count = 0;
+        int hash = 0;
+        int length = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (length < STEM_LENGTH) {
+                    hash = 31 * hash + Character.toLowerCase(c);
+                }
+                length++;
+                continue;
+            }
+            if (length > 1) {
+                if (count == stems.length) {
+                    stems = Arrays.copyOf(stems, count * 2);
+                }
+                stems[count++] = hash;
+            }
+            hash = 0;
+            length = 0;
+        }
+        return Arrays.copyOf(stems, count);
+    }
+
+    private static int[] distinct(int[] stems) {
+        int[] sorted = stems.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+    private static int count(int[] stems, int stem) {
+        int count = 0;
+        for (int s : stems) {
+            if (s == stem) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Sentence {
+        private final String text;
+        private final int[] stems;
+        private final int chunkRank;
+        private final int position;
+        private int[] distinctStems;
+        private double score;
+
+        Sentence(String text, int[] stems, int chunkRank, int position) {
+            this.text = text;
+            this.stems = stems;
+            this.chunkRank = chunkRank;
+            this.position = position;
+        }
+
+        int[] distinctStems() {
+            if (distinctStems == null) {
+                distinctStems = distinct(stems);
+            }
+            return distinctStems;
+        }
+    }
+}
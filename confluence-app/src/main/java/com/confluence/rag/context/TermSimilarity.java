@@ -0,0 +1,78 @@
+package com.confluence.rag.context;
+
+import java.util.Arrays;
+
+/**
+ * Lightweight lexical similarity over sets of hashed, lower-cased words
+ */
+public final class TermSimilarity {
+    
+    private static final int[] NO_TERMS = new int[0];
+    
+    private TermSimilarity() {
+    }
+    
+    /**
+     * Returns the sorted, distinct hashes of the lower-cased words in the text
+     */
+    public static int[] terms(String text) {
+        if (text == null) {
+            return NO_TERMS;
+        }
+        
+        int[] hashes = new int[16];
+        int count = 0;
+        int hash = 0;
+        int length = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                hash = 31 * hash + Character.toLowerCase(c);
+                length++;
+                continue;
+            }
+            if (length > 1) {
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = hash;
+            }
+            hash = 0;
+            length = 0;
+        }
+        
+        Arrays.sort(hashes, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || hashes[distinct - 1] != hashes[i]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        return Arrays.copyOf(hashes, distinct);
+    }
+    
+    /**
+     * Cosine similarity of two sorted term sets
+     */
+    public static double cosine(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0.0;
+        }
+        
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return shared / Math.sqrt((double) a.length * b.length);
+    }
+}
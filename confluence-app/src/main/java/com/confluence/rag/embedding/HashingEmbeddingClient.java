@@ -0,0 +1,52 @@
+package com.confluence.rag.embedding;
+
+import com.confluence.rag.api.EmbeddingClient;
+import com.confluence.rag.context.TermSimilarity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local stand-in for the remote embedding model.
+ *
+ * Word terms are hashed into a fixed number of signed buckets and the vector is
+ * L2-normalised, so texts sharing words get a positive cosine similarity.
+ */
+public class HashingEmbeddingClient implements EmbeddingClient {
+    
+    private final int dimensions;
+    
+    public HashingEmbeddingClient(int dimensions) {
+        this.dimensions = Math.max(1, dimensions);
+    }
+    
+    @Override
+    public List<float[]> embed(List<String> texts) {
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            vectors.add(embed(text));
+        }
+        return vectors;
+    }
+    
+    private float[] embed(String text) {
+        float[] vector = new float[dimensions];
+        for (int term : TermSimilarity.terms(text)) {
+            int mixed = term * 0x9E3779B1;
+            mixed ^= mixed >>> 15;
+            vector[(mixed >>> 1) % dimensions] += (mixed & 1) == 0 ? 1f : -1f;
+        }
+        
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0.0) {
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < dimensions; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,213 @@
+package com.confluence.rag.embedding;
+
+import com.confluence.rag.api.EmbeddingClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects single-chunk embedding requests into batched calls.
+ *
+ * A dispatcher thread takes the first queued chunk, then waits at most the linger
+ * time for more until the batch is full, and hands the batch to one of a fixed
+ * number of workers. While all workers are busy the dispatcher waits for a free
+ * slot, so under load batches fill up instead of the backend seeing more calls.
+ * Each caller gets a future for its own vector.
+ */
+public class MicroBatchingEmbedder {
+    
+    private static final Logger logger = LoggerFactory.getLogger(MicroBatchingEmbedder.class);
+    
+    private final EmbeddingClient client;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<PendingEmbedding> queue = new LinkedBlockingQueue<>();
+    private final Semaphore batchSlots;
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong embedded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    
+    /**
+     * @param maxBatchSize Most chunks sent in one call
+     * @param lingerMillis Longest time the first chunk of a batch waits for others
+     * @param maxBatchesInFlight Most calls running at the same time
+     */
+    public MicroBatchingEmbedder(EmbeddingClient client, int maxBatchSize, long lingerMillis, int maxBatchesInFlight) {
+        this.client = client;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMillis));
+        int slots = Math.max(1, maxBatchesInFlight);
+        this.batchSlots = new Semaphore(slots);
+        
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(slots, runnable -> {
+            Thread thread = new Thread(runnable, "rag-embedding-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatch, "rag-embedding-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    /**
+     * Queues a chunk for embedding
+     * @return Future completed with the chunk's vector, or exceptionally if its batch failed
+     */
+    public CompletableFuture<float[]> embed(String text) {
+        PendingEmbedding pending = new PendingEmbedding(text);
+        if (!running) {
+            pending.future.completeExceptionally(new RejectedExecutionException("Embedding batcher is shut down"));
+            return pending.future;
+        }
+        queue.add(pending);
+        if (!running) {
+            // Raced with shutdown after its queue was drained
+            failQueued();
+        }
+        return pending.future;
+    }
+    
+    public long getBatchCount() {
+        return batches.get();
+    }
+    
+    public long getEmbeddedCount() {
+        return embedded.get();
+    }
+    
+    public long getFailedCount() {
+        return failed.get();
+    }
+    
+    public int getQueuedCount() {
+        return queue.size();
+    }
+    
+    /**
+     * Average number of chunks per call so far
+     */
+    public double getAverageBatchSize() {
+        long batchCount = batches.get();
+        return batchCount == 0 ? 0.0 : (embedded.get() + failed.get()) / (double) batchCount;
+    }
+    
+    /**
+     * Stops accepting chunks; queued chunks are failed, running batches finish
+     */
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdown();
+        failQueued();
+    }
+    
+    private void dispatch() {
+        List<PendingEmbedding> batch = new ArrayList<>();
+        while (running) {
+            try {
+                PendingEmbedding first = queue.take();
+                batch = new ArrayList<>(maxBatchSize);
+                batch.add(first);
+                fillBatch(batch);
+                
+                batchSlots.acquire();
+                // Chunks that arrived while waiting for a slot join this batch
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                List<PendingEmbedding> ready = batch;
+                batch = new ArrayList<>();
+                try {
+                    workers.execute(() -> runBatch(ready));
+                } catch (RejectedExecutionException e) {
+                    batchSlots.release();
+                    fail(ready, e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        fail(batch, new RejectedExecutionException("Embedding batcher is shut down"));
+        failQueued();
+    }
+    
+    private void fillBatch(List<PendingEmbedding> batch) throws InterruptedException {
+        long lingerEnd = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            long remaining = lingerEnd - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0) {
+                return;
+            }
+            PendingEmbedding next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+    
+    private void runBatch(List<PendingEmbedding> batch) {
+        try {
+            List<String> texts = new ArrayList<>(batch.size());
+            for (PendingEmbedding pending : batch) {
+                texts.add(pending.text);
+            }
+            
+            List<float[]> vectors = client.embed(texts);
+            if (vectors.size() != batch.size()) {
+                throw new IllegalStateException("Expected " + batch.size() + " embeddings but got " + vectors.size());
+            }
+            batches.incrementAndGet();
+            embedded.addAndGet(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(vectors.get(i));
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Embedding batch of {} chunks failed", batch.size(), e);
+            batches.incrementAndGet();
+            fail(batch, e);
+        } finally {
+            batchSlots.release();
+        }
+    }
+    
+    private void failQueued() {
+        List<PendingEmbedding> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        fail(remaining, new RejectedExecutionException("Embedding batcher is shut down"));
+    }
+    
+    private void fail(List<PendingEmbedding> batch, Throwable error) {
+        failed.addAndGet(batch.size());
+        for (PendingEmbedding pending : batch) {
+            pending.future.completeExceptionally(error);
+        }
+    }
+    
+    private static final class PendingEmbedding {
+        private final String text;
+        private final CompletableFuture<float[]> future = new CompletableFuture<>();
+        
+        PendingEmbedding(String text) {
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.confluence.rag.history;
+
+import com.confluence.rag.context.ContextChunk;
+import com.confluence.rag.context.TermSimilarity;
+import com.confluence.rag.util.EvictionSampler;
+import com.confluence.rag.util.TimingWheel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory conversation history per chat session.
+ *
+ * Sessions are keyed by the authenticated user together with the client's session
+ * id, so a session id guessed or copied by another user finds no history; without
+ * an authenticated user nothing is stored.
+ *
+ * Each session keeps its most recent messages in a fixed-size ring buffer. A message
+ * is stored as one byte array: a role byte, the epoch millis and the UTF-8 text.
+ * Sessions idle for longer than the idle timeout are evicted through a timing wheel,
+ * and a global byte budget caps the memory of all sessions together; when it is
+ * reached, the least recently used of a small random sample of sessions is evicted
+ * (approximate LRU) and messages that still do not fit are not stored.
+ */
+public class ConversationHistoryStore {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ConversationHistoryStore.class);
+    
+    private static final int HEADER_BYTES = 1 + Long.BYTES;
+    private static final int ARRAY_OVERHEAD_BYTES = 16;
+    private static final int SESSION_OVERHEAD_BYTES = 160;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    private static final Comparator<SessionHistory> EVICTION_ORDER = Comparator.comparingLong(session -> session.lastAccess);
+    private static final double RECENCY_WEIGHT = 0.2;
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 512;
+    
+    /**
+     * Author of a stored message
+     */
+    public enum Role {
+        USER,
+        ASSISTANT
+    }
+    
+    private final Map<String, SessionHistory> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong evictedSessions = new AtomicLong();
+    private final int maxMessages;
+    private final int maxMessageChars;
+    private final long maxBytes;
+    private final long idleTimeoutMillis;
+    private final TimingWheel<SessionHistory> idleWheel;
+    private final ScheduledExecutorService ticker;
+    
+    /**
+     * @param maxMessages Messages kept per session
+     * @param maxMessageChars Longer messages are truncated before they are stored
+     * @param maxBytes Memory budget for all sessions together
+     * @param idleTimeoutMillis Sessions without activity for this long are evicted
+     */
+    public ConversationHistoryStore(int maxMessages, int maxMessageChars, long maxBytes, long idleTimeoutMillis) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxMessageChars = maxMessageChars;
+        this.maxBytes = maxBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.idleWheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, System.currentTimeMillis(), this::onIdleTimeout);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rag-history-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> idleWheel.advance(System.currentTimeMillis()),
+                                   TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Appends a message to the history of the user's session
+     */
+    public void append(String user, String sessionId, Role role, String text) {
+        String key = key(user, sessionId);
+        if (key == null || text == null) {
+            return;
+        }
+        
+        byte[] message = encode(role, text.length() > maxMessageChars ? text.substring(0, maxMessageChars) : text);
+        long cost = message.length + ARRAY_OVERHEAD_BYTES;
+        
+        while (true) {
+            SessionHistory session = sessions.get(key);
+            
+            // Reserve before taking any session lock, as reserving may evict other sessions
+            if (!reserve(cost + (session == null ? SESSION_OVERHEAD_BYTES : 0), session)) {
+                logger.debug("History memory budget exhausted, message for session {} not stored", sessionId);
+                return;
+            }
+            if (session == null) {
+                session = createSession(key);
+            }
+            
+            synchronized (session) {
+                if (session.evicted) {
+                    usedBytes.addAndGet(-cost);
+                    continue;
+                }
+                long freed = session.add(message, cost);
+                session.lastAccess = System.currentTimeMillis();
+                usedBytes.addAndGet(-freed);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Returns the messages of the user's session paired into turns (question and answer),
+     * in chronological order, scored by similarity to the query plus a recency boost
+     */
+    public List<ContextChunk> relevantTurns(String user, String sessionId, String query) {
+        String key = key(user, sessionId);
+        SessionHistory session = key != null ? sessions.get(key) : null;
+        if (session == null) {
+            return Collections.emptyList();
+        }
+        
+        List<byte[]> messages;
+        synchronized (session) {
+            session.lastAccess = System.currentTimeMillis();
+            messages = session.snapshot();
+        }
+        
+        List<String> turns = new ArrayList<>();
+        StringBuilder turn = new StringBuilder();
+        for (byte[] message : messages) {
+            Role role = Role.values()[message[0]];
+            if (role == Role.USER && turn.length() > 0) {
+                turns.add(turn.toString());
+                turn.setLength(0);
+            }
+            if (turn.length() > 0) {
+                turn.append('\n');
+            }
+            turn.append(role == Role.USER ? "Frage: " : "Antwort: ").append(decodeText(message));
+        }
+        if (turn.length() > 0) {
+            turns.add(turn.toString());
+        }
+        
+        int[] queryTerms = TermSimilarity.terms(query);
+        List<ContextChunk> chunks = new ArrayList<>(turns.size());
+        for (int i = 0; i < turns.size(); i++) {
+            String text = turns.get(i);
+            double recency = (i + 1) / (double) turns.size();
+            double score = TermSimilarity.cosine(queryTerms, TermSimilarity.terms(text)) + RECENCY_WEIGHT * recency;
+            chunks.add(new ContextChunk("history-" + i, text, score));
+        }
+        return chunks;
+    }
+    
+    /**
+     * Removes the history of the user's session
+     */
+    public void clear(String user, String sessionId) {
+        String key = key(user, sessionId);
+        SessionHistory session = key != null ? sessions.get(key) : null;
+        if (session != null) {
+            evict(session);
+        }
+    }
+    
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+    
+    public long getEvictedSessions() {
+        return evictedSessions.get();
+    }
+    
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+    
+    /**
+     * Key of a user's session, or null without an authenticated user
+     */
+    private static String key(String user, String sessionId) {
+        if (user == null || user.isEmpty() || sessionId == null) {
+            return null;
+        }
+        return user + '\u0000' + sessionId;
+    }
+    
+    /**
+     * Registers a new session whose overhead the caller has already reserved
+     */
+    private SessionHistory createSession(String key) {
+        SessionHistory created = new SessionHistory(key, maxMessages);
+        created.lastAccess = System.currentTimeMillis();
+        created.timeout = idleWheel.schedule(created, created.lastAccess + idleTimeoutMillis);
+        
+        SessionHistory existing = sessions.putIfAbsent(key, created);
+        if (existing != null) {
+            created.timeout.cancel();
+            usedBytes.addAndGet(-SESSION_OVERHEAD_BYTES);
+            return existing;
+        }
+        return created;
+    }
+    
+    /**
+     * Reserves bytes in the global budget, evicting other sessions if necessary
+     */
+    private boolean reserve(long bytes, SessionHistory requester) {
+        int evictions = 0;
+        while (true) {
+            long current = usedBytes.get();
+            if (current + bytes <= maxBytes) {
+                if (usedBytes.compareAndSet(current, current + bytes)) {
+                    return true;
+                }
+            } else if (evictions++ >= EVICTION_SAMPLE_SIZE || !evictLeastRecentlyUsedSample(requester)) {
+                return false;
+            }
+        }
+    }
+    
+    private boolean evictLeastRecentlyUsedSample(SessionHistory requester) {
+        SessionHistory victim = EvictionSampler.leastOfSample(sessions.values(), EVICTION_SAMPLE_SIZE,
+            EVICTION_ORDER, candidate -> candidate != requester);
+        if (victim == null) {
+            return false;
+        }
+        evict(victim);
+        return true;
+    }
+    
+    /**
+     * Called on the ticker thread when a session's idle timeout fires
+     */
+    private void onIdleTimeout(SessionHistory session) {
+        long idleUntil = session.lastAccess + idleTimeoutMillis;
+        if (idleUntil > System.currentTimeMillis()) {
+            // Touched since it was scheduled; check again when the new idle period ends
+            session.timeout = idleWheel.schedule(session, idleUntil);
+            return;
+        }
+        evict(session);
+    }
+    
+    private void evict(SessionHistory session) {
+        synchronized (session) {
+            if (session.evicted) {
+                return;
+            }
+            session.evicted = true;
+            session.timeout.cancel();
+            usedBytes.addAndGet(-(session.bytes + SESSION_OVERHEAD_BYTES));
+        }
+        sessions.remove(session.key, session);
+        evictedSessions.incrementAndGet();
+    }
+    
+    private static byte[] encode(Role role, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER_BYTES + utf8.length)
+            .put((byte) role.ordinal())
+            .putLong(System.currentTimeMillis())
+            .put(utf8)
+            .array();
+    }
+    
+    private static String decodeText(byte[] message) {
+        return new String(message, HEADER_BYTES, message.length - HEADER_BYTES, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Ring buffer of encoded messages for one session; guarded by its own monitor
+     */
+    private static final class SessionHistory {
+        private final String key;
+        private final byte[][] messages;
+        private int head;
+        private int size;
+        private long bytes;
+        private boolean evicted;
+        private volatile long lastAccess;
+        private volatile TimingWheel.Timeout<SessionHistory> timeout;
+        
+        SessionHistory(String key, int capacity) {
+            this.key = key;
+            this.messages = new byte[capacity][];
+        }
+        
+        /**
+         * Adds a message, overwriting the oldest one when full, and returns the bytes freed
+         */
+        long add(byte[] message, long cost) {
+            int capacity = messages.length;
+            int tail = (head + size) % capacity;
+            long freed = 0;
+            if (size == capacity) {
+                freed = messages[head].length + ARRAY_OVERHEAD_BYTES;
+                head = (head + 1) % capacity;
+            } else {
+                size++;
+            }
+            messages[tail] = message;
+            bytes += cost - freed;
+            return freed;
+        }
+        
+        List<byte[]> snapshot() {
+            List<byte[]> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(messages[(head + i) % messages.length]);
+            }
+            return result;
+        }
+    }
+}
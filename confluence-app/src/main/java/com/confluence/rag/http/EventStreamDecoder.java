@@ -0,0 +1,183 @@
+package com.confluence.rag.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental decoder for the AWS event stream framing (application/vnd.amazon.eventstream).
+ *
+ * Each message is a 12-byte prelude (total length, headers length, prelude CRC32),
+ * the headers, the payload and a CRC32 over the whole message. The decoder reads
+ * from the socket into one growing buffer and hands every complete message to the
+ * handler as soon as its last byte has arrived, without copying payloads or
+ * creating strings for headers.
+ */
+public class EventStreamDecoder {
+    
+    private static final int PRELUDE_BYTES = 12;
+    private static final int CRC_BYTES = 4;
+    private static final int MIN_MESSAGE_BYTES = PRELUDE_BYTES + CRC_BYTES;
+    private static final int INITIAL_BUFFER_BYTES = 8 * 1024;
+    
+    /**
+     * Receives decoded messages; the message view is only valid during the call
+     */
+    public interface MessageHandler {
+        void onMessage(EventStreamMessage message) throws IOException;
+    }
+    
+    private final int maxMessageBytes;
+    private final CRC32 crc = new CRC32();
+    private final EventStreamMessage message = new EventStreamMessage();
+    private byte[] buffer = new byte[INITIAL_BUFFER_BYTES];
+    private int start;
+    private int end;
+    
+    /**
+     * @param maxMessageBytes Larger messages are rejected as corrupt
+     */
+    public EventStreamDecoder(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+    
+    /**
+     * Decodes messages until the stream ends and returns the number of messages
+     * @throws IOException If the stream is corrupt or ends inside a message
+     */
+    public int decode(InputStream input, MessageHandler handler) throws IOException {
+        int messages = 0;
+        while (fill(input, PRELUDE_BYTES)) {
+            int totalLength = readInt(buffer, start);
+            int headersLength = readInt(buffer, start + 4);
+            if (totalLength < MIN_MESSAGE_BYTES || totalLength > maxMessageBytes
+                    || headersLength < 0 || headersLength > totalLength - MIN_MESSAGE_BYTES) {
+                throw new IOException("Invalid event stream prelude: length " + totalLength + ", headers " + headersLength);
+            }
+            checkCrc(start, 8, readInt(buffer, start + 8), "prelude");
+            
+            if (!fill(input, totalLength)) {
+                throw new EOFException("Event stream ended inside a message");
+            }
+            checkCrc(start, totalLength - CRC_BYTES, readInt(buffer, start + totalLength - CRC_BYTES), "message");
+            
+            parseHeaders(start + PRELUDE_BYTES, headersLength);
+            message.buffer = buffer;
+            message.payloadOffset = start + PRELUDE_BYTES + headersLength;
+            message.payloadLength = totalLength - headersLength - MIN_MESSAGE_BYTES;
+            handler.onMessage(message);
+            
+            start += totalLength;
+            messages++;
+        }
+        return messages;
+    }
+    
+    /**
+     * Drops any buffered bytes so the decoder can be reused for another stream
+     */
+    public void reset() {
+        start = 0;
+        end = 0;
+    }
+    
+    /**
+     * Reads until at least the given number of bytes are buffered after start.
+     * Returns false on a clean end of stream at a message boundary.
+     */
+    private boolean fill(InputStream input, int needed) throws IOException {
+        if (end - start >= needed) {
+            return true;
+        }
+        if (start + needed > buffer.length) {
+            // Compact, and grow if the message does not fit even then
+            int buffered = end - start;
+            byte[] target = needed > buffer.length ? new byte[Math.max(needed, buffer.length * 2)] : buffer;
+            System.arraycopy(buffer, start, target, 0, buffered);
+            buffer = target;
+            start = 0;
+            end = buffered;
+        }
+        while (end - start < needed) {
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                if (end == start) {
+                    return false;
+                }
+                throw new EOFException("Event stream ended inside a message");
+            }
+            end += read;
+        }
+        return true;
+    }
+    
+    private void parseHeaders(int offset, int length) throws IOException {
+        int limit = offset + length;
+        int count = 0;
+        int position = offset;
+        while (position < limit) {
+            message.ensureHeaderCapacity(count + 1);
+            int nameLength = buffer[position++] & 0xFF;
+            message.nameOffsets[count] = position;
+            message.nameLengths[count] = nameLength;
+            position += nameLength;
+            if (position >= limit) {
+                throw new IOException("Truncated event stream header");
+            }
+            byte type = buffer[position++];
+            message.valueTypes[count] = type;
+            int valueLength;
+            switch (type) {
+                case EventStreamMessage.TYPE_BOOL_TRUE:
+                case EventStreamMessage.TYPE_BOOL_FALSE:
+                    valueLength = 0;
+                    break;
+                case EventStreamMessage.TYPE_BYTE:
+                    valueLength = 1;
+                    break;
+                case EventStreamMessage.TYPE_SHORT:
+                    valueLength = 2;
+                    break;
+                case EventStreamMessage.TYPE_INT:
+                    valueLength = 4;
+                    break;
+                case EventStreamMessage.TYPE_LONG:
+                case EventStreamMessage.TYPE_TIMESTAMP:
+                    valueLength = 8;
+                    break;
+                case EventStreamMessage.TYPE_UUID:
+                    valueLength = 16;
+                    break;
+                case EventStreamMessage.TYPE_BYTES:
+                case EventStreamMessage.TYPE_STRING:
+                    valueLength = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+                    position += 2;
+                    break;
+                default:
+                    throw new IOException("Unknown event stream header type " + type);
+            }
+            message.valueOffsets[count] = position;
+            message.valueLengths[count] = valueLength;
+            position += valueLength;
+            count++;
+        }
+        if (position != limit) {
+            throw new IOException("Truncated event stream header");
+        }
+        message.headerCount = count;
+    }
+    
+    private void checkCrc(int offset, int length, int expected, String part) throws IOException {
+        crc.reset();
+        crc.update(buffer, offset, length);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Event stream " + part + " checksum mismatch");
+        }
+    }
+    
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+            | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
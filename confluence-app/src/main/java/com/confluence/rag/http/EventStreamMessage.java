@@ -0,0 +1,153 @@
+package com.confluence.rag.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * View of one decoded application/vnd.amazon.eventstream message.
+ *
+ * The view points into the decoder's read buffer and is reused for every message,
+ * so it is only valid during the handler callback. Header lookups compare bytes
+ * in place; strings are only created when a caller asks for one.
+ */
+public final class EventStreamMessage {
+    
+    static final byte TYPE_BOOL_TRUE = 0;
+    static final byte TYPE_BOOL_FALSE = 1;
+    static final byte TYPE_BYTE = 2;
+    static final byte TYPE_SHORT = 3;
+    static final byte TYPE_INT = 4;
+    static final byte TYPE_LONG = 5;
+    static final byte TYPE_BYTES = 6;
+    static final byte TYPE_STRING = 7;
+    static final byte TYPE_TIMESTAMP = 8;
+    static final byte TYPE_UUID = 9;
+    
+    private static final byte[] MESSAGE_TYPE = ascii(":message-type");
+    private static final byte[] EVENT_TYPE = ascii(":event-type");
+    private static final byte[] EXCEPTION_TYPE = ascii(":exception-type");
+    private static final byte[] ERROR_CODE = ascii(":error-code");
+    private static final byte[] EVENT = ascii("event");
+    
+    byte[] buffer;
+    int headerCount;
+    int[] nameOffsets = new int[8];
+    int[] nameLengths = new int[8];
+    byte[] valueTypes = new byte[8];
+    int[] valueOffsets = new int[8];
+    int[] valueLengths = new int[8];
+    int payloadOffset;
+    int payloadLength;
+    
+    public byte[] getBuffer() {
+        return buffer;
+    }
+    
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+    
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+    
+    public int getHeaderCount() {
+        return headerCount;
+    }
+    
+    /**
+     * Returns true for regular events; false for exception and error messages
+     */
+    public boolean isEvent() {
+        int header = findHeader(MESSAGE_TYPE);
+        return header < 0 || valueEquals(header, EVENT);
+    }
+    
+    /**
+     * Returns true if the :event-type header equals the given ASCII name, without allocating
+     */
+    public boolean isEventType(String eventType) {
+        int header = findHeader(EVENT_TYPE);
+        if (header < 0 || valueLengths[header] != eventType.length()) {
+            return false;
+        }
+        int offset = valueOffsets[header];
+        for (int i = 0; i < eventType.length(); i++) {
+            if (buffer[offset + i] != (byte) eventType.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the exception or error type of a non-event message, or null
+     */
+    public String getErrorType() {
+        int header = findHeader(EXCEPTION_TYPE);
+        if (header < 0) {
+            header = findHeader(ERROR_CODE);
+        }
+        return header < 0 ? null : valueString(header);
+    }
+    
+    /**
+     * Returns the value of a string or bytes header decoded as UTF-8, or null if absent
+     */
+    public String getHeader(String name) {
+        int header = findHeader(ascii(name));
+        return header < 0 ? null : valueString(header);
+    }
+    
+    /**
+     * Returns the payload decoded as UTF-8; allocates, intended for error messages
+     */
+    public String getPayloadAsString() {
+        return new String(buffer, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+    
+    private int findHeader(byte[] name) {
+        for (int header = 0; header < headerCount; header++) {
+            if (nameLengths[header] == name.length && regionEquals(nameOffsets[header], name)) {
+                return header;
+            }
+        }
+        return -1;
+    }
+    
+    private boolean valueEquals(int header, byte[] value) {
+        return valueLengths[header] == value.length && regionEquals(valueOffsets[header], value);
+    }
+    
+    private boolean regionEquals(int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private String valueString(int header) {
+        byte type = valueTypes[header];
+        if (type != TYPE_STRING && type != TYPE_BYTES) {
+            return null;
+        }
+        return new String(buffer, valueOffsets[header], valueLengths[header], StandardCharsets.UTF_8);
+    }
+    
+    void ensureHeaderCapacity(int count) {
+        if (count > nameOffsets.length) {
+            int capacity = Math.max(count, nameOffsets.length * 2);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+            valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+            valueLengths = Arrays.copyOf(valueLengths, capacity);
+        }
+    }
+    
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,309 @@
+package com.confluence.rag.http;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared HTTP transport for all outbound calls to AWS.
+ *
+ * Blocking calls go through one pooled Apache HttpClient with keep-alive
+ * connections, a total and a per-route connection limit, a connection time to
+ * live and a background thread that closes expired and idle connections. An
+ * asynchronous client on top of the JDK HttpClient negotiates HTTP/2 where the
+ * endpoint supports it and multiplexes requests over its own connections.
+ *
+ * Settings are read from the http.* keys in application.properties.
+ */
+public class HttpTransport implements Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HttpTransport.class);
+    
+    private static final String ROUTE_LIMIT_PREFIX = "http.pool.max.per.route.";
+    private static final int DEFAULT_MAX_TOTAL = 100;
+    private static final int DEFAULT_MAX_PER_ROUTE = 20;
+    private static final int DEFAULT_TTL_SECONDS = 300;
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_ACQUIRE_TIMEOUT_MS = 1000;
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+    
+    private static volatile HttpTransport shared;
+    
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final HttpClient asyncClient;
+    private final long idleTimeoutMillis;
+    private final long requestTimeoutMillis;
+    
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong asyncRequests = new AtomicLong();
+    private final AtomicLong asyncInFlight = new AtomicLong();
+    
+    public HttpTransport(Properties config) {
+        int ttlSeconds = getIntProperty(config, "http.connection.ttl.seconds", DEFAULT_TTL_SECONDS);
+        this.idleTimeoutMillis = getIntProperty(config, "http.connection.idle.timeout.seconds", DEFAULT_IDLE_TIMEOUT_SECONDS) * 1000L;
+        int connectTimeout = getIntProperty(config, "http.connect.timeout.ms", DEFAULT_CONNECT_TIMEOUT_MS);
+        int socketTimeout = getIntProperty(config, "http.socket.timeout.ms", DEFAULT_SOCKET_TIMEOUT_MS);
+        this.requestTimeoutMillis = socketTimeout;
+        
+        this.connectionManager = new PoolingHttpClientConnectionManager(ttlSeconds, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(getIntProperty(config, "http.pool.max.total", DEFAULT_MAX_TOTAL));
+        connectionManager.setDefaultMaxPerRoute(getIntProperty(config, "http.pool.max.per.route", DEFAULT_MAX_PER_ROUTE));
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+        applyRouteLimits(config);
+        
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .setConnectionRequestTimeout(getIntProperty(config, "http.pool.acquire.timeout.ms", DEFAULT_ACQUIRE_TIMEOUT_MS))
+            .build();
+        
+        this.client = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAliveStrategy())
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+            .build();
+        
+        if (Boolean.parseBoolean(config.getProperty("http.async.enabled", "true"))) {
+            this.asyncClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .build();
+        } else {
+            this.asyncClient = null;
+        }
+    }
+    
+    /**
+     * Returns the process-wide transport, created from application.properties on first use
+     */
+    public static HttpTransport shared() {
+        HttpTransport transport = shared;
+        if (transport == null) {
+            synchronized (HttpTransport.class) {
+                transport = shared;
+                if (transport == null) {
+                    transport = new HttpTransport(loadConfiguration());
+                    shared = transport;
+                }
+            }
+        }
+        return transport;
+    }
+    
+    /**
+     * Executes a blocking request on a pooled connection; the caller closes the response
+     * to return the connection to the pool
+     */
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        requests.incrementAndGet();
+        try {
+            return client.execute(request);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+    
+    /**
+     * Sends a request over the HTTP/2-capable async client; requests without their own
+     * timeout complete exceptionally after the socket timeout
+     * @throws IllegalStateException If the async client is disabled
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        if (asyncClient == null) {
+            throw new IllegalStateException("Async HTTP transport is disabled");
+        }
+        asyncRequests.incrementAndGet();
+        asyncInFlight.incrementAndGet();
+        CompletableFuture<HttpResponse<T>> response = asyncClient.sendAsync(request, handler);
+        if (!request.timeout().isPresent()) {
+            response = response.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return response.whenComplete((result, error) -> {
+            asyncInFlight.decrementAndGet();
+            if (error != null) {
+                failures.incrementAndGet();
+            }
+        });
+    }
+    
+    public boolean isAsyncEnabled() {
+        return asyncClient != null;
+    }
+    
+    /**
+     * Returns a snapshot of pool utilisation and request counters
+     */
+    public PoolMetrics getMetrics() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return new PoolMetrics(stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(),
+                               connectionManager.getRoutes().size(), requests.get(), failures.get(),
+                               asyncRequests.get(), asyncInFlight.get());
+    }
+    
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+    
+    /**
+     * Keeps connections alive for as long as the server allows, or the idle timeout if it does not say
+     */
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (response, context) -> {
+            BasicHeaderElementIterator elements = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (elements.hasNext()) {
+                HeaderElement element = elements.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000L, idleTimeoutMillis);
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+            return idleTimeoutMillis;
+        };
+    }
+    
+    /**
+     * Applies http.pool.max.per.route.&lt;host&gt; overrides for HTTPS routes
+     */
+    private void applyRouteLimits(Properties config) {
+        for (String key : config.stringPropertyNames()) {
+            if (!key.startsWith(ROUTE_LIMIT_PREFIX)) {
+                continue;
+            }
+            String host = key.substring(ROUTE_LIMIT_PREFIX.length());
+            int limit = getIntProperty(config, key, DEFAULT_MAX_PER_ROUTE);
+            connectionManager.setMaxPerRoute(new HttpRoute(new HttpHost(host, 443, "https")), limit);
+        }
+    }
+    
+    private static Properties loadConfiguration() {
+        Properties config = new Properties();
+        try (InputStream input = HttpTransport.class.getResourceAsStream("/application.properties")) {
+            if (input != null) {
+                config.load(input);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not load HTTP transport configuration, using defaults", e);
+        }
+        return config;
+    }
+    
+    private static int getIntProperty(Properties config, String key, int defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value for {}: {}, using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Point-in-time view of the connection pool and request counters
+     */
+    public static class PoolMetrics {
+        private final int leased;
+        private final int available;
+        private final int pending;
+        private final int maxTotal;
+        private final int routes;
+        private final long requests;
+        private final long failures;
+        private final long asyncRequests;
+        private final long asyncInFlight;
+        
+        public PoolMetrics(int leased, int available, int pending, int maxTotal, int routes,
+                           long requests, long failures, long asyncRequests, long asyncInFlight) {
+            this.leased = leased;
+            this.available = available;
+            this.pending = pending;
+            this.maxTotal = maxTotal;
+            this.routes = routes;
+            this.requests = requests;
+            this.failures = failures;
+            this.asyncRequests = asyncRequests;
+            this.asyncInFlight = asyncInFlight;
+        }
+        
+        public int getLeased() {
+            return leased;
+        }
+        
+        public int getAvailable() {
+            return available;
+        }
+        
+        public int getPending() {
+            return pending;
+        }
+        
+        public int getMaxTotal() {
+            return maxTotal;
+        }
+        
+        public int getRoutes() {
+            return routes;
+        }
+        
+        public long getRequests() {
+            return requests;
+        }
+        
+        public long getFailures() {
+            return failures;
+        }
+        
+        public long getAsyncRequests() {
+            return asyncRequests;
+        }
+        
+        public long getAsyncInFlight() {
+            return asyncInFlight;
+        }
+        
+        /**
+         * Share of the pool's connections currently leased, between 0 and 1
+         */
+        public double getUtilisation() {
+            return maxTotal > 0 ? leased / (double) maxTotal : 0.0;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.confluence.rag.json;
+
+import com.confluence.rag.model.ChatRequest;
+import com.confluence.rag.model.ChatResponse;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand-written streaming JSON mapping for the payloads on the request path.
+ *
+ * Fields are read and written with JsonParser/JsonGenerator directly against the
+ * request and response streams, so no intermediate String, Map or tree is built
+ * and no reflection runs per request. The field names match the @JsonProperty
+ * names on the model classes; unknown request fields are skipped.
+ */
+public final class ChatJsonCodec {
+    
+    private ChatJsonCodec() {
+    }
+    
+    /**
+     * Reads a chat request; returns null for an empty body
+     */
+    public static ChatRequest readChatRequest(InputStream in) throws IOException {
+        try (JsonParser parser = JsonSupport.factory().createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.VALUE_NULL) {
+                return null;
+            }
+            expect(parser, token, JsonToken.START_OBJECT);
+            
+            ChatRequest request = new ChatRequest();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "message":
+                        request.setMessage(readString(parser, value));
+                        break;
+                    case "sessionId":
+                        request.setSessionId(readString(parser, value));
+                        break;
+                    case "userId":
+                        request.setUserId(readString(parser, value));
+                        break;
+                    case "spaceKey":
+                        request.setSpaceKey(readString(parser, value));
+                        break;
+                    case "contextualSources":
+                        request.setContextualSources(readStringList(parser, value));
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+            return request;
+        }
+    }
+    
+    public static void writeChatResponse(ChatResponse response, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            writeChatResponse(response, generator);
+        }
+    }
+    
+    public static void writeChatResponse(ChatResponse response, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("response", response.getResponse());
+        generator.writeStringField("sessionId", response.getSessionId());
+        generator.writeFieldName("sources");
+        writeStringList(response.getSources(), generator);
+        generator.writeNumberField("confidence", response.getConfidence());
+        generator.writeNumberField("timestamp", response.getTimestamp());
+        generator.writeStringField("error", response.getError());
+        generator.writeEndObject();
+    }
+    
+    /**
+     * Writes {"results": [...]}
+     */
+    public static void writeSearchResults(List<String> results, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeFieldName("results");
+            writeStringList(results, generator);
+            generator.writeEndObject();
+        }
+    }
+    
+    /**
+     * Writes {"error": message}
+     */
+    public static void writeError(String message, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("error", message);
+            generator.writeEndObject();
+        }
+    }
+    
+    /**
+     * Writes {"status": status} with an optional message
+     */
+    public static void writeStatus(String status, String message, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("status", status);
+            if (message != null) {
+                generator.writeStringField("message", message);
+            }
+            generator.writeEndObject();
+        }
+    }
+    
+    /**
+     * Writes an Anthropic messages request for Bedrock with one user turn
+     */
+    public static void writeModelRequest(String anthropicVersion, int maxTokens, String system,
+                                         String userContent, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("anthropic_version", anthropicVersion);
+            generator.writeNumberField("max_tokens", maxTokens);
+            generator.writeStringField("system", system);
+            generator.writeArrayFieldStart("messages");
+            generator.writeStartObject();
+            generator.writeStringField("role", "user");
+            generator.writeStringField("content", userContent);
+            generator.writeEndObject();
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+    
+    private static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return JsonSupport.factory().createGenerator(out, JsonEncoding.UTF8);
+    }
+    
+    private static void writeStringList(List<String> values, JsonGenerator generator) throws IOException {
+        if (values == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartArray();
+        for (String value : values) {
+            generator.writeString(value);
+        }
+        generator.writeEndArray();
+    }
+    
+    private static String readString(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            throw new JsonParseException(parser, "Expected a string but found " + token);
+        }
+        return parser.getValueAsString();
+    }
+    
+    private static List<String> readStringList(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, token, JsonToken.START_ARRAY);
+        List<String> values = new ArrayList<>();
+        JsonToken element;
+        while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (element == null) {
+                throw new JsonParseException(parser, "Unexpected end of input in array");
+            }
+            values.add(readString(parser, element));
+        }
+        return values;
+    }
+    
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + actual);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.confluence.rag.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Shared Jackson configuration.
+ *
+ * ObjectMapper and JsonFactory are thread-safe once configured, and creating them
+ * is expensive because every new mapper rebuilds its serializer caches. All JSON in
+ * the plugin goes through this one instance.
+ */
+public final class JsonSupport {
+    
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+        // Callers own the streams they hand to a generator
+        .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    
+    private JsonSupport() {
+    }
+    
+    public static ObjectMapper mapper() {
+        return MAPPER;
+    }
+    
+    /**
+     * Factory for streaming parsers and generators with the mapper's settings
+     */
+    public static JsonFactory factory() {
+        return MAPPER.getFactory();
+    }
+}
@@ -1,12 +1,14 @@
 package com.confluence.rag.logging;
 
+import com.confluence.rag.http.HttpTransport;
+import com.confluence.rag.json.JsonSupport;
+import com.confluence.rag.security.PiiDetectors;
+import com.confluence.rag.security.TextSanitizer;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
@@ -24,12 +26,21 @@ import java.util.concurrent.TimeUnit;
  */
 public class S3Logger {
     
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectMapper objectMapper = JsonSupport.mapper();
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    // Passwörter und sensible Daten, Kreditkartennummern, E-Mails, IBANs und Telefonnummern in einem Durchlauf
+    private static final TextSanitizer LOG_SANITIZER = TextSanitizer.builder()
+        .detector(PiiDetectors.secrets())
+        .detector(PiiDetectors.cardNumbers())
+        .detector(PiiDetectors.emailAddresses())
+        .detector(PiiDetectors.ibans())
+        .detector(PiiDetectors.phoneNumbers())
+        .build();
     private static final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
     
     private final Queue<LogEntry> logQueue = new ConcurrentLinkedQueue<>();
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final HttpTransport transport;
     
     private String bucketName = "soptim-community-elements-logs";
     private String awsRegion = "eu-central-1";
@@ -38,6 +49,15 @@ public class S3Logger {
     private boolean loggingEnabled = true;
     
     public S3Logger() {
+        this(HttpTransport.shared());
+    }
+    
+    /**
+     * @param transport Gemeinsamer HTTP-Transport mit Verbindungspool für die S3-Uploads
+     */
+    public S3Logger(HttpTransport transport) {
+        this.transport = transport;
+        
         // Starte den Log-Batch-Processor
         scheduler.scheduleAtFixedRate(this::processBatchLogs, 30, 30, TimeUnit.SECONDS);
         
@@ -158,7 +178,7 @@ public class S3Logger {
      */
     private void uploadLogEntry(LogEntry entry) {
         try {
-            String json = objectMapper.writeValueAsString(entry);
+            byte[] json = objectMapper.writeValueAsBytes(entry);
             String key = generateLogKey(entry.timestamp, "single");
             uploadToS3(key, json);
         } catch (Exception e) {
@@ -171,7 +191,7 @@ public class S3Logger {
      */
     private void uploadLogBatch(List<LogEntry> batch) {
         try {
-            String json = objectMapper.writeValueAsString(batch);
+            byte[] json = objectMapper.writeValueAsBytes(batch);
             String key = generateLogKey(batch.get(0).timestamp, "batch");
             uploadToS3(key, json);
         } catch (Exception e) {
@@ -194,28 +214,29 @@ public class S3Logger {
     /**
      * Lädt Daten zu S3 hoch
      */
-    private void uploadToS3(String key, String content) {
+    private void uploadToS3(String key, byte[] content) {
         if (awsAccessKey == null || awsSecretKey == null) {
             System.err.println("AWS-Anmeldedaten nicht konfiguriert");
             return;
         }
         
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            String url = String.format("https://%s.s3.%s.amazonaws.com/%s", 
-                                     bucketName, awsRegion, key);
-            
-            HttpPut putRequest = new HttpPut(url);
-            putRequest.setEntity(new StringEntity(content, "UTF-8"));
-            putRequest.setHeader("Content-Type", "application/json");
-            
-            // AWS Signature V4 würde hier implementiert werden
-            // Für Einfachheit verwenden wir hier eine vereinfachte Version
-            addAwsHeaders(putRequest, content);
-            
-            HttpResponse response = httpClient.execute(putRequest);
+        String url = String.format("https://%s.s3.%s.amazonaws.com/%s", 
+                                 bucketName, awsRegion, key);
+        
+        HttpPut putRequest = new HttpPut(url);
+        // JSON wird direkt als UTF-8-Bytes serialisiert, ohne Umweg über einen String
+        putRequest.setEntity(new ByteArrayEntity(content, ContentType.APPLICATION_JSON));
+        
+        // AWS Signature V4 würde hier implementiert werden
+        // Für Einfachheit verwenden wir hier eine vereinfachte Version
+        addAwsHeaders(putRequest, content);
+        
+        // Verbindung kommt aus dem gemeinsamen Pool und wird beim Schließen der Antwort zurückgegeben
+        try (CloseableHttpResponse response = transport.execute(putRequest)) {
             int statusCode = response.getStatusLine().getStatusCode();
             
             if (statusCode >= 200 && statusCode < 300) {
+                EntityUtils.consume(response.getEntity());
                 System.out.println("Log erfolgreich zu S3 hochgeladen: " + key);
             } else {
                 System.err.println("S3-Upload fehlgeschlagen: " + statusCode + " - " + 
@@ -229,7 +250,7 @@ public class S3Logger {
     /**
      * Fügt AWS-Header hinzu (vereinfachte Version)
      */
-    private void addAwsHeaders(HttpPut request, String content) {
+    private void addAwsHeaders(HttpPut request, byte[] content) {
         // In einer Produktionsumgebung würde hier AWS Signature V4 implementiert
         request.setHeader("Authorization", "AWS " + awsAccessKey + ":signature");
         request.setHeader("x-amz-date", new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'").format(new Date()));
@@ -264,11 +285,7 @@ public class S3Logger {
     private String sanitizeForLogging(String input) {
         if (input == null) return null;
         
-        // Entferne potenzielle Passwörter und sensible Daten
-        return input.replaceAll("(?i)(password|passwort|secret|geheim|token|key)\\s*[:=]\\s*\\S+", 
-                               "$1: [REDACTED]")
-                   .replaceAll("\\b\\d{13,19}\\b", "[CARD_NUMBER]") // Kreditkartennummern
-                   .replaceAll("\\b[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Z|a-z]{2,}\\b", "[EMAIL]"); // E-Mails
+        return LOG_SANITIZER.sanitize(input);
     }
     
     /**
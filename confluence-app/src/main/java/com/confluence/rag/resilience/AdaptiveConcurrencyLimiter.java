@@ -0,0 +1,91 @@
+package com.confluence.rag.resilience;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit that follows the latency of a dependency.
+ *
+ * The limit grows while call latency stays close to its long-term average and
+ * shrinks in proportion when latency rises (gradient), which happens before the
+ * dependency starts failing. Failed or timed-out calls additionally cut the limit
+ * multiplicatively (AIMD). Calls over the current limit are refused instead of
+ * queueing.
+ */
+public class AdaptiveConcurrencyLimiter {
+    
+    // Latency may rise this much over the long-term average before the limit shrinks
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double DROP_BACKOFF = 0.9;
+    private static final int LONG_WINDOW_SAMPLES = 600;
+    
+    private final int minLimit;
+    private final int maxLimit;
+    private final double longRttAlpha = 2.0 / (LONG_WINDOW_SAMPLES + 1);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    private volatile int limit;
+    private double estimatedLimit;
+    private double longRttNanos;
+    
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.estimatedLimit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+    
+    /**
+     * Takes a slot if fewer calls than the current limit are running
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Returns a slot and feeds the call's latency into the limit
+     * @param dropped True if the call failed or timed out
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        int callsInFlight = inFlight.getAndDecrement();
+        update(latencyNanos, dropped, callsInFlight);
+    }
+    
+    public int getLimit() {
+        return limit;
+    }
+    
+    public int getInFlight() {
+        return inFlight.get();
+    }
+    
+    private synchronized void update(long latencyNanos, boolean dropped, int callsInFlight) {
+        if (dropped) {
+            estimatedLimit = Math.max(minLimit, estimatedLimit * DROP_BACKOFF);
+            limit = (int) estimatedLimit;
+            return;
+        }
+        
+        longRttNanos = longRttNanos == 0.0 ? latencyNanos : longRttNanos + (latencyNanos - longRttNanos) * longRttAlpha;
+        
+        // Calls that did not come near the limit say nothing about whether it is too low
+        if (callsInFlight * 2 < estimatedLimit) {
+            return;
+        }
+        
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, RTT_TOLERANCE * longRttNanos / Math.max(1L, latencyNanos)));
+        double queueAllowance = Math.sqrt(estimatedLimit);
+        double newLimit = estimatedLimit * gradient + queueAllowance;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+        limit = (int) estimatedLimit;
+    }
+}
@@ -0,0 +1,34 @@
+package com.confluence.rag.resilience;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fixed cap on the concurrent calls of one operation, so that a slow operation
+ * cannot take the threads of others
+ */
+public class Bulkhead {
+    
+    private final int maxConcurrentCalls;
+    private final Semaphore permits;
+    
+    public Bulkhead(int maxConcurrentCalls) {
+        this.maxConcurrentCalls = Math.max(1, maxConcurrentCalls);
+        this.permits = new Semaphore(this.maxConcurrentCalls);
+    }
+    
+    public boolean tryAcquire() {
+        return permits.tryAcquire();
+    }
+    
+    public void release() {
+        permits.release();
+    }
+    
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+    
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+}
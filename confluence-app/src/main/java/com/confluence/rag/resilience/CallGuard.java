@@ -0,0 +1,234 @@
+package com.confluence.rag.resilience;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Protects calls to one remote operation with a circuit breaker, a bulkhead and an
+ * adaptive concurrency limit. Refused calls fail fast with a CallRejectedException.
+ *
+ * Guards register themselves by name so the admin page can show their state.
+ */
+public class CallGuard {
+    
+    private static final Map<String, CallGuard> REGISTRY = new ConcurrentHashMap<>();
+    
+    private final String name;
+    private final CircuitBreaker breaker;
+    private final Bulkhead bulkhead;
+    private final AdaptiveConcurrencyLimiter limiter;
+    
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong breakerRejections = new AtomicLong();
+    private final AtomicLong bulkheadRejections = new AtomicLong();
+    private final AtomicLong limitRejections = new AtomicLong();
+    
+    public CallGuard(String name, CircuitBreaker breaker, Bulkhead bulkhead, AdaptiveConcurrencyLimiter limiter) {
+        this.name = name;
+        this.breaker = breaker;
+        this.bulkhead = bulkhead;
+        this.limiter = limiter;
+        REGISTRY.put(name, this);
+    }
+    
+    /**
+     * Creates a guard from resilience.&lt;name&gt;.* keys, falling back to resilience.* and defaults
+     */
+    public static CallGuard fromConfig(String name, Properties config) {
+        int maxConcurrent = getInt(config, name, "bulkhead.max.concurrent", 100);
+        return new CallGuard(name,
+            new CircuitBreaker(
+                getInt(config, name, "breaker.window", 50),
+                getInt(config, name, "breaker.min.calls", 20),
+                getDouble(config, name, "breaker.failure.rate", 0.5),
+                getInt(config, name, "breaker.open.ms", 30000),
+                getInt(config, name, "breaker.half.open.calls", 3)),
+            new Bulkhead(maxConcurrent),
+            new AdaptiveConcurrencyLimiter(
+                getInt(config, name, "limit.initial", 20),
+                getInt(config, name, "limit.min", 2),
+                Math.min(maxConcurrent, getInt(config, name, "limit.max", maxConcurrent))));
+    }
+    
+    /**
+     * Returns all guards created in this process
+     */
+    public static Collection<CallGuard> registered() {
+        return new ArrayList<>(REGISTRY.values());
+    }
+    
+    /**
+     * Runs the call if the breaker, bulkhead and limit allow it
+     * @throws CallRejectedException if the call was not attempted
+     */
+    public <T> T call(Supplier<T> call) {
+        if (!breaker.tryAcquirePermission()) {
+            breakerRejections.incrementAndGet();
+            throw new CallRejectedException(name, CallRejectedException.Reason.CIRCUIT_OPEN);
+        }
+        if (!bulkhead.tryAcquire()) {
+            breaker.releasePermission();
+            bulkheadRejections.incrementAndGet();
+            throw new CallRejectedException(name, CallRejectedException.Reason.BULKHEAD_FULL);
+        }
+        if (!limiter.tryAcquire()) {
+            bulkhead.release();
+            breaker.releasePermission();
+            limitRejections.incrementAndGet();
+            throw new CallRejectedException(name, CallRejectedException.Reason.LIMIT_EXCEEDED);
+        }
+        
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            limiter.release(System.nanoTime() - start, false);
+            breaker.onSuccess();
+            successes.incrementAndGet();
+            return result;
+        } catch (RuntimeException | Error e) {
+            limiter.release(System.nanoTime() - start, true);
+            breaker.onFailure();
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            bulkhead.release();
+        }
+    }
+    
+    /**
+     * Returns true while the breaker refuses calls
+     */
+    public boolean isOpen() {
+        return breaker.getState() == CircuitBreaker.State.OPEN;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns a point-in-time view for monitoring
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(name, breaker.getState(), breaker.getFailureRate(), breaker.getOpenings(),
+                            limiter.getLimit(), limiter.getInFlight(), bulkhead.getMaxConcurrentCalls(),
+                            successes.get(), failures.get(),
+                            breakerRejections.get(), bulkheadRejections.get(), limitRejections.get());
+    }
+    
+    private static int getInt(Properties config, String name, String key, int defaultValue) {
+        String value = lookup(config, name, key);
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    private static double getDouble(Properties config, String name, String key, double defaultValue) {
+        String value = lookup(config, name, key);
+        try {
+            return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    private static String lookup(Properties config, String name, String key) {
+        String value = config.getProperty("resilience." + name + "." + key);
+        return value != null ? value : config.getProperty("resilience." + key);
+    }
+    
+    /**
+     * State of a guard at one point in time
+     */
+    public static class Snapshot {
+        private final String name;
+        private final CircuitBreaker.State breakerState;
+        private final double failureRate;
+        private final long breakerOpenings;
+        private final int limit;
+        private final int inFlight;
+        private final int bulkheadSize;
+        private final long successes;
+        private final long failures;
+        private final long breakerRejections;
+        private final long bulkheadRejections;
+        private final long limitRejections;
+        
+        Snapshot(String name, CircuitBreaker.State breakerState, double failureRate, long breakerOpenings,
+                 int limit, int inFlight, int bulkheadSize, long successes, long failures,
+                 long breakerRejections, long bulkheadRejections, long limitRejections) {
+            this.name = name;
+            this.breakerState = breakerState;
+            this.failureRate = failureRate;
+            this.breakerOpenings = breakerOpenings;
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.bulkheadSize = bulkheadSize;
+            this.successes = successes;
+            this.failures = failures;
+            this.breakerRejections = breakerRejections;
+            this.bulkheadRejections = bulkheadRejections;
+            this.limitRejections = limitRejections;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public CircuitBreaker.State getBreakerState() {
+            return breakerState;
+        }
+        
+        public double getFailureRate() {
+            return failureRate;
+        }
+        
+        public long getBreakerOpenings() {
+            return breakerOpenings;
+        }
+        
+        public int getLimit() {
+            return limit;
+        }
+        
+        public int getInFlight() {
+            return inFlight;
+        }
+        
+        public int getBulkheadSize() {
+            return bulkheadSize;
+        }
+        
+        public long getSuccesses() {
+            return successes;
+        }
+        
+        public long getFailures() {
+            return failures;
+        }
+        
+        public long getBreakerRejections() {
+            return breakerRejections;
+        }
+        
+        public long getBulkheadRejections() {
+            return bulkheadRejections;
+        }
+        
+        public long getLimitRejections() {
+            return limitRejections;
+        }
+        
+        public long getRejections() {
+            return breakerRejections + bulkheadRejections + limitRejections;
+        }
+    }
+}
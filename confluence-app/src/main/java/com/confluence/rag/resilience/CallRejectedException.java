@@ -0,0 +1,29 @@
+package com.confluence.rag.resilience;
+
+/**
+ * Thrown when a guarded call is refused without being attempted
+ */
+public class CallRejectedException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Why the call was refused
+     */
+    public enum Reason {
+        CIRCUIT_OPEN,
+        BULKHEAD_FULL,
+        LIMIT_EXCEEDED
+    }
+    
+    private final Reason reason;
+    
+    public CallRejectedException(String guardName, Reason reason) {
+        super(guardName + " call rejected: " + reason);
+        this.reason = reason;
+    }
+    
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,153 @@
+package com.confluence.rag.resilience;
+
+/**
+ * Count-based circuit breaker.
+ *
+ * While CLOSED the outcomes of the last calls are kept in a ring; once enough
+ * calls are recorded and the failure rate reaches the threshold the breaker
+ * OPENs and refuses calls. After the open duration it lets a few trial calls
+ * through (HALF_OPEN): if they all succeed it closes again, one failure opens it
+ * for another period.
+ */
+public class CircuitBreaker {
+    
+    /**
+     * Breaker state
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+    
+    private final boolean[] failures;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openMillis;
+    private final int halfOpenCalls;
+    
+    private State state = State.CLOSED;
+    private int position;
+    private int recorded;
+    private int failureCount;
+    private long openedAt;
+    private int trialPermits;
+    private int trialSuccesses;
+    private long openings;
+    
+    /**
+     * @param windowSize Number of recent calls the failure rate is computed over
+     * @param minimumCalls Calls needed before the breaker can open
+     * @param failureRateThreshold Failure rate between 0 and 1 at which the breaker opens
+     * @param openMillis Time the breaker stays open before trial calls
+     * @param halfOpenCalls Successful trial calls needed to close again
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openMillis, int halfOpenCalls) {
+        this.failures = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, failures.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+    
+    /**
+     * Returns true if a call may be attempted; a permitted call must report its
+     * outcome or call releasePermission
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialPermits = halfOpenCalls;
+            trialSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialPermits == 0) {
+                return false;
+            }
+            trialPermits--;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns a permission that was not used for a call
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN) {
+            trialPermits++;
+        }
+    }
+    
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++trialSuccesses >= halfOpenCalls) {
+                close();
+            }
+            return;
+        }
+        record(false);
+    }
+    
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(true);
+        }
+    }
+    
+    /**
+     * Returns the current state; an OPEN breaker whose open period has passed reports HALF_OPEN
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+    
+    public synchronized double getFailureRate() {
+        return recorded == 0 ? 0.0 : failureCount / (double) recorded;
+    }
+    
+    public synchronized long getOpenings() {
+        return openings;
+    }
+    
+    private void record(boolean failure) {
+        if (recorded == failures.length) {
+            if (failures[position]) {
+                failureCount--;
+            }
+        } else {
+            recorded++;
+        }
+        failures[position] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        position = (position + 1) % failures.length;
+        
+        if (recorded >= minimumCalls && failureCount >= failureRateThreshold * recorded) {
+            open();
+        }
+    }
+    
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        openings++;
+    }
+    
+    private void close() {
+        state = State.CLOSED;
+        position = 0;
+        recorded = 0;
+        failureCount = 0;
+    }
+}
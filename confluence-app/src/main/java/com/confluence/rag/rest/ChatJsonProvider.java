@@ -0,0 +1,63 @@
+package com.confluence.rag.rest;
+
+import com.confluence.rag.json.ChatJsonCodec;
+import com.confluence.rag.model.ChatRequest;
+import com.confluence.rag.model.ChatResponse;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Reads ChatRequest and writes ChatResponse bodies with the streaming codec
+ * instead of the container's reflective JSON provider.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class ChatJsonProvider implements MessageBodyReader<ChatRequest>, MessageBodyWriter<ChatResponse> {
+    
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == ChatRequest.class;
+    }
+    
+    @Override
+    public ChatRequest readFrom(Class<ChatRequest> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                                MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+        try {
+            return ChatJsonCodec.readChatRequest(entityStream);
+        } catch (JsonProcessingException e) {
+            throw new BadRequestException("Invalid chat request", e);
+        }
+    }
+    
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == ChatResponse.class;
+    }
+    
+    @Override
+    public long getSize(ChatResponse response, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+    
+    @Override
+    public void writeTo(ChatResponse response, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+        ChatJsonCodec.writeChatResponse(response, entityStream);
+    }
+}
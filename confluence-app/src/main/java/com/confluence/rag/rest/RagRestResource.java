@@ -1,19 +1,27 @@
 package com.confluence.rag.rest;
 
 import com.confluence.rag.api.RagServiceInterface;
+import com.confluence.rag.json.ChatJsonCodec;
 import com.confluence.rag.model.ChatRequest;
 import com.confluence.rag.model.ChatResponse;
+import com.confluence.rag.util.Deadline;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 /**
  * REST API for RAG Chatbot operations
  */
@@ -24,6 +32,9 @@ public class RagRestResource {
     
     private static final Logger LOG = LoggerFactory.getLogger(RagRestResource.class);
     
+    // Extra time granted to the service to turn an expired deadline into its own error response
+    private static final long RESPONSE_GRACE_MS = 500;
+    
     private final RagServiceInterface ragService;
     
     @Inject
@@ -32,30 +43,52 @@ public class RagRestResource {
     }
     
     /**
-     * Process chat request
+     * Process chat request asynchronously; the container thread is released while
+     * retrieval and generation run on the service's chat executor. The request's
+     * deadline starts here, so time spent queueing counts against it. Address
+     * blocks and conversation history use the remote address and user seen by the
+     * container, never client-supplied fields.
      */
     @POST
     @Path("/chat")
-    public Response chat(ChatRequest request) {
+    public void chat(ChatRequest request, @Context HttpServletRequest httpRequest,
+                     @Suspended AsyncResponse asyncResponse) {
         try {
-            LOG.info("Received chat request from user: {}", request.getUserId());
+            Deadline deadline = Deadline.after(ragService.getChatTimeoutMillis());
+            asyncResponse.setTimeout(deadline.remainingMillis() + RESPONSE_GRACE_MS, TimeUnit.MILLISECONDS);
+            asyncResponse.setTimeoutHandler(timedOut -> {
+                LOG.warn("Chat request timed out after {}ms", ragService.getChatTimeoutMillis());
+                ChatResponse errorResponse = ChatResponse.error("Request timed out", 
+                    request != null ? request.getSessionId() : null);
+                timedOut.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(errorResponse).build());
+            });
             
-            ChatResponse response = ragService.processChat(request);
-            
-            if (response.getError() != null) {
-                return Response.status(Response.Status.BAD_REQUEST).entity(response).build();
-            }
+            LOG.info("Received chat request from user: {}", request.getUserId());
             
-            return Response.ok(response).build();
+            String remoteUser = (httpRequest != null) ? httpRequest.getRemoteUser() : null;
+            String remoteAddress = (httpRequest != null) ? httpRequest.getRemoteAddr() : null;
+            ragService.processChatAsync(request, remoteUser, remoteAddress, deadline).whenComplete((response, error) -> {
+                if (error != null) {
+                    asyncResponse.resume(internalError(request, error));
+                } else if (response.getError() != null) {
+                    asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(response).build());
+                } else {
+                    asyncResponse.resume(Response.ok(response).build());
+                }
+            });
             
         } catch (Exception e) {
-            LOG.error("Error processing chat request", e);
-            ChatResponse errorResponse = ChatResponse.error("Internal server error", 
-                request != null ? request.getSessionId() : null);
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(errorResponse).build();
+            asyncResponse.resume(internalError(request, e));
         }
     }
     
+    private Response internalError(ChatRequest request, Throwable error) {
+        LOG.error("Error processing chat request", error);
+        ChatResponse errorResponse = ChatResponse.error("Internal server error", 
+            request != null ? request.getSessionId() : null);
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(errorResponse).build();
+    }
+    
     /**
      * Health check endpoint
      */
@@ -66,16 +99,16 @@ public class RagRestResource {
             boolean isHealthy = ragService.isHealthy();
             
             if (isHealthy) {
-                return Response.ok("{\"status\": \"healthy\"}").build();
+                return Response.ok(status("healthy", null)).build();
             } else {
                 return Response.status(Response.Status.SERVICE_UNAVAILABLE)
-                    .entity("{\"status\": \"unhealthy\"}").build();
+                    .entity(status("unhealthy", null)).build();
             }
             
         } catch (Exception e) {
             LOG.error("Health check failed", e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                .entity("{\"status\": \"error\", \"message\": \"" + e.getMessage() + "\"}").build();
+                .entity(status("error", e.getMessage())).build();
         }
     }
     
@@ -89,20 +122,27 @@ public class RagRestResource {
         try {
             if (query == null || query.trim().isEmpty()) {
                 return Response.status(Response.Status.BAD_REQUEST)
-                    .entity("{\"error\": \"Query parameter 'q' is required\"}").build();
+                    .entity(error("Query parameter 'q' is required")).build();
             }
             
-            java.util.List<String> results = ragService.searchDocuments(query, limit);
+            List<String> results = ragService.searchDocuments(query, limit);
             
-            ObjectMapper mapper = new ObjectMapper();
-            return Response.ok()
-                .entity("{\"results\": " + mapper.writeValueAsString(results) + "}")
-                .build();
+            StreamingOutput body = out -> ChatJsonCodec.writeSearchResults(results, out);
+            return Response.ok().entity(body).build();
                 
         } catch (Exception e) {
             LOG.error("Error searching documents", e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                .entity("{\"error\": \"" + e.getMessage() + "\"}").build();
+                .entity(error(e.getMessage())).build();
         }
     }
+    
+    // Bodies are written straight to the response stream, which also escapes messages properly
+    private static StreamingOutput status(String status, String message) {
+        return out -> ChatJsonCodec.writeStatus(status, message, out);
+    }
+    
+    private static StreamingOutput error(String message) {
+        return out -> ChatJsonCodec.writeError(message, out);
+    }
 }
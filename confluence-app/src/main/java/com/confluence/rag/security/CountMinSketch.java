@@ -0,0 +1,63 @@
+package com.confluence.rag.security;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch over 64-bit key hashes, with counts that decay.
+ *
+ * Estimates never fall below the true count; they exceed it by at most about
+ * e / width of all counts added, with a probability of failure of e^-depth. Memory
+ * is fixed at depth * width counters, however many keys are added. Adding and
+ * estimating take no lock; decay halves every counter and may interleave with
+ * concurrent adds.
+ */
+final class CountMinSketch {
+    
+    private final int depth;
+    private final int widthMask;
+    private final AtomicLongArray counters;
+    
+    /**
+     * @param width Counters per row, rounded up to a power of two
+     * @param depth Rows, each indexed by a different hash
+     */
+    CountMinSketch(int width, int depth) {
+        int size = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.depth = Math.max(1, depth);
+        this.widthMask = size - 1;
+        this.counters = new AtomicLongArray(this.depth * size);
+    }
+    
+    void add(long hash, long count) {
+        for (int row = 0; row < depth; row++) {
+            counters.addAndGet(index(hash, row), count);
+        }
+    }
+    
+    long estimate(long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.get(index(hash, row)));
+        }
+        return min;
+    }
+    
+    /**
+     * Halves every counter
+     */
+    void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            long value;
+            do {
+                value = counters.get(i);
+            } while (value != 0 && !counters.compareAndSet(i, value, value >> 1));
+        }
+    }
+    
+    // Row hashes derived from two halves of the key hash (Kirsch-Mitzenmacher)
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+    }
+}
@@ -0,0 +1,139 @@
+package com.confluence.rag.security;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the keys (addresses, sessions, incident types) that occur most often in a
+ * stream, with counts that halve every half-life so that old activity fades out.
+ *
+ * A count-min sketch answers how often any key occurred, never too low, and a
+ * space-saving summary keeps the most frequent keys with a count that is never too
+ * high. Both have a fixed size, so memory stays the same however many distinct keys
+ * pass through. Keys are hashed with a random seed per instance, so collisions with
+ * a given key cannot be prepared in advance. Instances register themselves by name
+ * for the admin page.
+ */
+public final class HeavyHitters {
+    
+    private static final Map<String, HeavyHitters> REGISTRY = new ConcurrentHashMap<>();
+    
+    private final String name;
+    private final CountMinSketch sketch;
+    private final SpaceSavingTopK topKeys;
+    private final long seed = new SecureRandom().nextLong();
+    
+    /**
+     * @param name Name shown on the admin page
+     * @param width Sketch counters per row
+     * @param depth Sketch rows
+     * @param capacity Keys monitored with a guaranteed count
+     */
+    public HeavyHitters(String name, int width, int depth, int capacity) {
+        this.name = name;
+        this.sketch = new CountMinSketch(width, depth);
+        this.topKeys = new SpaceSavingTopK(capacity);
+        REGISTRY.put(name, this);
+    }
+    
+    /**
+     * All instances, for monitoring
+     */
+    public static Collection<HeavyHitters> registered() {
+        return new ArrayList<>(REGISTRY.values());
+    }
+    
+    /**
+     * Counts one occurrence of the key
+     */
+    public void record(String key) {
+        long hash = hash(key);
+        sketch.add(hash, 1);
+        // A key the sketch puts below every monitored count cannot displace one
+        if (sketch.estimate(hash) >= topKeys.minimumCount()) {
+            topKeys.add(key, 1);
+        }
+    }
+    
+    /**
+     * Upper estimate of the key's decayed count; cheap and lock-free
+     */
+    public long estimate(String key) {
+        return sketch.estimate(hash(key));
+    }
+    
+    /**
+     * Whether the key's decayed count has certainly reached the threshold. Keys
+     * the sketch puts below it are rejected without taking a lock.
+     */
+    public boolean isAtLeast(String key, long threshold) {
+        return sketch.estimate(hash(key)) >= threshold && topKeys.guaranteedCount(key) >= threshold;
+    }
+    
+    /**
+     * The most frequent keys, highest count first
+     */
+    public List<Entry> top(int limit) {
+        return topKeys.top(limit);
+    }
+    
+    /**
+     * Halves all counts; called once per half-life
+     */
+    public void decay() {
+        sketch.decay();
+        topKeys.decay();
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    private long hash(String key) {
+        long h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x9E3779B97F4A7C15L;
+        }
+        // MurmurHash3 finalizer
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+    
+    /**
+     * A monitored key; its true count lies between count - error and count
+     */
+    public static final class Entry {
+        final String key;
+        long count;
+        long error;
+        
+        Entry(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+        
+        public String getKey() {
+            return key;
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public long getError() {
+            return error;
+        }
+        
+        public long getGuaranteedCount() {
+            return count - error;
+        }
+    }
+}
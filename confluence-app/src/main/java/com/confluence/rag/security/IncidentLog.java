@@ -0,0 +1,211 @@
+package com.confluence.rag.security;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Fixed-capacity log of the most recent security incidents.
+ *
+ * Incidents are numbered in order and stored in a ring of slots, overwriting the
+ * oldest. Each entry links to the previous incident of the same type and the
+ * previous one whose session hashes to the same bucket, and the latest entry of
+ * every type and bucket is kept in a small table; queries by type or session walk
+ * these chains instead of the whole ring. Adding takes no lock: an entry is stored
+ * in its slot before it becomes the head of a chain, and a reader that reaches a
+ * slot already holding a newer entry has reached the end of the log.
+ */
+final class IncidentLog {
+    
+    private static final long NONE = -1;
+    
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLongArray typeHeads;
+    private final AtomicLongArray sessionHeads;
+    
+    /**
+     * @param capacity Incidents kept, rounded up to a power of two
+     */
+    IncidentLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.typeHeads = newHeads(SecurityMonitor.SecurityIncidentType.values().length);
+        this.sessionHeads = newHeads(size);
+    }
+    
+    /**
+     * @return The incident's sequence number
+     */
+    long add(SecurityMonitor.SecurityIncident incident) {
+        long sequence = nextSequence.getAndIncrement();
+        store(sequence, incident);
+        return sequence;
+    }
+    
+    /**
+     * Puts back an incident of an earlier run; only before the log is in use, in increasing
+     * sequence order. Numbering continues after the restored incident.
+     */
+    void restore(long sequence, SecurityMonitor.SecurityIncident incident) {
+        nextSequence.set(sequence + 1);
+        store(sequence, incident);
+    }
+    
+    /**
+     * Passes every incident still kept, with its sequence number, oldest first
+     */
+    void forEach(ObjLongConsumer<SecurityMonitor.SecurityIncident> action) {
+        long newest = nextSequence.get() - 1;
+        for (long sequence = Math.max(0, newest - mask); sequence <= newest; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry != null && entry.sequence == sequence) {
+                action.accept(entry.incident, sequence);
+            }
+        }
+    }
+    
+    private void store(long sequence, SecurityMonitor.SecurityIncident incident) {
+        Entry entry = new Entry(sequence, incident);
+        slots.set((int) (sequence & mask), entry);
+        
+        int type = incident.getType().ordinal();
+        long previous;
+        do {
+            previous = typeHeads.get(type);
+            entry.previousOfType = previous;
+        } while (!typeHeads.compareAndSet(type, previous, sequence));
+        
+        int bucket = sessionBucket(incident.getSessionId());
+        do {
+            previous = sessionHeads.get(bucket);
+            entry.previousOfSession = previous;
+        } while (!sessionHeads.compareAndSet(bucket, previous, sequence));
+    }
+    
+    /**
+     * The latest incidents, oldest first
+     */
+    List<SecurityMonitor.SecurityIncident> recent(int limit) {
+        return scan(limit, null, incident -> true);
+    }
+    
+    /**
+     * The latest incidents within [from, to), oldest first
+     */
+    List<SecurityMonitor.SecurityIncident> between(LocalDateTime from, LocalDateTime to, int limit) {
+        return scan(limit, from, incident -> incident.getTimestamp().isBefore(to));
+    }
+    
+    /**
+     * The latest incidents of a type, oldest first
+     */
+    List<SecurityMonitor.SecurityIncident> ofType(SecurityMonitor.SecurityIncidentType type, int limit) {
+        return walk(typeHeads.get(type.ordinal()), limit, true, incident -> true);
+    }
+    
+    /**
+     * The latest incidents of a session, oldest first
+     */
+    List<SecurityMonitor.SecurityIncident> ofSession(String sessionId, int limit) {
+        return walk(sessionHeads.get(sessionBucket(sessionId)), limit, false,
+                    incident -> Objects.equals(sessionId, incident.getSessionId()));
+    }
+    
+    /**
+     * Number of incidents recorded since the start, including overwritten ones
+     */
+    long getTotalCount() {
+        return nextSequence.get();
+    }
+    
+    int getCapacity() {
+        return slots.length();
+    }
+    
+    /**
+     * Goes back through the ring from the newest entry
+     */
+    private List<SecurityMonitor.SecurityIncident> scan(int limit, LocalDateTime from,
+                                                       Predicate<SecurityMonitor.SecurityIncident> filter) {
+        List<SecurityMonitor.SecurityIncident> result = new ArrayList<>(Math.min(Math.max(limit, 0), slots.length()));
+        long newest = nextSequence.get() - 1;
+        long oldest = Math.max(0, newest - mask);
+        for (long sequence = newest; sequence >= oldest && result.size() < limit; sequence--) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry == null || entry.sequence != sequence) {
+                // Not stored yet, or already overwritten
+                continue;
+            }
+            if (from != null && entry.incident.getTimestamp().isBefore(from)) {
+                break;
+            }
+            if (filter.test(entry.incident)) {
+                result.add(entry.incident);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+    
+    /**
+     * Follows a chain of type or session links from its head. Concurrent adds can link
+     * entries slightly out of order, so the result is sorted by sequence number.
+     */
+    private List<SecurityMonitor.SecurityIncident> walk(long head, int limit, boolean byType,
+                                                       Predicate<SecurityMonitor.SecurityIncident> filter) {
+        List<Entry> found = new ArrayList<>();
+        long sequence = head;
+        for (int steps = 0; sequence != NONE && steps < slots.length() && found.size() < limit; steps++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry == null || entry.sequence != sequence) {
+                break;
+            }
+            if (filter.test(entry.incident)) {
+                found.add(entry);
+            }
+            sequence = byType ? entry.previousOfType : entry.previousOfSession;
+        }
+        found.sort(Comparator.comparingLong(entry -> entry.sequence));
+        List<SecurityMonitor.SecurityIncident> result = new ArrayList<>(found.size());
+        for (Entry entry : found) {
+            result.add(entry.incident);
+        }
+        return result;
+    }
+    
+    private int sessionBucket(String sessionId) {
+        int hash = sessionId != null ? sessionId.hashCode() : 0;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+    
+    private static AtomicLongArray newHeads(int length) {
+        AtomicLongArray heads = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            heads.set(i, NONE);
+        }
+        return heads;
+    }
+    
+    private static final class Entry {
+        private final long sequence;
+        private final SecurityMonitor.SecurityIncident incident;
+        private volatile long previousOfType = NONE;
+        private volatile long previousOfSession = NONE;
+        
+        Entry(long sequence, SecurityMonitor.SecurityIncident incident) {
+            this.sequence = sequence;
+            this.incident = incident;
+        }
+    }
+}
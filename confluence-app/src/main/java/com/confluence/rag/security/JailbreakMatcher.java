@@ -0,0 +1,315 @@
+package com.confluence.rag.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks a text against all jailbreak rules in one pass.
+ *
+ * Every rule is a set of alternatives, and an alternative is a sequence of steps
+ * that have to occur in this order on the same line, each step being a choice of
+ * keywords - the regex equivalent of (a|b).*(c|d). All keywords are compiled into
+ * one Aho-Corasick automaton, so the text is read once and every keyword
+ * occurrence is reported in order of its end position. For each sequence only the
+ * earliest end of its next step is tracked, which finds a match whenever the regex
+ * would. Alternatives that are not keyword sequences fall back to a regex,
+ * evaluated only if no earlier rule matched.
+ *
+ * Each call to match() gets a step budget shared by the scan (one step per
+ * character) and all regexes. A regex that runs out of budget counts as a match,
+ * so an input built to exhaust the budget is rejected rather than let through.
+ *
+ * Matching is case-insensitive and a rule is reported by the name it was built
+ * with; when several rules match, the one defined first wins.
+ */
+public class JailbreakMatcher {
+    
+    private static final Logger logger = LoggerFactory.getLogger(JailbreakMatcher.class);
+    
+    public static final long DEFAULT_STEP_BUDGET = 200_000;
+    
+    private final String[] ruleNames;
+    
+    // Per alternative: owning rule and number of steps
+    private final int[] alternativeRule;
+    private final int[] alternativeSteps;
+    
+    // Regex alternatives, checked after the scan
+    private final int[] patternRule;
+    private final SecurityPattern[] patterns;
+    private final long stepBudget;
+    
+    private final KeywordAutomaton automaton;
+    
+    // Output targets per automaton state
+    private final int[][] outputs;
+    
+    // Per output target: alternative, step and keyword length
+    private final int[] targetAlternative;
+    private final int[] targetStep;
+    private final int[] targetLength;
+    
+    private final boolean hasSequences;
+    
+    // Cost statistics
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong totalSteps = new AtomicLong();
+    private final AtomicLong maxSteps = new AtomicLong();
+    private final AtomicLong budgetExceeded = new AtomicLong();
+    
+    public JailbreakMatcher(List<Rule> rules) {
+        this(rules, RegexEngine.LINEAR, DEFAULT_STEP_BUDGET);
+    }
+    
+    /**
+     * @param engine Compiles the regex alternatives
+     * @param stepBudget Work allowed per checked text
+     * @throws IllegalArgumentException if a regex is not supported by the engine
+     */
+    public JailbreakMatcher(List<Rule> rules, RegexEngine engine, long stepBudget) {
+        this.stepBudget = stepBudget;
+        this.ruleNames = new String[rules.size()];
+        
+        List<int[]> alternatives = new ArrayList<>();
+        List<int[]> targets = new ArrayList<>();
+        Map<String, List<Integer>> keywordTargets = new LinkedHashMap<>();
+        List<Integer> regexRules = new ArrayList<>();
+        List<SecurityPattern> regexes = new ArrayList<>();
+        
+        for (int r = 0; r < rules.size(); r++) {
+            Rule rule = rules.get(r);
+            ruleNames[r] = rule.name;
+            for (String[][] steps : rule.sequences) {
+                int alternative = alternatives.size();
+                alternatives.add(new int[] {r, steps.length});
+                for (int s = 0; s < steps.length; s++) {
+                    for (String keyword : steps[s]) {
+                        int target = targets.size();
+                        targets.add(new int[] {alternative, s, keyword.length()});
+                        keywordTargets.computeIfAbsent(keyword, k -> new ArrayList<>()).add(target);
+                    }
+                }
+            }
+            for (String pattern : rule.patterns) {
+                regexRules.add(r);
+                regexes.add(engine.compile("(?i)" + pattern));
+            }
+        }
+        
+        this.alternativeRule = new int[alternatives.size()];
+        this.alternativeSteps = new int[alternatives.size()];
+        boolean sequences = false;
+        for (int a = 0; a < alternatives.size(); a++) {
+            alternativeRule[a] = alternatives.get(a)[0];
+            alternativeSteps[a] = alternatives.get(a)[1];
+            sequences |= alternativeSteps[a] > 1;
+        }
+        this.hasSequences = sequences;
+        
+        this.targetAlternative = new int[targets.size()];
+        this.targetStep = new int[targets.size()];
+        this.targetLength = new int[targets.size()];
+        for (int t = 0; t < targets.size(); t++) {
+            targetAlternative[t] = targets.get(t)[0];
+            targetStep[t] = targets.get(t)[1];
+            targetLength[t] = targets.get(t)[2];
+        }
+        
+        this.patternRule = regexRules.stream().mapToInt(Integer::intValue).toArray();
+        this.patterns = regexes.toArray(new SecurityPattern[0]);
+        
+        List<String> keywords = new ArrayList<>(keywordTargets.keySet());
+        this.automaton = new KeywordAutomaton(keywords);
+        this.outputs = new int[automaton.stateCount()][];
+        for (int state = 0; state < outputs.length; state++) {
+            List<Integer> stateTargets = new ArrayList<>();
+            for (int keyword : automaton.matches(state)) {
+                stateTargets.addAll(keywordTargets.get(keywords.get(keyword)));
+            }
+            outputs[state] = stateTargets.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+    
+    /**
+     * Returns the name of the first rule the text matches, or null
+     */
+    public String match(CharSequence text) {
+        int best = Integer.MAX_VALUE;
+        int[] progress = hasSequences ? new int[alternativeRule.length] : null;
+        int[] stepEnd = hasSequences ? new int[alternativeRule.length] : null;
+        int state = 0;
+        StepBudget budget = new StepBudget(stepBudget);
+        
+        int length = text.length();
+        budget.consume(length);
+        for (int i = 0; i < length && best > 0; i++) {
+            char c = text.charAt(i);
+            if (isLineTerminator(c)) {
+                // Like '.' in a regex, a sequence never spans lines
+                state = 0;
+                if (hasSequences) {
+                    Arrays.fill(progress, 0);
+                }
+                continue;
+            }
+            state = automaton.next(state, Character.toLowerCase(c));
+            for (int target : outputs[state]) {
+                int alternative = targetAlternative[target];
+                int rule = alternativeRule[alternative];
+                if (rule >= best) {
+                    continue;
+                }
+                int steps = alternativeSteps[alternative];
+                if (steps == 1) {
+                    best = rule;
+                    continue;
+                }
+                int start = i + 1 - targetLength[target];
+                if (progress[alternative] == targetStep[target] && (targetStep[target] == 0 || start >= stepEnd[alternative])) {
+                    progress[alternative]++;
+                    stepEnd[alternative] = i + 1;
+                    if (progress[alternative] == steps) {
+                        best = rule;
+                    }
+                }
+            }
+        }
+        
+        for (int p = 0; p < patterns.length; p++) {
+            if (patternRule[p] >= best) {
+                continue;
+            }
+            SecurityPattern.Outcome outcome = patterns[p].find(text, budget);
+            if (outcome == SecurityPattern.Outcome.BUDGET_EXCEEDED) {
+                budgetExceeded.incrementAndGet();
+                logger.warn("Step budget of {} exhausted by rule {} on a text of {} characters",
+                    stepBudget, ruleNames[patternRule[p]], length);
+            }
+            if (outcome != SecurityPattern.Outcome.NO_MATCH) {
+                best = patternRule[p];
+            }
+        }
+        record(budget.getUsed());
+        return best == Integer.MAX_VALUE ? null : ruleNames[best];
+    }
+    
+    private void record(long steps) {
+        evaluations.incrementAndGet();
+        totalSteps.addAndGet(steps);
+        long max = maxSteps.get();
+        while (steps > max && !maxSteps.compareAndSet(max, steps)) {
+            max = maxSteps.get();
+        }
+    }
+    
+    public int getRuleCount() {
+        return ruleNames.length;
+    }
+    
+    public long getStepBudget() {
+        return stepBudget;
+    }
+    
+    public long getEvaluationCount() {
+        return evaluations.get();
+    }
+    
+    public long getTotalSteps() {
+        return totalSteps.get();
+    }
+    
+    /**
+     * Most steps a single text has cost so far
+     */
+    public long getMaxSteps() {
+        return maxSteps.get();
+    }
+    
+    public long getBudgetExceededCount() {
+        return budgetExceeded.get();
+    }
+    
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+    
+    /**
+     * Keyword choices for one step of a sequence
+     */
+    public static String[] anyOf(String... keywords) {
+        return keywords;
+    }
+    
+    /**
+     * Starts a rule with the given name
+     */
+    public static Rule rule(String name) {
+        return new Rule(name);
+    }
+    
+    /**
+     * One jailbreak rule: matches if any of its alternatives matches
+     */
+    public static final class Rule {
+        private final String name;
+        private final List<String[][]> sequences = new ArrayList<>();
+        private final List<String> patterns = new ArrayList<>();
+        
+        private Rule(String name) {
+            this.name = name;
+        }
+        
+        /**
+         * Matches if the text contains any of the keywords
+         */
+        public Rule keywords(String... keywords) {
+            for (String keyword : keywords) {
+                sequence(new String[] {keyword});
+            }
+            return this;
+        }
+        
+        /**
+         * Matches if one keyword of every step occurs, in this order and on one line
+         */
+        public Rule sequence(String[]... steps) {
+            if (steps.length == 0) {
+                throw new IllegalArgumentException("Rule " + name + " has an empty sequence");
+            }
+            String[][] normalized = new String[steps.length][];
+            for (int s = 0; s < steps.length; s++) {
+                normalized[s] = new String[steps[s].length];
+                for (int k = 0; k < steps[s].length; k++) {
+                    String keyword = steps[s][k].toLowerCase();
+                    if (keyword.isEmpty()) {
+                        throw new IllegalArgumentException("Rule " + name + " has an empty keyword");
+                    }
+                    normalized[s][k] = keyword;
+                }
+            }
+            sequences.add(normalized);
+            return this;
+        }
+        
+        /**
+         * Matches if the regex finds a match, ignoring case; for conditions that are not
+         * keyword sequences
+         */
+        public Rule pattern(String pattern) {
+            patterns.add(pattern);
+            return this;
+        }
+        
+        public String getName() {
+            return name;
+        }
+    
+    }
+}
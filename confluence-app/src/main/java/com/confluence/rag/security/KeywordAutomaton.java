@@ -0,0 +1,159 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Aho-Corasick automaton over a fixed keyword list, stored as a dense transition
+ * table so that every input character costs one array lookup.
+ *
+ * Characters are mapped to classes first: one class per character that occurs in
+ * a keyword and class 0 for all others. Keywords are matched exactly; callers fold
+ * case before feeding characters in.
+ */
+final class KeywordAutomaton {
+    
+    // Character classes: Latin-1 by table, other characters by binary search
+    private final int[] latin1Classes = new int[256];
+    private final char[] otherChars;
+    private final int[] otherClasses;
+    private final int classCount;
+    
+    private final int[] transitions;
+    private final int[] depth;
+    private final int[] keywordAt;
+    private final int[][] matches;
+    
+    /**
+     * @param keywords Distinct, non-empty keywords; matches are reported by index into this list
+     */
+    KeywordAutomaton(List<String> keywords) {
+        TreeSet<Character> alphabet = new TreeSet<>();
+        for (String keyword : keywords) {
+            for (int i = 0; i < keyword.length(); i++) {
+                alphabet.add(keyword.charAt(i));
+            }
+        }
+        List<Character> others = new ArrayList<>();
+        int nextClass = 1;
+        for (char c : alphabet) {
+            if (c < 256) {
+                latin1Classes[c] = nextClass++;
+            } else {
+                others.add(c);
+            }
+        }
+        this.otherChars = new char[others.size()];
+        this.otherClasses = new int[others.size()];
+        for (int i = 0; i < others.size(); i++) {
+            otherChars[i] = others.get(i);
+            otherClasses[i] = nextClass++;
+        }
+        this.classCount = nextClass;
+        
+        // Trie
+        List<Map<Integer, Integer>> children = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Integer> terminals = new ArrayList<>();
+        children.add(new HashMap<>());
+        depths.add(0);
+        terminals.add(-1);
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int charClass = classOf(keyword.charAt(i));
+                Integer child = children.get(state).get(charClass);
+                if (child == null) {
+                    child = children.size();
+                    children.add(new HashMap<>());
+                    depths.add(i + 1);
+                    terminals.add(-1);
+                    children.get(state).put(charClass, child);
+                }
+                state = child;
+            }
+            terminals.set(state, k);
+        }
+        
+        int stateCount = children.size();
+        this.depth = depths.stream().mapToInt(Integer::intValue).toArray();
+        this.keywordAt = terminals.stream().mapToInt(Integer::intValue).toArray();
+        
+        // Failure links in breadth-first order turn the trie into a complete DFA
+        this.transitions = new int[stateCount * classCount];
+        this.matches = new int[stateCount][];
+        matches[0] = new int[0];
+        int[] failure = new int[stateCount];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < classCount; c++) {
+            Integer child = children.get(0).get(c);
+            if (child != null) {
+                transitions[c] = child;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] inherited = matches[failure[state]];
+            if (keywordAt[state] >= 0) {
+                matches[state] = Arrays.copyOf(inherited, inherited.length + 1);
+                matches[state][inherited.length] = keywordAt[state];
+            } else {
+                matches[state] = inherited;
+            }
+            for (int c = 0; c < classCount; c++) {
+                Integer child = children.get(state).get(c);
+                if (child != null) {
+                    failure[child] = transitions[failure[state] * classCount + c];
+                    transitions[state * classCount + c] = child;
+                    queue.add(child);
+                } else {
+                    transitions[state * classCount + c] = transitions[failure[state] * classCount + c];
+                }
+            }
+        }
+    }
+    
+    int next(int state, char c) {
+        return transitions[state * classCount + classOf(c)];
+    }
+    
+    /**
+     * Keywords ending at the current position
+     */
+    int[] matches(int state) {
+        return matches[state];
+    }
+    
+    /**
+     * Length of the longest keyword prefix ending at the current position
+     */
+    int depth(int state) {
+        return depth[state];
+    }
+    
+    /**
+     * Keyword spelled by the path to this state, or -1
+     */
+    int keywordAt(int state) {
+        return keywordAt[state];
+    }
+    
+    int stateCount() {
+        return depth.length;
+    }
+    
+    private int classOf(char c) {
+        if (c < 256) {
+            return latin1Classes[c];
+        }
+        int index = Arrays.binarySearch(otherChars, c);
+        return index >= 0 ? otherClasses[index] : 0;
+    }
+}
@@ -0,0 +1,1019 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Regular expressions evaluated in time linear in the input, for patterns that
+ * are matched against untrusted text.
+ *
+ * The expression is compiled into a Thompson NFA, and a search follows all NFA
+ * paths at once instead of backtracking, so no input can make it take more than
+ * input length times program size steps. Patterns without assertions run on a
+ * lazily built DFA: each set of NFA states reached is cached together with its
+ * transitions, making a search one table lookup per character once the cache is
+ * warm. The cache is shared by all threads and capped; beyond the cap new states
+ * are computed per search. Every search charges its work to a StepBudget.
+ *
+ * Supported syntax is the regular subset of java.util.regex: literals and
+ * escapes, ., character classes with ranges and negation, \d \w \s and their
+ * negations, \p{L} \p{Lu} \p{Ll} \p{N} \p{Nd} \p{P}, groups, alternation, the
+ * quantifiers * + ? {n} {n,} {n,m} (greedy or lazy), ^ $ \A \z \Z \b \B and the
+ * leading flags (?i) and (?s). Backreferences, lookaround and possessive
+ * quantifiers need backtracking and are rejected. Like java.util.regex, (?i)
+ * folds ASCII letters only. Matching works on UTF-16 chars, so a character
+ * outside the BMP counts as two for . and quantifiers.
+ */
+public final class LinearRegex implements SecurityPattern {
+    
+    private static final int MAX_PROGRAM_SIZE = 10_000;
+    private static final int MAX_REPEAT = 1_000;
+    private static final int MAX_DFA_STATES = 1_024;
+    
+    // Instructions
+    private static final int CHAR = 0;
+    private static final int SPLIT = 1;
+    private static final int JUMP = 2;
+    private static final int MATCH = 3;
+    private static final int ASSERT = 4;
+    
+    // Assertions
+    private static final int BEGIN = 0;
+    private static final int END = 1;
+    private static final int ABSOLUTE_END = 2;
+    private static final int WORD_BOUNDARY = 3;
+    private static final int NOT_WORD_BOUNDARY = 4;
+    
+    private final String pattern;
+    
+    // Program: op, argument (char set or assertion), successors
+    private final int[] op;
+    private final int[] arg;
+    private final int[] out;
+    private final int[] out2;
+    private final CharSet[] sets;
+    private final boolean hasAssertions;
+    
+    // Character classes of the DFA: chars between two neighbouring set boundaries behave alike
+    private final int[] boundaries;
+    private final int[] latin1Classes = new int[256];
+    private final int classCount;
+    private final ConcurrentMap<StateKey, DfaState> dfaCache = new ConcurrentHashMap<>();
+    private final DfaState startState;
+    
+    private LinearRegex(String pattern, Program program) {
+        this.pattern = pattern;
+        int size = program.size;
+        this.op = Arrays.copyOf(program.op, size);
+        this.arg = Arrays.copyOf(program.arg, size);
+        this.out = Arrays.copyOf(program.out, size);
+        this.out2 = Arrays.copyOf(program.out2, size);
+        this.sets = program.sets.toArray(new CharSet[0]);
+        boolean assertions = false;
+        for (int pc = 0; pc < size; pc++) {
+            assertions |= op[pc] == ASSERT;
+        }
+        this.hasAssertions = assertions;
+        
+        TreeSet<Integer> points = new TreeSet<>();
+        for (CharSet set : sets) {
+            for (int i = 0; i < set.ranges.length; i += 2) {
+                points.add(set.ranges[i]);
+                if (set.ranges[i + 1] < Character.MAX_VALUE) {
+                    points.add(set.ranges[i + 1] + 1);
+                }
+            }
+        }
+        points.remove(0);
+        this.boundaries = points.stream().mapToInt(Integer::intValue).toArray();
+        this.classCount = boundaries.length + 1;
+        for (int c = 0; c < 256; c++) {
+            latin1Classes[c] = searchClass((char) c);
+        }
+        
+        if (hasAssertions) {
+            this.startState = null;
+        } else {
+            Closure closure = new Closure(size);
+            closure.add(0, null, 0);
+            this.startState = toState(closure, true);
+        }
+    }
+    
+    /**
+     * Compiles an expression
+     * @throws IllegalArgumentException if the expression is malformed or uses unsupported syntax
+     */
+    public static LinearRegex compile(String regex) {
+        Parser parser = new Parser(regex);
+        Node root = parser.parse();
+        Program program = new Program();
+        program.compile(root);
+        program.emit(MATCH, 0, -1, -1);
+        return new LinearRegex(regex, program);
+    }
+    
+    @Override
+    public Outcome find(CharSequence text, StepBudget budget) {
+        return hasAssertions ? simulate(text, budget) : runDfa(text, budget);
+    }
+    
+    @Override
+    public String pattern() {
+        return pattern;
+    }
+    
+    /**
+     * Number of cached DFA states, for monitoring
+     */
+    public int getCachedStateCount() {
+        return dfaCache.size();
+    }
+    
+    @Override
+    public String toString() {
+        return pattern;
+    }
+    
+    private Outcome runDfa(CharSequence text, StepBudget budget) {
+        DfaState state = startState;
+        if (state.accepting) {
+            return budget.consume(1) ? Outcome.MATCH : Outcome.BUDGET_EXCEEDED;
+        }
+        Closure closure = null;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            int charClass = classOf(text.charAt(i));
+            DfaState next = state.next[charClass];
+            long steps = 1;
+            if (next == null) {
+                if (closure == null) {
+                    closure = new Closure(op.length);
+                }
+                next = step(state, charClass, closure);
+                steps += closure.steps;
+            }
+            if (!budget.consume(steps)) {
+                return Outcome.BUDGET_EXCEEDED;
+            }
+            if (next.accepting) {
+                return Outcome.MATCH;
+            }
+            state = next;
+        }
+        return Outcome.NO_MATCH;
+    }
+    
+    /**
+     * Computes the successor of a DFA state and caches it while the cache has room
+     */
+    private DfaState step(DfaState state, int charClass, Closure closure) {
+        char c = representative(charClass);
+        closure.clear();
+        for (int pc : state.pcs) {
+            if (op[pc] == CHAR && sets[arg[pc]].contains(c)) {
+                closure.add(out[pc], null, 0);
+            }
+        }
+        // The search is unanchored: a match may start at every position
+        closure.add(0, null, 0);
+        
+        DfaState next = toState(closure, state.cached);
+        if (next.cached) {
+            state.next[charClass] = next;
+        }
+        return next;
+    }
+    
+    private DfaState toState(Closure closure, boolean mayCache) {
+        int[] pcs = Arrays.copyOf(closure.list, closure.size);
+        Arrays.sort(pcs);
+        boolean accepting = false;
+        for (int pc : pcs) {
+            accepting |= op[pc] == MATCH;
+        }
+        StateKey key = new StateKey(pcs);
+        DfaState cached = dfaCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (mayCache && dfaCache.size() < MAX_DFA_STATES) {
+            DfaState created = new DfaState(pcs, accepting, classCount, true);
+            DfaState raced = dfaCache.putIfAbsent(key, created);
+            return raced != null ? raced : created;
+        }
+        return new DfaState(pcs, accepting, classCount, false);
+    }
+    
+    /**
+     * Runs the NFA directly; used for patterns with assertions, whose states depend on
+     * the surrounding characters
+     */
+    private Outcome simulate(CharSequence text, StepBudget budget) {
+        int length = text.length();
+        Closure current = new Closure(op.length);
+        Closure next = new Closure(op.length);
+        for (int pos = 0; ; pos++) {
+            current.add(0, text, pos);
+            if (current.matched) {
+                return budget.consume(current.steps) ? Outcome.MATCH : Outcome.BUDGET_EXCEEDED;
+            }
+            if (pos == length) {
+                return budget.consume(current.steps) ? Outcome.NO_MATCH : Outcome.BUDGET_EXCEEDED;
+            }
+            char c = text.charAt(pos);
+            next.clear();
+            for (int i = 0; i < current.size; i++) {
+                int pc = current.list[i];
+                if (op[pc] == CHAR && sets[arg[pc]].contains(c)) {
+                    next.add(out[pc], text, pos + 1);
+                }
+            }
+            if (!budget.consume(current.steps + current.size)) {
+                return Outcome.BUDGET_EXCEEDED;
+            }
+            Closure swap = current;
+            current = next;
+            next = swap;
+        }
+    }
+    
+    private boolean holds(int assertion, CharSequence text, int pos) {
+        int length = text.length();
+        switch (assertion) {
+            case BEGIN:
+                return pos == 0;
+            case ABSOLUTE_END:
+                return pos == length;
+            case END:
+                // Like java.util.regex, $ also matches before a line terminator that ends the input
+                // and never between the \r and \n of a final \r\n
+                return pos == length
+                    || (pos == length - 1 && isLineTerminator(text.charAt(pos))
+                        && !(text.charAt(pos) == '\n' && pos > 0 && text.charAt(pos - 1) == '\r'))
+                    || (pos == length - 2 && text.charAt(pos) == '\r' && text.charAt(pos + 1) == '\n');
+            case WORD_BOUNDARY:
+            case NOT_WORD_BOUNDARY:
+                boolean before = pos > 0 && isWordChar(text.charAt(pos - 1));
+                boolean after = pos < length && isWordChar(text.charAt(pos));
+                return (before != after) == (assertion == WORD_BOUNDARY);
+            default:
+                return false;
+        }
+    }
+    
+    private int classOf(char c) {
+        return c < 256 ? latin1Classes[c] : searchClass(c);
+    }
+    
+    private int searchClass(char c) {
+        int index = Arrays.binarySearch(boundaries, c);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+    
+    private char representative(int charClass) {
+        return charClass == 0 ? 0 : (char) boundaries[charClass - 1];
+    }
+    
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+    
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+    
+    /**
+     * Set of NFA threads at one position, built by following empty transitions
+     */
+    private final class Closure {
+        private final int[] list;
+        private final int[] onList;
+        private final int[] stack;
+        private int generation = 1;
+        private int size;
+        private long steps;
+        private boolean matched;
+        
+        Closure(int programSize) {
+            this.list = new int[programSize];
+            this.onList = new int[programSize];
+            this.stack = new int[programSize * 2 + 1];
+        }
+        
+        void clear() {
+            generation++;
+            size = 0;
+            steps = 0;
+            matched = false;
+        }
+        
+        /**
+         * Adds the thread at pc and everything reachable from it without reading a char;
+         * assertions are checked against the text at pos, or ignored when text is null
+         */
+        void add(int pc, CharSequence text, int pos) {
+            int top = 0;
+            stack[top++] = pc;
+            while (top > 0) {
+                int current = stack[--top];
+                if (onList[current] == generation) {
+                    continue;
+                }
+                onList[current] = generation;
+                steps++;
+                switch (op[current]) {
+                    case JUMP:
+                        stack[top++] = out[current];
+                        break;
+                    case SPLIT:
+                        stack[top++] = out2[current];
+                        stack[top++] = out[current];
+                        break;
+                    case ASSERT:
+                        if (text != null && holds(arg[current], text, pos)) {
+                            stack[top++] = out[current];
+                        }
+                        break;
+                    case MATCH:
+                        matched = true;
+                        list[size++] = current;
+                        break;
+                    default:
+                        list[size++] = current;
+                }
+            }
+        }
+    }
+    
+    private static final class DfaState {
+        private final int[] pcs;
+        private final boolean accepting;
+        private final boolean cached;
+        // Written racily by searching threads; a state is fully built before it is linked
+        private final DfaState[] next;
+        
+        DfaState(int[] pcs, boolean accepting, int classCount, boolean cached) {
+            this.pcs = pcs;
+            this.accepting = accepting;
+            this.cached = cached;
+            this.next = new DfaState[classCount];
+        }
+    }
+    
+    private static final class StateKey {
+        private final int[] pcs;
+        private final int hash;
+        
+        StateKey(int[] pcs) {
+            this.pcs = pcs;
+            this.hash = Arrays.hashCode(pcs);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof StateKey && Arrays.equals(pcs, ((StateKey) other).pcs);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+    
+    /**
+     * Sorted, disjoint inclusive char ranges
+     */
+    private static final class CharSet {
+        private final int[] ranges;
+        
+        CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+        
+        boolean contains(char c) {
+            int low = 0;
+            int high = ranges.length / 2 - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (c < ranges[2 * mid]) {
+                    high = mid - 1;
+                } else if (c > ranges[2 * mid + 1]) {
+                    low = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Collects ranges and normalizes them into a CharSet
+     */
+    private static final class CharSetBuilder {
+        private final List<int[]> ranges = new ArrayList<>();
+        
+        CharSetBuilder add(int low, int high) {
+            ranges.add(new int[] {low, high});
+            return this;
+        }
+        
+        CharSetBuilder addAll(int[] normalized) {
+            for (int i = 0; i < normalized.length; i += 2) {
+                add(normalized[i], normalized[i + 1]);
+            }
+            return this;
+        }
+        
+        /**
+         * Adds the other case of every ASCII letter in the set
+         */
+        CharSetBuilder foldAsciiCase() {
+            List<int[]> folded = new ArrayList<>();
+            for (int[] range : ranges) {
+                int low = Math.max(range[0], 'A');
+                int high = Math.min(range[1], 'Z');
+                if (low <= high) {
+                    folded.add(new int[] {low + 32, high + 32});
+                }
+                low = Math.max(range[0], 'a');
+                high = Math.min(range[1], 'z');
+                if (low <= high) {
+                    folded.add(new int[] {low - 32, high - 32});
+                }
+            }
+            ranges.addAll(folded);
+            return this;
+        }
+        
+        int[] normalize() {
+            ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+            List<int[]> merged = new ArrayList<>();
+            for (int[] range : ranges) {
+                int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (last != null && range[0] <= last[1] + 1) {
+                    last[1] = Math.max(last[1], range[1]);
+                } else {
+                    merged.add(new int[] {range[0], range[1]});
+                }
+            }
+            int[] result = new int[merged.size() * 2];
+            for (int i = 0; i < merged.size(); i++) {
+                result[2 * i] = merged.get(i)[0];
+                result[2 * i + 1] = merged.get(i)[1];
+            }
+            return result;
+        }
+        
+        int[] complement() {
+            int[] normalized = normalize();
+            List<int[]> gaps = new ArrayList<>();
+            int next = 0;
+            for (int i = 0; i < normalized.length; i += 2) {
+                if (normalized[i] > next) {
+                    gaps.add(new int[] {next, normalized[i] - 1});
+                }
+                next = normalized[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                gaps.add(new int[] {next, Character.MAX_VALUE});
+            }
+            int[] result = new int[gaps.size() * 2];
+            for (int i = 0; i < gaps.size(); i++) {
+                result[2 * i] = gaps.get(i)[0];
+                result[2 * i + 1] = gaps.get(i)[1];
+            }
+            return result;
+        }
+    }
+    
+    // Syntax tree
+    
+    private abstract static class Node {
+    }
+    
+    private static final class CharNode extends Node {
+        private final int[] ranges;
+        
+        CharNode(int[] ranges) {
+            this.ranges = ranges;
+        }
+    }
+    
+    private static final class AssertNode extends Node {
+        private final int assertion;
+        
+        AssertNode(int assertion) {
+            this.assertion = assertion;
+        }
+    }
+    
+    private static final class ConcatNode extends Node {
+        private final List<Node> parts;
+        
+        ConcatNode(List<Node> parts) {
+            this.parts = parts;
+        }
+    }
+    
+    private static final class AlternationNode extends Node {
+        private final List<Node> choices;
+        
+        AlternationNode(List<Node> choices) {
+            this.choices = choices;
+        }
+    }
+    
+    private static final class RepeatNode extends Node {
+        private final Node body;
+        private final int min;
+        private final int max;
+        
+        RepeatNode(Node body, int min, int max) {
+            this.body = body;
+            this.min = min;
+            this.max = max;
+        }
+    }
+    
+    /**
+     * Recursive descent parser for the supported syntax
+     */
+    private static final class Parser {
+        private final String source;
+        private int pos;
+        private boolean caseInsensitive;
+        private boolean dotAll;
+        
+        Parser(String source) {
+            this.source = source;
+        }
+        
+        Node parse() {
+            parseLeadingFlags();
+            Node node = parseAlternation();
+            if (pos < source.length()) {
+                throw error("Unmatched ')'");
+            }
+            return node;
+        }
+        
+        private void parseLeadingFlags() {
+            while (source.startsWith("(?", pos) && pos + 2 < source.length() && Character.isLetter(source.charAt(pos + 2))) {
+                int end = source.indexOf(')', pos);
+                if (end < 0) {
+                    throw error("Unclosed flag group");
+                }
+                for (int i = pos + 2; i < end; i++) {
+                    char flag = source.charAt(i);
+                    if (flag == 'i') {
+                        caseInsensitive = true;
+                    } else if (flag == 's') {
+                        dotAll = true;
+                    } else {
+                        throw error("Unsupported flag '" + flag + "'");
+                    }
+                }
+                pos = end + 1;
+            }
+        }
+        
+        private Node parseAlternation() {
+            List<Node> choices = new ArrayList<>();
+            choices.add(parseConcatenation());
+            while (pos < source.length() && source.charAt(pos) == '|') {
+                pos++;
+                choices.add(parseConcatenation());
+            }
+            return choices.size() == 1 ? choices.get(0) : new AlternationNode(choices);
+        }
+        
+        private Node parseConcatenation() {
+            List<Node> parts = new ArrayList<>();
+            while (pos < source.length() && source.charAt(pos) != '|' && source.charAt(pos) != ')') {
+                parts.add(parseRepeat());
+            }
+            return parts.size() == 1 ? parts.get(0) : new ConcatNode(parts);
+        }
+        
+        private Node parseRepeat() {
+            Node atom = parseAtom();
+            while (pos < source.length()) {
+                char c = source.charAt(pos);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    pos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    pos++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                } else if (c == '{') {
+                    int close = source.indexOf('}', pos);
+                    if (close < 0) {
+                        throw error("Unclosed counted repetition");
+                    }
+                    String[] bounds = source.substring(pos + 1, close).split(",", -1);
+                    try {
+                        min = Integer.parseInt(bounds[0].trim());
+                        max = bounds.length == 1 ? min : bounds[1].trim().isEmpty() ? -1 : Integer.parseInt(bounds[1].trim());
+                    } catch (NumberFormatException e) {
+                        throw error("Illegal repetition");
+                    }
+                    if (bounds.length > 2 || min < 0 || (max >= 0 && max < min) || Math.max(min, max) > MAX_REPEAT) {
+                        throw error("Illegal repetition range");
+                    }
+                    pos = close + 1;
+                } else {
+                    break;
+                }
+                // Lazy quantifiers find the same matches; possessive ones need backtracking
+                if (pos < source.length() && source.charAt(pos) == '?') {
+                    pos++;
+                } else if (pos < source.length() && source.charAt(pos) == '+') {
+                    throw error("Possessive quantifiers are not supported");
+                }
+                atom = new RepeatNode(atom, min, max);
+            }
+            return atom;
+        }
+        
+        private Node parseAtom() {
+            char c = source.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (source.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (pos < source.length() && source.charAt(pos) == '?') {
+                        throw error("Lookaround and inline groups are not supported");
+                    }
+                    Node group = parseAlternation();
+                    if (pos >= source.length() || source.charAt(pos) != ')') {
+                        throw error("Unclosed group");
+                    }
+                    pos++;
+                    return group;
+                case '[':
+                    return new CharNode(parseClass());
+                case '.':
+                    CharSetBuilder any = new CharSetBuilder();
+                    if (!dotAll) {
+                        any.add('\n', '\n').add('\r', '\r').add('\u0085', '\u0085').add('\u2028', '\u2029');
+                        return new CharNode(any.complement());
+                    }
+                    return new CharNode(any.add(0, Character.MAX_VALUE).normalize());
+                case '^':
+                    return new AssertNode(BEGIN);
+                case '$':
+                    return new AssertNode(END);
+                case '\\':
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("Dangling meta character '" + c + "'");
+                default:
+                    return literal(c);
+            }
+        }
+        
+        private Node parseEscape() {
+            if (pos >= source.length()) {
+                throw error("Trailing backslash");
+            }
+            char c = source.charAt(pos);
+            switch (c) {
+                case 'b':
+                    pos++;
+                    return new AssertNode(WORD_BOUNDARY);
+                case 'B':
+                    pos++;
+                    return new AssertNode(NOT_WORD_BOUNDARY);
+                case 'A':
+                    pos++;
+                    return new AssertNode(BEGIN);
+                case 'z':
+                    pos++;
+                    return new AssertNode(ABSOLUTE_END);
+                case 'Z':
+                    pos++;
+                    return new AssertNode(END);
+                default:
+                    CharSetBuilder set = new CharSetBuilder();
+                    boolean negated = parseClassEscape(set);
+                    if (caseInsensitive) {
+                        set.foldAsciiCase();
+                    }
+                    return new CharNode(negated ? set.complement() : set.normalize());
+            }
+        }
+        
+        private Node literal(char c) {
+            CharSetBuilder set = new CharSetBuilder().add(c, c);
+            if (caseInsensitive) {
+                set.foldAsciiCase();
+            }
+            return new CharNode(set.normalize());
+        }
+        
+        private int[] parseClass() {
+            boolean negated = false;
+            if (pos < source.length() && source.charAt(pos) == '^') {
+                negated = true;
+                pos++;
+            }
+            CharSetBuilder set = new CharSetBuilder();
+            boolean empty = true;
+            while (true) {
+                if (pos >= source.length()) {
+                    throw error("Unclosed character class");
+                }
+                char c = source.charAt(pos);
+                if (c == ']' && !empty) {
+                    pos++;
+                    break;
+                }
+                if (c == '[' || source.startsWith("&&", pos)) {
+                    throw error("Nested classes and intersections are not supported");
+                }
+                empty = false;
+                int low;
+                if (c == '\\') {
+                    pos++;
+                    CharSetBuilder escaped = new CharSetBuilder();
+                    boolean escapedNegated = parseClassEscape(escaped);
+                    int[] ranges = escapedNegated ? escaped.complement() : escaped.normalize();
+                    if (ranges.length != 2 || ranges[0] != ranges[1]) {
+                        set.addAll(ranges);
+                        continue;
+                    }
+                    low = ranges[0];
+                } else {
+                    pos++;
+                    low = c;
+                }
+                // A range, unless the '-' is the last char of the class
+                if (pos + 1 < source.length() && source.charAt(pos) == '-' && source.charAt(pos + 1) != ']') {
+                    pos++;
+                    int high;
+                    char h = source.charAt(pos);
+                    if (h == '\\') {
+                        pos++;
+                        CharSetBuilder escaped = new CharSetBuilder();
+                        int[] ranges = parseClassEscape(escaped) ? escaped.complement() : escaped.normalize();
+                        if (ranges.length != 2 || ranges[0] != ranges[1]) {
+                            throw error("Illegal character range");
+                        }
+                        high = ranges[0];
+                    } else {
+                        pos++;
+                        high = h;
+                    }
+                    if (high < low) {
+                        throw error("Illegal character range");
+                    }
+                    set.add(low, high);
+                } else {
+                    set.add(low, low);
+                }
+            }
+            if (caseInsensitive) {
+                set.foldAsciiCase();
+            }
+            return negated ? set.complement() : set.normalize();
+        }
+        
+        /**
+         * Parses the escape after a backslash into the builder; returns true if the
+         * escape stands for the complement of what was added
+         */
+        private boolean parseClassEscape(CharSetBuilder set) {
+            if (pos >= source.length()) {
+                throw error("Trailing backslash");
+            }
+            char c = source.charAt(pos++);
+            switch (c) {
+                case 'd':
+                    set.add('0', '9');
+                    return false;
+                case 'D':
+                    set.add('0', '9');
+                    return true;
+                case 'w':
+                    set.add('a', 'z').add('A', 'Z').add('0', '9').add('_', '_');
+                    return false;
+                case 'W':
+                    set.add('a', 'z').add('A', 'Z').add('0', '9').add('_', '_');
+                    return true;
+                case 's':
+                    set.add(' ', ' ').add('\t', '\r');
+                    return false;
+                case 'S':
+                    set.add(' ', ' ').add('\t', '\r');
+                    return true;
+                case 'p':
+                case 'P':
+                    addCategory(set, parseCategoryName());
+                    return c == 'P';
+                case 't':
+                    set.add('\t', '\t');
+                    return false;
+                case 'n':
+                    set.add('\n', '\n');
+                    return false;
+                case 'r':
+                    set.add('\r', '\r');
+                    return false;
+                case 'f':
+                    set.add('\f', '\f');
+                    return false;
+                case 'a':
+                    set.add('\u0007', '\u0007');
+                    return false;
+                case 'e':
+                    set.add('\u001B', '\u001B');
+                    return false;
+                case 'x':
+                    int hex = parseHex(2);
+                    set.add(hex, hex);
+                    return false;
+                case 'u':
+                    int unicode = parseHex(4);
+                    set.add(unicode, unicode);
+                    return false;
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("Unsupported escape '\\" + c + "'");
+                    }
+                    set.add(c, c);
+                    return false;
+            }
+        }
+        
+        private String parseCategoryName() {
+            if (pos < source.length() && source.charAt(pos) == '{') {
+                int close = source.indexOf('}', pos);
+                if (close < 0) {
+                    throw error("Unclosed character property");
+                }
+                String name = source.substring(pos + 1, close);
+                pos = close + 1;
+                return name;
+            }
+            if (pos >= source.length()) {
+                throw error("Missing character property");
+            }
+            return String.valueOf(source.charAt(pos++));
+        }
+        
+        private void addCategory(CharSetBuilder set, String name) {
+            int[] types;
+            switch (name) {
+                case "L":
+                    types = new int[] {Character.UPPERCASE_LETTER, Character.LOWERCASE_LETTER, Character.TITLECASE_LETTER,
+                                       Character.MODIFIER_LETTER, Character.OTHER_LETTER};
+                    break;
+                case "Lu":
+                    types = new int[] {Character.UPPERCASE_LETTER};
+                    break;
+                case "Ll":
+                    types = new int[] {Character.LOWERCASE_LETTER};
+                    break;
+                case "N":
+                    types = new int[] {Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER, Character.OTHER_NUMBER};
+                    break;
+                case "Nd":
+                    types = new int[] {Character.DECIMAL_DIGIT_NUMBER};
+                    break;
+                case "P":
+                    types = new int[] {Character.CONNECTOR_PUNCTUATION, Character.DASH_PUNCTUATION, Character.START_PUNCTUATION,
+                                       Character.END_PUNCTUATION, Character.INITIAL_QUOTE_PUNCTUATION,
+                                       Character.FINAL_QUOTE_PUNCTUATION, Character.OTHER_PUNCTUATION};
+                    break;
+                default:
+                    throw error("Unsupported character property '" + name + "'");
+            }
+            int start = -1;
+            for (int c = 0; c <= Character.MAX_VALUE + 1; c++) {
+                boolean member = false;
+                if (c <= Character.MAX_VALUE) {
+                    int type = Character.getType(c);
+                    for (int t : types) {
+                        member |= type == t;
+                    }
+                }
+                if (member && start < 0) {
+                    start = c;
+                } else if (!member && start >= 0) {
+                    set.add(start, c - 1);
+                    start = -1;
+                }
+            }
+        }
+        
+        private int parseHex(int digits) {
+            if (pos + digits > source.length()) {
+                throw error("Illegal hexadecimal escape");
+            }
+            try {
+                int value = Integer.parseInt(source.substring(pos, pos + digits), 16);
+                pos += digits;
+                return value;
+            } catch (NumberFormatException e) {
+                throw error("Illegal hexadecimal escape");
+            }
+        }
+        
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " near index " + pos + " in pattern " + source);
+        }
+    }
+    
+    /**
+     * Thompson construction of the NFA program
+     */
+    private static final class Program {
+        private int[] op = new int[64];
+        private int[] arg = new int[64];
+        private int[] out = new int[64];
+        private int[] out2 = new int[64];
+        private final List<CharSet> sets = new ArrayList<>();
+        private int size;
+        
+        int emit(int instruction, int argument, int next, int alternative) {
+            if (size == MAX_PROGRAM_SIZE) {
+                throw new IllegalArgumentException("Pattern is too large");
+            }
+            if (size == op.length) {
+                op = Arrays.copyOf(op, size * 2);
+                arg = Arrays.copyOf(arg, size * 2);
+                out = Arrays.copyOf(out, size * 2);
+                out2 = Arrays.copyOf(out2, size * 2);
+            }
+            op[size] = instruction;
+            arg[size] = argument;
+            out[size] = next;
+            out2[size] = alternative;
+            return size++;
+        }
+        
+        void compile(Node node) {
+            if (node instanceof CharNode) {
+                sets.add(new CharSet(((CharNode) node).ranges));
+                emit(CHAR, sets.size() - 1, size + 1, -1);
+            } else if (node instanceof AssertNode) {
+                emit(ASSERT, ((AssertNode) node).assertion, size + 1, -1);
+            } else if (node instanceof ConcatNode) {
+                for (Node part : ((ConcatNode) node).parts) {
+                    compile(part);
+                }
+            } else if (node instanceof AlternationNode) {
+                List<Node> choices = ((AlternationNode) node).choices;
+                List<Integer> jumps = new ArrayList<>();
+                for (int i = 0; i < choices.size() - 1; i++) {
+                    int split = emit(SPLIT, 0, size + 1, -1);
+                    compile(choices.get(i));
+                    jumps.add(emit(JUMP, 0, -1, -1));
+                    out2[split] = size;
+                }
+                compile(choices.get(choices.size() - 1));
+                for (int jump : jumps) {
+                    out[jump] = size;
+                }
+            } else if (node instanceof RepeatNode) {
+                RepeatNode repeat = (RepeatNode) node;
+                for (int i = 0; i < repeat.min; i++) {
+                    compile(repeat.body);
+                }
+                if (repeat.max < 0) {
+                    int split = emit(SPLIT, 0, size + 1, -1);
+                    compile(repeat.body);
+                    emit(JUMP, 0, split, -1);
+                    out2[split] = size;
+                } else {
+                    List<Integer> splits = new ArrayList<>();
+                    for (int i = repeat.min; i < repeat.max; i++) {
+                        splits.add(emit(SPLIT, 0, size + 1, -1));
+                        compile(repeat.body);
+                    }
+                    for (int split : splits) {
+                        out2[split] = size;
+                    }
+                }
+            }
+            // An empty concatenation compiles to nothing
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.confluence.rag.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Exchanges security state with a fixed set of peer nodes over UDP.
+ *
+ * Every node sends its changes directly to all peers listed in security.cluster.peers;
+ * the same list can be used on every node, as a node ignores its own datagrams. Changes
+ * are packed into datagrams small enough to avoid fragmentation, each signed with an
+ * HMAC over security.cluster.secret and stamped with a random node id, a sequence number
+ * and the send time. Datagrams with a wrong signature, from the past or replayed are
+ * dropped. Nothing is retransmitted; see SecurityStateExchange for why that is enough.
+ */
+public class PeerStateExchange implements SecurityStateExchange {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PeerStateExchange.class);
+    
+    private static final int MAGIC = 0x52475353;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 8 + 8 + 2;
+    private static final int MAC_BYTES = 16;
+    private static final int MAX_DATAGRAM_BYTES = 1400;
+    private static final int MAX_SESSION_ID_BYTES = 512;
+    private static final long MAX_CLOCK_SKEW_MILLIS = 30_000;
+    private static final int MAX_TRACKED_NODES = 256;
+    private static final int DEFAULT_PORT = 47011;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    
+    private final long nodeId = new SecureRandom().nextLong();
+    private final List<SocketAddress> peers;
+    private final SecretKeySpec key;
+    private final DatagramChannel channel;
+    private final AtomicLong sentDatagrams = new AtomicLong();
+    private final AtomicLong receivedDatagrams = new AtomicLong();
+    private final AtomicLong rejectedDatagrams = new AtomicLong();
+    
+    // Only used by the publishing thread
+    private final Mac sendMac;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+    private long sequence;
+    
+    private Thread receiver;
+    
+    /**
+     * @param config Reads security.cluster.port, security.cluster.peers (host:port, comma-separated)
+     *               and security.cluster.secret
+     * @throws IllegalArgumentException if no peers or no secret are configured
+     * @throws IllegalStateException if the port cannot be bound
+     */
+    public PeerStateExchange(Properties config) {
+        this.peers = parsePeers(config.getProperty("security.cluster.peers", ""));
+        if (peers.isEmpty()) {
+            throw new IllegalArgumentException("No cluster peers configured in security.cluster.peers");
+        }
+        String secret = config.getProperty("security.cluster.secret", "").trim();
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("Cluster state exchange needs security.cluster.secret");
+        }
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.sendMac = newMac();
+        
+        int port = Integer.parseInt(config.getProperty("security.cluster.port", String.valueOf(DEFAULT_PORT)).trim());
+        try {
+            this.channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not bind cluster port " + port + ": " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public synchronized void start(Consumer<SecurityStateDelta> listener) {
+        if (receiver != null) {
+            return;
+        }
+        receiver = new Thread(() -> receive(listener), "rag-security-cluster");
+        receiver.setDaemon(true);
+        receiver.start();
+        logger.info("Exchanging security state on port {} with {} peers", getLocalPort(), peers.size());
+    }
+    
+    @Override
+    public void publish(List<SecurityStateDelta> changes) {
+        int entries = 0;
+        startDatagram();
+        for (SecurityStateDelta change : changes) {
+            byte[] sessionId = change.getSessionId().getBytes(StandardCharsets.UTF_8);
+            if (sessionId.length > MAX_SESSION_ID_BYTES) {
+                logger.debug("Session id too long for cluster exchange, change not sent");
+                continue;
+            }
+            int size = 1 + 2 + sessionId.length + 10;
+            if (sendBuffer.remaining() - MAC_BYTES < size) {
+                sendDatagram(entries);
+                startDatagram();
+                entries = 0;
+            }
+            sendBuffer.put((byte) change.getType().ordinal());
+            sendBuffer.putShort((short) sessionId.length);
+            sendBuffer.put(sessionId);
+            putVarLong(sendBuffer, change.getValue());
+            entries++;
+        }
+        if (entries > 0) {
+            sendDatagram(entries);
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Closing cluster channel failed: {}", e.getMessage());
+        }
+    }
+    
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    public long getSentDatagrams() {
+        return sentDatagrams.get();
+    }
+    
+    public long getReceivedDatagrams() {
+        return receivedDatagrams.get();
+    }
+    
+    /**
+     * Datagrams dropped as malformed, unsigned, stale or replayed
+     */
+    public long getRejectedDatagrams() {
+        return rejectedDatagrams.get();
+    }
+    
+    private void startDatagram() {
+        sendBuffer.clear();
+        sendBuffer.position(HEADER_BYTES);
+    }
+    
+    private void sendDatagram(int entries) {
+        int end = sendBuffer.position();
+        sendBuffer.putInt(0, MAGIC)
+                  .put(4, FORMAT_VERSION)
+                  .putLong(5, nodeId)
+                  .putLong(13, ++sequence)
+                  .putLong(21, System.currentTimeMillis())
+                  .putShort(29, (short) entries);
+        sendMac.update(sendBuffer.array(), 0, end);
+        sendBuffer.put(sendMac.doFinal(), 0, MAC_BYTES);
+        sendBuffer.flip();
+        for (SocketAddress peer : peers) {
+            try {
+                channel.send(sendBuffer, peer);
+                sentDatagrams.incrementAndGet();
+            } catch (IOException e) {
+                logger.warn("Could not send security state to {}: {}", peer, e.getMessage());
+            }
+            sendBuffer.rewind();
+        }
+    }
+    
+    private void receive(Consumer<SecurityStateDelta> listener) {
+        Mac mac = newMac();
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_BYTES * 2);
+        Map<Long, Long> lastSequences = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > MAX_TRACKED_NODES;
+            }
+        };
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress sender = channel.receive(buffer);
+                buffer.flip();
+                List<SecurityStateDelta> changes = decode(buffer, mac, lastSequences);
+                if (changes == null) {
+                    rejectedDatagrams.incrementAndGet();
+                    logger.debug("Rejected security state datagram from {}", sender);
+                    continue;
+                }
+                receivedDatagrams.incrementAndGet();
+                for (SecurityStateDelta change : changes) {
+                    listener.accept(change);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("Receiving security state failed: {}", e.getMessage());
+            } catch (RuntimeException e) {
+                // Keep receiving
+                logger.error("Applying security state failed", e);
+            }
+        }
+    }
+    
+    /**
+     * Verifies and decodes a datagram
+     * @return The changes, empty for the node's own datagrams, or null if the datagram is rejected
+     */
+    private List<SecurityStateDelta> decode(ByteBuffer buffer, Mac mac, Map<Long, Long> lastSequences) {
+        int length = buffer.remaining();
+        if (length < HEADER_BYTES + MAC_BYTES || buffer.getInt(0) != MAGIC || buffer.get(4) != FORMAT_VERSION) {
+            return null;
+        }
+        mac.update(buffer.array(), 0, length - MAC_BYTES);
+        byte[] expected = mac.doFinal();
+        byte[] actual = new byte[MAC_BYTES];
+        System.arraycopy(buffer.array(), length - MAC_BYTES, actual, 0, MAC_BYTES);
+        if (!MessageDigest.isEqual(actual, Arrays.copyOf(expected, MAC_BYTES))) {
+            return null;
+        }
+        
+        long sender = buffer.getLong(5);
+        long sequence = buffer.getLong(13);
+        long sentAt = buffer.getLong(21);
+        int entries = buffer.getShort(29) & 0xFFFF;
+        List<SecurityStateDelta> changes = new ArrayList<>(entries);
+        if (sender == nodeId) {
+            return changes;
+        }
+        Long last = lastSequences.get(sender);
+        if ((last != null && sequence <= last) || Math.abs(System.currentTimeMillis() - sentAt) > MAX_CLOCK_SKEW_MILLIS) {
+            return null;
+        }
+        
+        SecurityStateDelta.Type[] types = SecurityStateDelta.Type.values();
+        buffer.position(HEADER_BYTES);
+        buffer.limit(length - MAC_BYTES);
+        try {
+            for (int i = 0; i < entries; i++) {
+                int type = buffer.get() & 0xFF;
+                int idLength = buffer.getShort() & 0xFFFF;
+                if (type >= types.length || idLength > MAX_SESSION_ID_BYTES) {
+                    return null;
+                }
+                String sessionId = new String(buffer.array(), buffer.position(), idLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + idLength);
+                changes.add(new SecurityStateDelta(types[type], sessionId, getVarLong(buffer)));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        lastSequences.put(sender, sequence);
+        return changes;
+    }
+    
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC not available: " + e.getMessage(), e);
+        }
+    }
+    
+    private static List<SocketAddress> parsePeers(String value) {
+        List<SocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            String trimmed = peer.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Cluster peer needs host:port: " + trimmed);
+            }
+            try {
+                peers.add(new InetSocketAddress(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1))));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid cluster peer " + trimmed + ": " + e.getMessage());
+            }
+        }
+        return peers;
+    }
+    
+    // Unsigned LEB128, so small counts take one byte
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed number");
+    }
+}
@@ -0,0 +1,35 @@
+package com.confluence.rag.security;
+
+/**
+ * Finds one kind of sensitive data for TextSanitizer.
+ *
+ * Matches are packed into a long (start in the high, end in the low 32 bits) so a
+ * scan creates no objects. Implementations must be stateless and find the leftmost
+ * match at or after the given position in time linear in the text they read.
+ */
+public interface PiiDetector {
+    
+    long NOT_FOUND = -1;
+    
+    /**
+     * Returns the leftmost match starting at or after from, or NOT_FOUND
+     */
+    long find(CharSequence text, int from);
+    
+    /**
+     * Appends the replacement for the matched range
+     */
+    void appendReplacement(CharSequence text, int start, int end, StringBuilder out);
+    
+    static long match(int start, int end) {
+        return ((long) start << 32) | end;
+    }
+    
+    static int start(long match) {
+        return (int) (match >>> 32);
+    }
+    
+    static int end(long match) {
+        return (int) match;
+    }
+}
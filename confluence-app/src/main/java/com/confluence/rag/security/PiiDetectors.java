@@ -0,0 +1,398 @@
+package com.confluence.rag.security;
+
+/**
+ * Built-in detectors for TextSanitizer.
+ *
+ * Secrets, card numbers and e-mail addresses are found exactly where the regexes
+ * previously used for log sanitization matched, with \b meaning a change between
+ * word characters (letters, digits, '_') and other characters.
+ */
+public final class PiiDetectors {
+    
+    private static final String[] SECRET_KEYWORDS = {"password", "passwort", "secret", "geheim", "token", "key"};
+    
+    private static final PiiDetector SECRETS = new SecretDetector();
+    private static final PiiDetector CARD_NUMBERS = new CardNumberDetector();
+    private static final PiiDetector EMAIL_ADDRESSES = new EmailDetector();
+    private static final PiiDetector IBANS = new IbanDetector();
+    private static final PiiDetector PHONE_NUMBERS = new PhoneNumberDetector();
+    
+    private PiiDetectors() {
+    }
+    
+    /**
+     * Values assigned to a secret keyword, like the regex
+     * (?i)(password|passwort|secret|geheim|token|key)\s*[:=]\s*\S+ replaced by "$1: [REDACTED]"
+     */
+    public static PiiDetector secrets() {
+        return SECRETS;
+    }
+    
+    /**
+     * Runs of 13 to 19 digits, like \b\d{13,19}\b, replaced by [CARD_NUMBER]
+     */
+    public static PiiDetector cardNumbers() {
+        return CARD_NUMBERS;
+    }
+    
+    /**
+     * Addresses like \b[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\.[A-Z|a-z]{2,}\b, replaced by [EMAIL]
+     */
+    public static PiiDetector emailAddresses() {
+        return EMAIL_ADDRESSES;
+    }
+    
+    /**
+     * IBANs with a valid check sum, compact or in groups separated by single spaces,
+     * replaced by [IBAN]
+     */
+    public static PiiDetector ibans() {
+        return IBANS;
+    }
+    
+    /**
+     * Phone numbers in international (+49 ...) or national (030 ...) format with 8 to 15
+     * digits, optionally grouped by spaces, '-', '/' or parentheses, replaced by [PHONE]
+     */
+    public static PiiDetector phoneNumbers() {
+        return PHONE_NUMBERS;
+    }
+    
+    private static final class SecretDetector implements PiiDetector {
+        
+        @Override
+        public long find(CharSequence text, int from) {
+            int length = text.length();
+            for (int i = from; i < length; i++) {
+                int keywordLength = keywordAt(text, i);
+                if (keywordLength == 0) {
+                    continue;
+                }
+                int p = skipWhitespace(text, i + keywordLength);
+                if (p == length || (text.charAt(p) != ':' && text.charAt(p) != '=')) {
+                    continue;
+                }
+                int valueStart = skipWhitespace(text, p + 1);
+                int end = valueStart;
+                while (end < length && !isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                if (end > valueStart) {
+                    return PiiDetector.match(i, end);
+                }
+            }
+            return NOT_FOUND;
+        }
+        
+        @Override
+        public void appendReplacement(CharSequence text, int start, int end, StringBuilder out) {
+            out.append(text, start, start + keywordAt(text, start)).append(": [REDACTED]");
+        }
+        
+        private static int keywordAt(CharSequence text, int start) {
+            for (String keyword : SECRET_KEYWORDS) {
+                if (regionMatchesIgnoreCase(text, start, keyword)) {
+                    return keyword.length();
+                }
+            }
+            return 0;
+        }
+        
+        private static int skipWhitespace(CharSequence text, int from) {
+            int i = from;
+            while (i < text.length() && isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+    }
+    
+    private static final class CardNumberDetector implements PiiDetector {
+        
+        @Override
+        public long find(CharSequence text, int from) {
+            int length = text.length();
+            int i = from;
+            while (i < length) {
+                if (!isDigit(text.charAt(i))) {
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < length && isDigit(text.charAt(end))) {
+                    end++;
+                }
+                int digits = end - i;
+                if (digits >= 13 && digits <= 19 && !isWordBefore(text, i) && !isWordAt(text, end)) {
+                    return PiiDetector.match(i, end);
+                }
+                i = end;
+            }
+            return NOT_FOUND;
+        }
+        
+        @Override
+        public void appendReplacement(CharSequence text, int start, int end, StringBuilder out) {
+            out.append("[CARD_NUMBER]");
+        }
+    }
+    
+    private static final class EmailDetector implements PiiDetector {
+        
+        @Override
+        public long find(CharSequence text, int from) {
+            int length = text.length();
+            int i = from;
+            while (i < length) {
+                if (!isLocalPartChar(text.charAt(i))) {
+                    i++;
+                    continue;
+                }
+                // The local part has to reach the '@' without interruption
+                int at = i;
+                while (at < length && isLocalPartChar(text.charAt(at))) {
+                    at++;
+                }
+                if (at < length && text.charAt(at) == '@') {
+                    int end = domainEnd(text, at + 1);
+                    if (end >= 0) {
+                        for (int start = i; start < at; start++) {
+                            if (isWordBefore(text, start) != isWordAt(text, start)) {
+                                return PiiDetector.match(start, end);
+                            }
+                        }
+                    }
+                }
+                i = at + 1;
+            }
+            return NOT_FOUND;
+        }
+        
+        @Override
+        public void appendReplacement(CharSequence text, int start, int end, StringBuilder out) {
+            out.append("[EMAIL]");
+        }
+        
+        /**
+         * End of [A-Za-z0-9.-]+\.[A-Z|a-z]{2,}\b from the given position, preferring the
+         * longest domain and then the longest top level domain like the regex does, or -1
+         */
+        private static int domainEnd(CharSequence text, int start) {
+            int length = text.length();
+            int domainEnd = start;
+            while (domainEnd < length && isDomainChar(text.charAt(domainEnd))) {
+                domainEnd++;
+            }
+            for (int dot = domainEnd - 1; dot > start; dot--) {
+                if (text.charAt(dot) != '.') {
+                    continue;
+                }
+                int tldEnd = dot + 1;
+                while (tldEnd < length && isTopLevelDomainChar(text.charAt(tldEnd))) {
+                    tldEnd++;
+                }
+                for (int end = tldEnd; end >= dot + 3; end--) {
+                    if (isWordBefore(text, end) != isWordAt(text, end)) {
+                        return end;
+                    }
+                }
+            }
+            return -1;
+        }
+        
+        private static boolean isLocalPartChar(char c) {
+            return isAsciiLetterOrDigit(c) || c == '.' || c == '_' || c == '%' || c == '+' || c == '-';
+        }
+        
+        private static boolean isDomainChar(char c) {
+            return isAsciiLetterOrDigit(c) || c == '.' || c == '-';
+        }
+        
+        private static boolean isTopLevelDomainChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '|';
+        }
+    }
+    
+    private static final class IbanDetector implements PiiDetector {
+        
+        private static final int MIN_LENGTH = 15;
+        private static final int MAX_LENGTH = 34;
+        
+        @Override
+        public long find(CharSequence text, int from) {
+            int length = text.length();
+            for (int i = from; i + MIN_LENGTH <= length; i++) {
+                if (!isAsciiLetter(text.charAt(i)) || !isAsciiLetter(text.charAt(i + 1))
+                    || !isDigit(text.charAt(i + 2)) || !isDigit(text.charAt(i + 3)) || isWordBefore(text, i)) {
+                    continue;
+                }
+                // Longest extent: alphanumerics, optionally in groups separated by single spaces
+                int extent = i;
+                int characters = 0;
+                while (extent < length && characters < MAX_LENGTH) {
+                    char c = text.charAt(extent);
+                    if (isAsciiLetterOrDigit(c)) {
+                        characters++;
+                        extent++;
+                    } else if (c == ' ' && extent + 1 < length && isAsciiLetterOrDigit(text.charAt(extent + 1))) {
+                        extent++;
+                    } else {
+                        break;
+                    }
+                }
+                // Try the extent and then every group end before it, longest first
+                for (int end = extent; end >= i + MIN_LENGTH; end--) {
+                    if ((end == extent || text.charAt(end) == ' ') && !isWordAt(text, end) && hasValidChecksum(text, i, end)) {
+                        return PiiDetector.match(i, end);
+                    }
+                }
+            }
+            return NOT_FOUND;
+        }
+        
+        @Override
+        public void appendReplacement(CharSequence text, int start, int end, StringBuilder out) {
+            out.append("[IBAN]");
+        }
+        
+        /**
+         * ISO 13616 check: country code and check digits moved to the end, letters
+         * counted as 10 to 35, the number modulo 97 is 1
+         */
+        private static boolean hasValidChecksum(CharSequence text, int start, int end) {
+            int characters = 0;
+            int remainder = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                int from = pass == 0 ? start + 4 : start;
+                int to = pass == 0 ? end : start + 4;
+                for (int i = from; i < to; i++) {
+                    char c = text.charAt(i);
+                    if (c == ' ') {
+                        continue;
+                    }
+                    characters++;
+                    int value = isDigit(c) ? c - '0' : Character.toUpperCase(c) - 'A' + 10;
+                    remainder = (value < 10 ? remainder * 10 + value : remainder * 100 + value) % 97;
+                }
+            }
+            return characters >= MIN_LENGTH && characters <= MAX_LENGTH && remainder == 1;
+        }
+    }
+    
+    private static final class PhoneNumberDetector implements PiiDetector {
+        
+        private static final int MIN_DIGITS = 8;
+        private static final int MAX_DIGITS = 15;
+        
+        @Override
+        public long find(CharSequence text, int from) {
+            int length = text.length();
+            for (int i = from; i < length; i++) {
+                char c = text.charAt(i);
+                if ((c == '+' || c == '0' || c == '(') && !isWordBefore(text, i)) {
+                    int end = numberEnd(text, i);
+                    if (end >= 0) {
+                        return PiiDetector.match(i, end);
+                    }
+                }
+            }
+            return NOT_FOUND;
+        }
+        
+        @Override
+        public void appendReplacement(CharSequence text, int start, int end, StringBuilder out) {
+            out.append("[PHONE]");
+        }
+        
+        private static int numberEnd(CharSequence text, int start) {
+            int length = text.length();
+            int p = start;
+            if (text.charAt(p) == '(') {
+                p++;
+            }
+            boolean international = p < length && text.charAt(p) == '+';
+            if (international) {
+                p++;
+            }
+            if (p >= length || !isDigit(text.charAt(p)) || (!international && text.charAt(p) != '0')) {
+                return -1;
+            }
+            int digits = 0;
+            int end = p;
+            while (p < length && digits <= MAX_DIGITS) {
+                if (isDigit(text.charAt(p))) {
+                    digits++;
+                    p++;
+                    end = p;
+                    continue;
+                }
+                // Up to two separators between digit groups, like ") " or " / "
+                int gap = p;
+                while (gap < length && gap - p < 3 && isSeparator(text.charAt(gap))) {
+                    gap++;
+                }
+                if (gap == p || gap - p > 2 || gap == length || !isDigit(text.charAt(gap))) {
+                    break;
+                }
+                p = gap;
+            }
+            if (digits < MIN_DIGITS || digits > MAX_DIGITS || isWordAt(text, end)) {
+                return -1;
+            }
+            return end;
+        }
+        
+        private static boolean isSeparator(char c) {
+            return c == ' ' || c == '-' || c == '/' || c == '(' || c == ')';
+        }
+    }
+    
+    // Shared character tests
+    
+    private static boolean regionMatchesIgnoreCase(CharSequence text, int start, String lowerCaseWord) {
+        if (start + lowerCaseWord.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseWord.length(); i++) {
+            char c = text.charAt(start + i);
+            // ASCII case folding, like (?i) without UNICODE_CASE
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCaseWord.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // The characters matched by \s
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+    
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return isAsciiLetter(c) || isDigit(c);
+    }
+    
+    // Word characters as seen by \b
+    private static boolean isWordBefore(CharSequence text, int index) {
+        return index > 0 && isWord(Character.codePointBefore(text, index));
+    }
+    
+    private static boolean isWordAt(CharSequence text, int index) {
+        return index < text.length() && isWord(Character.codePointAt(text, index));
+    }
+    
+    private static boolean isWord(int codePoint) {
+        return Character.isLetterOrDigit(codePoint) || codePoint == '_';
+    }
+}
@@ -0,0 +1,65 @@
+package com.confluence.rag.security;
+
+import java.util.regex.Pattern;
+
+/**
+ * Engine used for the regex parts of security rules
+ */
+public enum RegexEngine {
+    
+    /**
+     * Automaton engine: cost grows linearly with the input and is charged to the
+     * step budget, so no pattern can be driven into catastrophic backtracking
+     */
+    LINEAR {
+        @Override
+        public SecurityPattern compile(String regex) {
+            return LinearRegex.compile(regex);
+        }
+    },
+    
+    /**
+     * java.util.regex with its full syntax; each search is charged one step per
+     * input character but cannot be stopped once started
+     */
+    BACKTRACKING {
+        @Override
+        public SecurityPattern compile(String regex) {
+            Pattern compiled = Pattern.compile(regex);
+            return new SecurityPattern() {
+                @Override
+                public Outcome find(CharSequence text, StepBudget budget) {
+                    if (!budget.consume(text.length())) {
+                        return Outcome.BUDGET_EXCEEDED;
+                    }
+                    return compiled.matcher(text).find() ? Outcome.MATCH : Outcome.NO_MATCH;
+                }
+                
+                @Override
+                public String pattern() {
+                    return regex;
+                }
+            };
+        }
+    };
+    
+    /**
+     * Compiles a pattern for this engine
+     * @throws IllegalArgumentException if the pattern is invalid or not supported by the engine
+     */
+    public abstract SecurityPattern compile(String regex);
+    
+    /**
+     * Parses a configured engine name, defaulting to LINEAR for unknown or empty values
+     */
+    public static RegexEngine fromConfig(String value) {
+        if (value != null) {
+            for (RegexEngine engine : values()) {
+                if (engine.name().equalsIgnoreCase(value.trim())) {
+                    return engine;
+                }
+            }
+        }
+        return LINEAR;
+    }
+}
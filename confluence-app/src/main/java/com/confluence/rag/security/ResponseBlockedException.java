@@ -0,0 +1,24 @@
+package com.confluence.rag.security;
+
+/**
+ * Thrown by a ResponseGuard to stop a streamed response that contains forbidden content
+ */
+public class ResponseBlockedException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final ResponseViolation violation;
+    
+    public ResponseBlockedException(ResponseViolation violation) {
+        super("Response blocked: " + violation);
+        this.violation = violation;
+    }
+    
+    public ResponseViolation getViolation() {
+        return violation;
+    }
+    
+    public String getReplacement() {
+        return violation.getReplacement();
+    }
+}
@@ -0,0 +1,89 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Forbidden phrases for model responses, compiled into one automaton.
+ *
+ * Text is lower-cased a character at a time while it is read, so a response is
+ * scanned once without copies, and the automaton state can be carried from one
+ * streamed chunk to the next. A phrase matches anywhere, also inside words.
+ */
+public final class ResponseFilter {
+    
+    private final KeywordAutomaton automaton;
+    
+    // Most important violation completed in each state, or null
+    private final ResponseViolation[] violations;
+    
+    /**
+     * @param phrases Forbidden phrases per violation, in lower case
+     */
+    public ResponseFilter(Map<ResponseViolation, List<String>> phrases) {
+        Map<String, ResponseViolation> byPhrase = new LinkedHashMap<>();
+        for (Map.Entry<ResponseViolation, List<String>> entry : phrases.entrySet()) {
+            for (String phrase : entry.getValue()) {
+                if (!phrase.isEmpty()) {
+                    byPhrase.merge(phrase, entry.getKey(), (a, b) -> a.compareTo(b) <= 0 ? a : b);
+                }
+            }
+        }
+        List<String> keywords = new ArrayList<>(byPhrase.keySet());
+        this.automaton = new KeywordAutomaton(keywords);
+        this.violations = new ResponseViolation[automaton.stateCount()];
+        for (int state = 0; state < violations.length; state++) {
+            for (int keyword : automaton.matches(state)) {
+                ResponseViolation violation = byPhrase.get(keywords.get(keyword));
+                if (violations[state] == null || violation.compareTo(violations[state]) < 0) {
+                    violations[state] = violation;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the most important violation anywhere in the text, or null
+     */
+    public ResponseViolation check(CharSequence text) {
+        ResponseViolation found = null;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = next(state, text.charAt(i));
+            ResponseViolation violation = violations[state];
+            if (violation != null && (found == null || violation.compareTo(found) < 0)) {
+                found = violation;
+                if (found.ordinal() == 0) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Creates a guard for one streamed response
+     * @param downstream Receives the checked text, or null if only checking is needed
+     */
+    public ResponseGuard newGuard(Consumer<String> downstream) {
+        return new ResponseGuard(this, downstream);
+    }
+    
+    int next(int state, char c) {
+        return automaton.next(state, Character.toLowerCase(c));
+    }
+    
+    ResponseViolation violationAt(int state) {
+        return violations[state];
+    }
+    
+    /**
+     * Number of trailing characters that may still become a forbidden phrase
+     */
+    int pendingLength(int state) {
+        return automaton.depth(state);
+    }
+}
@@ -0,0 +1,81 @@
+package com.confluence.rag.security;
+
+import java.util.function.Consumer;
+
+/**
+ * Checks a streamed response chunk by chunk and stops it at the first forbidden
+ * phrase by throwing ResponseBlockedException from accept, which aborts the read
+ * of the model stream.
+ *
+ * Checked text is passed on to the downstream consumer, except for a tail that
+ * could still grow into a forbidden phrase with the next chunk; that tail is held
+ * back until it is decided, so no part of a blocked phrase is ever passed on.
+ * Checking costs one table lookup per character. A guard serves one response on
+ * one thread.
+ */
+public final class ResponseGuard implements Consumer<String> {
+    
+    private final ResponseFilter filter;
+    private final Consumer<String> downstream;
+    private final StringBuilder held = new StringBuilder();
+    private int state;
+    private ResponseViolation violation;
+    
+    ResponseGuard(ResponseFilter filter, Consumer<String> downstream) {
+        this.filter = filter;
+        this.downstream = downstream;
+    }
+    
+    /**
+     * @throws ResponseBlockedException if the response contains a forbidden phrase
+     */
+    @Override
+    public void accept(String chunk) {
+        if (violation != null) {
+            throw new ResponseBlockedException(violation);
+        }
+        for (int i = 0; i < chunk.length(); i++) {
+            state = filter.next(state, chunk.charAt(i));
+            ResponseViolation found = filter.violationAt(state);
+            if (found != null) {
+                violation = found;
+                held.setLength(0);
+                throw new ResponseBlockedException(found);
+            }
+        }
+        if (downstream != null) {
+            forward(chunk);
+        }
+    }
+    
+    private void forward(String chunk) {
+        int pending = filter.pendingLength(state);
+        if (held.length() == 0 && pending == 0) {
+            downstream.accept(chunk);
+            return;
+        }
+        held.append(chunk);
+        int ready = held.length() - pending;
+        if (ready > 0) {
+            downstream.accept(held.substring(0, ready));
+            held.delete(0, ready);
+        }
+    }
+    
+    /**
+     * Passes on the held back tail once the response has ended without a violation
+     */
+    public void complete() {
+        if (violation == null && downstream != null && held.length() > 0) {
+            downstream.accept(held.toString());
+            held.setLength(0);
+        }
+    }
+    
+    /**
+     * The violation that stopped the response, or null
+     */
+    public ResponseViolation getViolation() {
+        return violation;
+    }
+}
@@ -0,0 +1,30 @@
+package com.confluence.rag.security;
+
+/**
+ * Kinds of content a model response must not contain, in order of precedence
+ */
+public enum ResponseViolation {
+    
+    /**
+     * The response talks about the assistant itself ("ich bin", "als ki", ...)
+     */
+    META_CONVERSATION("Basierend auf den verfügbaren Informationen in der Wissensdatenbank kann ich Ihnen mit diesem Thema helfen."),
+    
+    /**
+     * The response mentions prompts, instructions or the system
+     */
+    SYSTEM_DISCLOSURE("Basierend auf den verfügbaren Informationen in der Wissensdatenbank kann ich diese Frage nicht vollständig beantworten.");
+    
+    private final String replacement;
+    
+    ResponseViolation(String replacement) {
+        this.replacement = replacement;
+    }
+    
+    /**
+     * Text shown to the user instead of the response
+     */
+    public String getReplacement() {
+        return replacement;
+    }
+}
@@ -1,34 +1,213 @@
 package com.confluence.rag.security;
 
+import com.confluence.rag.util.EvictionSampler;
+import com.confluence.rag.util.TimingWheel;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Queue;
 
 /**
- * Security monitoring service to track and prevent abuse
+ * Security monitoring service to track and prevent abuse.
+ *
+ * Each session has one entry holding its rate limit counters and, once it has
+ * caused an incident, its statistics. Rate limits are sliding windows whose state
+ * is a single long per window, so checking and recording a request takes no lock
+ * and allocates nothing. Entries idle for longer than the idle timeout (blocked
+ * sessions: the blocked retention) are evicted through a timing wheel once their
+ * windows have drained, and the number of entries is capped; at the cap the least
+ * recently seen of a small random sample of sessions is evicted, preferring unblocked
+ * ones. The idle check decides under the map's lock for the entry, so a request that
+ * finds its entry being evicted waits for that decision instead of spinning.
+ *
+ * A session reaching the incident limit is blocked for the block duration, which
+ * doubles with each further block of the session up to the maximum; incident counts
+ * are forgotten one incident window after the first of them. Idle eviction, block
+ * expiry and the incident windows share one hierarchical timing wheel, advanced by
+ * the same ticker thread that runs the other background tasks.
+ *
+ * The sessions and kept incidents are saved in a SecurityStateStore, by default in
+ * rag-security-state below the node's confluence.home: a snapshot every snapshot
+ * interval and on shutdown, and a log of block changes and incidents in between,
+ * flushed by the ticker. The constructor restores them, so a restart does not lift
+ * blocks or reset rate limits.
+ *
+ * On a cluster, a SecurityStateExchange shares the state between the nodes. Decisions
+ * still use local memory only: a recorded request just marks the session as having
+ * unsent requests, and a background task sends the counts and block changes of all
+ * marked sessions every sync interval. Counts from other nodes are added to the local
+ * windows, so a session gets its quota once for the cluster, not once per node, up to
+ * the requests of the last interval. Block changes carry their time and the latest one
+ * wins; recent ones are sent again periodically, so a lost datagram is repaired.
+ *
+ * Incidents also feed heavy-hitter summaries of addresses, sessions and incident
+ * types with decaying counts. Only hostile incidents count for the address, so
+ * off-topic questions, rate limits and server errors of everyone behind a shared
+ * proxy or NAT address never add up. With an address block threshold set, an
+ * address whose count certainly reaches it is blocked until its count has decayed
+ * below it again, which catches clients that rotate sessions to escape the
+ * per-session block. The threshold is off by default, as the remote address only
+ * identifies a client where the container resolves it behind the proxy.
  */
 public class SecurityMonitor {
     
     private static final Logger logger = LoggerFactory.getLogger(SecurityMonitor.class);
     
-    // Track blocked attempts by IP/session
-    private final Map<String, SecurityStats> securityStats = new ConcurrentHashMap<>();
+    // Track rate limits and blocked attempts by session
+    private final Map<String, SessionActivity> sessions;
     
     // Track recent blocked attempts for pattern analysis
-    private final List<SecurityIncident> recentIncidents = new ArrayList<>();
+    private final IncidentLog incidentLog;
     
-    // Rate limiting
-    private final Map<String, RateLimitInfo> rateLimits = new ConcurrentHashMap<>();
+    // Decaying incident counts by address, session and type
+    private final HeavyHitters addressHitters;
+    private final HeavyHitters sessionHitters;
+    private final HeavyHitters typeHitters;
+    private final long addressBlockThreshold;
     
-    private static final int MAX_REQUESTS_PER_MINUTE = 30;
-    private static final int MAX_REQUESTS_PER_HOUR = 500;
+    private static final int DEFAULT_MAX_REQUESTS_PER_MINUTE = 30;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOUR = 500;
     private static final int MAX_BLOCKED_ATTEMPTS_BEFORE_BLOCK = 5;
+    private static final long DEFAULT_SESSION_IDLE_MINUTES = 60;
+    private static final long DEFAULT_BLOCKED_RETENTION_MINUTES = 24 * 60;
+    private static final int DEFAULT_MAX_SESSIONS = 100_000;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    // Unblocked sessions go first, then the least recently seen
+    private static final Comparator<SessionActivity> EVICTION_ORDER =
+        Comparator.<SessionActivity>comparingInt(activity -> activity.isBlocked() ? 1 : 0)
+            .thenComparingLong(activity -> activity.lastSeen);
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 64;
+    private static final long DEFAULT_BLOCK_MINUTES = 15;
+    private static final long DEFAULT_MAX_BLOCK_MINUTES = 24 * 60;
+    private static final long DEFAULT_INCIDENT_WINDOW_MINUTES = 60;
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 250;
+    private static final long DEFAULT_FULL_SYNC_SECONDS = 30;
+    private static final int DEFAULT_INCIDENT_LOG_CAPACITY = 1024;
+    private static final long DEFAULT_ADDRESS_BLOCK_THRESHOLD = 0;
+    private static final long DEFAULT_HALF_LIFE_SECONDS = 300;
+    private static final int DEFAULT_HEAVY_HITTERS_SIZE = 32;
+    private static final int SKETCH_WIDTH = 2048;
+    private static final int SKETCH_DEPTH = 4;
+    private static final long DEFAULT_SNAPSHOT_SECONDS = 60;
+    private static final long DEFAULT_STATE_FLUSH_MS = 1000;
+    private static final String DEFAULT_STATE_DIR_NAME = "rag-security-state";
+    
+    private final boolean rateLimitEnabled;
+    private final SlidingWindowLimit minuteLimit;
+    private final SlidingWindowLimit hourLimit;
+    private final long idleTimeoutMillis;
+    private final long blockedRetentionMillis;
+    private final int maxSessions;
+    private final long blockMillis;
+    private final long maxBlockMillis;
+    private final long incidentWindowMillis;
+    private final AtomicLong evictedSessions = new AtomicLong();
+    private final AtomicLong expiredBlocks = new AtomicLong();
+    private final TimingWheel<Runnable> wheel;
+    private final ScheduledExecutorService ticker;
+    
+    // Persistent state, or null if kept in memory only
+    private final SecurityStateStore stateStore;
+    
+    // Cluster state exchange, or null on a single node
+    private final SecurityStateExchange exchange;
+    private final Queue<SessionActivity> unsentActivity = new ConcurrentLinkedQueue<>();
+    private final Queue<SecurityStateDelta> unsentChanges = new ConcurrentLinkedQueue<>();
+    private final long fullSyncRounds;
+    private long syncRounds;
+    
+    public SecurityMonitor() {
+        this(SecurityRuleStore.loadConfiguration("/security.properties"));
+    }
+    
+    /**
+     * @param securityConfig Reads security.rate.limit.enabled, security.rate.limit.max.requests.per.minute
+     *                       and .per.hour, security.monitor.session.idle.minutes,
+     *                       security.monitor.blocked.retention.minutes, security.monitor.max.sessions,
+     *                       security.monitor.block.minutes and .block.max.minutes,
+     *                       security.monitor.incident.window.minutes, the security.monitor.state.* keys
+     *                       and the security.cluster.* keys; with security.cluster.peers set, state is
+     *                       shared through a PeerStateExchange
+     */
+    public SecurityMonitor(Properties securityConfig) {
+        this(securityConfig, createExchange(securityConfig));
+    }
+    
+    /**
+     * @param exchange Shares state with other nodes, or null to keep it local
+     */
+    public SecurityMonitor(Properties securityConfig, SecurityStateExchange exchange) {
+        this.rateLimitEnabled = Boolean.parseBoolean(securityConfig.getProperty("security.rate.limit.enabled", "true").trim());
+        this.minuteLimit = new SlidingWindowLimit(TimeUnit.MINUTES.toMillis(1),
+            parseLong(securityConfig, "security.rate.limit.max.requests.per.minute", DEFAULT_MAX_REQUESTS_PER_MINUTE));
+        this.hourLimit = new SlidingWindowLimit(TimeUnit.HOURS.toMillis(1),
+            parseLong(securityConfig, "security.rate.limit.max.requests.per.hour", DEFAULT_MAX_REQUESTS_PER_HOUR));
+        this.idleTimeoutMillis = TimeUnit.MINUTES.toMillis(
+            parseLong(securityConfig, "security.monitor.session.idle.minutes", DEFAULT_SESSION_IDLE_MINUTES));
+        this.blockedRetentionMillis = TimeUnit.MINUTES.toMillis(
+            parseLong(securityConfig, "security.monitor.blocked.retention.minutes", DEFAULT_BLOCKED_RETENTION_MINUTES));
+        this.maxSessions = (int) Math.max(1, parseLong(securityConfig, "security.monitor.max.sessions", DEFAULT_MAX_SESSIONS));
+        this.stateStore = createStateStore(securityConfig);
+        // Sized for the stored sessions, so restoring them does not resize the map
+        int storedSessions = stateStore != null ? Math.min(maxSessions, stateStore.storedSessionCount()) : 0;
+        this.sessions = new ConcurrentHashMap<>(Math.max(16, storedSessions));
+        this.blockMillis = TimeUnit.MINUTES.toMillis(
+            Math.max(1, parseLong(securityConfig, "security.monitor.block.minutes", DEFAULT_BLOCK_MINUTES)));
+        this.maxBlockMillis = Math.max(blockMillis, TimeUnit.MINUTES.toMillis(
+            parseLong(securityConfig, "security.monitor.block.max.minutes", DEFAULT_MAX_BLOCK_MINUTES)));
+        this.incidentWindowMillis = TimeUnit.MINUTES.toMillis(
+            Math.max(1, parseLong(securityConfig, "security.monitor.incident.window.minutes", DEFAULT_INCIDENT_WINDOW_MINUTES)));
+        this.incidentLog = new IncidentLog((int) Math.min(1 << 20,
+            parseLong(securityConfig, "security.monitor.incident.log.capacity", DEFAULT_INCIDENT_LOG_CAPACITY)));
+        int heavyHittersSize = (int) Math.max(1, parseLong(securityConfig, "security.monitor.heavy.hitters.size", DEFAULT_HEAVY_HITTERS_SIZE));
+        this.addressHitters = new HeavyHitters("addresses", SKETCH_WIDTH, SKETCH_DEPTH, heavyHittersSize);
+        this.sessionHitters = new HeavyHitters("sessions", SKETCH_WIDTH, SKETCH_DEPTH, heavyHittersSize);
+        this.typeHitters = new HeavyHitters("incident-types", 64, SKETCH_DEPTH, SecurityIncidentType.values().length);
+        this.addressBlockThreshold = parseLong(securityConfig, "security.monitor.address.block.threshold", DEFAULT_ADDRESS_BLOCK_THRESHOLD);
+        this.wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, System.currentTimeMillis(), SecurityMonitor::runTimeout);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rag-security-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> wheel.advance(System.currentTimeMillis()),
+                                   TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        long halfLife = Math.max(1, parseLong(securityConfig, "security.monitor.heavy.hitters.half.life.seconds", DEFAULT_HALF_LIFE_SECONDS));
+        ticker.scheduleAtFixedRate(this::decayHeavyHitters, halfLife, halfLife, TimeUnit.SECONDS);
+        
+        if (stateStore != null) {
+            restoreState(storedSessions);
+            long flushInterval = Math.max(10, parseLong(securityConfig, "security.monitor.state.flush.ms", DEFAULT_STATE_FLUSH_MS));
+            long snapshotInterval = Math.max(1, parseLong(securityConfig, "security.monitor.state.snapshot.seconds", DEFAULT_SNAPSHOT_SECONDS));
+            ticker.scheduleWithFixedDelay(this::flushState, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+            ticker.scheduleWithFixedDelay(this::snapshotState, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+        
+        this.exchange = exchange;
+        long syncInterval = Math.max(10, parseLong(securityConfig, "security.cluster.sync.interval.ms", DEFAULT_SYNC_INTERVAL_MS));
+        this.fullSyncRounds = Math.max(1, TimeUnit.SECONDS.toMillis(
+            parseLong(securityConfig, "security.cluster.full.sync.seconds", DEFAULT_FULL_SYNC_SECONDS)) / syncInterval);
+        if (exchange != null) {
+            exchange.start(this::applyRemoteChange);
+            ticker.scheduleWithFixedDelay(this::publishChanges, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
     
     /**
      * Records a security incident
@@ -37,24 +216,32 @@ public class SecurityMonitor {
         logger.warn("Security incident: {} from session {} (IP: {}) - {}", type, sessionId, ipAddress, details);
         
         // Update statistics
-        SecurityStats stats = securityStats.computeIfAbsent(sessionId, k -> new SecurityStats());
+        long now = System.currentTimeMillis();
+        SessionActivity activity = activity(sessionId, now);
+        SecurityStats stats = activity.stats();
         stats.incrementIncident(type);
+        startIncidentWindow(activity, now);
         
-        // Record incident
+        // Record incident, overwriting the oldest once the log is full
         SecurityIncident incident = new SecurityIncident(sessionId, ipAddress, type, details, LocalDateTime.now());
-        synchronized (recentIncidents) {
-            recentIncidents.add(incident);
-            
-            // Keep only last 1000 incidents
-            if (recentIncidents.size() > 1000) {
-                recentIncidents.remove(0);
-            }
+        long sequence = incidentLog.add(incident);
+        if (stateStore != null) {
+            stateStore.appendIncident(sequence, incident);
+        }
+        if (type.isHostile() && ipAddress != null && !ipAddress.isEmpty()) {
+            addressHitters.record(ipAddress);
         }
+        if (sessionId != null) {
+            sessionHitters.record(sessionId);
+        }
+        typeHitters.record(type.name());
         
         // Check if session should be temporarily blocked
         if (stats.getTotalBlockedAttempts() >= MAX_BLOCKED_ATTEMPTS_BEFORE_BLOCK) {
             logger.error("Session {} temporarily blocked due to {} security incidents", sessionId, stats.getTotalBlockedAttempts());
-            stats.setTemporarilyBlocked(true);
+            if (!stats.isTemporarilyBlocked() && changeBlockState(activity, true, now)) {
+                announceBlockState(sessionId, true, now);
+            }
         }
     }
     
@@ -62,27 +249,24 @@ public class SecurityMonitor {
      * Checks if a session is currently rate limited
      */
     public boolean isRateLimited(String sessionId) {
-        RateLimitInfo rateLimitInfo = rateLimits.get(sessionId);
-        if (rateLimitInfo == null) {
+        SessionActivity activity = sessions.get(sessionId);
+        if (!rateLimitEnabled || activity == null) {
             return false;
         }
         
-        LocalDateTime now = LocalDateTime.now();
-        
-        // Clean up old requests
-        rateLimitInfo.cleanupOldRequests(now);
+        long now = System.currentTimeMillis();
         
         // Check minute limit
-        long requestsInLastMinute = rateLimitInfo.getRequestsInTimeframe(now.minus(1, ChronoUnit.MINUTES));
-        if (requestsInLastMinute >= MAX_REQUESTS_PER_MINUTE) {
-            logger.warn("Rate limit exceeded for session {}: {} requests in last minute", sessionId, requestsInLastMinute);
+        if (minuteLimit.isExceeded(activity.minuteWindow, now)) {
+            logger.warn("Rate limit exceeded for session {}: {} requests in last minute",
+                        sessionId, Math.round(minuteLimit.count(activity.minuteWindow, now)));
             return true;
         }
         
         // Check hour limit
-        long requestsInLastHour = rateLimitInfo.getRequestsInTimeframe(now.minus(1, ChronoUnit.HOURS));
-        if (requestsInLastHour >= MAX_REQUESTS_PER_HOUR) {
-            logger.warn("Rate limit exceeded for session {}: {} requests in last hour", sessionId, requestsInLastHour);
+        if (hourLimit.isExceeded(activity.hourWindow, now)) {
+            logger.warn("Rate limit exceeded for session {}: {} requests in last hour",
+                        sessionId, Math.round(hourLimit.count(activity.hourWindow, now)));
             return true;
         }
         
@@ -93,61 +277,676 @@ public class SecurityMonitor {
      * Records a request for rate limiting
      */
     public void recordRequest(String sessionId) {
-        RateLimitInfo rateLimitInfo = rateLimits.computeIfAbsent(sessionId, k -> new RateLimitInfo());
-        rateLimitInfo.addRequest(LocalDateTime.now());
+        long now = System.currentTimeMillis();
+        SessionActivity activity = activity(sessionId, now);
+        minuteLimit.record(activity.minuteWindow, now);
+        hourLimit.record(activity.hourWindow, now);
+        if (exchange != null && activity.unsentRequests.getAndIncrement() == 0) {
+            unsentActivity.offer(activity);
+        }
     }
     
     /**
-     * Checks if a session is temporarily blocked
+     * Checks if a session is temporarily blocked; a block lifts by itself after the block duration
      */
     public boolean isSessionBlocked(String sessionId) {
-        SecurityStats stats = securityStats.get(sessionId);
-        return stats != null && stats.isTemporarilyBlocked();
+        SessionActivity activity = sessions.get(sessionId);
+        return activity != null && activity.isBlocked();
+    }
+    
+    /**
+     * Checks if an address has caused so many incidents recently that all its requests
+     * are refused; lifts by itself as the address's incident count decays
+     */
+    public boolean isAddressBlocked(String ipAddress) {
+        return ipAddress != null && !ipAddress.isEmpty() && addressBlockThreshold > 0 && addressHitters.isAtLeast(ipAddress, addressBlockThreshold);
+    }
+    
+    /**
+     * Addresses with the most recent incidents, highest count first
+     */
+    public List<HeavyHitters.Entry> getTopAddresses(int limit) {
+        return addressHitters.top(limit);
+    }
+    
+    /**
+     * Sessions with the most recent incidents, highest count first
+     */
+    public List<HeavyHitters.Entry> getTopSessions(int limit) {
+        return sessionHitters.top(limit);
+    }
+    
+    /**
+     * Incident types by recent frequency, highest count first
+     */
+    public List<HeavyHitters.Entry> getTopIncidentTypes(int limit) {
+        return typeHitters.top(limit);
     }
     
     /**
      * Gets security statistics for a session
      */
     public SecurityStats getSecurityStats(String sessionId) {
-        return securityStats.get(sessionId);
+        SessionActivity activity = sessions.get(sessionId);
+        return activity != null ? activity.stats : null;
     }
     
     /**
      * Gets recent security incidents
      */
     public List<SecurityIncident> getRecentIncidents(int limit) {
-        synchronized (recentIncidents) {
-            return new ArrayList<>(recentIncidents.subList(
-                Math.max(0, recentIncidents.size() - limit), 
-                recentIncidents.size()
-            ));
-        }
+        return incidentLog.recent(limit);
+    }
+    
+    /**
+     * Gets the most recent incidents of a type, oldest first
+     */
+    public List<SecurityIncident> getIncidentsByType(SecurityIncidentType type, int limit) {
+        return incidentLog.ofType(type, limit);
     }
     
     /**
-     * Unblocks a session (admin function)
+     * Gets the most recent incidents of a session, oldest first
+     */
+    public List<SecurityIncident> getIncidentsBySession(String sessionId, int limit) {
+        return incidentLog.ofSession(sessionId, limit);
+    }
+    
+    /**
+     * Gets the most recent incidents from (inclusive) to (exclusive), oldest first
+     */
+    public List<SecurityIncident> getIncidentsBetween(LocalDateTime from, LocalDateTime to, int limit) {
+        return incidentLog.between(from, to, limit);
+    }
+    
+    /**
+     * Number of incidents recorded since startup, including those no longer kept
+     */
+    public long getTotalIncidentCount() {
+        return incidentLog.getTotalCount();
+    }
+    
+    /**
+     * Unblocks a session (admin function); its next block starts again at the base duration
      */
     public void unblockSession(String sessionId) {
-        SecurityStats stats = securityStats.get(sessionId);
-        if (stats != null) {
-            stats.setTemporarilyBlocked(false);
-            stats.reset();
+        SessionActivity activity = sessions.get(sessionId);
+        if (activity != null && activity.stats != null) {
+            long now = System.currentTimeMillis();
+            synchronized (activity) {
+                activity.blocks = 0;
+                changeBlockState(activity, false, now);
+            }
+            announceBlockState(sessionId, false, now);
             logger.info("Session {} manually unblocked", sessionId);
         }
     }
     
+    /**
+     * Number of sessions currently tracked
+     */
+    public int getTrackedSessionCount() {
+        return sessions.size();
+    }
+    
+    /**
+     * Number of sessions dropped because they were idle or the session cap was reached
+     */
+    public long getEvictedSessionCount() {
+        return evictedSessions.get();
+    }
+    
+    /**
+     * Number of blocks lifted because their duration was over
+     */
+    public long getExpiredBlockCount() {
+        return expiredBlocks.get();
+    }
+    
+    public void shutdown() {
+        // Cancels the schedules but lets a running flush or snapshot finish; interrupting
+        // it would close the log channel and lose the records it has already taken
+        ticker.shutdown();
+        boolean terminated = false;
+        try {
+            terminated = ticker.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (exchange != null) {
+            exchange.shutdown();
+        }
+        if (stateStore != null) {
+            if (terminated) {
+                snapshotState();
+                stateStore.close();
+            } else {
+                logger.warn("Security monitor still busy after 5 s, final state snapshot not written");
+            }
+        }
+        if (!terminated) {
+            ticker.shutdownNow();
+        }
+    }
+    
+    private void flushState() {
+        try {
+            stateStore.flush();
+        } catch (RuntimeException e) {
+            // Keep the schedule alive
+            logger.error("Writing security state changes failed", e);
+        }
+    }
+    
+    /**
+     * Writes the sessions and kept incidents to a new snapshot
+     */
+    private void snapshotState() {
+        try {
+            long started = System.nanoTime();
+            stateStore.writeSnapshot(writer -> {
+                SecurityStateStore.SessionRecord record = new SecurityStateStore.SessionRecord();
+                for (SessionActivity activity : sessions.values()) {
+                    synchronized (activity) {
+                        record.sessionId = activity.sessionId;
+                        record.minuteWindow = activity.minuteWindow.get();
+                        record.hourWindow = activity.hourWindow.get();
+                        record.lastSeen = activity.lastSeen;
+                        record.blocked = activity.isBlocked();
+                        record.blockChangedAt = activity.blockChangedAt;
+                        record.blocks = activity.blocks;
+                        record.blockedUntil = activity.blockedUntil;
+                        SecurityStats stats = activity.stats;
+                        for (SecurityIncidentType type : SecurityIncidentType.values()) {
+                            record.incidents[type.ordinal()] = stats != null ? stats.getIncidentCount(type) : 0;
+                        }
+                    }
+                    writer.session(record);
+                }
+                incidentLog.forEach(writer::incident);
+            });
+            logger.debug("Security state snapshot of {} sessions written in {} ms",
+                         sessions.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (RuntimeException e) {
+            // Keep the schedule alive
+            logger.error("Writing security state snapshot failed", e);
+        }
+    }
+    
+    /**
+     * Loads the state of the last run; called once from the constructor
+     */
+    private void restoreState(int storedSessions) {
+        long started = System.nanoTime();
+        List<SessionActivity> unscheduled = new ArrayList<>(storedSessions);
+        int restored;
+        try {
+            restored = stateStore.restore(new SecurityStateStore.Target() {
+                @Override
+                public void restoreSession(SecurityStateStore.SessionRecord session) {
+                    SecurityMonitor.this.restoreSession(session, unscheduled);
+                }
+                
+                @Override
+                public void restoreBlockState(String sessionId, boolean blocked, long changedAt, int blocks, long blockedUntil) {
+                    SecurityMonitor.this.restoreBlockState(sessionId, blocked, changedAt, blocks, blockedUntil);
+                }
+                
+                @Override
+                public void replayIncident(SecurityIncident incident) {
+                    if (incident.getSessionId() != null) {
+                        SessionActivity activity = activity(incident.getSessionId(), System.currentTimeMillis());
+                        activity.stats().incrementIncident(incident.getType());
+                        startIncidentWindow(activity, System.currentTimeMillis());
+                    }
+                }
+                
+                @Override
+                public void restoreIncident(long sequence, SecurityIncident incident) {
+                    incidentLog.restore(sequence, incident);
+                }
+            });
+        } catch (IllegalStateException e) {
+            logger.error("Security state not restored: {}", e.getMessage());
+            return;
+        } finally {
+            ticker.execute(() -> scheduleIdleTimeouts(unscheduled));
+        }
+        logger.info("Security state restored in {} ms: {} sessions, {} incidents",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), restored, incidentLog.getTotalCount());
+    }
+    
+    /**
+     * Adds a stored session; its idle timeout is left to scheduleIdleTimeouts()
+     */
+    private void restoreSession(SecurityStateStore.SessionRecord record, List<SessionActivity> unscheduled) {
+        if (sessions.size() >= maxSessions) {
+            return;
+        }
+        SessionActivity activity = new SessionActivity(record.sessionId, record.lastSeen);
+        activity.minuteWindow.set(record.minuteWindow);
+        activity.hourWindow.set(record.hourWindow);
+        boolean hasIncidents = false;
+        for (int count : record.incidents) {
+            hasIncidents |= count > 0;
+        }
+        if (hasIncidents || record.blocked || record.blocks > 0) {
+            SecurityStats stats = activity.stats();
+            for (SecurityIncidentType type : SecurityIncidentType.values()) {
+                stats.addIncidents(type, record.incidents[type.ordinal()]);
+            }
+            stats.setTemporarilyBlocked(record.blocked);
+        }
+        activity.blockChangedAt = record.blockChangedAt;
+        activity.blocks = record.blocks;
+        activity.blockedUntil = record.blockedUntil;
+        if (sessions.putIfAbsent(record.sessionId, activity) != null) {
+            return;
+        }
+        unscheduled.add(activity);
+        synchronized (activity) {
+            if (record.blocked) {
+                scheduleBlockExpiry(activity, record.blockChangedAt, record.blockedUntil);
+            }
+            if (hasIncidents) {
+                startIncidentWindow(activity, System.currentTimeMillis());
+            }
+        }
+    }
+    
+    /**
+     * Schedules the idle timeouts of restored sessions on the ticker thread, so the
+     * constructor does not wait for them; overdue timeouts fire on the next tick
+     */
+    private void scheduleIdleTimeouts(List<SessionActivity> restored) {
+        for (SessionActivity activity : restored) {
+            if (!activity.evicted) {
+                activity.timeout = wheel.schedule(() -> onIdleTimeout(activity), activity.lastSeen + idleTimeoutMillis);
+            }
+        }
+    }
+    
+    private void restoreBlockState(String sessionId, boolean blocked, long changedAt, int blocks, long blockedUntil) {
+        SessionActivity activity = sessions.get(sessionId);
+        if (activity == null) {
+            if (!blocked) {
+                return;
+            }
+            activity = createActivity(sessionId, System.currentTimeMillis());
+        }
+        synchronized (activity) {
+            if (changedAt >= activity.blockChangedAt) {
+                setBlockState(activity, blocked, changedAt, blocks, blockedUntil);
+            }
+        }
+    }
+    
+    private void decayHeavyHitters() {
+        addressHitters.decay();
+        sessionHitters.decay();
+        typeHitters.decay();
+    }
+    
+    /**
+     * Blocks or unblocks a session unless a later change is already applied. A new
+     * block is scheduled to expire after the session's current block duration.
+     * @return true if the change was applied
+     */
+    private boolean changeBlockState(SessionActivity activity, boolean blocked, long changedAt) {
+        synchronized (activity) {
+            if (changedAt < activity.blockChangedAt) {
+                return false;
+            }
+            if (blocked && activity.isBlocked()) {
+                // Blocked elsewhere as well; the running block and its expiry stay
+                return true;
+            }
+            int blocks = blocked ? activity.blocks + 1 : activity.blocks;
+            setBlockState(activity, blocked, changedAt, blocks, blocked ? changedAt + blockDuration(blocks) : 0);
+            return true;
+        }
+    }
+    
+    /**
+     * Applies a block change and logs it to the state store; the caller holds the entry's monitor
+     */
+    private void setBlockState(SessionActivity activity, boolean blocked, long changedAt, int blocks, long blockedUntil) {
+        SecurityStats stats = activity.stats();
+        stats.setTemporarilyBlocked(blocked);
+        if (!blocked) {
+            stats.reset();
+        }
+        activity.blockChangedAt = changedAt;
+        activity.blocks = blocks;
+        cancel(activity.blockExpiry);
+        activity.blockExpiry = null;
+        if (blocked) {
+            scheduleBlockExpiry(activity, changedAt, blockedUntil);
+        }
+        if (stateStore != null) {
+            stateStore.appendBlockState(activity.sessionId, blocked, changedAt, blocks, blockedUntil);
+        }
+    }
+    
+    private void scheduleBlockExpiry(SessionActivity activity, long blockedAt, long expiresAt) {
+        activity.blockedUntil = expiresAt;
+        activity.blockExpiry = wheel.schedule(() -> expireBlock(activity, blockedAt, expiresAt), expiresAt);
+    }
+    
+    /**
+     * The block duration doubles with every block of the session, up to the maximum
+     */
+    private long blockDuration(int blocks) {
+        int doublings = Math.min(blocks - 1, 30);
+        return Math.min(maxBlockMillis, blockMillis << doublings);
+    }
+    
+    /**
+     * Lifts a block whose duration is over, unless it was changed since; runs on the ticker thread
+     */
+    private void expireBlock(SessionActivity activity, long blockedAt, long expiresAt) {
+        synchronized (activity) {
+            if (activity.blockChangedAt != blockedAt || !activity.isBlocked()) {
+                return;
+            }
+            changeBlockState(activity, false, expiresAt);
+        }
+        announceBlockState(activity.sessionId, false, expiresAt);
+        expiredBlocks.incrementAndGet();
+        logger.info("Block of session {} expired", activity.sessionId);
+    }
+    
+    /**
+     * Schedules the incident counts to be forgotten one window after the first incident
+     */
+    private void startIncidentWindow(SessionActivity activity, long now) {
+        synchronized (activity) {
+            if (activity.incidentWindow == null) {
+                activity.incidentWindow = wheel.schedule(() -> endIncidentWindow(activity), now + incidentWindowMillis);
+            }
+        }
+    }
+    
+    /**
+     * Forgets the incident counts of a session that is not blocked; runs on the ticker thread
+     */
+    private void endIncidentWindow(SessionActivity activity) {
+        synchronized (activity) {
+            activity.incidentWindow = null;
+            if (!activity.isBlocked()) {
+                activity.stats().reset();
+            }
+        }
+    }
+    
+    private void announceBlockState(String sessionId, boolean blocked, long changedAt) {
+        if (exchange != null) {
+            unsentChanges.offer(SecurityStateDelta.blockState(sessionId, blocked, changedAt));
+        }
+    }
+    
+    /**
+     * Sends the changes since the last round; runs on the ticker thread
+     */
+    private void publishChanges() {
+        try {
+            List<SecurityStateDelta> changes = new ArrayList<>();
+            SecurityStateDelta change;
+            while ((change = unsentChanges.poll()) != null) {
+                changes.add(change);
+            }
+            SessionActivity activity;
+            while ((activity = unsentActivity.poll()) != null) {
+                int requests = activity.unsentRequests.getAndSet(0);
+                if (requests > 0) {
+                    changes.add(SecurityStateDelta.requests(activity.sessionId, requests));
+                }
+            }
+            if (++syncRounds % fullSyncRounds == 0) {
+                addRecentBlockStates(changes, System.currentTimeMillis());
+            }
+            if (!changes.isEmpty()) {
+                exchange.publish(changes);
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive
+            logger.error("Publishing security state failed", e);
+        }
+    }
+    
+    /**
+     * Repeats block changes that are still within the blocked retention, in case one got lost
+     */
+    private void addRecentBlockStates(List<SecurityStateDelta> changes, long now) {
+        for (SessionActivity activity : sessions.values()) {
+            synchronized (activity) {
+                long changedAt = activity.blockChangedAt;
+                if (changedAt > 0 && now - changedAt <= blockedRetentionMillis) {
+                    changes.add(SecurityStateDelta.blockState(activity.sessionId, activity.isBlocked(), changedAt));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies a change made on another node; runs on the exchange's receiving thread
+     */
+    private void applyRemoteChange(SecurityStateDelta change) {
+        long now = System.currentTimeMillis();
+        String sessionId = change.getSessionId();
+        if (change.getType() == SecurityStateDelta.Type.REQUESTS) {
+            SessionActivity activity = activity(sessionId, now);
+            minuteLimit.record(activity.minuteWindow, now, change.getValue());
+            hourLimit.record(activity.hourWindow, now, change.getValue());
+            return;
+        }
+        
+        boolean blocked = change.getType() == SecurityStateDelta.Type.BLOCKED;
+        if (now - change.getValue() > blockedRetentionMillis) {
+            return;
+        }
+        SessionActivity activity = sessions.get(sessionId);
+        if (activity == null) {
+            if (!blocked) {
+                return;
+            }
+            activity = createActivity(sessionId, now);
+        }
+        boolean wasBlocked = activity.isBlocked();
+        if (changeBlockState(activity, blocked, change.getValue()) && wasBlocked != blocked) {
+            logger.info("Session {} {} on another node", sessionId, blocked ? "blocked" : "unblocked");
+        }
+    }
+    
+    /**
+     * Opens the configured state directory, or rag-security-state in the Confluence home
+     * if none is configured; "off" keeps the state in memory only
+     */
+    private static SecurityStateStore createStateStore(Properties config) {
+        String directory = config.getProperty("security.monitor.state.dir", "").trim();
+        if (directory.equalsIgnoreCase("off")) {
+            return null;
+        }
+        try {
+            if (directory.isEmpty()) {
+                String home = System.getProperty("confluence.home", "").trim();
+                if (home.isEmpty()) {
+                    logger.warn("Security state is not persisted: neither security.monitor.state.dir nor confluence.home is set");
+                    return null;
+                }
+                return new SecurityStateStore(Paths.get(home, DEFAULT_STATE_DIR_NAME));
+            }
+            return new SecurityStateStore(Paths.get(directory));
+        } catch (IllegalStateException | InvalidPathException e) {
+            logger.error("Security state is not persisted: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    private static SecurityStateExchange createExchange(Properties config) {
+        if (config.getProperty("security.cluster.peers", "").trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return new PeerStateExchange(config);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            logger.error("Cluster state exchange not started, limits and blocks apply per node: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the session's entry, creating it if needed, and marks it as seen
+     */
+    private SessionActivity activity(String sessionId, long now) {
+        SessionActivity activity = sessions.get(sessionId);
+        if (activity == null) {
+            activity = createActivity(sessionId, now);
+        }
+        activity.lastSeen = now;
+        
+        // An idle check either sees lastSeen and keeps the entry, or has flagged it before
+        return activity.evicted ? replaceEvicted(sessionId, now) : activity;
+    }
+    
+    /**
+     * Returns the session's entry after an eviction, waiting on the map's lock for an
+     * idle check in progress; an entry that is gone or being evicted is replaced
+     */
+    private SessionActivity replaceEvicted(String sessionId, long now) {
+        SessionActivity created = new SessionActivity(sessionId, now);
+        SessionActivity activity = sessions.compute(sessionId,
+            (key, current) -> current != null && !current.evicted ? current : created);
+        if (activity == created) {
+            created.timeout = wheel.schedule(() -> onIdleTimeout(created), now + idleTimeoutMillis);
+        }
+        activity.lastSeen = now;
+        return activity;
+    }
+    
+    private SessionActivity createActivity(String sessionId, long now) {
+        // Concurrent creators may pick the same victim, so evict until back under the cap
+        for (int i = 0; sessions.size() >= maxSessions && i < EVICTION_SAMPLE_SIZE; i++) {
+            evictLeastRecentlySeenSample();
+        }
+        SessionActivity created = new SessionActivity(sessionId, now);
+        SessionActivity existing = sessions.putIfAbsent(sessionId, created);
+        if (existing != null) {
+            return existing;
+        }
+        created.timeout = wheel.schedule(() -> onIdleTimeout(created), now + idleTimeoutMillis);
+        return created;
+    }
+    
+    private void evictLeastRecentlySeenSample() {
+        SessionActivity victim = EvictionSampler.leastOfSample(sessions.values(), EVICTION_SAMPLE_SIZE,
+            EVICTION_ORDER, candidate -> !candidate.evicted);
+        if (victim != null) {
+            evict(victim);
+        }
+    }
+    
+    /**
+     * Called on the ticker thread when a session's idle timeout fires
+     */
+    private void onIdleTimeout(SessionActivity activity) {
+        long now = System.currentTimeMillis();
+        // Stays negative unless this check decided, then the time to keep the entry until
+        long[] keepUntil = {-1};
+        sessions.computeIfPresent(activity.sessionId, (key, current) -> {
+            if (current != activity || activity.evicted) {
+                return current;
+            }
+            // Flag first: a request either sees the flag and waits for this lock, or its lastSeen is read below
+            activity.evicted = true;
+            // Sessions that were ever blocked are kept for the retention, so a further block is longer
+            long idleUntil = activity.lastSeen + (activity.blocks > 0 ? blockedRetentionMillis : idleTimeoutMillis);
+            long drainedAt = Math.max(minuteLimit.drainedAt(activity.minuteWindow, now), hourLimit.drainedAt(activity.hourWindow, now));
+            keepUntil[0] = Math.max(Math.max(idleUntil, drainedAt), activity.isBlocked() ? activity.blockedUntil : 0);
+            if (keepUntil[0] > now) {
+                activity.evicted = false;
+                return current;
+            }
+            return null;
+        });
+        if (keepUntil[0] > now) {
+            // Seen since it was scheduled, blocked or still counted; check again later
+            activity.timeout = wheel.schedule(() -> onIdleTimeout(activity), keepUntil[0]);
+        } else if (keepUntil[0] >= 0) {
+            cancelTimeouts(activity);
+            evictedSessions.incrementAndGet();
+        }
+    }
+    
+    private void evict(SessionActivity activity) {
+        activity.evicted = true;
+        cancel(activity.timeout);
+        cancelTimeouts(activity);
+        if (sessions.remove(activity.sessionId, activity)) {
+            evictedSessions.incrementAndGet();
+        }
+    }
+    
+    private static void cancelTimeouts(SessionActivity activity) {
+        synchronized (activity) {
+            cancel(activity.blockExpiry);
+            cancel(activity.incidentWindow);
+        }
+    }
+    
+    private static void cancel(TimingWheel.Timeout<Runnable> timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+    
+    private static void runTimeout(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // Keep the other timeouts of the tick running
+            logger.error("Security monitor timeout failed", e);
+        }
+    }
+    
+    private static long parseLong(Properties config, String key, long defaultValue) {
+        String value = config.getProperty(key, "").trim();
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid number for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+    
     /**
      * Security incident types
      */
     public enum SecurityIncidentType {
-        JAILBREAK_ATTEMPT,
-        PROMPT_INJECTION,
-        OFF_TOPIC_QUERY,
-        RATE_LIMIT_EXCEEDED,
-        SUSPICIOUS_PATTERN,
-        CODE_INJECTION_ATTEMPT,
-        PERSONAL_INFO_REQUEST,
-        SYSTEM_MANIPULATION_ATTEMPT
+        JAILBREAK_ATTEMPT(true),
+        PROMPT_INJECTION(true),
+        OFF_TOPIC_QUERY(false),
+        RATE_LIMIT_EXCEEDED(false),
+        SUSPICIOUS_PATTERN(false),
+        CODE_INJECTION_ATTEMPT(true),
+        PERSONAL_INFO_REQUEST(false),
+        SYSTEM_MANIPULATION_ATTEMPT(false);
+        
+        private final boolean hostile;
+        
+        SecurityIncidentType(boolean hostile) {
+            this.hostile = hostile;
+        }
+        
+        /**
+         * True for deliberate attacks, the only incidents counted against an address
+         */
+        public boolean isHostile() {
+            return hostile;
+        }
     }
     
     /**
@@ -162,6 +961,12 @@ public class SecurityMonitor {
             incidents.computeIfAbsent(type, k -> new AtomicInteger(0)).incrementAndGet();
         }
         
+        void addIncidents(SecurityIncidentType type, int count) {
+            if (count > 0) {
+                incidents.computeIfAbsent(type, k -> new AtomicInteger(0)).addAndGet(count);
+            }
+        }
+        
         public int getIncidentCount(SecurityIncidentType type) {
             AtomicInteger count = incidents.get(type);
             return count != null ? count.get() : 0;
@@ -215,27 +1020,50 @@ public class SecurityMonitor {
     }
     
     /**
-     * Rate limiting information
+     * Rate limit counters and statistics of one session
      */
-    private static class RateLimitInfo {
-        private final List<LocalDateTime> requests = new ArrayList<>();
+    private static final class SessionActivity {
+        private final String sessionId;
+        private final AtomicLong minuteWindow = new AtomicLong();
+        private final AtomicLong hourWindow = new AtomicLong();
+        private final AtomicInteger unsentRequests = new AtomicInteger();
+        private volatile SecurityStats stats;
+        private volatile long lastSeen;
+        private volatile boolean evicted;
+        private volatile TimingWheel.Timeout<Runnable> timeout;
         
-        public void addRequest(LocalDateTime timestamp) {
-            synchronized (requests) {
-                requests.add(timestamp);
-            }
+        // Block and incident window state; guarded by the entry's monitor, blocks and blockedUntil also read unlocked
+        private long blockChangedAt;
+        private volatile int blocks;
+        private volatile long blockedUntil;
+        private TimingWheel.Timeout<Runnable> blockExpiry;
+        private TimingWheel.Timeout<Runnable> incidentWindow;
+        
+        SessionActivity(String sessionId, long now) {
+            this.sessionId = sessionId;
+            this.lastSeen = now;
         }
         
-        public void cleanupOldRequests(LocalDateTime now) {
-            synchronized (requests) {
-                requests.removeIf(timestamp -> timestamp.isBefore(now.minus(1, ChronoUnit.HOURS)));
+        /**
+         * Statistics are created with the first incident, as most sessions never have one
+         */
+        SecurityStats stats() {
+            SecurityStats current = stats;
+            if (current == null) {
+                synchronized (this) {
+                    current = stats;
+                    if (current == null) {
+                        current = new SecurityStats();
+                        stats = current;
+                    }
+                }
             }
+            return current;
         }
         
-        public long getRequestsInTimeframe(LocalDateTime since) {
-            synchronized (requests) {
-                return requests.stream().filter(timestamp -> timestamp.isAfter(since)).count();
-            }
+        boolean isBlocked() {
+            SecurityStats current = stats;
+            return current != null && current.isTemporarilyBlocked();
         }
     }
 }
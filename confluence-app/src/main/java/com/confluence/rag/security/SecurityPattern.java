@@ -0,0 +1,30 @@
+package com.confluence.rag.security;
+
+/**
+ * A compiled regular expression used by security rules
+ */
+public interface SecurityPattern {
+    
+    /**
+     * Result of a search
+     */
+    enum Outcome {
+        MATCH,
+        NO_MATCH,
+        
+        /**
+         * The search was stopped before it could decide
+         */
+        BUDGET_EXCEEDED
+    }
+    
+    /**
+     * Searches the text for a match anywhere, charging the work to the budget
+     */
+    Outcome find(CharSequence text, StepBudget budget);
+    
+    /**
+     * The source expression
+     */
+    String pattern();
+}
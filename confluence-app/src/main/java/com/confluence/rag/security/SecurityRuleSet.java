@@ -0,0 +1,221 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the configured security rules, compiled once when it is
+ * loaded. A validation reads the snapshot once and uses it throughout, so a reload
+ * never changes the rules in the middle of a check.
+ *
+ * Rules are read from these keys:
+ * <pre>
+ * security.jailbreak.rules                     Rule names in evaluation order
+ * security.jailbreak.rule.NAME.keywords        Comma-separated keywords, each matching anywhere
+ * security.jailbreak.rule.NAME.sequence.N      Steps separated by "->", each a comma-separated
+ *                                              keyword choice; the steps have to occur in order
+ *                                              on one line
+ * security.jailbreak.rule.NAME.pattern.N       Regex for conditions that are not keyword sequences
+ * security.topics                              Comma-separated knowledge base vocabulary
+ * security.topic.partial.min.length            Topics this long also match inside words
+ * security.topic.relevance.min.score           Share of relevant words a query needs
+ * security.query.max.length                    Longest accepted query
+ * security.regex.engine / .step.budget         See RegexEngine and JailbreakMatcher
+ * security.response.meta.phrases               Phrases that make a response talk about itself
+ * security.response.disclosure.phrases         Phrases that reveal system internals in a response
+ * </pre>
+ * Numbered keys start at 1 and are read until the first gap.
+ */
+public final class SecurityRuleSet {
+    
+    private static final String RULE_PREFIX = "security.jailbreak.rule.";
+    private static final String STEP_SEPARATOR = "->";
+    
+    private static final int DEFAULT_MAX_QUERY_LENGTH = 500;
+    private static final double DEFAULT_MIN_RELEVANCE_SCORE = 0.3;
+    private static final int DEFAULT_PARTIAL_MIN_LENGTH = 5;
+    
+    private final long version;
+    private final String source;
+    private final long loadedAt;
+    private final JailbreakMatcher jailbreakMatcher;
+    private final TopicRelevanceScorer topicScorer;
+    private final ResponseFilter responseFilter;
+    private final int topicCount;
+    private final int maxQueryLength;
+    private final double minRelevanceScore;
+    
+    private SecurityRuleSet(long version, String source, JailbreakMatcher jailbreakMatcher, TopicRelevanceScorer topicScorer,
+                            ResponseFilter responseFilter, int topicCount, int maxQueryLength, double minRelevanceScore) {
+        this.version = version;
+        this.source = source;
+        this.loadedAt = System.currentTimeMillis();
+        this.jailbreakMatcher = jailbreakMatcher;
+        this.topicScorer = topicScorer;
+        this.responseFilter = responseFilter;
+        this.topicCount = topicCount;
+        this.maxQueryLength = maxQueryLength;
+        this.minRelevanceScore = minRelevanceScore;
+    }
+    
+    /**
+     * Parses and compiles the rules of a configuration
+     * @param version Increasing number identifying this snapshot
+     * @param source Where the configuration came from, for logging
+     * @throws IllegalArgumentException if the configuration has no rules, topics or response phrases,
+     *                                  or a rule is malformed
+     */
+    public static SecurityRuleSet compile(Properties config, long version, String source) {
+        List<JailbreakMatcher.Rule> rules = new ArrayList<>();
+        for (String name : splitList(config.getProperty("security.jailbreak.rules"))) {
+            rules.add(parseRule(config, name));
+        }
+        if (rules.isEmpty()) {
+            throw new IllegalArgumentException("No jailbreak rules configured in " + source);
+        }
+        
+        Set<String> topics = new LinkedHashSet<>();
+        for (String topic : splitList(config.getProperty("security.topics"))) {
+            topics.add(topic.toLowerCase());
+        }
+        if (topics.isEmpty()) {
+            throw new IllegalArgumentException("No topics configured in " + source);
+        }
+        
+        Map<ResponseViolation, List<String>> responsePhrases = new EnumMap<>(ResponseViolation.class);
+        responsePhrases.put(ResponseViolation.META_CONVERSATION, parsePhrases(config, "security.response.meta.phrases", source));
+        responsePhrases.put(ResponseViolation.SYSTEM_DISCLOSURE, parsePhrases(config, "security.response.disclosure.phrases", source));
+        
+        RegexEngine engine = RegexEngine.fromConfig(config.getProperty("security.regex.engine"));
+        long stepBudget = parseLong(config, "security.regex.step.budget", JailbreakMatcher.DEFAULT_STEP_BUDGET);
+        int partialMinLength = (int) parseLong(config, "security.topic.partial.min.length", DEFAULT_PARTIAL_MIN_LENGTH);
+        int maxQueryLength = (int) parseLong(config, "security.query.max.length", DEFAULT_MAX_QUERY_LENGTH);
+        double minRelevanceScore = parseDouble(config, "security.topic.relevance.min.score", DEFAULT_MIN_RELEVANCE_SCORE);
+        
+        return new SecurityRuleSet(version, source,
+                                   new JailbreakMatcher(rules, engine, stepBudget),
+                                   new TopicRelevanceScorer(topics, partialMinLength),
+                                   new ResponseFilter(responsePhrases),
+                                   topics.size(), maxQueryLength, minRelevanceScore);
+    }
+    
+    private static JailbreakMatcher.Rule parseRule(Properties config, String name) {
+        String prefix = RULE_PREFIX + name;
+        JailbreakMatcher.Rule rule = JailbreakMatcher.rule(name);
+        boolean empty = true;
+        
+        List<String> keywords = splitList(config.getProperty(prefix + ".keywords"));
+        if (!keywords.isEmpty()) {
+            rule.keywords(keywords.toArray(new String[0]));
+            empty = false;
+        }
+        
+        String sequence;
+        for (int n = 1; (sequence = config.getProperty(prefix + ".sequence." + n)) != null; n++) {
+            String[] parts = sequence.split(STEP_SEPARATOR, -1);
+            String[][] steps = new String[parts.length][];
+            for (int s = 0; s < parts.length; s++) {
+                List<String> choices = splitList(parts[s]);
+                if (choices.isEmpty()) {
+                    throw new IllegalArgumentException("Rule " + name + " has an empty step in sequence " + n);
+                }
+                steps[s] = choices.toArray(new String[0]);
+            }
+            rule.sequence(steps);
+            empty = false;
+        }
+        
+        String pattern;
+        for (int n = 1; (pattern = config.getProperty(prefix + ".pattern." + n)) != null; n++) {
+            rule.pattern(pattern.trim());
+            empty = false;
+        }
+        
+        if (empty) {
+            throw new IllegalArgumentException("Rule " + name + " has no keywords, sequences or patterns");
+        }
+        return rule;
+    }
+    
+    private static List<String> parsePhrases(Properties config, String key, String source) {
+        List<String> phrases = new ArrayList<>();
+        for (String phrase : splitList(config.getProperty(key))) {
+            phrases.add(phrase.toLowerCase());
+        }
+        if (phrases.isEmpty()) {
+            throw new IllegalArgumentException("No phrases configured for " + key + " in " + source);
+        }
+        return phrases;
+    }
+    
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    items.add(item.trim());
+                }
+            }
+        }
+        return items;
+    }
+    
+    private static long parseLong(Properties config, String key, long defaultValue) {
+        String value = config.getProperty(key, "").trim();
+        try {
+            return value.isEmpty() ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+        }
+    }
+    
+    private static double parseDouble(Properties config, String key, double defaultValue) {
+        String value = config.getProperty(key, "").trim();
+        try {
+            return value.isEmpty() ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+        }
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public String getSource() {
+        return source;
+    }
+    
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+    
+    public JailbreakMatcher getJailbreakMatcher() {
+        return jailbreakMatcher;
+    }
+    
+    public TopicRelevanceScorer getTopicScorer() {
+        return topicScorer;
+    }
+    
+    public ResponseFilter getResponseFilter() {
+        return responseFilter;
+    }
+    
+    public int getTopicCount() {
+        return topicCount;
+    }
+    
+    public int getMaxQueryLength() {
+        return maxQueryLength;
+    }
+    
+    public double getMinRelevanceScore() {
+        return minRelevanceScore;
+    }
+}
@@ -0,0 +1,180 @@
+package com.confluence.rag.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the current SecurityRuleSet and replaces it when the rules change.
+ *
+ * The base rules come from the given configuration. If it names an override file in
+ * security.rules.file, the keys of that file take precedence, and the file is checked
+ * for changes every security.rules.reload.interval.seconds. A changed file is
+ * compiled on the reload thread and the new snapshot is published with a single
+ * volatile write, so validations never wait for a reload and never see a
+ * half-built rule set. A file that fails to compile is logged and the previous
+ * snapshot stays active.
+ */
+public class SecurityRuleStore {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SecurityRuleStore.class);
+    
+    private static final long DEFAULT_RELOAD_INTERVAL_SECONDS = 30;
+    
+    private final Properties baseConfig;
+    private final Path overrideFile;
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong failedReloads = new AtomicLong();
+    private final ScheduledExecutorService reloader;
+    
+    private volatile SecurityRuleSet current;
+    
+    // Last seen state of the override file; only touched by reload(), which is synchronized
+    private long overrideModified = -1;
+    private long overrideSize = -1;
+    
+    /**
+     * @param baseConfig Security configuration; reads security.rules.file and
+     *                   security.rules.reload.interval.seconds (0 disables the check)
+     * @throws IllegalArgumentException if the initial rules cannot be compiled
+     * @throws IllegalStateException if the override file cannot be read
+     */
+    public SecurityRuleStore(Properties baseConfig) {
+        this.baseConfig = baseConfig;
+        String file = baseConfig.getProperty("security.rules.file", "").trim();
+        this.overrideFile = file.isEmpty() ? null : Paths.get(file);
+        
+        this.current = compile(readConfiguration());
+        logger.info("Security rules loaded from {}: {} jailbreak rules, {} topics",
+                    current.getSource(), current.getJailbreakMatcher().getRuleCount(), current.getTopicCount());
+        
+        long interval = parseLong(baseConfig.getProperty("security.rules.reload.interval.seconds"), DEFAULT_RELOAD_INTERVAL_SECONDS);
+        if (overrideFile != null && interval > 0) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rag-security-rules");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(this::reloadIfChanged, interval, interval, TimeUnit.SECONDS);
+        } else {
+            this.reloader = null;
+        }
+    }
+    
+    /**
+     * The rules to use for one validation
+     */
+    public SecurityRuleSet current() {
+        return current;
+    }
+    
+    /**
+     * Re-reads and compiles the rules, publishing them if they compile
+     * @return true if a new snapshot was published
+     */
+    public synchronized boolean reload() {
+        try {
+            SecurityRuleSet reloaded = compile(readConfiguration());
+            current = reloaded;
+            logger.info("Security rules reloaded from {} (version {}): {} jailbreak rules, {} topics",
+                        reloaded.getSource(), reloaded.getVersion(),
+                        reloaded.getJailbreakMatcher().getRuleCount(), reloaded.getTopicCount());
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            failedReloads.incrementAndGet();
+            logger.error("Security rules not reloaded, keeping version {}: {}", current.getVersion(), e.getMessage());
+            return false;
+        }
+    }
+    
+    private synchronized void reloadIfChanged() {
+        try {
+            long modified = Files.getLastModifiedTime(overrideFile).toMillis();
+            long size = Files.size(overrideFile);
+            if (modified != overrideModified || size != overrideSize) {
+                reload();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not check security rules file {}: {}", overrideFile, e.getMessage());
+        } catch (RuntimeException e) {
+            // Keep the schedule alive
+            logger.error("Security rules check failed", e);
+        }
+    }
+    
+    public long getFailedReloadCount() {
+        return failedReloads.get();
+    }
+    
+    public void shutdown() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+    
+    private SecurityRuleSet compile(Properties config) {
+        String source = overrideFile != null ? overrideFile.toString() + " over security.properties" : "security.properties";
+        return SecurityRuleSet.compile(config, versions.incrementAndGet(), source);
+    }
+    
+    /**
+     * Layers the override file over the base configuration
+     */
+    private Properties readConfiguration() {
+        if (overrideFile == null) {
+            return baseConfig;
+        }
+        Properties config = new Properties(baseConfig);
+        try {
+            // Record the state before reading, so a change during the read triggers another reload
+            overrideModified = Files.getLastModifiedTime(overrideFile).toMillis();
+            overrideSize = Files.size(overrideFile);
+            try (Reader reader = Files.newBufferedReader(overrideFile, StandardCharsets.UTF_8)) {
+                config.load(reader);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read security rules file " + overrideFile + ": " + e.getMessage(), e);
+        }
+        return config;
+    }
+    
+    /**
+     * Reads a security configuration from the class path, in UTF-8
+     */
+    public static Properties loadConfiguration(String resource) {
+        Properties config = new Properties();
+        try (InputStream input = SecurityRuleStore.class.getResourceAsStream(resource)) {
+            if (input != null) {
+                config.load(new InputStreamReader(input, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.warn("Could not load security configuration {}, using defaults", resource, e);
+        }
+        return config;
+    }
+    
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid number in security configuration: {}", value);
+            return defaultValue;
+        }
+    }
+}
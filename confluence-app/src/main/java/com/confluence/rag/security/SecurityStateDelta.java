@@ -0,0 +1,58 @@
+package com.confluence.rag.security;
+
+/**
+ * One change of a session's security state, as exchanged between cluster nodes
+ */
+public final class SecurityStateDelta {
+    
+    /**
+     * Kind of change; the value is a request count for REQUESTS and the time of the
+     * change in epoch millis for BLOCKED and UNBLOCKED
+     */
+    public enum Type {
+        REQUESTS,
+        BLOCKED,
+        UNBLOCKED
+    }
+    
+    private final Type type;
+    private final String sessionId;
+    private final long value;
+    
+    public SecurityStateDelta(Type type, String sessionId, long value) {
+        this.type = type;
+        this.sessionId = sessionId;
+        this.value = value;
+    }
+    
+    /**
+     * Requests a node has counted for the session since its last report
+     */
+    public static SecurityStateDelta requests(String sessionId, long count) {
+        return new SecurityStateDelta(Type.REQUESTS, sessionId, count);
+    }
+    
+    /**
+     * The session was blocked or unblocked at the given time
+     */
+    public static SecurityStateDelta blockState(String sessionId, boolean blocked, long changedAt) {
+        return new SecurityStateDelta(blocked ? Type.BLOCKED : Type.UNBLOCKED, sessionId, changedAt);
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public String getSessionId() {
+        return sessionId;
+    }
+    
+    public long getValue() {
+        return value;
+    }
+    
+    @Override
+    public String toString() {
+        return type + " " + sessionId + " " + value;
+    }
+}
@@ -0,0 +1,29 @@
+package com.confluence.rag.security;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Carries security state changes between the nodes of a cluster, so that rate
+ * limits and blocks apply to a session on every node.
+ *
+ * SecurityMonitor counts and decides on local memory only. It hands its changes
+ * to the exchange in batches from a background thread, and applies the changes of
+ * other nodes as they are delivered. Delivery may be late, incomplete or repeated:
+ * request counts are additive, so a lost batch only lets a session through a little
+ * more often, and block changes carry their time, so the latest one wins.
+ */
+public interface SecurityStateExchange {
+    
+    /**
+     * Starts delivering changes made on other nodes to the listener
+     */
+    void start(Consumer<SecurityStateDelta> listener);
+    
+    /**
+     * Sends local changes to the other nodes; called by one thread at a time
+     */
+    void publish(List<SecurityStateDelta> changes);
+    
+    void shutdown();
+}
@@ -0,0 +1,619 @@
+package com.confluence.rag.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the state of a SecurityMonitor on disk, so blocks, rate limit windows and
+ * incidents survive a restart.
+ *
+ * The whole state is written as a compact binary snapshot every snapshot interval;
+ * block changes and incidents in between are appended to a delta log. Snapshots go
+ * alternately into two files that stay memory-mapped, and the header holding the
+ * length and checksum of the data is written and forced last, so a snapshot cut off
+ * by a crash leaves the other one intact. Every snapshot starts a new log generation,
+ * and logs are deleted once both snapshots cover them. Changes are queued by the
+ * threads making them and written by the thread calling flush(), so recording never
+ * waits for the disk.
+ *
+ * Restoring maps the newer valid snapshot and replays the logs written since; replayed
+ * block changes are ordered by time and incidents by sequence number, so a change
+ * found in both the snapshot and a log is applied once. A log ends at its first torn
+ * or corrupt record.
+ */
+final class SecurityStateStore {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SecurityStateStore.class);
+    
+    private static final int MAGIC = 0x52414753;
+    private static final int FORMAT_VERSION = 1;
+    // Magic, format version, generation, write time, data length, session and incident count, checksum
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 8;
+    private static final int INITIAL_MAPPING_BYTES = 1 << 20;
+    private static final byte BLOCK_RECORD = 1;
+    private static final byte INCIDENT_RECORD = 2;
+    private static final String[] SNAPSHOT_FILES = {"security-state-a.snapshot", "security-state-b.snapshot"};
+    private static final String LOG_PREFIX = "security-state-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final SecurityMonitor.SecurityIncidentType[] TYPES = SecurityMonitor.SecurityIncidentType.values();
+    
+    private final Path directory;
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    
+    // Only accessed by the thread that restores, flushes and writes snapshots
+    private final SnapshotFile[] snapshots = new SnapshotFile[SNAPSHOT_FILES.length];
+    private final long[] snapshotGenerations = {-1, -1};
+    private long generation;
+    private FileChannel log;
+    
+    /**
+     * @throws IllegalStateException if the directory cannot be created
+     */
+    SecurityStateStore(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create security state directory " + directory + ": " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Number of sessions in the newest snapshot according to its header, for sizing before
+     * restore(); the snapshot's checksum is not verified here
+     */
+    int storedSessionCount() {
+        long newestGeneration = -1;
+        int count = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        for (String name : SNAPSHOT_FILES) {
+            Path file = directory.resolve(name);
+            if (!Files.isRegularFile(file)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                header.clear();
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // Read the whole header
+                }
+                if (!header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION
+                    && header.getLong(8) > newestGeneration) {
+                    newestGeneration = header.getLong(8);
+                    count = Math.max(0, header.getInt(32));
+                }
+            } catch (IOException e) {
+                // restore() reports unreadable snapshots
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Passes the stored state to the target and starts a new log generation
+     * @return Number of sessions restored from the snapshot
+     * @throws IllegalStateException if the new log cannot be opened
+     */
+    int restore(Target target) {
+        int newest = -1;
+        ByteBuffer[] contents = new ByteBuffer[SNAPSHOT_FILES.length];
+        for (int i = 0; i < SNAPSHOT_FILES.length; i++) {
+            contents[i] = readSnapshot(directory.resolve(SNAPSHOT_FILES[i]));
+            if (contents[i] != null) {
+                snapshotGenerations[i] = contents[i].getLong(8);
+                if (newest < 0 || snapshotGenerations[i] > snapshotGenerations[newest]) {
+                    newest = i;
+                }
+            }
+        }
+        
+        TreeMap<Long, SecurityMonitor.SecurityIncident> incidents = new TreeMap<>();
+        int sessionCount = 0;
+        long covered = 0;
+        if (newest >= 0) {
+            ByteBuffer snapshot = contents[newest];
+            covered = snapshotGenerations[newest];
+            sessionCount = snapshot.getInt(32);
+            int incidentCount = snapshot.getInt(36);
+            snapshot.position(HEADER_BYTES);
+            SessionRecord record = new SessionRecord();
+            for (int i = 0; i < sessionCount; i++) {
+                getSession(snapshot, record);
+                target.restoreSession(record);
+            }
+            for (int i = 0; i < incidentCount; i++) {
+                long sequence = snapshot.getLong();
+                incidents.put(sequence, getIncident(snapshot));
+            }
+        }
+        
+        long lastGeneration = covered;
+        for (Map.Entry<Long, Path> logFile : listLogs().entrySet()) {
+            lastGeneration = Math.max(lastGeneration, logFile.getKey());
+            if (logFile.getKey() >= covered) {
+                replayLog(logFile.getValue(), target, incidents);
+            }
+        }
+        for (Map.Entry<Long, SecurityMonitor.SecurityIncident> incident : incidents.entrySet()) {
+            target.restoreIncident(incident.getKey(), incident.getValue());
+        }
+        
+        // Changes made while restoring are already on disk
+        pending.clear();
+        generation = lastGeneration + 1;
+        openLog();
+        return sessionCount;
+    }
+    
+    /**
+     * Queues a block change for the log
+     */
+    void appendBlockState(String sessionId, boolean blocked, long changedAt, int blocks, long blockedUntil) {
+        byte[] id = utf8(sessionId);
+        ByteBuffer record = newRecord(1 + sizeOf(id) + 1 + 8 + 4 + 8);
+        record.put(BLOCK_RECORD);
+        putBytes(record, id);
+        record.put((byte) (blocked ? 1 : 0));
+        record.putLong(changedAt);
+        record.putInt(blocks);
+        record.putLong(blockedUntil);
+        pending.offer(seal(record));
+    }
+    
+    /**
+     * Queues an incident for the log
+     */
+    void appendIncident(long sequence, SecurityMonitor.SecurityIncident incident) {
+        byte[][] strings = incidentStrings(incident);
+        ByteBuffer record = newRecord(1 + 8 + incidentSize(strings));
+        record.put(INCIDENT_RECORD);
+        record.putLong(sequence);
+        putIncident(record, incident, strings);
+        pending.offer(seal(record));
+    }
+    
+    /**
+     * Writes the queued changes to the log
+     */
+    void flush() {
+        if (pending.isEmpty() || log == null) {
+            return;
+        }
+        List<ByteBuffer> records = new ArrayList<>();
+        byte[] record;
+        while ((record = pending.poll()) != null) {
+            records.add(ByteBuffer.wrap(record));
+        }
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        try {
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                log.write(buffers);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write {} security state changes: {}", buffers.length, e.getMessage());
+        }
+    }
+    
+    /**
+     * Starts a new log generation and writes a snapshot of everything the contents pass
+     * to the writer, then deletes the logs both snapshots cover
+     */
+    void writeSnapshot(Consumer<SnapshotWriter> contents) {
+        flush();
+        generation++;
+        openLog();
+        
+        int slot = snapshotGenerations[0] <= snapshotGenerations[1] ? 0 : 1;
+        try {
+            if (snapshots[slot] == null) {
+                snapshots[slot] = new SnapshotFile(directory.resolve(SNAPSHOT_FILES[slot]));
+            }
+            SnapshotWriter writer = new SnapshotWriter(snapshots[slot]);
+            snapshotGenerations[slot] = -1;
+            writer.start();
+            contents.accept(writer);
+            writer.finish(generation);
+            snapshotGenerations[slot] = generation;
+        } catch (IOException | IllegalStateException e) {
+            logger.warn("Could not write security state snapshot {}: {}", SNAPSHOT_FILES[slot], e.getMessage());
+            return;
+        }
+        
+        // Logs after the older snapshot are kept, in case the newer one turns out unreadable
+        long other = snapshotGenerations[1 - slot];
+        long keepFrom = other >= 0 ? other : generation;
+        for (Map.Entry<Long, Path> logFile : listLogs().entrySet()) {
+            if (logFile.getKey() < keepFrom) {
+                try {
+                    Files.deleteIfExists(logFile.getValue());
+                } catch (IOException e) {
+                    logger.warn("Could not delete security state log {}: {}", logFile.getValue(), e.getMessage());
+                }
+            }
+        }
+    }
+    
+    void close() {
+        flush();
+        closeQuietly(log);
+        log = null;
+        for (SnapshotFile snapshot : snapshots) {
+            if (snapshot != null) {
+                closeQuietly(snapshot.channel);
+            }
+        }
+    }
+    
+    private void openLog() {
+        closeQuietly(log);
+        Path file = directory.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+        try {
+            log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log = null;
+            throw new IllegalStateException("Could not open security state log " + file + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private TreeMap<Long, Path> listLogs() {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    logs.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not list security state logs in {}: {}", directory, e.getMessage());
+        }
+        return logs;
+    }
+    
+    /**
+     * Maps a snapshot file and checks its header and checksum
+     * @return The snapshot, or null if it is missing or invalid
+     */
+    private static ByteBuffer readSnapshot(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                return null;
+            }
+            ByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            long length = snapshot.getLong(24);
+            if (snapshot.getInt(0) != MAGIC || snapshot.getInt(4) != FORMAT_VERSION
+                || length < 0 || length > size - HEADER_BYTES) {
+                logger.warn("Ignoring incomplete security state snapshot {}", file);
+                return null;
+            }
+            ByteBuffer data = snapshot.duplicate();
+            data.position(HEADER_BYTES).limit(HEADER_BYTES + (int) length);
+            CRC32 checksum = new CRC32();
+            checksum.update(data);
+            if (checksum.getValue() != snapshot.getLong(40)) {
+                logger.warn("Ignoring corrupt security state snapshot {}", file);
+                return null;
+            }
+            return snapshot;
+        } catch (IOException e) {
+            logger.warn("Could not read security state snapshot {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+    
+    private static void replayLog(Path file, Target target, TreeMap<Long, SecurityMonitor.SecurityIncident> incidents) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 checksum = new CRC32();
+            while (records.remaining() >= 8) {
+                int length = records.getInt();
+                long expected = records.getInt() & 0xFFFFFFFFL;
+                if (length <= 0 || length > records.remaining()) {
+                    break;
+                }
+                ByteBuffer record = records.slice();
+                record.limit(length);
+                records.position(records.position() + length);
+                checksum.reset();
+                checksum.update(record.duplicate());
+                if (checksum.getValue() != expected) {
+                    break;
+                }
+                if (record.get() == BLOCK_RECORD) {
+                    target.restoreBlockState(getString(record), record.get() != 0, record.getLong(), record.getInt(), record.getLong());
+                } else {
+                    long sequence = record.getLong();
+                    SecurityMonitor.SecurityIncident incident = getIncident(record);
+                    if (incidents.putIfAbsent(sequence, incident) == null) {
+                        target.replayIncident(incident);
+                    }
+                }
+            }
+            if (records.hasRemaining()) {
+                logger.warn("Security state log {} ends with {} unreadable bytes", file, records.remaining());
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Could not replay security state log {}: {}", file, e.getMessage());
+        }
+    }
+    
+    private static ByteBuffer newRecord(int payloadBytes) {
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadBytes);
+        record.position(8);
+        return record;
+    }
+    
+    /**
+     * Fills in the length and checksum of a record
+     */
+    private static byte[] seal(ByteBuffer record) {
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(0, record.capacity() - 8);
+        record.putInt(4, (int) checksum.getValue());
+        return record.array();
+    }
+    
+    private static void getSession(ByteBuffer in, SessionRecord record) {
+        record.sessionId = getString(in);
+        record.minuteWindow = in.getLong();
+        record.hourWindow = in.getLong();
+        record.lastSeen = in.getLong();
+        record.blocked = in.get() != 0;
+        record.blockChangedAt = in.getLong();
+        record.blocks = in.getInt();
+        record.blockedUntil = in.getLong();
+        Arrays.fill(record.incidents, 0);
+        for (int types = in.get(); types > 0; types--) {
+            int type = in.get();
+            int count = in.getInt();
+            if (type < record.incidents.length) {
+                record.incidents[type] = count;
+            }
+        }
+    }
+    
+    private static byte[][] incidentStrings(SecurityMonitor.SecurityIncident incident) {
+        return new byte[][] {utf8(incident.getSessionId()), utf8(incident.getIpAddress()), utf8(incident.getDetails())};
+    }
+    
+    private static int incidentSize(byte[][] strings) {
+        return sizeOf(strings[0]) + sizeOf(strings[1]) + 1 + sizeOf(strings[2]) + 8 + 4;
+    }
+    
+    private static void putIncident(ByteBuffer out, SecurityMonitor.SecurityIncident incident, byte[][] strings) {
+        putBytes(out, strings[0]);
+        putBytes(out, strings[1]);
+        out.put((byte) incident.getType().ordinal());
+        putBytes(out, strings[2]);
+        out.putLong(incident.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        out.putInt(incident.getTimestamp().getNano());
+    }
+    
+    private static SecurityMonitor.SecurityIncident getIncident(ByteBuffer in) {
+        String sessionId = getString(in);
+        String ipAddress = getString(in);
+        int type = in.get();
+        String details = getString(in);
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+        if (type < 0 || type >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown incident type " + type);
+        }
+        return new SecurityMonitor.SecurityIncident(sessionId, ipAddress, TYPES[type], details, timestamp);
+    }
+    
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+    
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+    
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+    }
+    
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Could not close security state file", e);
+            }
+        }
+    }
+    
+    /**
+     * Receives the restored state
+     */
+    interface Target {
+        
+        /**
+         * A session of the snapshot; the record is reused for the next session
+         */
+        void restoreSession(SessionRecord session);
+        
+        /**
+         * A block change of the log, in the order of the log
+         */
+        void restoreBlockState(String sessionId, boolean blocked, long changedAt, int blocks, long blockedUntil);
+        
+        /**
+         * An incident of the log that the snapshot's statistics do not count yet
+         */
+        void replayIncident(SecurityMonitor.SecurityIncident incident);
+        
+        /**
+         * Every stored incident, in sequence order, after all other state
+         */
+        void restoreIncident(long sequence, SecurityMonitor.SecurityIncident incident);
+    }
+    
+    /**
+     * State of one session in a snapshot
+     */
+    static final class SessionRecord {
+        String sessionId;
+        long minuteWindow;
+        long hourWindow;
+        long lastSeen;
+        boolean blocked;
+        long blockChangedAt;
+        int blocks;
+        long blockedUntil;
+        final int[] incidents = new int[TYPES.length];
+    }
+    
+    /**
+     * Writes the sessions and incidents of one snapshot into its mapped file
+     */
+    static final class SnapshotWriter {
+        private final SnapshotFile file;
+        private int sessionCount;
+        private int incidentCount;
+        
+        private SnapshotWriter(SnapshotFile file) {
+            this.file = file;
+        }
+        
+        void session(SessionRecord record) {
+            byte[] id = utf8(record.sessionId);
+            int types = 0;
+            for (int count : record.incidents) {
+                if (count > 0) {
+                    types++;
+                }
+            }
+            ByteBuffer out = file.reserve(sizeOf(id) + 8 + 8 + 8 + 1 + 8 + 4 + 8 + 1 + types * 5);
+            putBytes(out, id);
+            out.putLong(record.minuteWindow);
+            out.putLong(record.hourWindow);
+            out.putLong(record.lastSeen);
+            out.put((byte) (record.blocked ? 1 : 0));
+            out.putLong(record.blockChangedAt);
+            out.putInt(record.blocks);
+            out.putLong(record.blockedUntil);
+            out.put((byte) types);
+            for (int type = 0; type < record.incidents.length; type++) {
+                if (record.incidents[type] > 0) {
+                    out.put((byte) type);
+                    out.putInt(record.incidents[type]);
+                }
+            }
+            sessionCount++;
+        }
+        
+        /**
+         * Incidents follow all sessions
+         */
+        void incident(SecurityMonitor.SecurityIncident incident, long sequence) {
+            byte[][] strings = incidentStrings(incident);
+            ByteBuffer out = file.reserve(8 + incidentSize(strings));
+            out.putLong(sequence);
+            putIncident(out, incident, strings);
+            incidentCount++;
+        }
+        
+        private void start() {
+            file.reserve(HEADER_BYTES);
+            file.buffer.putInt(0, 0);
+            file.buffer.position(HEADER_BYTES);
+        }
+        
+        private void finish(long generation) {
+            MappedByteBuffer buffer = file.buffer;
+            int end = buffer.position();
+            ByteBuffer data = buffer.duplicate();
+            data.position(HEADER_BYTES).limit(end);
+            CRC32 checksum = new CRC32();
+            checksum.update(data);
+            buffer.force();
+            
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putLong(8, generation);
+            buffer.putLong(16, System.currentTimeMillis());
+            buffer.putLong(24, end - HEADER_BYTES);
+            buffer.putInt(32, sessionCount);
+            buffer.putInt(36, incidentCount);
+            buffer.putLong(40, checksum.getValue());
+            buffer.putInt(0, MAGIC);
+            buffer.force();
+        }
+    }
+    
+    /**
+     * A snapshot file and its mapping, grown when a snapshot does not fit
+     */
+    private static final class SnapshotFile {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        
+        SnapshotFile(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_MAPPING_BYTES, channel.size()));
+        }
+        
+        /**
+         * Makes room for the given number of bytes at the current position
+         */
+        ByteBuffer reserve(int bytes) {
+            if (buffer.remaining() < bytes) {
+                int position = buffer.position();
+                long size = Math.max((long) buffer.capacity() * 2, (long) position + bytes);
+                if (size > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Security state snapshot exceeds 2 GB");
+                }
+                try {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not grow security state snapshot: " + e.getMessage(), e);
+                }
+                buffer.position(position);
+            }
+            return buffer;
+        }
+    }
+}
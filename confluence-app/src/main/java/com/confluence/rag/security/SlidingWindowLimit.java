@@ -0,0 +1,136 @@
+package com.confluence.rag.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request limit over a sliding time window, approximated from two fixed windows.
+ *
+ * The count of the current fixed window is added to the count of the previous one,
+ * weighted by the share of the previous window that still lies inside the sliding
+ * window; this assumes the previous window's requests were spread evenly. A counter's
+ * whole state (window number and both counts) is packed into one long, so it is read
+ * with a single volatile load, updated with a single CAS and never allocates. The
+ * limit itself is immutable and shared by all counters.
+ */
+public final class SlidingWindowLimit {
+    
+    // Packed state: window number (24 bits), previous count (20 bits), current count (20 bits)
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = (1L << 24) - 1;
+    
+    /**
+     * Highest count a window can hold; further requests are not counted
+     */
+    public static final long MAX_COUNT = COUNT_MASK;
+    
+    private final long windowMillis;
+    private final long limit;
+    
+    /**
+     * @param windowMillis Length of the sliding window
+     * @param limit Requests allowed within one window, at most MAX_COUNT
+     */
+    public SlidingWindowLimit(long windowMillis, long limit) {
+        if (windowMillis <= 0 || limit <= 0 || limit > MAX_COUNT) {
+            throw new IllegalArgumentException("Invalid sliding window limit: " + limit + " per " + windowMillis + " ms");
+        }
+        this.windowMillis = windowMillis;
+        this.limit = limit;
+    }
+    
+    /**
+     * Counts one request
+     */
+    public void record(AtomicLong counter, long nowMillis) {
+        record(counter, nowMillis, 1);
+    }
+    
+    /**
+     * Counts a number of requests, for example ones reported by another node
+     */
+    public void record(AtomicLong counter, long nowMillis, long requests) {
+        long window = nowMillis / windowMillis;
+        while (true) {
+            long state = counter.get();
+            long updated = roll(state, window);
+            updated += Math.min(Math.max(requests, 0), MAX_COUNT - (updated & COUNT_MASK));
+            if (updated == state || counter.compareAndSet(state, updated)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Whether the requests within the sliding window have reached the limit
+     */
+    public boolean isExceeded(AtomicLong counter, long nowMillis) {
+        return weightedCount(counter.get(), nowMillis) >= limit * windowMillis;
+    }
+    
+    /**
+     * Estimated number of requests within the sliding window ending now
+     */
+    public double count(AtomicLong counter, long nowMillis) {
+        return weightedCount(counter.get(), nowMillis) / (double) windowMillis;
+    }
+    
+    /**
+     * Whether the counter has no requests left within the sliding window
+     */
+    public boolean isDrained(AtomicLong counter, long nowMillis) {
+        return weightedCount(counter.get(), nowMillis) == 0;
+    }
+    
+    /**
+     * Time at which all requests counted so far will have left the sliding window
+     */
+    public long drainedAt(AtomicLong counter, long nowMillis) {
+        long window = nowMillis / windowMillis;
+        long distance = distance(counter.get(), window);
+        return distance > 1 ? nowMillis : (window - distance + 2) * windowMillis;
+    }
+    
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+    
+    public long getLimit() {
+        return limit;
+    }
+    
+    /**
+     * Request count scaled by the window length, to stay in integer arithmetic
+     */
+    private long weightedCount(long state, long nowMillis) {
+        long window = nowMillis / windowMillis;
+        long remaining = windowMillis - nowMillis % windowMillis;
+        long current = state & COUNT_MASK;
+        long previous = (state >>> COUNT_BITS) & COUNT_MASK;
+        switch ((int) distance(state, window)) {
+            case 0:
+                return current * windowMillis + previous * remaining;
+            case 1:
+                return current * remaining;
+            default:
+                return 0;
+        }
+    }
+    
+    /**
+     * Moves the state forward to the given window
+     */
+    private static long roll(long state, long window) {
+        long distance = distance(state, window);
+        if (distance == 0) {
+            return state;
+        }
+        long previous = distance == 1 ? state & COUNT_MASK : 0;
+        return ((window & WINDOW_MASK) << (2 * COUNT_BITS)) | (previous << COUNT_BITS);
+    }
+    
+    // Windows between the stored one and the given one, modulo the stored bits
+    private static long distance(long state, long window) {
+        return (window - (state >>> (2 * COUNT_BITS))) & WINDOW_MASK;
+    }
+}
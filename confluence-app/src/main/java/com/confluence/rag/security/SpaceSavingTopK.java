@@ -0,0 +1,118 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-saving summary of the most frequent keys, in a fixed number of counters.
+ *
+ * A key that is not monitored takes over the counter with the smallest count and
+ * inherits that count as its error, so count - error never exceeds the key's true
+ * count, and every key whose true count exceeds the smallest count is monitored.
+ * Guarded by its own monitor; the capacity is small, so the linear search for the
+ * smallest counter is cheaper than keeping them ordered.
+ */
+final class SpaceSavingTopK {
+    
+    private final int capacity;
+    private final Map<String, HeavyHitters.Entry> counters;
+    private volatile long minimumCount;
+    
+    SpaceSavingTopK(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.counters = new HashMap<>(this.capacity * 2);
+    }
+    
+    synchronized void add(String key, long count) {
+        HeavyHitters.Entry entry = counters.get(key);
+        if (entry != null) {
+            boolean wasSmallest = entry.count == minimumCount;
+            entry.count += count;
+            if (wasSmallest && counters.size() == capacity) {
+                minimumCount = smallest().count;
+            }
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(key, new HeavyHitters.Entry(key, count, 0));
+            if (counters.size() == capacity) {
+                minimumCount = smallest().count;
+            }
+            return;
+        }
+        
+        // Replace the smallest counter, finding the next smallest in the same pass
+        HeavyHitters.Entry smallest = null;
+        long next = Long.MAX_VALUE;
+        for (HeavyHitters.Entry candidate : counters.values()) {
+            if (smallest == null || candidate.count < smallest.count) {
+                if (smallest != null) {
+                    next = Math.min(next, smallest.count);
+                }
+                smallest = candidate;
+            } else {
+                next = Math.min(next, candidate.count);
+            }
+        }
+        counters.remove(smallest.key);
+        long replaced = smallest.count + count;
+        counters.put(key, new HeavyHitters.Entry(key, replaced, smallest.count));
+        minimumCount = Math.min(next, replaced);
+    }
+    
+    /**
+     * Count below which a key cannot enter the summary; 0 while counters are free
+     */
+    long minimumCount() {
+        return minimumCount;
+    }
+    
+    /**
+     * Lower bound of the key's count, 0 if it is not monitored
+     */
+    synchronized long guaranteedCount(String key) {
+        HeavyHitters.Entry entry = counters.get(key);
+        return entry != null ? entry.count - entry.error : 0;
+    }
+    
+    /**
+     * Copies of the monitored counters, highest count first
+     */
+    synchronized List<HeavyHitters.Entry> top(int limit) {
+        List<HeavyHitters.Entry> result = new ArrayList<>(counters.size());
+        for (HeavyHitters.Entry entry : counters.values()) {
+            result.add(new HeavyHitters.Entry(entry.key, entry.count, entry.error));
+        }
+        result.sort((a, b) -> Long.compare(b.count, a.count));
+        return result.size() > limit ? new ArrayList<>(result.subList(0, Math.max(0, limit))) : result;
+    }
+    
+    /**
+     * Halves every count and frees the counters that reach zero
+     */
+    synchronized void decay() {
+        Iterator<HeavyHitters.Entry> entries = counters.values().iterator();
+        while (entries.hasNext()) {
+            HeavyHitters.Entry entry = entries.next();
+            entry.count >>= 1;
+            entry.error = (entry.error + 1) >> 1;
+            if (entry.count == 0) {
+                entries.remove();
+            }
+        }
+        minimumCount = counters.size() < capacity ? 0 : smallest().count;
+    }
+    
+    private HeavyHitters.Entry smallest() {
+        HeavyHitters.Entry smallest = null;
+        for (HeavyHitters.Entry entry : counters.values()) {
+            if (smallest == null || entry.count < smallest.count) {
+                smallest = entry;
+            }
+        }
+        return smallest;
+    }
+}
@@ -0,0 +1,36 @@
+package com.confluence.rag.security;
+
+/**
+ * Work allowance for checking one query. Every pattern evaluated for the query
+ * draws from the same budget, so the total cost of a validation is bounded no
+ * matter how many patterns run or how the input is shaped.
+ */
+public final class StepBudget {
+    
+    private final long limit;
+    private long used;
+    
+    public StepBudget(long limit) {
+        this.limit = limit;
+    }
+    
+    /**
+     * Records work; returns false once the budget is used up
+     */
+    public boolean consume(long steps) {
+        used += steps;
+        return used <= limit;
+    }
+    
+    public boolean isExhausted() {
+        return used > limit;
+    }
+    
+    public long getUsed() {
+        return used;
+    }
+    
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,259 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Cleans text in a single pass: removes unwanted characters, collapses whitespace
+ * and replaces everything its detectors find.
+ *
+ * All detectors search the original text. The leftmost match is replaced, the one
+ * of the detector added first if several start at the same position, and scanning
+ * continues after it. Matches overlapping its end are replaced along with it, so
+ * a value found by two detectors is never half left in clear text. Output goes
+ * into a buffer kept per thread, and a text that needs no change is returned as
+ * it is, so the common case creates no objects. Instances are immutable and
+ * thread-safe.
+ */
+public final class TextSanitizer {
+    
+    // Buffers grown beyond this are not kept for the next call
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+    
+    private final BitSet removed;
+    private final boolean normalizeWhitespace;
+    private final PiiDetector[] detectors;
+    private final ThreadLocal<Scratch> scratch;
+    
+    private TextSanitizer(Builder builder) {
+        this.removed = (BitSet) builder.removed.clone();
+        this.normalizeWhitespace = builder.normalizeWhitespace;
+        this.detectors = builder.detectors.toArray(new PiiDetector[0]);
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(detectors.length));
+    }
+    
+    public static Builder builder() {
+        return new Builder();
+    }
+    
+    /**
+     * Sanitizes the text; returns the same instance if nothing changed
+     */
+    public String sanitize(String text) {
+        return sanitize(text, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Sanitizes the text and cuts the result to at most maxLength characters
+     */
+    public String sanitize(String text, int maxLength) {
+        if (text == null) {
+            return null;
+        }
+        Scratch state = scratch.get();
+        state.reset();
+        try {
+            run(text, maxLength, state);
+            return state.changed ? state.out.toString() : text;
+        } finally {
+            if (state.out.capacity() > MAX_RETAINED_CAPACITY) {
+                scratch.remove();
+            }
+        }
+    }
+    
+    private void run(String text, int maxLength, Scratch state) {
+        long[] next = state.next;
+        for (int d = 0; d < detectors.length; d++) {
+            next[d] = detectors[d].find(text, 0);
+        }
+        
+        int position = 0;
+        int length = text.length();
+        while (position < length && !state.full) {
+            int winner = -1;
+            int winnerStart = length;
+            for (int d = 0; d < detectors.length; d++) {
+                if (next[d] != PiiDetector.NOT_FOUND && PiiDetector.start(next[d]) < winnerStart) {
+                    winner = d;
+                    winnerStart = PiiDetector.start(next[d]);
+                }
+            }
+            
+            copy(text, position, winnerStart, maxLength, state);
+            if (winner < 0 || state.full) {
+                break;
+            }
+            
+            int end = PiiDetector.end(next[winner]);
+            flushPendingSpace(state);
+            detectors[winner].appendReplacement(text, winnerStart, end, state.out);
+            
+            // A match reaching beyond the replaced range is replaced too, so none of it stays readable
+            for (boolean extended = true; extended; ) {
+                extended = false;
+                for (int d = 0; d < detectors.length; d++) {
+                    if (next[d] != PiiDetector.NOT_FOUND && PiiDetector.start(next[d]) < end && PiiDetector.end(next[d]) > end) {
+                        detectors[d].appendReplacement(text, PiiDetector.start(next[d]), PiiDetector.end(next[d]), state.out);
+                        end = PiiDetector.end(next[d]);
+                        extended = true;
+                    }
+                }
+            }
+            state.changed = true;
+            state.lastChar = state.out.length() > 0 ? state.out.charAt(state.out.length() - 1) : 0;
+            checkFull(maxLength, state);
+            position = end;
+            
+            // Matches that started inside the replaced range are gone; search again behind it
+            for (int d = 0; d < detectors.length; d++) {
+                if (next[d] != PiiDetector.NOT_FOUND && PiiDetector.start(next[d]) < position) {
+                    next[d] = detectors[d].find(text, position);
+                }
+            }
+        }
+        finish(maxLength, state);
+    }
+    
+    /**
+     * Copies a range of the text, applying character removal and whitespace rules
+     */
+    private void copy(String text, int from, int to, int maxLength, Scratch state) {
+        StringBuilder out = state.out;
+        for (int i = from; i < to && !state.full; i++) {
+            char c = text.charAt(i);
+            if (removed.get(c)) {
+                state.changed = true;
+                continue;
+            }
+            if (normalizeWhitespace) {
+                if (isWhitespace(c)) {
+                    // Leading whitespace and runs are dropped; a single ' ' is kept as it is
+                    if (out.length() == 0 || state.pendingSpace || c != ' ') {
+                        state.changed = true;
+                    }
+                    state.pendingSpace = out.length() > 0;
+                    continue;
+                }
+                if (c <= ' ' && out.length() == 0) {
+                    // Trimmed like String.trim does
+                    state.changed = true;
+                    continue;
+                }
+                flushPendingSpace(state);
+            }
+            out.append(c);
+            state.lastChar = c;
+            checkFull(maxLength, state);
+        }
+    }
+    
+    private void flushPendingSpace(Scratch state) {
+        if (state.pendingSpace) {
+            state.out.append(' ');
+            state.pendingSpace = false;
+        }
+    }
+    
+    /**
+     * Stops early once the result is certain to be cut: it is too long and, when
+     * whitespace is trimmed, its last character will not be trimmed away
+     */
+    private void checkFull(int maxLength, Scratch state) {
+        if (state.out.length() > maxLength && (!normalizeWhitespace || state.lastChar > ' ')) {
+            state.full = true;
+        }
+    }
+    
+    private void finish(int maxLength, Scratch state) {
+        StringBuilder out = state.out;
+        if (state.pendingSpace) {
+            state.changed = true;
+            state.pendingSpace = false;
+        }
+        if (normalizeWhitespace) {
+            int end = out.length();
+            while (end > 0 && out.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (end < out.length()) {
+                out.setLength(end);
+                state.changed = true;
+            }
+        }
+        if (out.length() > maxLength) {
+            out.setLength(maxLength);
+            state.changed = true;
+        }
+    }
+    
+    // The characters matched by \s
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
+    /**
+     * Per-thread state of one sanitize call
+     */
+    private static final class Scratch {
+        private final StringBuilder out = new StringBuilder(256);
+        private final long[] next;
+        private boolean changed;
+        private boolean pendingSpace;
+        private boolean full;
+        private char lastChar;
+        
+        Scratch(int detectorCount) {
+            this.next = new long[detectorCount];
+        }
+        
+        void reset() {
+            out.setLength(0);
+            changed = false;
+            pendingSpace = false;
+            full = false;
+            lastChar = 0;
+        }
+    }
+    
+    public static final class Builder {
+        private final BitSet removed = new BitSet();
+        private boolean normalizeWhitespace;
+        private final List<PiiDetector> detectors = new ArrayList<>();
+        
+        private Builder() {
+        }
+        
+        /**
+         * Drops every occurrence of these characters
+         */
+        public Builder removeCharacters(String characters) {
+            for (int i = 0; i < characters.length(); i++) {
+                removed.set(characters.charAt(i));
+            }
+            return this;
+        }
+        
+        /**
+         * Replaces runs of whitespace with one space and trims the result, like
+         * replaceAll("\\s+", " ").trim()
+         */
+        public Builder normalizeWhitespace() {
+            this.normalizeWhitespace = true;
+            return this;
+        }
+        
+        /**
+         * Adds a detector; earlier detectors win when matches start at the same position
+         */
+        public Builder detector(PiiDetector detector) {
+            detectors.add(detector);
+            return this;
+        }
+        
+        public TextSanitizer build() {
+            return new TextSanitizer(this);
+        }
+    }
+}
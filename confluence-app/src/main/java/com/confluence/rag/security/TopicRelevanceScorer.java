@@ -0,0 +1,191 @@
+package com.confluence.rag.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scores how much of a query is made of knowledge base vocabulary.
+ *
+ * The query is split at whitespace and every word, with everything but letters and
+ * digits removed, counts once if it is a topic longer than two characters and once
+ * more if it contains a long topic or is contained in one. The score is the count
+ * divided by the number of words.
+ *
+ * All three checks run on one automaton built from the topics and every suffix of
+ * the long topics: a word is a topic or part of a long topic if reading it never
+ * left the trie, and contains a long topic if one was reported while reading it.
+ * Each query is read once without creating strings.
+ */
+public class TopicRelevanceScorer {
+    
+    private static final int MIN_EXACT_LENGTH = 3;
+    private static final int CAPITAL_I_WITH_DOT = '\u0130';
+    private static final char COMBINING_DOT = '\u0307';
+    
+    private final KeywordAutomaton automaton;
+    
+    // Per state: the path spells a topic / a part of a long topic / a long topic ends here
+    private final boolean[] isTopic;
+    private final boolean[] insideLongTopic;
+    private final boolean[] endsLongTopic;
+    
+    /**
+     * @param topics Vocabulary in lower case
+     * @param minPartialLength Topics at least this long also match as part of a word and the other way round
+     */
+    public TopicRelevanceScorer(Collection<String> topics, int minPartialLength) {
+        Set<String> keywords = new LinkedHashSet<>();
+        List<String> longTopics = new ArrayList<>();
+        for (String topic : topics) {
+            if (topic.isEmpty()) {
+                continue;
+            }
+            keywords.add(topic);
+            if (topic.length() >= minPartialLength) {
+                longTopics.add(topic);
+                for (int i = 1; i < topic.length(); i++) {
+                    keywords.add(topic.substring(i));
+                }
+            }
+        }
+        List<String> keywordList = new ArrayList<>(keywords);
+        this.automaton = new KeywordAutomaton(keywordList);
+        
+        int stateCount = automaton.stateCount();
+        this.isTopic = new boolean[stateCount];
+        this.insideLongTopic = new boolean[stateCount];
+        this.endsLongTopic = new boolean[stateCount];
+        
+        for (String topic : topics) {
+            if (!topic.isEmpty()) {
+                isTopic[walk(topic, null)] = true;
+            }
+        }
+        boolean[] isLongTopicKeyword = new boolean[keywordList.size()];
+        for (String topic : longTopics) {
+            isLongTopicKeyword[keywordList.indexOf(topic)] = true;
+            // Every prefix of every suffix is a part of the topic
+            insideLongTopic[0] = true;
+            for (int i = 0; i < topic.length(); i++) {
+                walk(topic.substring(i), insideLongTopic);
+            }
+        }
+        for (int state = 0; state < stateCount; state++) {
+            for (int keyword : automaton.matches(state)) {
+                endsLongTopic[state] |= isLongTopicKeyword[keyword];
+            }
+        }
+    }
+    
+    /**
+     * Returns the share of relevant words, counting a word twice if it is both a
+     * topic and related to a long topic
+     */
+    public double score(CharSequence query) {
+        int length = query.length();
+        int words = 0;
+        int relevant = 0;
+        
+        // Same words as String.split("\\s+"): a leading separator yields an empty first word
+        // unless the query is nothing but separators, and an empty query is one empty word
+        int i = 0;
+        while (i < length && isSeparator(query.charAt(i))) {
+            i++;
+        }
+        if (length == 0 || (i > 0 && i < length)) {
+            words++;
+            relevant += scoreWord(0, 0, false);
+        }
+        
+        while (i < length) {
+            int state = 0;
+            int wordLength = 0;
+            boolean containsLongTopic = false;
+            while (i < length && !isSeparator(query.charAt(i))) {
+                int codePoint = Character.codePointAt(query, i);
+                i += Character.charCount(codePoint);
+                if (!isLetterOrNumber(codePoint)) {
+                    continue;
+                }
+                if (codePoint == CAPITAL_I_WITH_DOT) {
+                    // String.toLowerCase turns it into i followed by a combining dot
+                    state = automaton.next(state, 'i');
+                    containsLongTopic |= endsLongTopic[state];
+                    state = automaton.next(state, COMBINING_DOT);
+                    wordLength += 2;
+                } else {
+                    int lowerCase = Character.toLowerCase(codePoint);
+                    if (Character.isBmpCodePoint(lowerCase)) {
+                        state = automaton.next(state, (char) lowerCase);
+                        wordLength++;
+                    } else {
+                        state = automaton.next(state, Character.highSurrogate(lowerCase));
+                        containsLongTopic |= endsLongTopic[state];
+                        state = automaton.next(state, Character.lowSurrogate(lowerCase));
+                        wordLength += 2;
+                    }
+                }
+                containsLongTopic |= endsLongTopic[state];
+            }
+            words++;
+            relevant += scoreWord(state, wordLength, containsLongTopic);
+            while (i < length && isSeparator(query.charAt(i))) {
+                i++;
+            }
+        }
+        
+        return words > 0 ? (double) relevant / words : 0.0;
+    }
+    
+    private int scoreWord(int state, int wordLength, boolean containsLongTopic) {
+        // The state is on the trie path of the whole word only if nothing was skipped
+        boolean onPath = automaton.depth(state) == wordLength;
+        int score = 0;
+        if (wordLength >= MIN_EXACT_LENGTH && onPath && isTopic[state]) {
+            score++;
+        }
+        if (containsLongTopic || (onPath && insideLongTopic[state])) {
+            score++;
+        }
+        return score;
+    }
+    
+    /**
+     * Follows the trie path of a keyword prefix, marking every state on the way
+     */
+    private int walk(String text, boolean[] mark) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = automaton.next(state, text.charAt(i));
+            if (mark != null) {
+                mark[state] = true;
+            }
+        }
+        return state;
+    }
+    
+    // The characters matched by \s
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
+    // The characters matched by \p{L} and \p{N}
+    private static boolean isLetterOrNumber(int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.confluence.rag.service;
+
+/**
+ * How chat answers are produced
+ */
+public enum AnswerMode {
+    
+    /**
+     * Answers are generated by the language model; the extractive answerer takes
+     * over while the model's breaker is open or the deadline is nearly used up
+     */
+    GENERATIVE,
+    
+    /**
+     * Answers quote the best-matching sentences of the retrieved documents, on CPU only
+     */
+    EXTRACTIVE;
+    
+    /**
+     * Parses a configured mode name, defaulting to EXTRACTIVE for unknown or empty values
+     */
+    public static AnswerMode fromConfig(String value) {
+        if (value != null) {
+            for (AnswerMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return EXTRACTIVE;
+    }
+}
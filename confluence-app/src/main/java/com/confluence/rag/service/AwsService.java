@@ -1,22 +1,30 @@
 package com.confluence.rag.service;
 
 import com.confluence.rag.api.AwsServiceInterface;
+import com.confluence.rag.http.EventStreamDecoder;
+import com.confluence.rag.http.HttpTransport;
+import com.confluence.rag.json.ChatJsonCodec;
+import com.confluence.rag.json.JsonSupport;
 import com.confluence.rag.model.DocumentProcessingRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Named;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Properties;
+import java.util.function.Consumer;
 
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.util.EntityUtils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -29,31 +37,48 @@ public class AwsService implements AwsServiceInterface {
     
     private static final Logger LOG = LoggerFactory.getLogger(AwsService.class);
     
+    private static final String EVENT_STREAM_CONTENT_TYPE = "application/vnd.amazon.eventstream";
+    private static final String ANTHROPIC_VERSION = "bedrock-2023-05-31";
+    private static final int MAX_EVENT_BYTES = 1024 * 1024;
+    private static final int DEFAULT_MAX_RESPONSE_TOKENS = 1000;
+    
     private final ObjectMapper objectMapper;
-    private final CloseableHttpClient httpClient;
+    private final HttpTransport transport;
+    private final String streamUrl;
+    private final int maxResponseTokens;
     
     public AwsService() {
-        this.objectMapper = new ObjectMapper();
-        this.httpClient = HttpClients.createDefault();
+        this(HttpTransport.shared());
+    }
+    
+    public AwsService(HttpTransport transport) {
+        this(transport, loadConfiguration());
+    }
+    
+    /**
+     * @param config Reads aws.bedrock.stream.url (streaming is disabled while it is empty)
+     *               and chat.max.response.tokens
+     */
+    public AwsService(HttpTransport transport, Properties config) {
+        this.objectMapper = JsonSupport.mapper();
+        this.transport = transport;
+        this.streamUrl = config.getProperty("aws.bedrock.stream.url", "").trim();
+        this.maxResponseTokens = parseInt(config.getProperty("chat.max.response.tokens"), DEFAULT_MAX_RESPONSE_TOKENS);
     }
     
     @Override
-    public String generateResponse(String query, String context) {
+    public String generateResponse(String systemPrompt, String userPrompt) {
         try {
             // This would call AWS Bedrock via API Gateway
             // For now, returning a mock response
-            LOG.info("Generating AI response for query: {}", query.substring(0, Math.min(query.length(), 50)));
-            
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("query", query);
-            requestBody.put("context", context);
+            LOG.info("Generating AI response for a prompt of {} characters", userPrompt.length());
             
-            // In a real implementation, this would call your API Gateway endpoint
-            // String apiUrl = getApiGatewayUrl() + "/chat";
-            // return callChatAPI(apiUrl, requestBody);
+            if (!streamUrl.isEmpty()) {
+                return generateResponseStream(systemPrompt, userPrompt, token -> { });
+            }
             
-            // Mock response for now
-            return "Based on the available documentation, " + generateMockResponse(query);
+            // Mock response while no streaming endpoint is configured
+            return "Based on the available documentation, " + generateMockResponse();
             
         } catch (Exception e) {
             LOG.error("Error generating AI response", e);
@@ -61,6 +86,40 @@ public class AwsService implements AwsServiceInterface {
         }
     }
     
+    @Override
+    public String generateResponseStream(String systemPrompt, String userPrompt, Consumer<String> onToken) {
+        if (streamUrl.isEmpty()) {
+            String response = generateResponse(systemPrompt, userPrompt);
+            onToken.accept(response);
+            return response;
+        }
+        
+        try {
+            HttpPost post = new HttpPost(streamUrl);
+            post.setHeader("Accept", EVENT_STREAM_CONTENT_TYPE);
+            post.setEntity(buildModelRequest(systemPrompt, userPrompt));
+            
+            try (CloseableHttpResponse response = transport.execute(post)) {
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                if (status < 200 || status >= 300 || entity == null) {
+                    throw new RuntimeException("Streaming API call failed with status: " + status);
+                }
+                
+                // Decode frames straight from the socket so tokens reach the caller as they arrive
+                BedrockStreamHandler handler = new BedrockStreamHandler(objectMapper.getFactory(), onToken);
+                try (InputStream body = entity.getContent()) {
+                    new EventStreamDecoder(MAX_EVENT_BYTES).decode(body, handler);
+                }
+                LOG.debug("Streamed {} response fragments", handler.getTokenCount());
+                return handler.getText();
+            }
+        } catch (IOException e) {
+            LOG.error("Error streaming AI response", e);
+            throw new RuntimeException("Failed to stream AI response", e);
+        }
+    }
+    
     @Override
     public boolean processDocument(DocumentProcessingRequest request) {
         try {
@@ -127,25 +186,57 @@ public class AwsService implements AwsServiceInterface {
         }
     }
     
-    private String generateMockResponse(String query) {
+    private String generateMockResponse() {
         String[] responses = {
-            "I found relevant information in the documentation that addresses your question about " + query + ".",
-            "Based on the knowledge base, here's what I can tell you about " + query + ":",
-            "The documentation contains several references to " + query + ". Here's a summary:",
-            "I've found some helpful information about " + query + " in the available resources."
+            "I found relevant information in the documentation that addresses your question.",
+            "Based on the knowledge base, here's what I can tell you:",
+            "The documentation contains several references to your question. Here's a summary:",
+            "I've found some helpful information about your question in the available resources."
         };
         
         return responses[(int) (Math.random() * responses.length)];
     }
     
+    /**
+     * Builds an Anthropic messages request for Bedrock, with the instructions in the
+     * system role and the prompt as the only user message. The JSON is generated
+     * straight into the connection's output stream when the request is sent.
+     */
+    private HttpEntity buildModelRequest(String systemPrompt, String userPrompt) {
+        EntityTemplate entity = new EntityTemplate(out ->
+            ChatJsonCodec.writeModelRequest(ANTHROPIC_VERSION, maxResponseTokens, systemPrompt, userPrompt, out));
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        return entity;
+    }
+    
+    private static Properties loadConfiguration() {
+        Properties config = new Properties();
+        try (InputStream input = AwsService.class.getResourceAsStream("/application.properties")) {
+            if (input != null) {
+                config.load(input);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not load AWS service configuration, using defaults", e);
+        }
+        return config;
+    }
+    
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
     private String callAPI(String url, Map<String, Object> requestBody) throws Exception {
         HttpPost post = new HttpPost(url);
-        post.setHeader("Content-Type", "application/json");
         
-        String jsonBody = objectMapper.writeValueAsString(requestBody);
-        post.setEntity(new StringEntity(jsonBody));
+        EntityTemplate entity = new EntityTemplate(out -> objectMapper.writeValue(out, requestBody));
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        post.setEntity(entity);
         
-        try (CloseableHttpResponse response = httpClient.execute(post)) {
+        try (CloseableHttpResponse response = transport.execute(post)) {
             String responseBody = EntityUtils.toString(response.getEntity());
             
             if (response.getStatusLine().getStatusCode() >= 200 && 
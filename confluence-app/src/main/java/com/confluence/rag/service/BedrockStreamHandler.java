@@ -0,0 +1,97 @@
+package com.confluence.rag.service;
+
+import com.confluence.rag.http.EventStreamDecoder;
+import com.confluence.rag.http.EventStreamMessage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Turns the events of a Bedrock InvokeModelWithResponseStream response into text tokens.
+ *
+ * Every "chunk" event carries {"bytes": "&lt;base64 model JSON&gt;"}. The payload is
+ * parsed in place from the decoder's buffer, the base64 value is decoded by the
+ * parser, and the model JSON is scanned for its text field: delta.text for
+ * Anthropic messages, outputText for Titan, completion and generation for older
+ * text completion models.
+ */
+public class BedrockStreamHandler implements EventStreamDecoder.MessageHandler {
+    
+    private static final String CHUNK_EVENT = "chunk";
+    
+    private final JsonFactory jsonFactory;
+    private final Consumer<String> onToken;
+    private final StringBuilder text = new StringBuilder();
+    private int tokens;
+    
+    /**
+     * @param onToken Called on the reading thread for every text fragment as it arrives
+     */
+    public BedrockStreamHandler(JsonFactory jsonFactory, Consumer<String> onToken) {
+        this.jsonFactory = jsonFactory;
+        this.onToken = onToken;
+    }
+    
+    @Override
+    public void onMessage(EventStreamMessage message) throws IOException {
+        if (!message.isEvent()) {
+            throw new IOException("Bedrock stream error " + message.getErrorType() + ": " + message.getPayloadAsString());
+        }
+        if (!message.isEventType(CHUNK_EVENT)) {
+            return;
+        }
+        
+        byte[] modelJson = null;
+        try (JsonParser parser = jsonFactory.createParser(message.getBuffer(), message.getPayloadOffset(), message.getPayloadLength())) {
+            while (parser.nextToken() != null) {
+                if (parser.currentToken() == JsonToken.FIELD_NAME && "bytes".equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    modelJson = parser.getBinaryValue();
+                    break;
+                }
+            }
+        }
+        if (modelJson == null) {
+            return;
+        }
+        
+        String fragment = extractText(modelJson);
+        if (fragment != null && !fragment.isEmpty()) {
+            text.append(fragment);
+            tokens++;
+            onToken.accept(fragment);
+        }
+    }
+    
+    /**
+     * Returns the text received so far
+     */
+    public String getText() {
+        return text.toString();
+    }
+    
+    public int getTokenCount() {
+        return tokens;
+    }
+    
+    private String extractText(byte[] modelJson) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(modelJson)) {
+            while (parser.nextToken() != null) {
+                if (parser.currentToken() != JsonToken.FIELD_NAME) {
+                    continue;
+                }
+                String field = parser.getCurrentName();
+                boolean textField = "outputText".equals(field) || "completion".equals(field) || "generation".equals(field)
+                    || ("text".equals(field) && "delta".equals(parser.getParsingContext().getParent().getCurrentName()));
+                if (textField && parser.nextToken() == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+            }
+        }
+        return null;
+    }
+}
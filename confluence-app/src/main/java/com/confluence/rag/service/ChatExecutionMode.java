@@ -0,0 +1,32 @@
+package com.confluence.rag.service;
+
+/**
+ * Execution modes for the chat request pipeline
+ */
+public enum ChatExecutionMode {
+    
+    /**
+     * Requests run on a fixed-size platform thread pool; sub-steps run sequentially
+     */
+    POOL,
+    
+    /**
+     * Every request runs on its own virtual thread and sub-steps are forked onto
+     * further virtual threads (requires a Java 21+ runtime, falls back to POOL otherwise)
+     */
+    VIRTUAL;
+    
+    /**
+     * Parses a configured mode name, defaulting to POOL for unknown or empty values
+     */
+    public static ChatExecutionMode fromConfig(String value) {
+        if (value != null) {
+            for (ChatExecutionMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return POOL;
+    }
+}
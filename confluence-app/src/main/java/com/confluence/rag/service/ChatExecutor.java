@@ -0,0 +1,163 @@
+package com.confluence.rag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs chat requests off the container threads.
+ * 
+ * In POOL mode requests share a fixed platform thread pool. In VIRTUAL mode each
+ * request gets its own virtual thread; the number of carrier threads is controlled
+ * by the JVM (-Djdk.virtualThreadScheduler.parallelism). In both modes the number
+ * of in-flight requests is bounded by a semaphore, and requests over the limit are
+ * rejected immediately instead of queueing. In POOL mode the limit is capped at the
+ * number of pool threads, so an admitted request always has a thread to run on.
+ * Calls to remote dependencies run on a separate I/O pool of bounded size, which
+ * refuses calls instead of queueing them once all its threads are busy.
+ */
+public class ChatExecutor {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ChatExecutor.class);
+    
+    private final ChatExecutionMode mode;
+    private final ExecutorService executor;
+    private final ExecutorService ioExecutor;
+    private final Semaphore permits;
+    private final int maxConcurrentRequests;
+    private final AtomicInteger rejectedRequests = new AtomicInteger();
+    
+    /**
+     * @param ioThreads Threads for calls to remote dependencies in POOL mode
+     */
+    public ChatExecutor(ChatExecutionMode requestedMode, int poolThreads, int maxConcurrentRequests, int ioThreads) {
+        ExecutorService virtualExecutor = requestedMode == ChatExecutionMode.VIRTUAL ? createVirtualExecutor() : null;
+        if (virtualExecutor != null) {
+            this.mode = ChatExecutionMode.VIRTUAL;
+            this.executor = virtualExecutor;
+            this.ioExecutor = virtualExecutor;
+        } else {
+            this.mode = ChatExecutionMode.POOL;
+            this.executor = createPlatformExecutor(poolThreads);
+            this.ioExecutor = createIoExecutor(Math.max(1, ioThreads));
+            if (maxConcurrentRequests > poolThreads) {
+                logger.info("Limiting concurrent chat requests to the {} pool threads instead of {}",
+                            poolThreads, maxConcurrentRequests);
+                maxConcurrentRequests = poolThreads;
+            }
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.permits = new Semaphore(maxConcurrentRequests);
+        logger.info("Chat executor started in {} mode (max {} concurrent requests)", mode, maxConcurrentRequests);
+    }
+    
+    /**
+     * Submits a chat request
+     * @throws RejectedExecutionException if the concurrency limit is reached or the executor is shut down
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (!permits.tryAcquire()) {
+            rejectedRequests.incrementAndGet();
+            throw new RejectedExecutionException("Chat concurrency limit of " + maxConcurrentRequests + " reached");
+        }
+        try {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(task, executor);
+            future.whenComplete((result, error) -> permits.release());
+            return future;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens a scope for the parallel sub-steps of the current request. In POOL mode
+     * the scope is sequential so that pool threads never wait on work queued behind them.
+     */
+    public ChatTaskScope openScope() {
+        return new ChatTaskScope(mode == ChatExecutionMode.VIRTUAL ? executor : null);
+    }
+    
+    /**
+     * Executor for time-bounded calls to remote dependencies. Requests wait on these
+     * calls with a timeout, so they must not share the request pool in POOL mode.
+     */
+    public ExecutorService getIoExecutor() {
+        return ioExecutor;
+    }
+    
+    public ChatExecutionMode getMode() {
+        return mode;
+    }
+    
+    public int getInFlightRequests() {
+        return maxConcurrentRequests - permits.availablePermits();
+    }
+    
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+    
+    public int getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+    
+    public void shutdown() {
+        if (ioExecutor != executor) {
+            ioExecutor.shutdownNow();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static ExecutorService createPlatformExecutor(int threads) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "rag-chat-worker-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private static ExecutorService createIoExecutor(int threads) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "rag-chat-io-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+    
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively, as the plugin
+     * is compiled for Java 11 but may run on a newer JVM
+     */
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not available on Java {}, falling back to POOL mode",
+                        System.getProperty("java.version"));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.confluence.rag.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Structured scope for the parallel sub-steps of a single chat request.
+ * Subtasks forked in a scope never outlive it: closing the scope cancels
+ * (and interrupts) every subtask that has not completed yet.
+ * 
+ * Without an executor the scope is sequential: subtasks are deferred and run on
+ * the joining thread, so a subtask that is never joined never runs.
+ */
+public class ChatTaskScope implements AutoCloseable {
+    
+    private final Executor executor;
+    private final List<Subtask<?>> subtasks = new ArrayList<>();
+    
+    /**
+     * @param executor Executor for concurrent subtasks, or null for a sequential scope
+     */
+    ChatTaskScope(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Forks a subtask
+     */
+    public <T> Subtask<T> fork(Callable<T> task) {
+        Subtask<T> subtask = new Subtask<>(task);
+        synchronized (subtasks) {
+            subtasks.add(subtask);
+        }
+        if (executor != null) {
+            executor.execute(subtask);
+        }
+        return subtask;
+    }
+    
+    public boolean isConcurrent() {
+        return executor != null;
+    }
+    
+    /**
+     * Cancels all subtasks that are still running
+     */
+    @Override
+    public void close() {
+        synchronized (subtasks) {
+            for (Subtask<?> subtask : subtasks) {
+                subtask.cancel(true);
+            }
+            subtasks.clear();
+        }
+    }
+    
+    /**
+     * Handle to a forked subtask
+     */
+    public static class Subtask<T> extends FutureTask<T> {
+        
+        Subtask(Callable<T> task) {
+            super(task);
+        }
+        
+        /**
+         * Waits for the subtask and returns its result, rethrowing failures unchecked
+         */
+        public T join() {
+            // Runs a deferred subtask inline; a no-op if it already ran or is running elsewhere
+            run();
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new CompletionException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(true);
+                throw new CancellationException("Interrupted while waiting for subtask");
+            }
+        }
+    }
+}
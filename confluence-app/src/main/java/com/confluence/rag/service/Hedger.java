@@ -0,0 +1,157 @@
+package com.confluence.rag.service;
+
+import com.confluence.rag.resilience.CallGuard;
+import com.confluence.rag.resilience.CallRejectedException;
+import com.confluence.rag.util.DeadlineExceededException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs calls to a slow dependency within a time budget and hedges them: if the
+ * first attempt has not answered after the dependency's observed p95 latency, a
+ * second attempt is started and whichever succeeds first wins. Attempts still
+ * running when the call returns are cancelled.
+ *
+ * Each attempt passes the dependency's call guard on its own and holds its permits
+ * until it actually ends. Cancelling cannot stop blocking I/O, so an attempt the
+ * call has given up on keeps counting against the dependency's limits while it runs.
+ */
+public class Hedger {
+    
+    private static final Logger logger = LoggerFactory.getLogger(Hedger.class);
+    
+    private final String name;
+    private final ExecutorService executor;
+    private final CallGuard guard;
+    private final LatencyTracker latencies;
+    private final boolean hedgingEnabled;
+    private final long minHedgeDelayMillis;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    
+    /**
+     * @param name Dependency name used in logs and errors
+     * @param executor Executor running the attempts
+     * @param guard Guard every attempt has to pass, or null
+     * @param hedgePercentile Latency percentile after which a second attempt is started
+     */
+    public Hedger(String name, ExecutorService executor, CallGuard guard, boolean hedgingEnabled, 
+                  double hedgePercentile, long minHedgeDelayMillis) {
+        this.name = name;
+        this.executor = executor;
+        this.guard = guard;
+        this.latencies = new LatencyTracker(256, hedgePercentile, minHedgeDelayMillis * 4);
+        this.hedgingEnabled = hedgingEnabled;
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+    }
+    
+    /**
+     * Runs the call, returning its result or failing once the budget is used up
+     * @throws DeadlineExceededException if no attempt succeeded within the budget
+     * @throws CallRejectedException if the guard or the executor refused the first attempt
+     */
+    public <T> T call(Supplier<T> call, long budgetMillis) {
+        calls.incrementAndGet();
+        if (budgetMillis <= 0) {
+            timeouts.incrementAndGet();
+            throw new DeadlineExceededException("No time left for " + name);
+        }
+        
+        long start = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        Future<?> primary;
+        try {
+            primary = executor.submit(() -> attempt(call, result, running));
+        } catch (RejectedExecutionException e) {
+            throw new CallRejectedException(name, CallRejectedException.Reason.BULKHEAD_FULL);
+        }
+        Future<?> hedge = null;
+        
+        try {
+            long hedgeDelay = getHedgeDelayMillis();
+            if (hedgingEnabled && hedgeDelay < budgetMillis) {
+                try {
+                    return result.get(hedgeDelay, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    hedges.incrementAndGet();
+                    running.incrementAndGet();
+                    logger.debug("{} call slower than {}ms, sending hedged request", name, hedgeDelay);
+                    try {
+                        hedge = executor.submit(() -> attempt(call, result, running));
+                    } catch (RejectedExecutionException rejected) {
+                        // No thread left for a second attempt; keep waiting for the first
+                        if (running.decrementAndGet() == 0) {
+                            result.completeExceptionally(new CallRejectedException(name, CallRejectedException.Reason.BULKHEAD_FULL));
+                        }
+                    }
+                }
+            }
+            long remaining = budgetMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return result.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+            
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            throw new DeadlineExceededException(name + " did not answer within " + budgetMillis + "ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CompletionException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException(name + " call interrupted");
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+    
+    private <T> void attempt(Supplier<T> call, CompletableFuture<T> result, AtomicInteger running) {
+        long start = System.nanoTime();
+        try {
+            T value = guard != null ? guard.call(call) : call.get();
+            latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            result.complete(value);
+        } catch (RuntimeException | Error e) {
+            // Only fail the call once every attempt has failed
+            if (running.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+    
+    public long getHedgeDelayMillis() {
+        return Math.max(minHedgeDelayMillis, latencies.getPercentileMillis());
+    }
+    
+    public long getCallCount() {
+        return calls.get();
+    }
+    
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+    
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+}
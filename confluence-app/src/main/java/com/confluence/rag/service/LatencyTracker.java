@@ -0,0 +1,56 @@
+package com.confluence.rag.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks a percentile over the most recent latency samples of a dependency.
+ * Samples go into a fixed ring; the percentile is recomputed every few samples
+ * rather than on every read.
+ */
+public class LatencyTracker {
+    
+    private static final int RECOMPUTE_INTERVAL = 16;
+    
+    private final AtomicLongArray samples;
+    private final AtomicLong recorded = new AtomicLong();
+    private final double percentile;
+    private volatile long percentileMillis;
+    
+    /**
+     * @param windowSize Number of recent samples considered
+     * @param percentile Percentile to track, e.g. 0.95
+     * @param initialMillis Value reported until enough samples are recorded
+     */
+    public LatencyTracker(int windowSize, double percentile, long initialMillis) {
+        this.samples = new AtomicLongArray(windowSize);
+        this.percentile = percentile;
+        this.percentileMillis = initialMillis;
+    }
+    
+    public void record(long latencyMillis) {
+        long count = recorded.incrementAndGet();
+        samples.set((int) ((count - 1) % samples.length()), latencyMillis);
+        if (count >= RECOMPUTE_INTERVAL && count % RECOMPUTE_INTERVAL == 0) {
+            recompute((int) Math.min(count, samples.length()));
+        }
+    }
+    
+    public long getPercentileMillis() {
+        return percentileMillis;
+    }
+    
+    public long getSampleCount() {
+        return recorded.get();
+    }
+    
+    private void recompute(int size) {
+        long[] window = new long[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = samples.get(i);
+        }
+        Arrays.sort(window);
+        percentileMillis = window[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+    }
+}
@@ -1,13 +1,30 @@
 package com.confluence.rag.service;
 
+import com.confluence.rag.api.AwsServiceInterface;
 import com.confluence.rag.api.RagServiceInterface;
+import com.confluence.rag.api.TokenCounter;
 import com.confluence.rag.model.ChatRequest;
 import com.confluence.rag.model.ChatResponse;
 import com.confluence.rag.model.DocumentProcessingRequest;
 import com.confluence.rag.model.DocumentProcessingResponse;
+import com.confluence.rag.security.ResponseBlockedException;
+import com.confluence.rag.security.ResponseGuard;
 import com.confluence.rag.security.SecurityValidator;
 import com.confluence.rag.security.SecurityMonitor;
 import com.confluence.rag.logging.S3Logger;
+import com.confluence.rag.context.AssembledContext;
+import com.confluence.rag.context.ContextAssembler;
+import com.confluence.rag.context.ContextChunk;
+import com.confluence.rag.context.ExtractiveAnswerer;
+import com.confluence.rag.embedding.HashingEmbeddingClient;
+import com.confluence.rag.embedding.MicroBatchingEmbedder;
+import com.confluence.rag.history.ConversationHistoryStore;
+import com.confluence.rag.http.HttpTransport;
+import com.confluence.rag.resilience.CallGuard;
+import com.confluence.rag.resilience.CallRejectedException;
+import com.confluence.rag.tokenizer.TokenizerFactory;
+import com.confluence.rag.util.Deadline;
+import com.confluence.rag.util.DeadlineExceededException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +33,12 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.InputStream;
 import java.io.IOException;
 
@@ -30,13 +52,129 @@ public class RagServiceSimple implements RagServiceInterface {
     private final SecurityValidator securityValidator;
     private final SecurityMonitor securityMonitor;
     private final S3Logger s3Logger;
+    private final ChatExecutor chatExecutor;
+    private final TokenCounter tokenCounter;
+    private final ContextAssembler contextAssembler;
+    private final ConversationHistoryStore historyStore;
+    private final MicroBatchingEmbedder embedder;
+    private final Hedger retrievalHedger;
+    private final Hedger generationHedger;
+    private final CallGuard retrievalGuard;
+    private final CallGuard generationGuard;
+    private final AwsServiceInterface modelService;
+    private final ExtractiveAnswerer extractiveAnswerer;
+    private final AnswerMode answerMode;
+    private final long fallbackMinRemainingMillis;
+    private final AtomicLong extractiveFallbacks = new AtomicLong();
+    private final AtomicLong blockedResponses = new AtomicLong();
+    private final long chatTimeoutMillis;
+    private final double retrievalBudgetShare;
+    private final SingleFlight<String, List<ContextChunk>> retrievalFlights = new SingleFlight<>();
+    private final SingleFlight<String, String> answerFlights = new SingleFlight<>();
+    
+    private static final int DEFAULT_CHAT_EXECUTOR_THREADS = 16;
+    private static final int DEFAULT_MAX_CONCURRENT_CHATS = 2000;
+    private static final int DEFAULT_CHAT_IO_THREADS = 200;
+    private static final int DEFAULT_MAX_CONTEXT_TOKENS = 4000;
+    private static final int DEFAULT_CONTEXT_CANDIDATES = 10;
+    private static final double DEFAULT_MMR_LAMBDA = 0.7;
+    private static final int DEFAULT_CHUNK_MAX_TOKENS = 200;
+    private static final int CHUNK_OVERLAP_CHARS = 100;
+    private static final int DEFAULT_HISTORY_MAX_MESSAGES = 10;
+    private static final int DEFAULT_HISTORY_MAX_MESSAGE_CHARS = 2000;
+    private static final int DEFAULT_HISTORY_MAX_MEMORY_MB = 64;
+    private static final int DEFAULT_HISTORY_IDLE_MINUTES = 30;
+    private static final double DEFAULT_HISTORY_CONTEXT_SHARE = 0.25;
+    private static final int DEFAULT_CHAT_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_ANSWER_MAX_SENTENCES = 3;
+    private static final int DEFAULT_FALLBACK_MIN_REMAINING_MS = 1000;
+    private static final int DEFAULT_EMBEDDING_DIMENSIONS = 256;
+    private static final int DEFAULT_EMBEDDING_BATCH_SIZE = 32;
+    private static final int DEFAULT_EMBEDDING_LINGER_MS = 10;
+    private static final int DEFAULT_EMBEDDING_BATCHES_IN_FLIGHT = 4;
+    private static final double DEFAULT_RETRIEVAL_BUDGET_SHARE = 0.3;
+    private static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    private static final int DEFAULT_HEDGE_MIN_DELAY_MS = 50;
+    
+    // Time kept back from generation for response validation and logging
+    private static final long VALIDATION_RESERVE_MS = 50;
     
     public RagServiceSimple() {
         this.config = new Properties();
-        this.securityValidator = new SecurityValidator();
+        loadConfiguration();
+        int maxContextTokens = getIntProperty("chat.max.context.length", DEFAULT_MAX_CONTEXT_TOKENS);
+        this.tokenCounter = TokenizerFactory.fromResource(config.getProperty("chat.tokenizer.vocabulary"));
+        this.securityValidator = new SecurityValidator(tokenCounter, maxContextTokens);
         this.securityMonitor = new SecurityMonitor();
         this.s3Logger = new S3Logger();
-        loadConfiguration();
+        this.chatExecutor = createChatExecutor();
+        this.contextAssembler = new ContextAssembler(tokenCounter, maxContextTokens,
+            getDoubleProperty("chat.context.mmr.lambda", DEFAULT_MMR_LAMBDA),
+            getDoubleProperty("chat.history.context.share", DEFAULT_HISTORY_CONTEXT_SHARE));
+        this.historyStore = new ConversationHistoryStore(
+            getIntProperty("chat.history.max.messages", DEFAULT_HISTORY_MAX_MESSAGES),
+            getIntProperty("chat.history.max.message.chars", DEFAULT_HISTORY_MAX_MESSAGE_CHARS),
+            getIntProperty("chat.history.max.memory.mb", DEFAULT_HISTORY_MAX_MEMORY_MB) * 1024L * 1024L,
+            getIntProperty("chat.history.idle.timeout.minutes", DEFAULT_HISTORY_IDLE_MINUTES) * 60_000L);
+        this.chatTimeoutMillis = getIntProperty("chat.request.timeout.ms", DEFAULT_CHAT_TIMEOUT_MS);
+        this.retrievalBudgetShare = getDoubleProperty("chat.deadline.retrieval.share", DEFAULT_RETRIEVAL_BUDGET_SHARE);
+        this.retrievalGuard = CallGuard.fromConfig("retrieval", config);
+        this.generationGuard = CallGuard.fromConfig("generation", config);
+        this.retrievalHedger = createHedger("retrieval", retrievalGuard);
+        this.generationHedger = createHedger("generation", generationGuard);
+        this.answerMode = AnswerMode.fromConfig(config.getProperty("chat.answer.mode"));
+        this.modelService = answerMode == AnswerMode.GENERATIVE ? new AwsService() : null;
+        this.extractiveAnswerer = new ExtractiveAnswerer(getIntProperty("chat.answer.max.sentences", DEFAULT_ANSWER_MAX_SENTENCES));
+        this.fallbackMinRemainingMillis = getIntProperty("chat.answer.fallback.min.remaining.ms", DEFAULT_FALLBACK_MIN_REMAINING_MS);
+        this.embedder = new MicroBatchingEmbedder(
+            new HashingEmbeddingClient(getIntProperty("embedding.dimensions", DEFAULT_EMBEDDING_DIMENSIONS)),
+            getIntProperty("embedding.batch.max.size", DEFAULT_EMBEDDING_BATCH_SIZE),
+            getIntProperty("embedding.batch.linger.ms", DEFAULT_EMBEDDING_LINGER_MS),
+            getIntProperty("embedding.batch.max.in.flight", DEFAULT_EMBEDDING_BATCHES_IN_FLIGHT));
+    }
+    
+    /**
+     * Creates the dedicated executor that runs chat requests off the container threads
+     */
+    private ChatExecutor createChatExecutor() {
+        return new ChatExecutor(
+            ChatExecutionMode.fromConfig(config.getProperty("chat.execution.mode")),
+            getIntProperty("chat.executor.threads", DEFAULT_CHAT_EXECUTOR_THREADS),
+            getIntProperty("chat.max.concurrent.requests", DEFAULT_MAX_CONCURRENT_CHATS),
+            getIntProperty("chat.io.max.threads", DEFAULT_CHAT_IO_THREADS));
+    }
+    
+    private Hedger createHedger(String name, CallGuard guard) {
+        return new Hedger(name, chatExecutor.getIoExecutor(), guard,
+            Boolean.parseBoolean(config.getProperty("chat.hedge.enabled", "true")),
+            getDoubleProperty("chat.hedge.percentile", DEFAULT_HEDGE_PERCENTILE),
+            getIntProperty("chat.hedge.min.delay.ms", DEFAULT_HEDGE_MIN_DELAY_MS));
+    }
+    
+    private double getDoubleProperty(String key, double defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value '{}' for {}, using default {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    private int getIntProperty(String key, int defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value '{}' for {}, using default {}", value, key, defaultValue);
+            return defaultValue;
+        }
     }
     
     private void loadConfiguration() {
@@ -54,9 +192,23 @@ public class RagServiceSimple implements RagServiceInterface {
     
     @Override
     public ChatResponse processChat(ChatRequest request) {
+        return processChat(request, Deadline.after(chatTimeoutMillis));
+    }
+    
+    public ChatResponse processChat(ChatRequest request, Deadline deadline) {
+        return processChat(request, null, null, deadline);
+    }
+    
+    /**
+     * Processes a chat request; retrieval and generation only get the time left until the deadline.
+     * Address blocks are keyed on the server-side remote address and skipped when it is unknown;
+     * conversation history belongs to the server-side user and is not kept for anonymous requests.
+     */
+    public ChatResponse processChat(ChatRequest request, String remoteUser, String remoteAddress, Deadline deadline) {
         long startTime = System.currentTimeMillis();
         String sessionId = (request != null) ? request.getSessionId() : "unknown";
-        String ipAddress = (request != null) ? request.getUserId() : "unknown"; // Using userId as IP placeholder
+        String clientAddress = (remoteAddress != null && !remoteAddress.isEmpty()) ? remoteAddress : null;
+        String ipAddress = (clientAddress != null) ? clientAddress : "unknown";
         String userQuery = (request != null) ? request.getMessage() : "";
         
         // Log the incoming request
@@ -77,9 +229,17 @@ public class RagServiceSimple implements RagServiceInterface {
             return ChatResponse.error(errorMessage, sessionId);
         }
         
+        // Check if the address is blocked, which also covers clients switching sessions
+        if (securityMonitor.isAddressBlocked(clientAddress)) {
+            logger.warn("Blocked address {} attempted to send message (session {})", ipAddress, sessionId);
+            String errorMessage = "Von Ihrer Adresse gehen derzeit zu viele unzulässige Anfragen aus. Bitte versuchen Sie es später erneut.";
+            s3Logger.logUserQuery(sessionId, ipAddress, userQuery, errorMessage, true, "Address blocked");
+            return ChatResponse.error(errorMessage, sessionId);
+        }
+        
         // Check rate limiting
         if (securityMonitor.isRateLimited(sessionId)) {
-            securityMonitor.recordSecurityIncident(sessionId, ipAddress, SecurityMonitor.SecurityIncidentType.RATE_LIMIT_EXCEEDED, "Too many requests");
+            securityMonitor.recordSecurityIncident(sessionId, clientAddress, SecurityMonitor.SecurityIncidentType.RATE_LIMIT_EXCEEDED, "Too many requests");
             String errorMessage = "Sie senden zu viele Anfragen. Bitte warten Sie einen Moment, bevor Sie eine neue Frage stellen.";
             s3Logger.logUserQuery(sessionId, ipAddress, userQuery, errorMessage, true, "Rate limit exceeded");
             s3Logger.logSecurityIncident(sessionId, ipAddress, "RATE_LIMIT_EXCEEDED", "Too many requests", userQuery);
@@ -89,76 +249,204 @@ public class RagServiceSimple implements RagServiceInterface {
         // Record the request for rate limiting
         securityMonitor.recordRequest(sessionId);
         
-        // SECURITY VALIDATION - Prevent jailbreaking and ensure topic relevance
-        SecurityValidator.ValidationResult validation = securityValidator.validateQuery(request.getMessage());
-        if (!validation.isValid()) {
-            logger.warn("Security validation failed for query: {}", request.getMessage());
-            
-            // Determine incident type based on validation failure
-            SecurityMonitor.SecurityIncidentType incidentType = SecurityMonitor.SecurityIncidentType.SUSPICIOUS_PATTERN;
-            String securityDetails = validation.getErrorMessage();
+        // Sanitizing has no side effects, so retrieval can start while the query is still being validated
+        String sanitizedQuery = securityValidator.sanitizeQuery(request.getMessage());
+        String flightKey = coalescingKey(sanitizedQuery, request.getSpaceKey());
+        
+        try (ChatTaskScope scope = chatExecutor.openScope()) {
+            // SECURITY VALIDATION - Prevent jailbreaking and ensure topic relevance
+            ChatTaskScope.Subtask<SecurityValidator.ValidationResult> validationTask =
+                scope.fork(() -> securityValidator.validateQuery(request.getMessage()));
+            int candidates = getIntProperty("chat.context.candidates", DEFAULT_CONTEXT_CANDIDATES);
+            ChatTaskScope.Subtask<List<ContextChunk>> retrieval = scope.fork(
+                () -> retrievalFlights.execute(flightKey, () -> retrievalHedger.call(
+                    () -> retrieveChunks(sanitizedQuery, candidates), deadline.budgetMillis(retrievalBudgetShare)), deadline));
             
-            if (validation.getErrorMessage().contains("nicht erlaubte Inhalte")) {
-                incidentType = SecurityMonitor.SecurityIncidentType.JAILBREAK_ATTEMPT;
-                securityDetails = "Jailbreak attempt detected";
-            } else if (validation.getErrorMessage().contains("nicht mit Ihrer Wissensdatenbank zusammenhängen")) {
-                incidentType = SecurityMonitor.SecurityIncidentType.OFF_TOPIC_QUERY;
-                securityDetails = "Off-topic query";
+            SecurityValidator.ValidationResult validation = validationTask.join();
+            if (!validation.isValid()) {
+                logger.warn("Security validation failed for query: {}", request.getMessage());
+                
+                // Determine incident type based on validation failure
+                SecurityMonitor.SecurityIncidentType incidentType = SecurityMonitor.SecurityIncidentType.SUSPICIOUS_PATTERN;
+                String securityDetails = validation.getErrorMessage();
+                
+                if (validation.getErrorMessage().contains("nicht erlaubte Inhalte")) {
+                    incidentType = SecurityMonitor.SecurityIncidentType.JAILBREAK_ATTEMPT;
+                    securityDetails = "Jailbreak attempt detected (rule " + validation.getMatchedRule() + ")";
+                } else if (validation.getErrorMessage().contains("nicht mit Ihrer Wissensdatenbank zusammenhängen")) {
+                    incidentType = SecurityMonitor.SecurityIncidentType.OFF_TOPIC_QUERY;
+                    securityDetails = "Off-topic query";
+                }
+                
+                securityMonitor.recordSecurityIncident(sessionId, clientAddress, incidentType, validation.getErrorMessage());
+                
+                // Log security violation with full details
+                s3Logger.logUserQuery(sessionId, ipAddress, userQuery, validation.getErrorMessage(), true, securityDetails);
+                s3Logger.logSecurityIncident(sessionId, ipAddress, incidentType.name(), 
+                                           validation.getErrorMessage(), userQuery);
+                
+                return ChatResponse.error(validation.getErrorMessage(), sessionId);
             }
             
-            securityMonitor.recordSecurityIncident(sessionId, ipAddress, incidentType, validation.getErrorMessage());
-            
-            // Log security violation with full details
-            s3Logger.logUserQuery(sessionId, ipAddress, userQuery, validation.getErrorMessage(), true, securityDetails);
-            s3Logger.logSecurityIncident(sessionId, ipAddress, incidentType.name(), 
-                                       validation.getErrorMessage(), userQuery);
+            logger.info("Processing sanitized chat request: {}", sanitizedQuery);
             
-            return ChatResponse.error(validation.getErrorMessage(), sessionId);
+            try {
+                // Wait for the retrieval leg forked alongside validation
+                List<ContextChunk> chunks = retrieval.join();
+                
+                // Select relevant prior turns and non-redundant chunks within the context token budget
+                List<ContextChunk> history = historyStore.relevantTurns(remoteUser, sessionId, sanitizedQuery);
+                AssembledContext context = contextAssembler.assemble(sanitizedQuery, chunks, history);
+                
+                // Identical questions in flight share one generation, unless the session's history shapes the answer
+                String validatedResponse = context.includesHistory()
+                    ? generateValidatedResponse(sanitizedQuery, context, deadline)
+                    : answerFlights.execute(flightKey, () -> generateValidatedResponse(sanitizedQuery, context, deadline), deadline);
+                
+                historyStore.append(remoteUser, sessionId, ConversationHistoryStore.Role.USER, sanitizedQuery);
+                historyStore.append(remoteUser, sessionId, ConversationHistoryStore.Role.ASSISTANT, validatedResponse);
+                
+                // Calculate response time
+                long responseTime = System.currentTimeMillis() - startTime;
+                
+                // Log successful interaction
+                s3Logger.logUserQuery(sessionId, ipAddress, userQuery, validatedResponse, false, 
+                                    "Query processed successfully in " + responseTime + "ms");
+                
+                logger.info("Successfully processed secure chat request in {}ms ({} context tokens)", 
+                           responseTime, context.getTokenCount());
+                ChatResponse response = new ChatResponse(validatedResponse, sessionId);
+                response.setSources(context.getSourceIds());
+                return response;
+                
+            } catch (DeadlineExceededException e) {
+                logger.warn("Chat request for session {} timed out: {}", sessionId, e.getMessage());
+                
+                String errorMessage = "Die Beantwortung Ihrer Frage hat zu lange gedauert. Bitte versuchen Sie es in einem Moment erneut.";
+                s3Logger.logUserQuery(sessionId, ipAddress, userQuery, errorMessage, false, "Timeout: " + e.getMessage());
+                
+                return ChatResponse.error(errorMessage, sessionId);
+                
+            } catch (CallRejectedException e) {
+                logger.warn("Chat request for session {} shed: {}", sessionId, e.getMessage());
+                
+                String errorMessage = "Der Chatbot ist derzeit ausgelastet. Bitte versuchen Sie es in einem Moment erneut.";
+                s3Logger.logUserQuery(sessionId, ipAddress, userQuery, errorMessage, false, "Overload: " + e.getReason());
+                
+                return ChatResponse.error(errorMessage, sessionId);
+                
+            } catch (Exception e) {
+                logger.error("Error processing chat request", e);
+                securityMonitor.recordSecurityIncident(sessionId, clientAddress, SecurityMonitor.SecurityIncidentType.SYSTEM_MANIPULATION_ATTEMPT, "Processing error: " + e.getMessage());
+                
+                String errorMessage = "Entschuldigung, aber ich bin auf einen Fehler gestoßen, während ich Ihre Frage bearbeitet habe. Bitte versuchen Sie es erneut oder wenden Sie sich an Ihren Administrator.";
+                
+                // Log system error
+                s3Logger.logUserQuery(sessionId, ipAddress, userQuery, errorMessage, true, "System error: " + e.getMessage());
+                s3Logger.logSecurityIncident(sessionId, ipAddress, "SYSTEM_ERROR", 
+                                           "Processing error: " + e.getMessage(), userQuery);
+                
+                return ChatResponse.error(errorMessage, sessionId);
+            }
         }
+    }
+    
+    /**
+     * Generates and validates the answer for an assembled context
+     */
+    private String generateValidatedResponse(String sanitizedQuery, AssembledContext context, Deadline deadline) {
+        String responseText = answerMode == AnswerMode.GENERATIVE
+            ? generateModelResponse(sanitizedQuery, context, deadline)
+            : extractiveAnswerer.answer(sanitizedQuery, context.getChunks());
         
-        // Sanitize the query
-        String sanitizedQuery = securityValidator.sanitizeQuery(request.getMessage());
-        logger.info("Processing sanitized chat request: {}", sanitizedQuery);
+        // Validate the response to ensure it doesn't contain inappropriate content
+        return securityValidator.validateResponse(responseText);
+    }
+    
+    /**
+     * Asks the language model, degrading to an extractive answer while the model's
+     * breaker is open or too little of the deadline is left for a model call
+     */
+    private String generateModelResponse(String sanitizedQuery, AssembledContext context, Deadline deadline) {
+        if (generationGuard.isOpen() || deadline.remainingMillis() < fallbackMinRemainingMillis) {
+            return extractiveFallback(sanitizedQuery, context, generationGuard.isOpen() ? "circuit open" : "deadline");
+        }
+        
+        // Security instructions go in the system role, the context and question in the user message
+        String systemPrompt = securityValidator.createSystemPrompt();
+        String userPrompt = securityValidator.createUserPrompt(sanitizedQuery, context.getText());
         
         try {
-            // Search documents with sanitized query
-            List<String> documents = searchDocuments(sanitizedQuery, 3);
-            String context = buildContext(documents);
-            
-            // Create secure prompt that prevents jailbreaking
-            String securePrompt = securityValidator.createSecurePrompt(sanitizedQuery, context);
-            
-            // Generate response with security constraints
-            String responseText = generateSecureResponse(sanitizedQuery, context);
-            
-            // Validate the response to ensure it doesn't contain inappropriate content
-            String validatedResponse = securityValidator.validateResponse(responseText);
-            
-            // Calculate response time
-            long responseTime = System.currentTimeMillis() - startTime;
-            
-            // Log successful interaction
-            s3Logger.logUserQuery(sessionId, ipAddress, userQuery, validatedResponse, false, 
-                                "Query processed successfully in " + responseTime + "ms");
-            
-            logger.info("Successfully processed secure chat request in {}ms", responseTime);
-            return new ChatResponse(validatedResponse, sessionId);
-            
-        } catch (Exception e) {
-            logger.error("Error processing chat request", e);
-            securityMonitor.recordSecurityIncident(sessionId, ipAddress, SecurityMonitor.SecurityIncidentType.SYSTEM_MANIPULATION_ATTEMPT, "Processing error: " + e.getMessage());
-            
-            String errorMessage = "Entschuldigung, aber ich bin auf einen Fehler gestoßen, während ich Ihre Frage bearbeitet habe. Bitte versuchen Sie es erneut oder wenden Sie sich an Ihren Administrator.";
-            
-            // Log system error
-            s3Logger.logUserQuery(sessionId, ipAddress, userQuery, errorMessage, true, "System error: " + e.getMessage());
-            s3Logger.logSecurityIncident(sessionId, ipAddress, "SYSTEM_ERROR", 
-                                       "Processing error: " + e.getMessage(), userQuery);
-            
-            return ChatResponse.error(errorMessage, sessionId);
+            // Generate response with security constraints, keeping time back for validation
+            return generationHedger.call(
+                () -> streamModelResponse(systemPrompt, userPrompt),
+                deadline.remainingMillis() - VALIDATION_RESERVE_MS);
+        } catch (CallRejectedException e) {
+            if (e.getReason() != CallRejectedException.Reason.CIRCUIT_OPEN) {
+                throw e;
+            }
+            return extractiveFallback(sanitizedQuery, context, "circuit open");
+        } catch (DeadlineExceededException e) {
+            return extractiveFallback(sanitizedQuery, context, "model timeout");
+        }
+    }
+    
+    /**
+     * Streams the model's answer through a response guard, which stops reading as soon
+     * as a forbidden phrase appears instead of waiting for the full text. A blocked
+     * answer is a successful call as far as the guard and hedger are concerned.
+     */
+    private String streamModelResponse(String systemPrompt, String userPrompt) {
+        ResponseGuard guard = securityValidator.newResponseGuard(null);
+        try {
+            return modelService.generateResponseStream(systemPrompt, userPrompt, guard);
+        } catch (ResponseBlockedException e) {
+            blockedResponses.incrementAndGet();
+            logger.warn("Model response stopped: {}", e.getViolation());
+            return e.getReplacement();
         }
     }
     
+    private String extractiveFallback(String sanitizedQuery, AssembledContext context, String reason) {
+        extractiveFallbacks.incrementAndGet();
+        logger.info("Answering extractively ({})", reason);
+        return extractiveAnswerer.answer(sanitizedQuery, context.getChunks());
+    }
+    
+    /**
+     * Builds the key under which concurrent identical questions are coalesced
+     */
+    private static String coalescingKey(String sanitizedQuery, String spaceKey) {
+        return (spaceKey != null ? spaceKey : "") + '\u0000' + sanitizedQuery.toLowerCase(Locale.ROOT);
+    }
+    
+    @Override
+    public CompletionStage<ChatResponse> processChatAsync(ChatRequest request) {
+        return processChatAsync(request, Deadline.after(chatTimeoutMillis));
+    }
+    
+    @Override
+    public CompletionStage<ChatResponse> processChatAsync(ChatRequest request, Deadline deadline) {
+        return processChatAsync(request, null, null, deadline);
+    }
+    
+    @Override
+    public CompletionStage<ChatResponse> processChatAsync(ChatRequest request, String remoteUser, String remoteAddress, Deadline deadline) {
+        try {
+            return chatExecutor.submit(() -> processChat(request, remoteUser, remoteAddress, deadline));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Chat request rejected: {}", e.getMessage());
+            String sessionId = (request != null) ? request.getSessionId() : "unknown";
+            return CompletableFuture.completedFuture(ChatResponse.error(
+                "Der Chatbot ist derzeit ausgelastet. Bitte versuchen Sie es in einem Moment erneut.", sessionId));
+        }
+    }
+    
+    @Override
+    public long getChatTimeoutMillis() {
+        return chatTimeoutMillis;
+    }
+    
     @Override
     public DocumentProcessingResponse processDocument(DocumentProcessingRequest request) {
         if (request == null || request.getContent() == null) {
@@ -173,14 +461,21 @@ public class RagServiceSimple implements RagServiceInterface {
             String content = request.getContent();
             List<String> chunks = chunkDocument(content);
             
-            for (int i = 0; i < chunks.size(); i++) {
-                String chunk = chunks.get(i);
-                // Simulate vector embedding and storage
-                logger.debug("Processing chunk {} of document {}", i + 1, request.getDocumentId());
+            // Chunks of all documents being ingested share embedding calls
+            List<CompletableFuture<float[]>> embeddings = new ArrayList<>(chunks.size());
+            for (String chunk : chunks) {
+                embeddings.add(embedder.embed(chunk));
+            }
+            for (int i = 0; i < embeddings.size(); i++) {
+                float[] vector = embeddings.get(i).join();
+                // Simulate vector storage
+                logger.debug("Embedded chunk {} of document {} ({} dimensions)", i + 1, request.getDocumentId(), vector.length);
             }
             
             logger.info("Successfully processed document: {}", request.getDocumentId());
-            return new DocumentProcessingResponse(true, request.getDocumentId(), "Dokument erfolgreich verarbeitet");
+            DocumentProcessingResponse response = new DocumentProcessingResponse(true, request.getDocumentId(), "Dokument erfolgreich verarbeitet");
+            response.setChunksProcessed(chunks.size());
+            return response;
             
         } catch (Exception e) {
             String docId = (request != null && request.getDocumentId() != null) ? request.getDocumentId() : "unknown";
@@ -194,27 +489,9 @@ public class RagServiceSimple implements RagServiceInterface {
         List<String> documents = new ArrayList<>();
         
         try {
-            // Mock relevant documents based on query keywords
-            if (query.toLowerCase().contains("aws") || query.toLowerCase().contains("cloud") || 
-                query.toLowerCase().contains("wolke") || query.toLowerCase().contains("dienst")) {
-                documents.add("AWS Best Practices und Richtlinien für Cloud-Bereitstellung...");
-                documents.add("Cloud-Sicherheitsüberlegungen und Empfehlungen...");
-            }
-            
-            if (query.toLowerCase().contains("confluence") || query.toLowerCase().contains("wiki")) {
-                documents.add("Confluence Benutzerhandbuch und Verwaltungstipps...");
-                documents.add("Wiki-Inhaltsverwaltung und Zusammenarbeitsfunktionen...");
-            }
-            
-            if (documents.isEmpty()) {
-                documents.add("Allgemeine Informationen und hilfreiche Ressourcen...");
+            for (ContextChunk chunk : retrieveChunks(query, maxResults)) {
+                documents.add(chunk.getText());
             }
-            
-            // Limit results
-            if (documents.size() > maxResults) {
-                documents = documents.subList(0, maxResults);
-            }
-            
         } catch (Exception e) {
             logger.error("Error searching documents", e);
             documents.add("Fehler beim Durchsuchen der Dokumente");
@@ -223,6 +500,36 @@ public class RagServiceSimple implements RagServiceInterface {
         return documents;
     }
     
+    /**
+     * Retrieves candidate chunks with their source ids for context assembly
+     */
+    private List<ContextChunk> retrieveChunks(String query, int maxResults) {
+        List<ContextChunk> chunks = new ArrayList<>();
+        
+        // Mock relevant documents based on query keywords
+        if (query.toLowerCase().contains("aws") || query.toLowerCase().contains("cloud") || 
+            query.toLowerCase().contains("wolke") || query.toLowerCase().contains("dienst")) {
+            chunks.add(new ContextChunk("aws-best-practices", "AWS Best Practices und Richtlinien für Cloud-Bereitstellung..."));
+            chunks.add(new ContextChunk("cloud-security", "Cloud-Sicherheitsüberlegungen und Empfehlungen..."));
+        }
+        
+        if (query.toLowerCase().contains("confluence") || query.toLowerCase().contains("wiki")) {
+            chunks.add(new ContextChunk("confluence-user-guide", "Confluence Benutzerhandbuch und Verwaltungstipps..."));
+            chunks.add(new ContextChunk("wiki-content-management", "Wiki-Inhaltsverwaltung und Zusammenarbeitsfunktionen..."));
+        }
+        
+        if (chunks.isEmpty()) {
+            chunks.add(new ContextChunk("general-resources", "Allgemeine Informationen und hilfreiche Ressourcen..."));
+        }
+        
+        // Limit results
+        if (chunks.size() > maxResults) {
+            chunks = chunks.subList(0, maxResults);
+        }
+        
+        return chunks;
+    }
+    
     @Override
     public boolean isHealthy() {
         try {
@@ -294,74 +601,26 @@ public class RagServiceSimple implements RagServiceInterface {
         }
     }
     
-    private String buildContext(List<String> documents) {
-        StringBuilder context = new StringBuilder();
-        for (int i = 0; i < documents.size() && i < 3; i++) {
-            context.append("Dokument ").append(i + 1).append(": ");
-            context.append(documents.get(i));
-            context.append("\n\n");
-        }
-        return context.toString();
-    }
-    
-    private String generateSecureResponse(String query, String context) {
-        // Generate response with strict security constraints
-        StringBuilder response = new StringBuilder();
-        
-        // Only provide responses based on the knowledge base context
-        if (context == null || context.trim().isEmpty()) {
-            return "Basierend auf den verfügbaren Informationen in der Wissensdatenbank kann ich diese Frage nicht vollständig beantworten. Bitte stellen Sie sicher, dass Ihre Frage sich auf die konfigurierten Wissensquellen bezieht.";
-        }
-        
-        // Analyze query and context to provide secure, relevant responses
-        String normalizedQuery = query.toLowerCase();
-        String normalizedContext = context.toLowerCase();
-        
-        response.append("Basierend auf den verfügbaren Informationen in der Wissensdatenbank:\n\n");
-        
-        if (normalizedContext.contains("aws") || normalizedContext.contains("cloud")) {
-            if (normalizedQuery.contains("konfigur") || normalizedQuery.contains("einricht") || normalizedQuery.contains("setup")) {
-                response.append("Für die AWS-Konfiguration finden Sie in der Dokumentation Schritte zur Einrichtung von Services, Sicherheitsrichtlinien und bewährten Praktiken. ");
-            }
-            if (normalizedQuery.contains("sicherheit") || normalizedQuery.contains("security")) {
-                response.append("Die Sicherheitsdokumentation umfasst Empfehlungen für Zugriffskontrollen, Verschlüsselung und Überwachung. ");
-            }
-        }
-        
-        if (normalizedContext.contains("confluence") || normalizedContext.contains("wiki")) {
-            if (normalizedQuery.contains("verwaltu") || normalizedQuery.contains("admin") || normalizedQuery.contains("konfigur")) {
-                response.append("Die Confluence-Verwaltungsdokumentation bietet Anleitungen für Benutzerverwaltung, Berechtigungen und Systemkonfiguration. ");
-            }
-            if (normalizedQuery.contains("inhalt") || normalizedQuery.contains("content") || normalizedQuery.contains("seite")) {
-                response.append("Für die Inhaltsverwaltung stehen Handbücher zur Seitenerstellung, Zusammenarbeit und Organisationsstrukturen zur Verfügung. ");
-            }
-        }
-        
-        // Ensure the response is grounded in the knowledge base
-        if (response.length() < 100) {
-            response.append("Die spezifischen Informationen zu Ihrer Frage sind in den verfügbaren Dokumenten enthalten. ");
-        }
-        
-        response.append("\n\nFalls Sie detailliertere Informationen benötigen, präzisieren Sie bitte Ihre Frage bezüglich der spezifischen Aspekte aus der Wissensdatenbank.");
-        
-        return response.toString();
-    }
-    
     private List<String> chunkDocument(String content) {
         List<String> chunks = new ArrayList<>();
+        int maxChunkTokens = getIntProperty("chat.chunk.max.tokens", DEFAULT_CHUNK_MAX_TOKENS);
         
-        // Simple chunking by paragraphs or fixed size
+        // Simple chunking by paragraphs or token budget
         String[] paragraphs = content.split("\n\n");
         
         for (String paragraph : paragraphs) {
             if (paragraph.trim().length() > 50) { // Only meaningful chunks
-                if (paragraph.length() > 1000) {
-                    // Split large paragraphs
+                if (tokenCounter.countTokens(paragraph) > maxChunkTokens) {
+                    // Split large paragraphs on token boundaries
                     int start = 0;
                     while (start < paragraph.length()) {
-                        int end = Math.min(start + 800, paragraph.length());
+                        String chunk = tokenCounter.truncate(paragraph.substring(start), maxChunkTokens);
+                        int end = chunk.isEmpty() ? paragraph.length() : start + chunk.length();
                         chunks.add(paragraph.substring(start, end));
-                        start = end - 100; // Overlap for context
+                        if (end >= paragraph.length()) {
+                            break;
+                        }
+                        start = Math.max(start + 1, end - CHUNK_OVERLAP_CHARS); // Overlap for context
                     }
                 } else {
                     chunks.add(paragraph.trim());
@@ -413,6 +672,42 @@ public class RagServiceSimple implements RagServiceInterface {
         return s3Logger.getLoggingStats();
     }
     
+    public AnswerMode getAnswerMode() {
+        return answerMode;
+    }
+    
+    /**
+     * Number of answers produced extractively because the model was unavailable or too slow
+     */
+    public long getExtractiveFallbackCount() {
+        return extractiveFallbacks.get();
+    }
+    
+    /**
+     * Number of model answers stopped while streaming because they contained a forbidden phrase
+     */
+    public long getBlockedResponseCount() {
+        return blockedResponses.get();
+    }
+    
+    /**
+     * Get limiter, bulkhead and circuit breaker state of the guarded remote calls
+     */
+    public List<CallGuard.Snapshot> getCallGuardStates() {
+        List<CallGuard.Snapshot> states = new ArrayList<>();
+        for (CallGuard guard : CallGuard.registered()) {
+            states.add(guard.snapshot());
+        }
+        return states;
+    }
+    
+    /**
+     * Get connection pool utilisation of the shared HTTP transport
+     */
+    public HttpTransport.PoolMetrics getHttpTransportMetrics() {
+        return HttpTransport.shared().getMetrics();
+    }
+    
     /**
      * Testet die S3-Verbindung
      */
@@ -431,6 +726,11 @@ public class RagServiceSimple implements RagServiceInterface {
      */
     public void shutdown() {
         logger.info("Shutting down RagServiceSimple");
+        chatExecutor.shutdown();
+        historyStore.shutdown();
+        embedder.shutdown();
+        securityValidator.shutdown();
+        securityMonitor.shutdown();
         s3Logger.shutdown();
     }
 }
@@ -0,0 +1,105 @@
+package com.confluence.rag.service;
+
+import com.confluence.rag.resilience.CallRejectedException;
+import com.confluence.rag.util.Deadline;
+import com.confluence.rag.util.DeadlineExceededException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent computations for the same key into a single in-flight call.
+ * The first caller for a key (the leader) runs the computation on its own thread;
+ * callers arriving while it runs wait for and share its result. Nothing is cached:
+ * the key is released as soon as the computation completes.
+ *
+ * A leader that is cancelled, runs out of its own deadline or is rejected by a call
+ * guard does not pass that failure on: waiting callers retry instead, so one of them
+ * leads a new computation under its own deadline.
+ */
+public class SingleFlight<K, V> {
+    
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    
+    /**
+     * Runs the computation for the key, or joins the one already in flight
+     */
+    public V execute(K key, Supplier<V> computation) {
+        return execute(key, computation, null);
+    }
+    
+    /**
+     * Runs the computation for the key, or joins the one already in flight for at
+     * most the time left until the deadline
+     * @throws DeadlineExceededException if the shared computation does not finish in time
+     */
+    public V execute(K key, Supplier<V> computation, Deadline deadline) {
+        while (true) {
+            CompletableFuture<V> flight = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null) {
+                return lead(key, flight, computation);
+            }
+            
+            coalesced.incrementAndGet();
+            try {
+                return deadline == null ? existing.join() 
+                                        : existing.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            } catch (CancellationException e) {
+                // The leader gave up for reasons of its own request; retry and lead ourselves
+            } catch (TimeoutException e) {
+                throw new DeadlineExceededException("Deadline exceeded waiting for a coalesced request");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for a coalesced request");
+            } catch (CompletionException | ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new CompletionException(cause);
+            }
+        }
+    }
+    
+    private V lead(K key, CompletableFuture<V> flight, Supplier<V> computation) {
+        executions.incrementAndGet();
+        try {
+            V result = computation.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            if (e instanceof CancellationException || e instanceof DeadlineExceededException
+                || e instanceof CallRejectedException || Thread.currentThread().isInterrupted()) {
+                flight.cancel(false);
+            } else {
+                flight.completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+    
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+    
+    public long getExecutionCount() {
+        return executions.get();
+    }
+    
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -1,5 +1,9 @@
 package com.confluence.rag.servlet;
 
+import com.confluence.rag.http.HttpTransport;
+import com.confluence.rag.resilience.CallGuard;
+import com.confluence.rag.security.HeavyHitters;
+
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -183,10 +187,46 @@ public class AdminServletSimple extends HttpServlet {
         out.println("                <li><strong>Plugin Version:</strong> 1.0.0</li>");
         out.println("                <li><strong>Java Version:</strong> " + System.getProperty("java.version") + "</li>");
         out.println("                <li><strong>Build-Typ:</strong> Minimale Abhängigkeiten</li>");
+        HttpTransport.PoolMetrics pool = HttpTransport.shared().getMetrics();
+        out.println("                <li><strong>HTTP-Verbindungspool:</strong> " + pool.getLeased() + " belegt, "
+                    + pool.getAvailable() + " frei, " + pool.getPending() + " wartend (max. " + pool.getMaxTotal()
+                    + ", Auslastung " + Math.round(pool.getUtilisation() * 100) + "%)</li>");
+        out.println("                <li><strong>HTTP-Anfragen:</strong> " + pool.getRequests() + " synchron, "
+                    + pool.getAsyncRequests() + " asynchron (" + pool.getAsyncInFlight() + " laufend), "
+                    + pool.getFailures() + " fehlgeschlagen</li>");
+        out.println("            </ul>");
+        out.println("        </div>");
+        
+        out.println("        <h2>🛡️ Lastbegrenzung</h2>");
+        out.println("        <div class='status info'>");
+        out.println("            <ul>");
+        for (CallGuard guard : CallGuard.registered()) {
+            CallGuard.Snapshot state = guard.snapshot();
+            out.println("                <li><strong>" + escapeHtml(state.getName()) + ":</strong> Schutzschalter "
+                        + state.getBreakerState() + " (Fehlerrate " + Math.round(state.getFailureRate() * 100) + "%, "
+                        + state.getBreakerOpenings() + "x geöffnet), Limit " + state.getLimit() + " von max. "
+                        + state.getBulkheadSize() + ", " + state.getInFlight() + " laufend, "
+                        + state.getSuccesses() + " erfolgreich, " + state.getFailures() + " fehlgeschlagen, "
+                        + state.getRejections() + " abgewiesen</li>");
+        }
         out.println("            </ul>");
         out.println("        </div>");
         out.println("        </div>");
         
+        out.println("        <h2>🚨 Auffällige Quellen</h2>");
+        out.println("        <div class='status info'>");
+        out.println("            <p>Sicherheitsvorfälle der letzten Minuten (abklingend gezählt), häufigste zuerst.</p>");
+        for (HeavyHitters hitters : HeavyHitters.registered()) {
+            out.println("            <strong>" + escapeHtml(hitters.getName()) + ":</strong>");
+            out.println("            <ul>");
+            for (HeavyHitters.Entry entry : hitters.top(10)) {
+                out.println("                <li>" + escapeHtml(entry.getKey()) + ": " + entry.getGuaranteedCount()
+                            + (entry.getError() > 0 ? " bis " + entry.getCount() : "") + "</li>");
+            }
+            out.println("            </ul>");
+        }
+        out.println("        </div>");
+        
         out.println("        <script>");
         out.println("        function testConnection() {");
         out.println("            alert('Verbindungstest wird implementiert...');");
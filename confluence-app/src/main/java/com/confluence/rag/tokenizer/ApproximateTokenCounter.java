@@ -0,0 +1,69 @@
+package com.confluence.rag.tokenizer;
+
+import com.confluence.rag.api.TokenCounter;
+
+/**
+ * Heuristic token counter used when no tokenizer vocabulary is available.
+ * Counts every punctuation character as one token and every word as one token
+ * per started group of four characters, which slightly overestimates for
+ * typical German and English text.
+ */
+public class ApproximateTokenCounter implements TokenCounter {
+    
+    private static final int CHARS_PER_TOKEN = 4;
+    
+    @Override
+    public int countTokens(CharSequence text) {
+        return text == null ? 0 : scan(text, Integer.MAX_VALUE, null);
+    }
+    
+    @Override
+    public String truncate(String text, int maxTokens) {
+        if (text == null) {
+            return null;
+        }
+        int[] end = new int[1];
+        scan(text, maxTokens, end);
+        return text.substring(0, end[0]);
+    }
+    
+    /**
+     * Counts tokens up to the budget; if end is given, stores the index where the budget ran out
+     */
+    private int scan(CharSequence text, int maxTokens, int[] end) {
+        int tokens = 0;
+        int wordStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (wordStart < 0) {
+                    wordStart = i;
+                }
+                continue;
+            }
+            
+            if (wordStart >= 0) {
+                int wordTokens = (i - wordStart + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+                if (tokens + wordTokens > maxTokens) {
+                    return stop(tokens, wordStart, end);
+                }
+                tokens += wordTokens;
+                wordStart = -1;
+            }
+            if (i < text.length() && !Character.isWhitespace(c)) {
+                if (tokens + 1 > maxTokens) {
+                    return stop(tokens, i, end);
+                }
+                tokens++;
+            }
+        }
+        return stop(tokens, text.length(), end);
+    }
+    
+    private static int stop(int tokens, int index, int[] end) {
+        if (end != null) {
+            end[0] = index;
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,376 @@
+package com.confluence.rag.tokenizer;
+
+import com.confluence.rag.api.TokenCounter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Byte-level byte-pair-encoding tokenizer for counting tokens.
+ *
+ * The vocabulary is read in the tiktoken format (one "base64-token rank" pair per
+ * line). Text is split into pre-tokens (words with their leading space, digit
+ * groups, punctuation runs, whitespace), each pre-token is UTF-8 encoded into a
+ * per-thread scratch buffer and merged by rank, lowest rank first, in time
+ * n log n in its length. Tokens are only counted, never materialized, and the
+ * vocabulary lives in flat arrays with an open-addressing index, so counting
+ * does not allocate once the scratch buffers have grown.
+ *
+ * No vocabulary ships with the plugin because of its size; one matching the model
+ * is added as a classpath resource and named in chat.tokenizer.vocabulary.
+ */
+public class BpeTokenizer implements TokenCounter {
+    
+    private static final int NO_RANK = Integer.MAX_VALUE;
+    private static final int MAX_DIGIT_GROUP = 3;
+    
+    // Concatenated token bytes; token i spans tokenOffsets[i] until tokenOffsets[i + 1]
+    private final byte[] tokenBytes;
+    private final int[] tokenOffsets;
+    private final int[] tokenRanks;
+    
+    // Open-addressing index from token bytes to token number, -1 marks an empty slot
+    private final int[] slots;
+    private final int slotMask;
+    
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    
+    private BpeTokenizer(byte[] tokenBytes, int[] tokenOffsets, int[] tokenRanks) {
+        this.tokenBytes = tokenBytes;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenRanks = tokenRanks;
+        
+        int tokenCount = tokenRanks.length;
+        int capacity = Integer.highestOneBit(Math.max(2, tokenCount * 2 - 1)) << 1;
+        this.slots = new int[capacity];
+        this.slotMask = capacity - 1;
+        Arrays.fill(slots, -1);
+        for (int token = 0; token < tokenCount; token++) {
+            int start = tokenOffsets[token];
+            int slot = hash(tokenBytes, start, tokenOffsets[token + 1]) & slotMask;
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            slots[slot] = token;
+        }
+    }
+    
+    /**
+     * Loads a vocabulary in tiktoken format
+     */
+    public static BpeTokenizer load(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int[] offsets = new int[1024];
+        int[] ranks = new int[1024];
+        int count = 0;
+        
+        Base64.Decoder decoder = Base64.getDecoder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int separator = line.indexOf(' ');
+            if (separator < 0) {
+                throw new IOException("Invalid vocabulary line: " + line);
+            }
+            
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                ranks = Arrays.copyOf(ranks, ranks.length * 2);
+            }
+            offsets[count] = bytes.size();
+            try {
+                bytes.write(decoder.decode(line.substring(0, separator)));
+                ranks[count] = Integer.parseInt(line.substring(separator + 1).trim());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid vocabulary line: " + line, e);
+            }
+            count++;
+        }
+        offsets[count] = bytes.size();
+        
+        return new BpeTokenizer(bytes.toByteArray(), Arrays.copyOf(offsets, count + 1), Arrays.copyOf(ranks, count));
+    }
+    
+    public int getVocabularySize() {
+        return tokenRanks.length;
+    }
+    
+    @Override
+    public int countTokens(CharSequence text) {
+        return text == null ? 0 : scan(text, Integer.MAX_VALUE, scratch.get());
+    }
+    
+    @Override
+    public String truncate(String text, int maxTokens) {
+        if (text == null) {
+            return null;
+        }
+        Scratch buffers = scratch.get();
+        scan(text, maxTokens, buffers);
+        return text.substring(0, buffers.stopIndex);
+    }
+    
+    /**
+     * Counts tokens pre-token by pre-token until the budget would be exceeded and
+     * records in scratch.stopIndex where counting stopped
+     */
+    private int scan(CharSequence text, int maxTokens, Scratch buffers) {
+        int length = text.length();
+        int tokens = 0;
+        int start = 0;
+        while (start < length) {
+            int end = preTokenEnd(text, start, length);
+            int byteLength = encode(text, start, end, buffers);
+            int pieceTokens = countPiece(buffers, byteLength);
+            if (tokens + pieceTokens > maxTokens) {
+                buffers.stopIndex = start;
+                return tokens;
+            }
+            tokens += pieceTokens;
+            start = end;
+        }
+        buffers.stopIndex = length;
+        return tokens;
+    }
+    
+    /**
+     * Finds the end of the pre-token starting at the given index
+     */
+    private static int preTokenEnd(CharSequence text, int start, int length) {
+        int i = start;
+        char c = text.charAt(i);
+        
+        // A single leading space belongs to the following word or punctuation run
+        if (c == ' ' && i + 1 < length) {
+            char next = text.charAt(i + 1);
+            if (!Character.isWhitespace(next) && !Character.isDigit(next)) {
+                i++;
+                c = next;
+            }
+        }
+        
+        if (Character.isLetter(c)) {
+            while (i < length && Character.isLetter(text.charAt(i))) {
+                i++;
+            }
+        } else if (Character.isDigit(c)) {
+            int digitsEnd = Math.min(length, i + MAX_DIGIT_GROUP);
+            while (i < digitsEnd && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+        } else if (Character.isWhitespace(c)) {
+            while (i < length && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+        } else {
+            while (i < length) {
+                char p = text.charAt(i);
+                if (Character.isLetterOrDigit(p) || Character.isWhitespace(p)) {
+                    break;
+                }
+                i++;
+            }
+        }
+        return i;
+    }
+    
+    /**
+     * UTF-8 encodes text[start, end) into the scratch byte buffer and returns the byte length
+     */
+    private static int encode(CharSequence text, int start, int end, Scratch buffers) {
+        buffers.ensureBytes((end - start) * 3);
+        byte[] out = buffers.bytes;
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out[n++] = (byte) (0xF0 | (codePoint >> 18));
+                out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Runs the byte-pair merges for one pre-token and returns the resulting number of tokens.
+     *
+     * Parts form a linked list over their start offsets, and the candidate merges sit in
+     * a min-heap ordered by rank and then offset, so each merge costs a logarithmic heap
+     * operation instead of a scan over all parts. Entries are not removed when a merge
+     * changes a neighbour's rank; an entry whose rank no longer matches is skipped.
+     */
+    private int countPiece(Scratch buffers, int length) {
+        byte[] piece = buffers.bytes;
+        if (length <= 1 || rank(piece, 0, length) != NO_RANK) {
+            return length == 0 ? 0 : 1;
+        }
+        
+        // next[i] is the start of the part after the part starting at i (length at the end),
+        // prev[i] the start of the part before it (-1 at the front); ranks[i] is the rank of
+        // merging the part at i with the next one
+        buffers.ensureParts(length + 1);
+        int[] next = buffers.next;
+        int[] prev = buffers.prev;
+        int[] ranks = buffers.ranks;
+        long[] heap = buffers.heap;
+        int heapSize = 0;
+        for (int i = 0; i < length; i++) {
+            next[i] = i + 1;
+            prev[i] = i - 1;
+            ranks[i] = i + 1 < length ? rank(piece, i, i + 2) : NO_RANK;
+            if (ranks[i] != NO_RANK) {
+                heapSize = push(heap, heapSize, ranks[i], i);
+            }
+        }
+        
+        int parts = length;
+        while (heapSize > 0) {
+            long top = heap[0];
+            heapSize = pop(heap, heapSize);
+            int start = (int) top;
+            if (ranks[start] != (int) (top >>> 32)) {
+                continue;
+            }
+            
+            // Merge the part at start with the next one
+            int removed = next[start];
+            int end = next[removed];
+            next[start] = end;
+            if (end < length) {
+                prev[end] = start;
+            }
+            ranks[removed] = NO_RANK;
+            parts--;
+            
+            ranks[start] = end < length ? rank(piece, start, next[end]) : NO_RANK;
+            if (ranks[start] != NO_RANK) {
+                heapSize = push(heap, heapSize, ranks[start], start);
+            }
+            int before = prev[start];
+            if (before >= 0) {
+                ranks[before] = rank(piece, before, end);
+                if (ranks[before] != NO_RANK) {
+                    heapSize = push(heap, heapSize, ranks[before], before);
+                }
+            }
+        }
+        return parts;
+    }
+    
+    /**
+     * Adds a merge candidate to the heap and returns the new heap size
+     */
+    private static int push(long[] heap, int size, int rank, int start) {
+        long entry = ((long) rank << 32) | start;
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= entry) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = entry;
+        return size + 1;
+    }
+    
+    /**
+     * Removes the smallest entry from the heap and returns the new heap size
+     */
+    private static int pop(long[] heap, int size) {
+        long last = heap[--size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return size;
+    }
+    
+    /**
+     * Returns the rank of bytes[from, to) or NO_RANK if it is not in the vocabulary
+     */
+    private int rank(byte[] bytes, int from, int to) {
+        int slot = hash(bytes, from, to) & slotMask;
+        int token;
+        while ((token = slots[slot]) >= 0) {
+            int start = tokenOffsets[token];
+            if (tokenOffsets[token + 1] - start == to - from
+                    && Arrays.equals(tokenBytes, start, start + (to - from), bytes, from, to)) {
+                return tokenRanks[token];
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return NO_RANK;
+    }
+    
+    private static int hash(byte[] bytes, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Per-thread buffers reused across calls
+     */
+    private static final class Scratch {
+        byte[] bytes = new byte[256];
+        int[] next = new int[257];
+        int[] prev = new int[257];
+        int[] ranks = new int[257];
+        // Initial candidates plus at most two per merge
+        long[] heap = new long[3 * 257];
+        int stopIndex;
+        
+        void ensureBytes(int size) {
+            if (bytes.length < size) {
+                bytes = new byte[Math.max(size, bytes.length * 2)];
+            }
+        }
+        
+        void ensureParts(int size) {
+            if (next.length < size) {
+                next = new int[Math.max(size, next.length * 2)];
+                prev = new int[next.length];
+                ranks = new int[next.length];
+                heap = new long[3 * next.length];
+            }
+        }
+    }
+}
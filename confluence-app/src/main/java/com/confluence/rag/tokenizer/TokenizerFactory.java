@@ -0,0 +1,45 @@
+package com.confluence.rag.tokenizer;
+
+import com.confluence.rag.api.TokenCounter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Creates the token counter used for context, chunk and prompt budgets
+ */
+public final class TokenizerFactory {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TokenizerFactory.class);
+    
+    private TokenizerFactory() {
+    }
+    
+    /**
+     * Loads a BPE vocabulary from the classpath, falling back to the approximate
+     * counter if no vocabulary is configured or it cannot be read
+     * @param resourcePath Classpath location of a tiktoken-format vocabulary
+     */
+    public static TokenCounter fromResource(String resourcePath) {
+        if (resourcePath == null || resourcePath.trim().isEmpty()) {
+            logger.info("No tokenizer vocabulary configured, using approximate token counts");
+            return new ApproximateTokenCounter();
+        }
+        
+        try (InputStream input = TokenizerFactory.class.getResourceAsStream(resourcePath.trim())) {
+            if (input == null) {
+                logger.warn("Tokenizer vocabulary {} not found, using approximate token counts", resourcePath);
+                return new ApproximateTokenCounter();
+            }
+            BpeTokenizer tokenizer = BpeTokenizer.load(input);
+            logger.info("Loaded BPE tokenizer vocabulary {} with {} tokens", resourcePath, tokenizer.getVocabularySize());
+            return tokenizer;
+        } catch (IOException e) {
+            logger.error("Error loading tokenizer vocabulary " + resourcePath + ", using approximate token counts", e);
+            return new ApproximateTokenCounter();
+        }
+    }
+}
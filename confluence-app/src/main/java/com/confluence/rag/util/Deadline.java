@@ -0,0 +1,52 @@
+package com.confluence.rag.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Absolute point in time by which a request has to be answered. Created once when
+ * a request arrives and passed down the pipeline, so every stage can work with the
+ * budget that is actually left instead of its own fixed timeout.
+ */
+public final class Deadline {
+    
+    private final long deadlineNanos;
+    
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+    
+    /**
+     * Creates a deadline the given number of milliseconds from now
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+    
+    /**
+     * Milliseconds left until the deadline, never negative
+     */
+    public long remainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+    
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+    
+    /**
+     * Budget for a stage that may use the given share of the remaining time
+     */
+    public long budgetMillis(double share) {
+        return (long) (remainingMillis() * Math.max(0.0, Math.min(1.0, share)));
+    }
+    
+    /**
+     * Throws if the deadline has passed
+     * @param stage Name of the stage about to start, for the error message
+     */
+    public void check(String stage) {
+        if (isExpired()) {
+            throw new DeadlineExceededException("Deadline exceeded before " + stage);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.confluence.rag.util;
+
+/**
+ * Thrown when a request stage cannot complete within the request's deadline
+ */
+public class DeadlineExceededException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,80 @@
+package com.confluence.rag.util;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Picks an eviction victim among a small sample of a concurrent collection (approximate LRU).
+ *
+ * The sample comes from a random region of the collection: its spliterator is split in
+ * halves, keeping a random half each time, until the region is about the sample size.
+ * Splitting a ConcurrentHashMap view only divides its table range, so this costs no
+ * traversal. Sampling the first entries of the iteration order instead would offer the
+ * same few table bins every time, evicting their entries however recently they were used.
+ */
+public final class EvictionSampler {
+    
+    private EvictionSampler() {
+    }
+    
+    /**
+     * Returns the least eligible value of a sample of about sampleSize values, or null if
+     * no value is eligible
+     * @param order Orders values from first to last to evict
+     */
+    public static <V> V leastOfSample(Collection<V> values, int sampleSize,
+                                      Comparator<? super V> order, Predicate<? super V> eligible) {
+        Spliterator<V> region = values.spliterator();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (region.estimateSize() > sampleSize) {
+            Spliterator<V> half = region.trySplit();
+            if (half == null) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                region = half;
+            }
+        }
+        
+        Candidate<V> candidate = new Candidate<>(order, eligible);
+        for (int i = 0; i < sampleSize; i++) {
+            if (!region.tryAdvance(candidate)) {
+                break;
+            }
+        }
+        if (candidate.least == null) {
+            // The region held nothing eligible; sample from the start instead
+            Iterator<V> iterator = values.iterator();
+            for (int i = 0; i < sampleSize && iterator.hasNext(); i++) {
+                candidate.accept(iterator.next());
+            }
+        }
+        return candidate.least;
+    }
+    
+    /**
+     * Keeps the least eligible value offered so far
+     */
+    private static final class Candidate<V> implements Consumer<V> {
+        private final Comparator<? super V> order;
+        private final Predicate<? super V> eligible;
+        private V least;
+        
+        Candidate(Comparator<? super V> order, Predicate<? super V> eligible) {
+            this.order = order;
+            this.eligible = eligible;
+        }
+        
+        @Override
+        public void accept(V value) {
+            if (eligible.test(value) && (least == null || order.compare(value, least) < 0)) {
+                least = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.confluence.rag.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel for large numbers of coarse-grained timeouts.
+ * 
+ * Scheduling and cancelling are O(1) and may happen from any thread; expiry
+ * callbacks run on the single thread that calls advance(). The wheel has several
+ * levels of equal size, each bucket of a level spanning one full revolution of the
+ * level below. A timeout is placed on the lowest level that reaches its deadline
+ * and moves down a level each time its bucket comes up, so every timeout is
+ * touched a bounded number of times however far away it is. Timeouts beyond the
+ * top level wait there and are placed again after each of its revolutions.
+ * Cancelled timeouts are dropped lazily when their bucket is visited.
+ */
+public class TimingWheel<T> {
+    
+    private static final int LEVELS = 4;
+    
+    private final long tickMillis;
+    private final Timeout<T>[][] levels;
+    private final int bits;
+    private final int mask;
+    private final Consumer<T> onExpire;
+    private final ConcurrentLinkedQueue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+    
+    // Only accessed by the advancing thread
+    private long currentTick;
+    
+    /**
+     * @param tickMillis Resolution of the wheel
+     * @param wheelSize Number of buckets per level, rounded up to a power of two
+     * @param startMillis Current time in milliseconds
+     * @param onExpire Callback for expired items, invoked on the advancing thread
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis, Consumer<T> onExpire) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.levels = (Timeout<T>[][]) new Timeout<?>[LEVELS][size];
+        this.bits = Integer.numberOfTrailingZeros(size);
+        this.mask = size - 1;
+        this.onExpire = onExpire;
+        this.currentTick = startMillis / tickMillis;
+    }
+    
+    /**
+     * Schedules an item to expire at the given time
+     */
+    public Timeout<T> schedule(T item, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(item, deadlineMillis / tickMillis);
+        pending.offer(timeout);
+        return timeout;
+    }
+    
+    /**
+     * Expires every timeout that is due at the given time
+     */
+    public void advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick <= targetTick) {
+            transferPending();
+            cascade(currentTick);
+            expireBucket(currentTick);
+            currentTick++;
+        }
+        transferPending();
+    }
+    
+    private void transferPending() {
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.deadlineTick < currentTick) {
+                // Its tick has passed already, so no bucket would come up for it before the next advance
+                expire(timeout);
+            } else {
+                place(timeout);
+            }
+        }
+    }
+    
+    /**
+     * Puts a timeout into the bucket of the lowest level whose range reaches its deadline
+     */
+    private void place(Timeout<T> timeout) {
+        long tick = Math.max(timeout.deadlineTick, currentTick);
+        long distance = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && distance >= 1L << (bits * (level + 1))) {
+            level++;
+        }
+        int index;
+        if (level == LEVELS - 1 && distance >= 1L << (bits * LEVELS)) {
+            // Too far for the wheel: the current top bucket comes up last, after a full revolution
+            index = (int) ((currentTick >>> (bits * level)) & mask);
+        } else {
+            index = (int) ((tick >>> (bits * level)) & mask);
+        }
+        timeout.next = levels[level][index];
+        levels[level][index] = timeout;
+    }
+    
+    /**
+     * Moves the timeouts of every higher-level bucket that starts at this tick down
+     */
+    private void cascade(long tick) {
+        for (int level = 1; level < LEVELS && (tick & ((1L << (bits * level)) - 1)) == 0; level++) {
+            int index = (int) ((tick >>> (bits * level)) & mask);
+            Timeout<T> timeout = levels[level][index];
+            levels[level][index] = null;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    place(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+    
+    private void expireBucket(long tick) {
+        int index = (int) (tick & mask);
+        Timeout<T> timeout = levels[0][index];
+        levels[0][index] = null;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            timeout.next = null;
+            if (!timeout.cancelled) {
+                expire(timeout);
+            }
+            timeout = next;
+        }
+    }
+    
+    private void expire(Timeout<T> timeout) {
+        timeout.expired = true;
+        onExpire.accept(timeout.item);
+    }
+    
+    /**
+     * Handle to a scheduled timeout
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadlineTick;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+        private Timeout<T> next;
+        
+        private Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        public boolean isExpired() {
+            return expired;
+        }
+        
+        public T getItem() {
+            return item;
+        }
+    }
+}
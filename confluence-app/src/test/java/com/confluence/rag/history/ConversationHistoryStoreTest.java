@@ -0,0 +1,55 @@
+package com.confluence.rag.history;
+
+import com.confluence.rag.context.ContextChunk;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a session's history is only visible to the user it belongs to
+ */
+public class ConversationHistoryStoreTest {
+    
+    private final ConversationHistoryStore store = new ConversationHistoryStore(16, 1000, 1 << 20, 60_000);
+    
+    @After
+    public void shutdown() {
+        store.shutdown();
+    }
+    
+    @Test
+    public void returnsTurnsOfOwnSession() {
+        store.append("alice", "session-1", ConversationHistoryStore.Role.USER, "Wie erstelle ich ein Backup?");
+        store.append("alice", "session-1", ConversationHistoryStore.Role.ASSISTANT, "Unter Administration.");
+        List<ContextChunk> turns = store.relevantTurns("alice", "session-1", "backup");
+        assertEquals(1, turns.size());
+        assertEquals("Frage: Wie erstelle ich ein Backup?\nAntwort: Unter Administration.", turns.get(0).getText());
+    }
+    
+    @Test
+    public void hidesSessionFromOtherUsers() {
+        store.append("alice", "session-1", ConversationHistoryStore.Role.USER, "Mein Passwort lautet geheim");
+        assertTrue(store.relevantTurns("mallory", "session-1", "passwort").isEmpty());
+        
+        // The other user's messages start a history of their own
+        store.append("mallory", "session-1", ConversationHistoryStore.Role.USER, "Was stand hier vorher?");
+        assertEquals(2, store.getSessionCount());
+        assertEquals(1, store.relevantTurns("alice", "session-1", "passwort").size());
+        
+        store.clear("mallory", "session-1");
+        assertEquals(1, store.getSessionCount());
+    }
+    
+    @Test
+    public void keepsNoHistoryForAnonymousRequests() {
+        store.append(null, "session-1", ConversationHistoryStore.Role.USER, "Hallo");
+        store.append("", "session-1", ConversationHistoryStore.Role.USER, "Hallo");
+        assertEquals(0, store.getSessionCount());
+        assertTrue(store.relevantTurns(null, "session-1", "hallo").isEmpty());
+    }
+}
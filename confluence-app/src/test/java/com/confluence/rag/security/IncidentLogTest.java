@@ -0,0 +1,119 @@
+package com.confluence.rag.security;
+
+import com.confluence.rag.security.SecurityMonitor.SecurityIncident;
+import com.confluence.rag.security.SecurityMonitor.SecurityIncidentType;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Compares the chained queries of IncidentLog with a filter over the incidents
+ * still kept, while the ring wraps around many times
+ */
+public class IncidentLogTest {
+    
+    private static final LocalDateTime START = LocalDateTime.of(2026, 1, 1, 0, 0);
+    private static final SecurityIncidentType[] TYPES = SecurityIncidentType.values();
+    
+    @Test
+    public void answersChainQueriesAcrossWrapAround() {
+        IncidentLog log = new IncidentLog(16);
+        List<SecurityIncident> added = new ArrayList<>();
+        Random random = new Random(31);
+        for (int n = 0; n < 500; n++) {
+            SecurityIncident incident = incident(random, n);
+            assertEquals(n, log.add(incident));
+            added.add(incident);
+            
+            int limit = 1 + random.nextInt(20);
+            SecurityIncidentType type = TYPES[random.nextInt(TYPES.length)];
+            String session = "session-" + random.nextInt(40);
+            assertIncidents(expected(added, log.getCapacity(), limit, candidate -> candidate.getType() == type),
+                            log.ofType(type, limit));
+            assertIncidents(expected(added, log.getCapacity(), limit, candidate -> candidate.getSessionId().equals(session)),
+                            log.ofSession(session, limit));
+            assertIncidents(expected(added, log.getCapacity(), limit, candidate -> true), log.recent(limit));
+            
+            LocalDateTime from = START.plusSeconds(n - random.nextInt(24));
+            LocalDateTime to = from.plusSeconds(random.nextInt(12));
+            assertIncidents(expected(added, log.getCapacity(), limit,
+                                     candidate -> !candidate.getTimestamp().isBefore(from) && candidate.getTimestamp().isBefore(to)),
+                            log.between(from, to, limit));
+        }
+        assertEquals(500, log.getTotalCount());
+    }
+    
+    @Test
+    public void keepsOnlyTheNewestCapacityIncidents() {
+        IncidentLog log = new IncidentLog(5);
+        assertEquals(8, log.getCapacity());
+        Random random = new Random(2);
+        List<SecurityIncident> added = new ArrayList<>();
+        for (int n = 0; n < 21; n++) {
+            SecurityIncident incident = incident(random, n);
+            log.add(incident);
+            added.add(incident);
+        }
+        List<Long> sequences = new ArrayList<>();
+        List<SecurityIncident> kept = new ArrayList<>();
+        log.forEach((incident, sequence) -> {
+            sequences.add(sequence);
+            kept.add(incident);
+        });
+        assertEquals(8, kept.size());
+        assertEquals(Long.valueOf(13), sequences.get(0));
+        assertIncidents(added.subList(13, 21), kept);
+    }
+    
+    @Test
+    public void continuesNumberingAfterRestore() {
+        IncidentLog log = new IncidentLog(8);
+        Random random = new Random(4);
+        SecurityIncident restored = incident(random, 0);
+        log.restore(41, restored);
+        assertEquals(42, log.add(incident(random, 1)));
+        assertSame(restored, log.ofType(restored.getType(), 10).get(0));
+    }
+    
+    private static SecurityIncident incident(Random random, int n) {
+        return new SecurityIncident("session-" + random.nextInt(40), "10.0.0." + random.nextInt(4),
+                                    TYPES[random.nextInt(TYPES.length)], "incident " + n, START.plusSeconds(n));
+    }
+    
+    /**
+     * The latest matching incidents among those the ring still holds, oldest first
+     */
+    private static List<SecurityIncident> expected(List<SecurityIncident> added, int capacity, int limit,
+                                                   Predicate<SecurityIncident> filter) {
+        List<SecurityIncident> matching = new ArrayList<>();
+        for (SecurityIncident incident : added.subList(Math.max(0, added.size() - capacity), added.size())) {
+            if (filter.test(incident)) {
+                matching.add(incident);
+            }
+        }
+        return matching.subList(Math.max(0, matching.size() - limit), matching.size());
+    }
+    
+    private static void assertIncidents(List<SecurityIncident> expected, List<SecurityIncident> actual) {
+        assertEquals(describe(expected), describe(actual));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+        }
+    }
+    
+    private static List<String> describe(List<SecurityIncident> incidents) {
+        List<String> details = new ArrayList<>();
+        for (SecurityIncident incident : incidents) {
+            details.add(incident.getDetails());
+        }
+        return details;
+    }
+}
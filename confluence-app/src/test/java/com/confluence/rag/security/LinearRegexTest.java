@@ -0,0 +1,126 @@
+package com.confluence.rag.security;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares LinearRegex with java.util.regex on generated inputs, and checks that
+ * patterns which make a backtracking matcher explode stay linear and within budget
+ */
+public class LinearRegexTest {
+    
+    private static final String[] PATTERNS = {
+        "abc", "a.c", "a*b", "a+b+", "ab?c", "a{2}", "a{2,}b", "a{1,3}c", "(ab)+", "(a|bc)*d",
+        "a*?b", "a+?", "(?:ab|a)c", "[abc]+d", "[^ab]", "[a-c][x-z]", "\\d+", "\\D", "\\w+\\s",
+        "\\W", "\\S\\s\\S", "^ab", "ab$", "^$", "\\Aa", "b\\z", "b\\Z", "\\bab\\b", "\\Bb", "a\\.b",
+        "(?i)ABC", "(?i)[A-C]x", "(?s)a.b", "a.b", "\\p{L}+", "\\p{Lu}\\p{Ll}", "\\p{N}", "\\p{Nd}",
+        "\\p{P}", "x|y|", "(a|b|c)(a|b|c)?z", "((a*)*b)", "(?i)ß|Ä", "[\\[\\]]", "\\t|\\n", "[-a]",
+        ".*z.*", "(?i).*(du bist|you are).*", "(?i)(tell me|sag mir).*(about|über).*(yourself|dir)"
+    };
+    
+    // Bound for the catastrophic patterns below, whose programs are a few dozen instructions
+    private static final long MAX_STEPS_PER_CHAR = 32;
+    
+    // Chars outside the BMP are left out: LinearRegex matches UTF-16 chars, java.util.regex code points
+    private static final String ALPHABET = "abcdxyzABCZ 019.,-_[]\t\n\räÄßéİ";
+    
+    @Test
+    public void agreesWithJavaRegexOnGeneratedInputs() {
+        Random random = new Random(3);
+        for (String regex : PATTERNS) {
+            Pattern expected = Pattern.compile(regex);
+            LinearRegex actual = LinearRegex.compile(regex);
+            assertEquals(regex, actual.pattern());
+            for (int n = 0; n < 2_000; n++) {
+                String text = randomText(random, random.nextInt(12));
+                assertFind(expected, actual, text);
+            }
+            assertFind(expected, actual, "");
+        }
+    }
+    
+    @Test
+    public void staysLinearOnCatastrophicPatterns() {
+        String[] catastrophic = {"(a+)+$", "(a|aa)+$", "(a*)*b", "(\\w+\\s?)+$", "(.*a){12}b"};
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            input.append('a');
+        }
+        String text = input.append('!').toString();
+        for (String regex : catastrophic) {
+            LinearRegex pattern = LinearRegex.compile(regex);
+            StepBudget budget = new StepBudget(Long.MAX_VALUE);
+            assertEquals(regex, SecurityPattern.Outcome.NO_MATCH, pattern.find(text, budget));
+            assertTrue(regex + " took " + budget.getUsed() + " steps", budget.getUsed() <= MAX_STEPS_PER_CHAR * text.length());
+        }
+    }
+    
+    @Test
+    public void stopsWhenBudgetIsUsedUp() {
+        LinearRegex pattern = LinearRegex.compile("(a+)+$");
+        String text = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!";
+        StepBudget budget = new StepBudget(50);
+        assertEquals(SecurityPattern.Outcome.BUDGET_EXCEEDED, pattern.find(text, budget));
+        assertTrue(budget.isExhausted());
+        
+        // The same budget is shared by every later pattern of the query
+        assertEquals(SecurityPattern.Outcome.BUDGET_EXCEEDED, LinearRegex.compile("a").find("a", budget));
+    }
+    
+    @Test
+    public void treatsExhaustedBudgetOfRuleAsMatch() {
+        JailbreakMatcher matcher = new JailbreakMatcher(Arrays.asList(
+            JailbreakMatcher.rule("NESTED").pattern("(a+)+$")), RegexEngine.LINEAR, 1_000);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append('a');
+        }
+        assertEquals("NESTED", matcher.match(text.append('!')));
+        assertEquals(1, matcher.getBudgetExceededCount());
+        assertNull(matcher.match("b!"));
+        assertEquals(1, matcher.getBudgetExceededCount());
+    }
+    
+    @Test
+    public void countsSupplementaryCharacterAsTwoChars() {
+        StepBudget budget = new StepBudget(Long.MAX_VALUE);
+        assertEquals(SecurityPattern.Outcome.MATCH, LinearRegex.compile("a..b").find("a🌍b", budget));
+        assertEquals(SecurityPattern.Outcome.NO_MATCH, LinearRegex.compile("a.b").find("a🌍b", budget));
+    }
+    
+    @Test
+    public void rejectsBacktrackingSyntax() {
+        String[] unsupported = {"(a)\\1", "a(?=b)", "a(?!b)", "(?<=a)b", "a*+", "a++b", "(a", "a)", "[a", "a{2,1}", "*a"};
+        for (String regex : unsupported) {
+            try {
+                LinearRegex.compile(regex);
+                fail("Accepted " + regex);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    
+    private static void assertFind(Pattern expected, LinearRegex actual, String text) {
+        boolean found = expected.matcher(text).find();
+        SecurityPattern.Outcome outcome = actual.find(text, new StepBudget(Long.MAX_VALUE));
+        assertEquals("[" + expected.pattern() + "] on [" + text + "]",
+                     found ? SecurityPattern.Outcome.MATCH : SecurityPattern.Outcome.NO_MATCH, outcome);
+    }
+    
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,193 @@
+package com.confluence.rag.security;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs two exchanges on loopback ports in one process and checks what the
+ * receiving side delivers, rejects and ignores
+ */
+public class PeerStateExchangeTest {
+    
+    private static final String SECRET = "test-secret";
+    private static final long TIMEOUT_MILLIS = 5000;
+    
+    private final List<PeerStateExchange> exchanges = new ArrayList<>();
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final BlockingQueue<SecurityStateDelta> received = new LinkedBlockingQueue<>();
+    
+    @After
+    public void shutdown() throws IOException {
+        for (PeerStateExchange exchange : exchanges) {
+            exchange.shutdown();
+        }
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+    }
+    
+    @Test
+    public void deliversChangesToPeer() throws Exception {
+        int[] ports = freePorts(2);
+        PeerStateExchange sender = exchange(ports[0], SECRET, ports[1]);
+        PeerStateExchange receiver = exchange(ports[1], SECRET, ports[0]);
+        receiver.start(received::add);
+        
+        long blockedAt = System.currentTimeMillis();
+        sender.publish(Arrays.asList(
+            SecurityStateDelta.requests("session-1", 3),
+            SecurityStateDelta.blockState("session-2", true, blockedAt),
+            SecurityStateDelta.requests("sitzung-ä", 1L << 40)));
+        
+        assertEquals("REQUESTS session-1 3", next().toString());
+        assertEquals("BLOCKED session-2 " + blockedAt, next().toString());
+        assertEquals("REQUESTS sitzung-ä " + (1L << 40), next().toString());
+        assertEquals(1, receiver.getReceivedDatagrams());
+        assertEquals(0, receiver.getRejectedDatagrams());
+    }
+    
+    @Test
+    public void splitsLargeBatchesIntoDatagrams() throws Exception {
+        int[] ports = freePorts(2);
+        PeerStateExchange sender = exchange(ports[0], SECRET, ports[1]);
+        PeerStateExchange receiver = exchange(ports[1], SECRET, ports[0]);
+        receiver.start(received::add);
+        
+        List<SecurityStateDelta> changes = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            changes.add(SecurityStateDelta.requests("session-" + i + "-0123456789abcdef", i));
+        }
+        sender.publish(changes);
+        
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(changes.get(i).toString(), next().toString());
+        }
+        assertTrue(sender.getSentDatagrams() > 1);
+        assertEquals(sender.getSentDatagrams(), receiver.getReceivedDatagrams());
+    }
+    
+    @Test
+    public void rejectsDatagramsSignedWithAnotherSecret() throws Exception {
+        int[] ports = freePorts(2);
+        PeerStateExchange intruder = exchange(ports[0], "wrong-secret", ports[1]);
+        PeerStateExchange receiver = exchange(ports[1], SECRET, ports[0]);
+        receiver.start(received::add);
+        
+        intruder.publish(Arrays.asList(SecurityStateDelta.blockState("victim", true, System.currentTimeMillis())));
+        
+        waitFor(() -> receiver.getRejectedDatagrams() == 1);
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, receiver.getReceivedDatagrams());
+    }
+    
+    @Test
+    public void rejectsReplayedAndTamperedDatagrams() throws Exception {
+        int[] ports = freePorts(2);
+        DatagramChannel eavesdropper = channel();
+        int eavesdropperPort = ((InetSocketAddress) eavesdropper.getLocalAddress()).getPort();
+        PeerStateExchange sender = exchange(ports[0], SECRET, ports[1], eavesdropperPort);
+        PeerStateExchange receiver = exchange(ports[1], SECRET, ports[0]);
+        receiver.start(received::add);
+        
+        sender.publish(Arrays.asList(SecurityStateDelta.blockState("session-1", false, System.currentTimeMillis())));
+        assertEquals("UNBLOCKED", next().getType().name());
+        ByteBuffer captured = ByteBuffer.allocate(2048);
+        eavesdropper.receive(captured);
+        captured.flip();
+        byte[] datagram = Arrays.copyOf(captured.array(), captured.limit());
+        
+        // The same datagram again
+        eavesdropper.send(ByteBuffer.wrap(datagram), new InetSocketAddress("127.0.0.1", ports[1]));
+        waitFor(() -> receiver.getRejectedDatagrams() == 1);
+        
+        // A changed entry no longer matches the signature
+        byte[] tampered = datagram.clone();
+        tampered[tampered.length - 17] ^= 1;
+        eavesdropper.send(ByteBuffer.wrap(tampered), new InetSocketAddress("127.0.0.1", ports[1]));
+        waitFor(() -> receiver.getRejectedDatagrams() == 2);
+        
+        // Later datagrams of the sender still arrive
+        sender.publish(Arrays.asList(SecurityStateDelta.requests("session-1", 2)));
+        assertEquals("REQUESTS session-1 2", next().toString());
+        assertEquals(2, receiver.getReceivedDatagrams());
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresSecret() throws IOException {
+        int[] ports = freePorts(2);
+        exchange(ports[0], "", ports[1]);
+    }
+    
+    private SecurityStateDelta next() throws InterruptedException {
+        SecurityStateDelta change = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull("No change delivered", change);
+        return change;
+    }
+    
+    private PeerStateExchange exchange(int port, String secret, int... peerPorts) {
+        StringBuilder peers = new StringBuilder();
+        for (int peerPort : peerPorts) {
+            peers.append(peers.length() > 0 ? "," : "").append("127.0.0.1:").append(peerPort);
+        }
+        Properties config = new Properties();
+        config.setProperty("security.cluster.port", String.valueOf(port));
+        config.setProperty("security.cluster.peers", peers.toString());
+        config.setProperty("security.cluster.secret", secret);
+        PeerStateExchange exchange = new PeerStateExchange(config);
+        exchanges.add(exchange);
+        return exchange;
+    }
+    
+    private DatagramChannel channel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        return channel;
+    }
+    
+    private static int[] freePorts(int count) throws IOException {
+        int[] ports = new int[count];
+        DatagramSocket[] sockets = new DatagramSocket[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new DatagramSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (DatagramSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+    
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
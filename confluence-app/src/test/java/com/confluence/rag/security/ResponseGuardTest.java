@@ -0,0 +1,105 @@
+package com.confluence.rag.security;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Streams responses through a ResponseGuard in every possible chunking and checks
+ * what reaches the downstream consumer
+ */
+public class ResponseGuardTest {
+    
+    private final ResponseFilter filter = new ResponseFilter(phrases());
+    
+    @Test
+    public void stopsPhraseSplitAcrossChunks() {
+        String response = "Gern. Ich bin ein Sprachmodell und helfe.";
+        int phraseStart = response.toLowerCase().indexOf("ich bin");
+        for (int split = 1; split < response.length(); split++) {
+            for (int second = split + 1; second <= response.length(); second++) {
+                StringBuilder passed = new StringBuilder();
+                ResponseGuard guard = filter.newGuard(passed::append);
+                try {
+                    guard.accept(response.substring(0, split));
+                    guard.accept(response.substring(split, second));
+                    guard.accept(response.substring(second));
+                    fail("Response passed with chunks ending at " + split + " and " + second);
+                } catch (ResponseBlockedException e) {
+                    assertEquals(ResponseViolation.META_CONVERSATION, e.getViolation());
+                }
+                // Nothing of the phrase got through, only text before it
+                assertTrue("Passed [" + passed + "]", passed.length() <= phraseStart);
+                assertEquals(response.substring(0, passed.length()), passed.toString());
+                assertEquals(ResponseViolation.META_CONVERSATION, guard.getViolation());
+            }
+        }
+    }
+    
+    @Test
+    public void holdsBackTailUntilDecided() {
+        List<String> passed = new ArrayList<>();
+        ResponseGuard guard = filter.newGuard(passed::add);
+        guard.accept("Das steht im Handbuch, ich b");
+        // "ich b" could still become "ich bin"
+        assertEquals(Arrays.asList("Das steht im Handbuch, "), passed);
+        guard.accept("eschreibe es kurz");
+        assertEquals("Das steht im Handbuch, ich beschreibe es kurz", String.join("", passed));
+        
+        guard.accept(". Der System");
+        guard.complete();
+        assertEquals("Das steht im Handbuch, ich beschreibe es kurz. Der System", String.join("", passed));
+        assertNull(guard.getViolation());
+    }
+    
+    @Test
+    public void passesEveryChunkingOfCleanResponseUnchanged() {
+        String response = "Ich bitte um Geduld; der Systemadministrator hilft. Ich bi";
+        for (int size = 1; size <= response.length(); size++) {
+            StringBuilder passed = new StringBuilder();
+            ResponseGuard guard = filter.newGuard(passed::append);
+            for (int start = 0; start < response.length(); start += size) {
+                guard.accept(response.substring(start, Math.min(response.length(), start + size)));
+            }
+            guard.complete();
+            assertEquals("Chunk size " + size, response, passed.toString());
+        }
+    }
+    
+    @Test
+    public void keepsRefusingAfterViolation() {
+        List<String> passed = new ArrayList<>();
+        ResponseGuard guard = filter.newGuard(passed::add);
+        try {
+            guard.accept("Mein ");
+            guard.accept("System Prompt lautet");
+            fail("Response passed");
+        } catch (ResponseBlockedException e) {
+            assertEquals(ResponseViolation.SYSTEM_DISCLOSURE.getReplacement(), e.getReplacement());
+        }
+        try {
+            guard.accept("weiter");
+            fail("Response passed after violation");
+        } catch (ResponseBlockedException e) {
+            assertEquals(ResponseViolation.SYSTEM_DISCLOSURE, e.getViolation());
+        }
+        guard.complete();
+        assertEquals(Arrays.asList("Mein "), passed);
+    }
+    
+    private static Map<ResponseViolation, List<String>> phrases() {
+        Map<ResponseViolation, List<String>> phrases = new EnumMap<>(ResponseViolation.class);
+        phrases.put(ResponseViolation.META_CONVERSATION, Arrays.asList("ich bin", "als ki"));
+        phrases.put(ResponseViolation.SYSTEM_DISCLOSURE, Arrays.asList("system prompt", "anweisungen"));
+        return phrases;
+    }
+}
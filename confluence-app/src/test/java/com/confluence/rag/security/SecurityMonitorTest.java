@@ -0,0 +1,110 @@
+package com.confluence.rag.security;
+
+import com.confluence.rag.security.SecurityMonitor.SecurityIncidentType;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which incidents count against an address, with many users sharing the
+ * address of a proxy or NAT gateway
+ */
+public class SecurityMonitorTest {
+    
+    private static final String SHARED_ADDRESS = "10.0.0.1";
+    
+    private final List<SecurityMonitor> monitors = new ArrayList<>();
+    
+    @After
+    public void shutdown() {
+        for (SecurityMonitor monitor : monitors) {
+            monitor.shutdown();
+        }
+    }
+    
+    @Test
+    public void ordinaryIncidentsOfSharedAddressDoNotBlockIt() {
+        SecurityMonitor monitor = monitor("5");
+        for (int user = 0; user < 100; user++) {
+            String sessionId = "session-" + user;
+            monitor.recordSecurityIncident(sessionId, SHARED_ADDRESS, SecurityIncidentType.OFF_TOPIC_QUERY, "Off-topic query");
+            monitor.recordSecurityIncident(sessionId, SHARED_ADDRESS, SecurityIncidentType.RATE_LIMIT_EXCEEDED, "Rate limit exceeded");
+            monitor.recordSecurityIncident(sessionId, SHARED_ADDRESS, SecurityIncidentType.SYSTEM_MANIPULATION_ATTEMPT, "Processing error");
+            monitor.recordSecurityIncident(sessionId, SHARED_ADDRESS, SecurityIncidentType.SUSPICIOUS_PATTERN, "Suspicious pattern");
+        }
+        assertFalse(monitor.isAddressBlocked(SHARED_ADDRESS));
+        assertTrue(monitor.getTopAddresses(10).isEmpty());
+        assertEquals(400, monitor.getTotalIncidentCount());
+    }
+    
+    @Test
+    public void hostileIncidentsBlockAddressAcrossSessions() {
+        SecurityMonitor monitor = monitor("5");
+        SecurityIncidentType[] hostile = {
+            SecurityIncidentType.JAILBREAK_ATTEMPT, SecurityIncidentType.PROMPT_INJECTION, SecurityIncidentType.CODE_INJECTION_ATTEMPT
+        };
+        for (int n = 0; n < 4; n++) {
+            monitor.recordSecurityIncident("rotated-" + n, SHARED_ADDRESS, hostile[n % hostile.length], "Attack");
+        }
+        assertFalse(monitor.isAddressBlocked(SHARED_ADDRESS));
+        monitor.recordSecurityIncident("rotated-4", SHARED_ADDRESS, SecurityIncidentType.JAILBREAK_ATTEMPT, "Attack");
+        assertTrue(monitor.isAddressBlocked(SHARED_ADDRESS));
+        assertFalse(monitor.isAddressBlocked("10.0.0.2"));
+        assertFalse(monitor.isAddressBlocked(null));
+    }
+    
+    @Test
+    public void shippedConfigurationNeverBlocksAddresses() {
+        Properties config = SecurityRuleStore.loadConfiguration("/security.properties");
+        config.setProperty("security.monitor.state.dir", "off");
+        SecurityMonitor monitor = new SecurityMonitor(config, null);
+        monitors.add(monitor);
+        for (int n = 0; n < 200; n++) {
+            monitor.recordSecurityIncident("session-" + n, SHARED_ADDRESS, SecurityIncidentType.JAILBREAK_ATTEMPT, "Attack");
+        }
+        assertFalse(monitor.isAddressBlocked(SHARED_ADDRESS));
+    }
+    
+    @Test
+    public void capsSessionsUnderConcurrentRequests() throws InterruptedException {
+        Properties config = new Properties();
+        config.setProperty("security.monitor.state.dir", "off");
+        config.setProperty("security.monitor.max.sessions", "100");
+        SecurityMonitor monitor = new SecurityMonitor(config, null);
+        monitors.add(monitor);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int n = 0; n < 20_000; n++) {
+                    monitor.recordRequest("session-" + random.nextInt(1_000));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Tracked " + monitor.getTrackedSessionCount(), monitor.getTrackedSessionCount() <= 100 + threads.length);
+        assertTrue(monitor.getEvictedSessionCount() > 0);
+    }
+    
+    private SecurityMonitor monitor(String addressBlockThreshold) {
+        Properties config = new Properties();
+        config.setProperty("security.monitor.state.dir", "off");
+        config.setProperty("security.monitor.address.block.threshold", addressBlockThreshold);
+        SecurityMonitor monitor = new SecurityMonitor(config, null);
+        monitors.add(monitor);
+        return monitor;
+    }
+}
@@ -0,0 +1,224 @@
+package com.confluence.rag.security;
+
+import com.confluence.rag.security.SecurityMonitor.SecurityIncident;
+import com.confluence.rag.security.SecurityMonitor.SecurityIncidentType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes snapshots and logs into a temporary directory and checks what a new store
+ * restores from them, also after a torn log record or a corrupt snapshot
+ */
+public class SecurityStateStoreTest {
+    
+    private static final LocalDateTime TIME = LocalDateTime.of(2026, 3, 1, 12, 30, 15, 123_000_000);
+    
+    private Path directory;
+    private final List<SecurityStateStore> stores = new ArrayList<>();
+    
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("security-state");
+    }
+    
+    @After
+    public void deleteDirectory() throws IOException {
+        for (SecurityStateStore store : stores) {
+            store.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+    
+    @Test
+    public void restoresSnapshotAndLogs() {
+        SecurityStateStore store = openEmpty();
+        SecurityIncident first = incident("session-1", SecurityIncidentType.JAILBREAK_ATTEMPT, "erste", 0);
+        SecurityIncident second = incident("sitzung-ä", SecurityIncidentType.OFF_TOPIC_QUERY, null, 1);
+        store.writeSnapshot(writer -> {
+            writer.session(session("session-1", true, 3));
+            writer.session(session("sitzung-ä", false, 0));
+            writer.incident(first, 0);
+            writer.incident(second, 1);
+        });
+        SecurityIncident third = incident("session-1", SecurityIncidentType.PROMPT_INJECTION, "dritte", 2);
+        store.appendBlockState("sitzung-ä", true, 5000, 1, 65_000);
+        store.appendIncident(2, third);
+        // Already in the snapshot, so not replayed
+        store.appendIncident(1, second);
+        store.close();
+        
+        assertEquals(2, new SecurityStateStore(directory).storedSessionCount());
+        RecordingTarget restored = restore();
+        assertEquals(Arrays.asList(
+            "SESSION " + describe(session("session-1", true, 3)),
+            "SESSION " + describe(session("sitzung-ä", false, 0)),
+            "BLOCK sitzung-ä true 5000 1 65000",
+            "REPLAY " + describe(third),
+            "INCIDENT 0 " + describe(first),
+            "INCIDENT 1 " + describe(second),
+            "INCIDENT 2 " + describe(third)), restored.events);
+    }
+    
+    @Test
+    public void stopsLogReplayAtTornRecord() throws IOException {
+        SecurityStateStore store = openEmpty();
+        for (int i = 1; i <= 3; i++) {
+            store.appendBlockState("session-" + i, true, i, i, i);
+        }
+        store.close();
+        Path log = directory.resolve("security-state-1.log");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        
+        assertEquals(Arrays.asList("BLOCK session-1 true 1 1 1", "BLOCK session-2 true 2 2 2"), restore().events);
+    }
+    
+    @Test
+    public void stopsLogReplayAtCorruptRecord() throws IOException {
+        SecurityStateStore store = openEmpty();
+        for (int i = 1; i <= 3; i++) {
+            store.appendBlockState("session-" + i, true, i, i, i);
+        }
+        store.close();
+        Path log = directory.resolve("security-state-1.log");
+        byte[] bytes = Files.readAllBytes(log);
+        // A byte of the second record's payload
+        int second = 8 + ByteBuffer.wrap(bytes).getInt(0);
+        bytes[second + 12] ^= 1;
+        Files.write(log, bytes);
+        
+        assertEquals(Arrays.asList("BLOCK session-1 true 1 1 1"), restore().events);
+    }
+    
+    @Test
+    public void fallsBackToOlderSnapshotWhenNewerIsCorrupt() throws IOException {
+        SecurityStateStore store = openEmpty();
+        store.writeSnapshot(writer -> writer.session(session("older", false, 0)));
+        store.appendBlockState("older", true, 7000, 1, 67_000);
+        store.writeSnapshot(writer -> writer.session(session("newer", true, 1)));
+        store.close();
+        
+        // The second snapshot went into the other file
+        Path newer = directory.resolve("security-state-b.snapshot");
+        try (FileChannel channel = FileChannel.open(newer, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, 50);
+            data.put(0, (byte) (data.get(0) ^ 1));
+            data.rewind();
+            channel.write(data, 50);
+        }
+        
+        // The log written after the older snapshot is still there and replayed
+        assertEquals(Arrays.asList(
+            "SESSION " + describe(session("older", false, 0)),
+            "BLOCK older true 7000 1 67000"), restore().events);
+    }
+    
+    @Test
+    public void ignoresSnapshotWithoutHeader() throws IOException {
+        SecurityStateStore store = openEmpty();
+        store.writeSnapshot(writer -> writer.session(session("session-1", false, 0)));
+        store.close();
+        
+        // As left by a crash before the header was written
+        Path snapshot = directory.resolve("security-state-a.snapshot");
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0);
+        }
+        
+        assertEquals(0, new SecurityStateStore(directory).storedSessionCount());
+        assertEquals(0, restore().events.size());
+    }
+    
+    private SecurityStateStore openEmpty() {
+        SecurityStateStore store = new SecurityStateStore(directory);
+        stores.add(store);
+        assertEquals(0, store.restore(new RecordingTarget()));
+        return store;
+    }
+    
+    private RecordingTarget restore() {
+        SecurityStateStore store = new SecurityStateStore(directory);
+        stores.add(store);
+        RecordingTarget target = new RecordingTarget();
+        store.restore(target);
+        return target;
+    }
+    
+    private static SecurityStateStore.SessionRecord session(String sessionId, boolean blocked, int blocks) {
+        SecurityStateStore.SessionRecord record = new SecurityStateStore.SessionRecord();
+        record.sessionId = sessionId;
+        record.minuteWindow = 60;
+        record.hourWindow = 3600;
+        record.lastSeen = 1000;
+        record.blocked = blocked;
+        record.blockChangedAt = 2000;
+        record.blocks = blocks;
+        record.blockedUntil = 9000;
+        record.incidents[0] = 1;
+        record.incidents[2] = 2;
+        return record;
+    }
+    
+    private static SecurityIncident incident(String sessionId, SecurityIncidentType type, String details, int seconds) {
+        return new SecurityIncident(sessionId, "10.0.0.1", type, details, TIME.plusSeconds(seconds));
+    }
+    
+    private static String describe(SecurityIncident incident) {
+        return incident.getSessionId() + " " + incident.getIpAddress() + " " + incident.getType() + " "
+            + incident.getDetails() + " " + incident.getTimestamp();
+    }
+    
+    private static String describe(SecurityStateStore.SessionRecord session) {
+        return session.sessionId + " " + session.minuteWindow + " " + session.hourWindow + " " + session.lastSeen + " "
+            + session.blocked + " " + session.blockChangedAt + " " + session.blocks + " " + session.blockedUntil + " "
+            + Arrays.toString(session.incidents);
+    }
+    
+    /**
+     * Records every call in order
+     */
+    private static final class RecordingTarget implements SecurityStateStore.Target {
+        private final List<String> events = new ArrayList<>();
+        
+        @Override
+        public void restoreSession(SecurityStateStore.SessionRecord session) {
+            events.add("SESSION " + describe(session));
+        }
+        
+        @Override
+        public void restoreBlockState(String sessionId, boolean blocked, long changedAt, int blocks, long blockedUntil) {
+            events.add("BLOCK " + sessionId + " " + blocked + " " + changedAt + " " + blocks + " " + blockedUntil);
+        }
+        
+        @Override
+        public void replayIncident(SecurityIncident incident) {
+            events.add("REPLAY " + describe(incident));
+        }
+        
+        @Override
+        public void restoreIncident(long sequence, SecurityIncident incident) {
+            events.add("INCIDENT " + sequence + " " + describe(incident));
+        }
+    }
+}
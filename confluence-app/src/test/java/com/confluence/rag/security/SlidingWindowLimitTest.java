@@ -0,0 +1,100 @@
+package com.confluence.rag.security;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the weighting of the previous window and the packed counter state as it
+ * rolls over windows, saturates and wraps its window number
+ */
+public class SlidingWindowLimitTest {
+    
+    private static final long WINDOW = 1000;
+    // First millisecond of a window whose number needs all 24 stored bits
+    private static final long LAST_STORED_WINDOW = ((1L << 24) - 1) * WINDOW;
+    
+    private final SlidingWindowLimit limit = new SlidingWindowLimit(WINDOW, 10);
+    
+    @Test
+    public void weightsPreviousWindowByItsRemainingShare() {
+        AtomicLong counter = new AtomicLong();
+        long start = 5 * WINDOW;
+        for (int i = 0; i < 8; i++) {
+            limit.record(counter, start + 100 * i);
+        }
+        assertEquals(8.0, limit.count(counter, start + 999), 0.0);
+        
+        // A quarter into the next window, three quarters of the previous one still count
+        limit.record(counter, start + WINDOW + 250);
+        assertEquals(1 + 8 * 0.75, limit.count(counter, start + WINDOW + 250), 1e-9);
+        assertEquals(1 + 8 * 0.25, limit.count(counter, start + WINDOW + 750), 1e-9);
+        
+        // One window later only the request of the last window is left, weighted likewise
+        assertEquals(0.5, limit.count(counter, start + 2 * WINDOW + 500), 1e-9);
+        assertTrue(limit.isDrained(counter, start + 3 * WINDOW));
+        assertEquals(start + 3 * WINDOW, limit.drainedAt(counter, start + WINDOW + 250));
+    }
+    
+    @Test
+    public void reachesLimitAcrossWindowBoundary() {
+        AtomicLong counter = new AtomicLong();
+        long start = 7 * WINDOW;
+        for (int i = 0; i < 10; i++) {
+            limit.record(counter, start + 900);
+        }
+        assertTrue(limit.isExceeded(counter, start + 999));
+        // Half of the previous window's ten requests plus five new ones reach the limit again
+        for (int i = 0; i < 4; i++) {
+            limit.record(counter, start + WINDOW + 500);
+        }
+        assertFalse(limit.isExceeded(counter, start + WINDOW + 500));
+        limit.record(counter, start + WINDOW + 500);
+        assertTrue(limit.isExceeded(counter, start + WINDOW + 500));
+    }
+    
+    @Test
+    public void saturatesWithoutSpillingIntoPreviousCount() {
+        AtomicLong counter = new AtomicLong();
+        long start = 3 * WINDOW;
+        limit.record(counter, start, SlidingWindowLimit.MAX_COUNT - 1);
+        limit.record(counter, start, 5);
+        limit.record(counter, start);
+        assertEquals(SlidingWindowLimit.MAX_COUNT, limit.count(counter, start), 0.0);
+        
+        // The saturated count moves to the previous slot intact
+        limit.record(counter, start + WINDOW, -3);
+        assertEquals(SlidingWindowLimit.MAX_COUNT / 2.0, limit.count(counter, start + WINDOW + 500), 1e-6);
+    }
+    
+    @Test
+    public void rollsOverStoredWindowNumber() {
+        AtomicLong counter = new AtomicLong();
+        limit.record(counter, LAST_STORED_WINDOW, 4);
+        assertEquals(4.0, limit.count(counter, LAST_STORED_WINDOW + 999), 0.0);
+        
+        // The next window number is 0 in the stored bits, and is still recognized as the next one
+        limit.record(counter, LAST_STORED_WINDOW + WINDOW + 500, 2);
+        assertEquals(2 + 4 * 0.5, limit.count(counter, LAST_STORED_WINDOW + WINDOW + 500), 1e-9);
+        assertEquals(1.0, limit.count(counter, LAST_STORED_WINDOW + 2 * WINDOW + 500), 1e-9);
+        assertTrue(limit.isDrained(counter, LAST_STORED_WINDOW + 3 * WINDOW));
+    }
+    
+    @Test
+    public void startsEmptyWithFreshCounter() {
+        AtomicLong counter = new AtomicLong();
+        long now = System.currentTimeMillis();
+        assertTrue(limit.isDrained(counter, now));
+        assertFalse(limit.isExceeded(counter, now));
+        assertEquals(now, limit.drainedAt(counter, now));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLimitAboveMaxCount() {
+        new SlidingWindowLimit(WINDOW, SlidingWindowLimit.MAX_COUNT + 1);
+    }
+}
@@ -0,0 +1,113 @@
+package com.confluence.rag.security;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks overlapping detector matches and the interplay of character removal,
+ * whitespace normalization and the length limit against a plain string pipeline
+ */
+public class TextSanitizerTest {
+    
+    private static final String REMOVED = "<>\"'`${}[];|&";
+    private static final String ALPHABET = "ab <>;$\t\n\r\u000B\f\u0001\u001F  xyz";
+    
+    @Test
+    public void replacesMatchesOverlappingTheReplacedOne() {
+        TextSanitizer sanitizer = TextSanitizer.builder()
+            .detector(new LiteralDetector("abcd", "[A]"))
+            .detector(new LiteralDetector("cdef", "[B]"))
+            .detector(new LiteralDetector("efgh", "[C]"))
+            .build();
+        // Each match reaches beyond the previous one, so the chain is replaced as a whole
+        assertEquals("x[A][B][C]y", sanitizer.sanitize("xabcdefghy"));
+        // A match ending inside the replaced range is dropped with it
+        assertEquals("x[A]y", sanitizer.sanitize("xabcdy"));
+        assertEquals("[B] [A]", sanitizer.sanitize("cdef abcd"));
+    }
+    
+    @Test
+    public void prefersDetectorAddedFirstAtSameStart() {
+        TextSanitizer sanitizer = TextSanitizer.builder()
+            .detector(new LiteralDetector("abc", "[SHORT]"))
+            .detector(new LiteralDetector("ab", "[PREFIX]"))
+            .build();
+        assertEquals("-[SHORT]-", sanitizer.sanitize("-abc-"));
+        
+        TextSanitizer reversed = TextSanitizer.builder()
+            .detector(new LiteralDetector("ab", "[PREFIX]"))
+            .detector(new LiteralDetector("abc", "[LONG]"))
+            .build();
+        // The longer match overlaps the end of the winner and is replaced too
+        assertEquals("-[PREFIX][LONG]-", reversed.sanitize("-abc-"));
+    }
+    
+    @Test
+    public void returnsUnchangedTextItself() {
+        TextSanitizer sanitizer = TextSanitizer.builder()
+            .removeCharacters(REMOVED)
+            .normalizeWhitespace()
+            .detector(new LiteralDetector("geheim", "***"))
+            .build();
+        String text = "wie erstelle ich eine seite";
+        assertSame(text, sanitizer.sanitize(text));
+        assertSame(text, sanitizer.sanitize(text, text.length()));
+        assertEquals("wie erstelle", sanitizer.sanitize(text, 12));
+        assertEquals("mein *** wort", sanitizer.sanitize("  mein\tgeheim  wort "));
+    }
+    
+    @Test
+    public void normalizesLikeStringPipeline() {
+        TextSanitizer sanitizer = TextSanitizer.builder()
+            .removeCharacters(REMOVED)
+            .normalizeWhitespace()
+            .build();
+        Random random = new Random(23);
+        for (int n = 0; n < 50_000; n++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(16);
+            for (int i = 0; i < length; i++) {
+                text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            int maxLength = random.nextInt(4) == 0 ? Integer.MAX_VALUE : random.nextInt(12);
+            String input = text.toString();
+            assertEquals("Sanitized [" + input + "] to " + maxLength, reference(input, maxLength), sanitizer.sanitize(input, maxLength));
+        }
+    }
+    
+    /**
+     * The replaceAll chain TextSanitizer replaced for queries
+     */
+    private static String reference(String text, int maxLength) {
+        String cleaned = text.replaceAll("[<>\"'`${}\\[\\];|&]", "").replaceAll("\\s+", " ").trim();
+        return cleaned.length() > maxLength ? cleaned.substring(0, maxLength) : cleaned;
+    }
+    
+    /**
+     * Finds a fixed string and replaces it with a fixed marker
+     */
+    private static final class LiteralDetector implements PiiDetector {
+        private final String literal;
+        private final String replacement;
+        
+        LiteralDetector(String literal, String replacement) {
+            this.literal = literal;
+            this.replacement = replacement;
+        }
+        
+        @Override
+        public long find(CharSequence text, int from) {
+            int start = text.toString().indexOf(literal, from);
+            return start < 0 ? NOT_FOUND : PiiDetector.match(start, start + literal.length());
+        }
+        
+        @Override
+        public void appendReplacement(CharSequence text, int start, int end, StringBuilder out) {
+            out.append(replacement);
+        }
+    }
+}
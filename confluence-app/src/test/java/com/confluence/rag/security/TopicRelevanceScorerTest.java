@@ -0,0 +1,136 @@
+package com.confluence.rag.security;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that TopicRelevanceScorer gives bit-identical scores to the word-by-word
+ * method it replaced, on the shipped topics and a generated corpus
+ */
+public class TopicRelevanceScorerTest {
+    
+    private static final int PARTIAL_MIN_LENGTH = 5;
+    private static final String[] SEPARATORS = {" ", "  ", "\t", "\n", "\r\n", "\u000B", "\f", " \t "};
+    private static final String[] ODD_WORDS = {
+        "wie", "ich", "die", "a", "an", "x", "123", "😀", "𝔸𝔹", "ǅ", "Ⅻ", "²",
+        "-", "?", "!", "...", "c++", "e-mail", "dokument-ation", "İ", "ß", "straße", "ÄNDERN",
+        "conf", "fluence", "ation", "backup2", "v1.2", "über", " ", " ", "\u0007"
+    };
+    
+    private final Set<String> topics = loadTopics();
+    private final TopicRelevanceScorer scorer = new TopicRelevanceScorer(topics, PARTIAL_MIN_LENGTH);
+    
+    @Test
+    public void scoresEdgeCasesLikeLegacyMethod() {
+        List<String> queries = Arrays.asList(
+            "", " ", "  ", "\t", "a", " a", "a ", " a b ", "\ta", "?", " ?", "? ?",
+            "Wie erstelle ich eine Confluence Seite?", "DOKUMENTATION", "confluencewiki",
+            "fluence", "İstanbul", "straße", "😀 wiki 😀");
+        for (String query : queries) {
+            assertScore(query);
+        }
+    }
+    
+    @Test
+    public void scoresGeneratedCorpusLikeLegacyMethod() {
+        List<String> topicList = new ArrayList<>(topics);
+        Random random = new Random(7);
+        for (int n = 0; n < 20_000; n++) {
+            StringBuilder query = new StringBuilder();
+            if (random.nextInt(20) == 0) {
+                query.append(pick(random, SEPARATORS));
+            }
+            int words = random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    query.append(pick(random, SEPARATORS));
+                }
+                String word = randomWord(random, topicList);
+                query.append(random.nextInt(8) == 0 ? word.toUpperCase() : word);
+            }
+            assertScore(random.nextInt(4) == 0 ? query.toString() : query.toString().trim().toLowerCase());
+        }
+    }
+    
+    @Test
+    public void countsTopicAndPartialMatchSeparately() {
+        TopicRelevanceScorer small = new TopicRelevanceScorer(Arrays.asList("confluence", "wiki"), PARTIAL_MIN_LENGTH);
+        // confluence: topic and long topic, wiki: topic only
+        assertEquals(1.5, small.score("Confluence wiki"), 0.0);
+        // Part of a long topic, and containing one
+        assertEquals(1.0, small.score("fluence"), 0.0);
+        assertEquals(1.0, small.score("myconfluence!"), 0.0);
+        assertEquals(0.0, small.score("wik"), 0.0);
+    }
+    
+    private void assertScore(String query) {
+        double expected = calculateTopicRelevance(query);
+        double actual = scorer.score(query);
+        assertEquals("Score of [" + query + "]", Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+    
+    private static String randomWord(Random random, List<String> topicList) {
+        String topic = topicList.get(random.nextInt(topicList.size()));
+        switch (random.nextInt(5)) {
+            case 0:
+            case 1:
+                return topic;
+            case 2:
+                int start = random.nextInt(topic.length());
+                return topic.substring(start, start + random.nextInt(topic.length() - start + 1));
+            case 3:
+                return pick(random, ODD_WORDS);
+            default:
+                return topic + pick(random, ODD_WORDS) + (random.nextBoolean() ? topicList.get(random.nextInt(topicList.size())) : "");
+        }
+    }
+    
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+    
+    /**
+     * The scoring of SecurityValidator before TopicRelevanceScorer
+     */
+    private double calculateTopicRelevance(String query) {
+        String[] words = query.split("\\s+");
+        int relevantWords = 0;
+        
+        for (String word : words) {
+            word = word.replaceAll("[^\\p{L}\\p{N}]", "").toLowerCase();
+            
+            if (word.length() > 2 && topics.contains(word)) {
+                relevantWords++;
+            }
+            
+            for (String allowedTopic : topics) {
+                if (allowedTopic.length() >= PARTIAL_MIN_LENGTH && (word.contains(allowedTopic) || allowedTopic.contains(word))) {
+                    relevantWords++;
+                    break;
+                }
+            }
+        }
+        
+        return words.length > 0 ? (double) relevantWords / words.length : 0.0;
+    }
+    
+    private static Set<String> loadTopics() {
+        Properties config = SecurityRuleStore.loadConfiguration("/security.properties");
+        Set<String> topics = new LinkedHashSet<>();
+        for (String topic : config.getProperty("security.topics", "").split(",")) {
+            if (!topic.trim().isEmpty()) {
+                topics.add(topic.trim().toLowerCase());
+            }
+        }
+        return topics;
+    }
+}
@@ -0,0 +1,230 @@
+package com.confluence.rag.service;
+
+import com.confluence.rag.http.EventStreamDecoder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds Bedrock response streams through EventStreamDecoder and BedrockStreamHandler,
+ * split into arbitrary read sizes as they arrive from the socket
+ */
+public class BedrockStreamHandlerTest {
+    
+    private static final List<String> EXPECTED_TOKENS = Arrays.asList("Hallo", " Wörld 🌍", "!");
+    
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final List<String> tokens = new ArrayList<>();
+    
+    @Test
+    public void decodesTokensInEveryReadSize() throws IOException {
+        byte[] stream = anthropicStream();
+        for (int readSize = 1; readSize <= stream.length + 1; readSize++) {
+            tokens.clear();
+            BedrockStreamHandler handler = new BedrockStreamHandler(jsonFactory, tokens::add);
+            int messages = new EventStreamDecoder(64 * 1024).decode(new SplitInputStream(stream, new int[] {readSize}), handler);
+            assertEquals("Messages with read size " + readSize, 6, messages);
+            assertEquals("Tokens with read size " + readSize, EXPECTED_TOKENS, tokens);
+            assertEquals("Hallo Wörld 🌍!", handler.getText());
+            assertEquals(3, handler.getTokenCount());
+        }
+    }
+    
+    @Test
+    public void decodesTokensInRandomReadSizes() throws IOException {
+        byte[] stream = anthropicStream();
+        Random random = new Random(11);
+        for (int round = 0; round < 200; round++) {
+            int[] readSizes = new int[16];
+            for (int i = 0; i < readSizes.length; i++) {
+                readSizes[i] = 1 + random.nextInt(40);
+            }
+            tokens.clear();
+            BedrockStreamHandler handler = new BedrockStreamHandler(jsonFactory, tokens::add);
+            new EventStreamDecoder(64 * 1024).decode(new SplitInputStream(stream, readSizes), handler);
+            assertEquals(EXPECTED_TOKENS, tokens);
+        }
+    }
+    
+    @Test
+    public void decodesMessagesLargerThanTheBuffer() throws IOException {
+        char[] filler = new char[20_000];
+        Arrays.fill(filler, 'ä');
+        String large = new String(filler);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(anthropicStream());
+        stream.write(chunk("{\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"text_delta\",\"text\":\"" + large + "\"}}"));
+        stream.write(anthropicStream());
+        BedrockStreamHandler handler = new BedrockStreamHandler(jsonFactory, tokens::add);
+        int messages = new EventStreamDecoder(64 * 1024).decode(new SplitInputStream(stream.toByteArray(), new int[] {777, 4096}), handler);
+        assertEquals(13, messages);
+        assertEquals(7, tokens.size());
+        assertEquals(large, tokens.get(3));
+    }
+    
+    @Test
+    public void extractsTextOfOtherModels() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(chunk("{\"outputText\":\"Titan\",\"index\":0}"));
+        stream.write(chunk("{\"completion\":\" Claude 2\",\"stop_reason\":null}"));
+        stream.write(chunk("{\"generation\":\" Llama\"}"));
+        stream.write(chunk("{\"text\":\"no delta\"}"));
+        BedrockStreamHandler handler = new BedrockStreamHandler(jsonFactory, tokens::add);
+        new EventStreamDecoder(64 * 1024).decode(new SplitInputStream(stream.toByteArray(), new int[] {7}), handler);
+        assertEquals(Arrays.asList("Titan", " Claude 2", " Llama"), tokens);
+    }
+    
+    @Test
+    public void rejectsCorruptMessageChecksum() {
+        byte[] stream = anthropicStream();
+        // A byte of the second message's payload
+        int second = ByteBuffer.wrap(stream).getInt(0);
+        stream[second + ByteBuffer.wrap(stream).getInt(second) - 10] ^= 1;
+        assertDecodeFails(stream, "message checksum");
+        assertEquals("Tokens before the corrupt message", 0, tokens.size());
+    }
+    
+    @Test
+    public void rejectsCorruptPreludeChecksum() {
+        byte[] stream = anthropicStream();
+        stream[9] ^= 1;
+        assertDecodeFails(stream, "prelude checksum");
+    }
+    
+    @Test
+    public void rejectsTruncatedTail() {
+        byte[] stream = anthropicStream();
+        byte[] truncated = Arrays.copyOf(stream, stream.length - 5);
+        try {
+            new EventStreamDecoder(64 * 1024).decode(new SplitInputStream(truncated, new int[] {3}),
+                                                     new BedrockStreamHandler(jsonFactory, tokens::add));
+            fail("Truncated stream was accepted");
+        } catch (EOFException e) {
+            // Every complete message before the cut was delivered
+            assertEquals(EXPECTED_TOKENS, tokens);
+        } catch (IOException e) {
+            fail("Expected EOFException but got " + e);
+        }
+    }
+    
+    @Test
+    public void reportsExceptionMessages() {
+        byte[] stream = frame(new String[][] {
+            {":message-type", "exception"}, {":exception-type", "throttlingException"}, {":content-type", "application/json"}
+        }, "{\"message\":\"Too many requests\"}".getBytes(StandardCharsets.UTF_8));
+        assertDecodeFails(stream, "throttlingException");
+    }
+    
+    private void assertDecodeFails(byte[] stream, String expectedMessage) {
+        try {
+            new EventStreamDecoder(64 * 1024).decode(new SplitInputStream(stream, new int[] {5, 11}),
+                                                     new BedrockStreamHandler(jsonFactory, tokens::add));
+            fail("Stream was accepted");
+        } catch (IOException e) {
+            assertTrue("Unexpected error " + e.getMessage(), e.getMessage().contains(expectedMessage));
+        }
+    }
+    
+    /**
+     * A Claude messages response as Bedrock streams it, ending with the invocation metrics
+     */
+    private static byte[] anthropicStream() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            stream.write(chunk("{\"type\":\"message_start\",\"message\":{\"id\":\"msg_01\",\"type\":\"message\",\"role\":\"assistant\","
+                + "\"content\":[],\"usage\":{\"input_tokens\":12,\"output_tokens\":1}}}"));
+            stream.write(chunk("{\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"text_delta\",\"text\":\"Hallo\"}}"));
+            stream.write(chunk("{\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"text_delta\",\"text\":\" Wörld 🌍\"}}"));
+            stream.write(chunk("{\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"text_delta\",\"text\":\"!\"}}"));
+            stream.write(chunk("{\"type\":\"message_delta\",\"delta\":{\"stop_reason\":\"end_turn\"},\"usage\":{\"output_tokens\":4}}"));
+            stream.write(chunk("{\"type\":\"message_stop\",\"amazon-bedrock-invocationMetrics\":{\"inputTokenCount\":12,"
+                + "\"outputTokenCount\":4,\"invocationLatency\":512,\"firstByteLatency\":230}}"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return stream.toByteArray();
+    }
+    
+    private static byte[] chunk(String modelJson) {
+        String bytes = Base64.getEncoder().encodeToString(modelJson.getBytes(StandardCharsets.UTF_8));
+        String payload = "{\"bytes\":\"" + bytes + "\",\"p\":\"abcdefghij\"}";
+        return frame(new String[][] {
+            {":event-type", "chunk"}, {":content-type", "application/json"}, {":message-type", "event"}
+        }, payload.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Encodes one event stream message with string headers
+     */
+    private static byte[] frame(String[][] headers, byte[] payload) {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        for (String[] header : headers) {
+            byte[] name = header[0].getBytes(StandardCharsets.US_ASCII);
+            byte[] value = header[1].getBytes(StandardCharsets.UTF_8);
+            headerBytes.write(name.length);
+            headerBytes.write(name, 0, name.length);
+            headerBytes.write(7);
+            headerBytes.write(value.length >> 8);
+            headerBytes.write(value.length & 0xFF);
+            headerBytes.write(value, 0, value.length);
+        }
+        int totalLength = 12 + headerBytes.size() + payload.length + 4;
+        ByteBuffer message = ByteBuffer.allocate(totalLength);
+        message.putInt(totalLength);
+        message.putInt(headerBytes.size());
+        message.putInt(crc(message.array(), 8));
+        message.put(headerBytes.toByteArray());
+        message.put(payload);
+        message.putInt(crc(message.array(), totalLength - 4));
+        return message.array();
+    }
+    
+    private static int crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Returns at most the next of the given read sizes per read, cycling through them
+     */
+    private static final class SplitInputStream extends InputStream {
+        private final ByteArrayInputStream input;
+        private final int[] readSizes;
+        private int reads;
+        
+        SplitInputStream(byte[] bytes, int[] readSizes) {
+            this.input = new ByteArrayInputStream(bytes);
+            this.readSizes = readSizes;
+        }
+        
+        @Override
+        public int read() {
+            return input.read();
+        }
+        
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            int size = readSizes[reads++ % readSizes.length];
+            return input.read(target, offset, Math.min(length, size));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.confluence.rag.tokenizer;
+
+import com.confluence.rag.api.TokenCounter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs BpeTokenizer on a small fixture vocabulary and compares its counts with a
+ * plain byte-pair merge that rescans all parts for every merge
+ */
+public class BpeTokenizerTest {
+    
+    // Merged tokens of the fixture, in rank order after the 256 single bytes
+    private static final String[] MERGES = {
+        "er", "en", "ch", "ei", "in", "ie", "un", "de", " d", " de", " der", "der", "ung", "ein",
+        "sch", "st", " s", "te", "ten", "an", "aa", "aaaa", "ab", "ba", "ü", "üb", "über", "be",
+        "ben", "ge", "ch ", "rst", "ins", "ns", "aaaaaaaa"
+    };
+    private static final String LETTERS = "aabbdeeeinrrstucghüü";
+    
+    private final Map<String, Integer> ranks = fixtureRanks();
+    private final BpeTokenizer tokenizer = load(ranks);
+    
+    @Test
+    public void countsKnownWords() {
+        assertEquals(256 + MERGES.length, tokenizer.getVocabularySize());
+        assertEquals(1, tokenizer.countTokens("der"));
+        assertEquals(1, tokenizer.countTokens(" der"));
+        // P r ü f ung
+        assertEquals(5, tokenizer.countTokens("Prüfung"));
+        // Word with its leading space, digit groups of three, punctuation run
+        assertEquals(1 + 3 + 2 + 2, tokenizer.countTokens(" der12345?!"));
+        assertEquals(0, tokenizer.countTokens(""));
+        assertEquals(0, tokenizer.countTokens(null));
+    }
+    
+    @Test
+    public void mergesLikePlainBytePairEncoding() {
+        Random random = new Random(17);
+        for (int n = 0; n < 5_000; n++) {
+            StringBuilder word = new StringBuilder();
+            int length = 1 + random.nextInt(random.nextInt(10) == 0 ? 200 : 12);
+            for (int i = 0; i < length; i++) {
+                word.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+            }
+            String text = word.toString();
+            assertEquals("Tokens of [" + text + "]", referenceCount(text), tokenizer.countTokens(text));
+        }
+    }
+    
+    @Test(timeout = 5000)
+    public void mergesLongPreTokensQuickly() {
+        // No merge crosses from one "deraaaa" to the next, each becomes "der" "aaaa"
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < 30_000; i++) {
+            word.append("deraaaa");
+        }
+        assertEquals(2 * 30_000, tokenizer.countTokens(word));
+    }
+    
+    @Test
+    public void truncatesAtPreTokenBoundary() {
+        String text = " der schein über den steinen";
+        int total = tokenizer.countTokens(text);
+        for (int maxTokens = 0; maxTokens <= total; maxTokens++) {
+            String truncated = tokenizer.truncate(text, maxTokens);
+            assertTrue(text.startsWith(truncated));
+            assertTrue(tokenizer.countTokens(truncated) <= maxTokens);
+        }
+        assertEquals(text, tokenizer.truncate(text, total));
+        assertEquals(" der", tokenizer.truncate(text, 1));
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsInvalidVocabularyLine() throws IOException {
+        BpeTokenizer.load(new ByteArrayInputStream("YQ==\n".getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    @Test
+    public void fallsBackToApproximateCountsWithoutVocabulary() {
+        TokenCounter counter = TokenizerFactory.fromResource("");
+        assertTrue(counter instanceof ApproximateTokenCounter);
+        assertTrue(TokenizerFactory.fromResource("/tokenizer/missing.tiktoken") instanceof ApproximateTokenCounter);
+    }
+    
+    /**
+     * Byte-pair merging as specified: repeatedly merge the leftmost adjacent pair with
+     * the lowest rank, unless the whole piece is a token
+     */
+    private int referenceCount(String text) {
+        String bytes = new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+        if (ranks.containsKey(bytes)) {
+            return 1;
+        }
+        List<String> parts = new ArrayList<>();
+        for (char c : bytes.toCharArray()) {
+            parts.add(String.valueOf(c));
+        }
+        while (true) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i + 1 < parts.size(); i++) {
+                Integer rank = ranks.get(parts.get(i) + parts.get(i + 1));
+                if (rank != null && rank < bestRank) {
+                    bestRank = rank;
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return parts.size();
+            }
+            parts.set(best, parts.get(best) + parts.remove(best + 1));
+        }
+    }
+    
+    /**
+     * Ranks of the fixture tokens, keyed by their UTF-8 bytes as ISO-8859-1 text
+     */
+    private static Map<String, Integer> fixtureRanks() {
+        Map<String, Integer> ranks = new HashMap<>();
+        for (int b = 0; b < 256; b++) {
+            ranks.put(String.valueOf((char) b), b);
+        }
+        for (String merge : MERGES) {
+            ranks.put(new String(merge.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1), ranks.size());
+        }
+        return ranks;
+    }
+    
+    private static BpeTokenizer load(Map<String, Integer> ranks) {
+        StringBuilder vocabulary = new StringBuilder();
+        for (Map.Entry<String, Integer> token : ranks.entrySet()) {
+            vocabulary.append(Base64.getEncoder().encodeToString(token.getKey().getBytes(StandardCharsets.ISO_8859_1)))
+                .append(' ').append(token.getValue()).append('\n');
+        }
+        try {
+            return BpeTokenizer.load(new ByteArrayInputStream(vocabulary.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.confluence.rag.util;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that samples are spread over the whole map rather than its first bins
+ */
+public class EvictionSamplerTest {
+    
+    private static final int SAMPLE_SIZE = 8;
+    
+    @Test
+    public void samplesFromEveryRegionOfTheMap() {
+        Map<String, Integer> map = sessions(10_000);
+        Set<Integer> victims = new HashSet<>();
+        for (int n = 0; n < 2_000; n++) {
+            victims.add(EvictionSampler.leastOfSample(map.values(), SAMPLE_SIZE, Comparator.naturalOrder(), value -> true));
+        }
+        // Sampling the first entries would return the same victim every time
+        assertTrue("Distinct victims " + victims.size(), victims.size() > 1_000);
+    }
+    
+    @Test
+    public void evictsOldEntriesFirstOnAverage() {
+        Map<String, Integer> map = sessions(10_000);
+        // A random victim would average 5000; the least of a sample is far older
+        long total = 0;
+        for (int n = 0; n < 1_000; n++) {
+            Integer victim = EvictionSampler.leastOfSample(map.values(), SAMPLE_SIZE, Comparator.naturalOrder(), value -> true);
+            map.values().remove(victim);
+            total += victim;
+        }
+        assertTrue("Average victim " + total / 1_000, total / 1_000 < 3_000);
+    }
+    
+    @Test
+    public void skipsIneligibleValues() {
+        Map<Integer, Integer> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            map.put(i, i);
+        }
+        assertEquals(Integer.valueOf(1), EvictionSampler.leastOfSample(map.values(), SAMPLE_SIZE, Comparator.naturalOrder(), value -> value != 0));
+        assertNull(EvictionSampler.leastOfSample(map.values(), SAMPLE_SIZE, Comparator.naturalOrder(), value -> false));
+        assertNull(EvictionSampler.leastOfSample(new ConcurrentHashMap<Integer, Integer>().values(), SAMPLE_SIZE,
+                                                 Comparator.naturalOrder(), value -> true));
+    }
+    
+    /**
+     * Session ids mapped to their age rank, as random as the ids the stores are keyed by
+     */
+    private static Map<String, Integer> sessions(int count) {
+        Random random = new Random(9);
+        Map<String, Integer> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put("session-" + Long.toHexString(random.nextLong()), i);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,138 @@
+package com.confluence.rag.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that timeouts on a small wheel expire in the advance that reaches their
+ * deadline, whether they sit on the lowest level, cascade down or lie beyond its range
+ */
+public class TimingWheelTest {
+    
+    // 4 buckets per level and 4 levels: the wheel reaches 256 ticks ahead
+    private static final int WHEEL_SIZE = 4;
+    private static final long TICK_MILLIS = 10;
+    private static final long START_MILLIS = 1_000_003;
+    
+    private final List<Long> expired = new ArrayList<>();
+    
+    @Test
+    public void expiresTimeoutsOnTheLowestLevel() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, START_MILLIS, expired::add);
+        wheel.schedule(1L, START_MILLIS + 25);
+        wheel.advance(START_MILLIS + 15);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START_MILLIS + 27);
+        assertEquals(List.of(1L), expired);
+    }
+    
+    @Test
+    public void cascadesTimeoutsDownEveryLevel() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, START_MILLIS, expired::add);
+        long startTick = START_MILLIS / TICK_MILLIS;
+        // On levels 1, 2 and 3, each moving down until it reaches the lowest one
+        long[] ticks = {startTick + 9, startTick + 37, startTick + 201};
+        List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>();
+        for (long tick : ticks) {
+            timeouts.add(wheel.schedule(tick, tick * TICK_MILLIS));
+        }
+        wheel.advance(START_MILLIS);
+        for (long tick = startTick + 1; tick <= startTick + 210; tick++) {
+            wheel.advance(tick * TICK_MILLIS + 9);
+            for (int i = 0; i < ticks.length; i++) {
+                assertEquals("Timeout for tick " + ticks[i] + " at tick " + tick, tick >= ticks[i], timeouts.get(i).isExpired());
+            }
+        }
+        assertEquals(List.of(ticks[0], ticks[1], ticks[2]), expired);
+    }
+    
+    @Test
+    public void placesTimeoutsBeyondTheRangeAgain() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, START_MILLIS, expired::add);
+        long startTick = START_MILLIS / TICK_MILLIS;
+        long far = startTick + 1000;
+        TimingWheel.Timeout<Long> timeout = wheel.schedule(far, far * TICK_MILLIS);
+        wheel.advance((far - 1) * TICK_MILLIS);
+        assertFalse(timeout.isExpired());
+        wheel.advance(far * TICK_MILLIS);
+        assertTrue(timeout.isExpired());
+        assertEquals(List.of(far), expired);
+    }
+    
+    @Test
+    public void expiresPastDeadlinesOnNextAdvance() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, START_MILLIS, expired::add);
+        wheel.advance(START_MILLIS + 100);
+        wheel.schedule(1L, START_MILLIS - 500);
+        wheel.advance(START_MILLIS + 100);
+        assertEquals(List.of(1L), expired);
+    }
+    
+    @Test
+    public void skipsCancelledTimeouts() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, START_MILLIS, expired::add);
+        TimingWheel.Timeout<Long> beforePlacing = wheel.schedule(1L, START_MILLIS + 30);
+        beforePlacing.cancel();
+        TimingWheel.Timeout<Long> onHigherLevel = wheel.schedule(2L, START_MILLIS + 900);
+        wheel.advance(START_MILLIS + 10);
+        onHigherLevel.cancel();
+        wheel.schedule(3L, START_MILLIS + 600);
+        wheel.advance(START_MILLIS + 5000);
+        assertEquals(List.of(3L), expired);
+        assertTrue(onHigherLevel.isCancelled());
+        assertFalse(onHigherLevel.isExpired());
+    }
+    
+    @Test
+    public void expiresRandomTimeoutsInTheAdvanceReachingTheirDeadline() {
+        Random random = new Random(17);
+        List<Long> advances = new ArrayList<>();
+        Map<Long, Integer> expiredIn = new HashMap<>();
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, START_MILLIS,
+                                                    id -> assertNull(expiredIn.put(id, advances.size() - 1)));
+        List<long[]> scheduled = new ArrayList<>();
+        List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>();
+        long now = START_MILLIS;
+        for (int id = 0; id < 20_000; id++) {
+            if (random.nextInt(4) == 0) {
+                now += random.nextInt(random.nextInt(10) == 0 ? 3000 : 60);
+                advances.add(now);
+                wheel.advance(now);
+            }
+            // Some in the past, some beyond the 256 ticks the wheel reaches
+            long deadline = now - 100 + random.nextInt(random.nextInt(20) == 0 ? 10_000 : 3000);
+            scheduled.add(new long[] {deadline, advances.size(), Long.MAX_VALUE});
+            timeouts.add(wheel.schedule((long) id, deadline));
+            if (random.nextInt(10) == 0) {
+                int victim = random.nextInt(id + 1);
+                timeouts.get(victim).cancel();
+                scheduled.get(victim)[2] = Math.min(scheduled.get(victim)[2], advances.size());
+            }
+        }
+        for (long end = now + 20_000; now < end; now += 37) {
+            advances.add(now);
+            wheel.advance(now);
+        }
+        
+        for (int id = 0; id < timeouts.size(); id++) {
+            long deadlineTick = scheduled.get(id)[0] / TICK_MILLIS;
+            int due = (int) scheduled.get(id)[1];
+            while (advances.get(due) / TICK_MILLIS < deadlineTick) {
+                due++;
+            }
+            boolean cancelledBefore = scheduled.get(id)[2] <= due;
+            assertEquals("Advance expiring timeout " + id, cancelledBefore ? null : Integer.valueOf(due), expiredIn.get((long) id));
+            assertEquals(!cancelledBefore, timeouts.get(id).isExpired());
+        }
+    }
+}